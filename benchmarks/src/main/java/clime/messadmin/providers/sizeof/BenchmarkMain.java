@@ -0,0 +1,36 @@
+package clime.messadmin.providers.sizeof;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of <code>benchmarks.jar</code>: same command line as the JMH
+ * launcher, but always runs with the GC profiler, so that the allocation
+ * rate per sizing operation (<code>gc.alloc.rate.norm</code>) is reported
+ * alongside the throughput.
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar [JMH options] [benchmark regexp]
+ * </pre>
+ *
+ * @author C&eacute;drik LIME
+ */
+public final class BenchmarkMain {
+
+	private BenchmarkMain() {
+	} // this class is not extendible
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		final CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+		final Options options = new OptionsBuilder()
+				.parent(commandLineOptions)
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
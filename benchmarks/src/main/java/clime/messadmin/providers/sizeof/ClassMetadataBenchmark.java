@@ -0,0 +1,55 @@
+package clime.messadmin.providers.sizeof;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of the (cached) class metadata lookup, done for each object of the
+ * graph; also run concurrently, as several sessions can be sized at once.
+ *
+ * @author C&eacute;drik LIME
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClassMetadataBenchmark {
+
+	private final Class<?>[] m_classes = {
+		String.class, Integer.class, Long.class, Date.class, ArrayList.class,
+		LinkedList.class, HashMap.class, TreeMap.class, ConcurrentHashMap.class,
+		GraphShape.class, Object.class, StringBuilder.class
+	};
+
+	@Benchmark
+	public void getClassMetadata(Blackhole blackhole) {
+		for (int i = 0; i < m_classes.length; ++i) {
+			blackhole.consume(ObjectProfiler.getClassMetadata(m_classes[i]));
+		}
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void getClassMetadataConcurrent(Blackhole blackhole) {
+		getClassMetadata(blackhole);
+	}
+}
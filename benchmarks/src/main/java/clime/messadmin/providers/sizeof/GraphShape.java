@@ -0,0 +1,137 @@
+package clime.messadmin.providers.sizeof;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionContext;
+
+import clime.messadmin.model.Session;
+
+/**
+ * Object graph shapes exercised by the benchmarks. Each graph also references
+ * a "shared" subgraph (as application-scoped data would be), which is the base
+ * of the {@link ObjectProfiler#sizedelta(Object, Object)} benchmarks.
+ *
+ * @author C&eacute;drik LIME
+ */
+public enum GraphShape {
+	/** deep graph: 100,000 linked nodes */
+	LINKED_LIST {
+		@Override
+		Object create(final Object shared) {
+			final List<Object> list = new LinkedList<Object>();
+			for (int i = 0; i < 100000; ++i) {
+				list.add(Integer.valueOf(i));
+			}
+			list.add(shared);
+			return list;
+		}
+	},
+	/** wide graph: 100,000 map entries */
+	WIDE_MAP {
+		@Override
+		Object create(final Object shared) {
+			final Map<Object, Object> map = new HashMap<Object, Object>();
+			for (int i = 0; i < 100000; ++i) {
+				map.put("key" + i, Long.valueOf(i));
+			}
+			map.put("shared", shared);
+			return map;
+		}
+	},
+	/** huge array: 1,000,000 slots */
+	HUGE_ARRAY {
+		@Override
+		Object create(final Object shared) {
+			final Object[] array = new Object[1000000];
+			for (int i = 0; i < array.length; i += 2) {
+				array[i] = new int[] {i};
+			}
+			array[1] = shared;
+			return array;
+		}
+	},
+	/** MessAdmin Session with 50 attributes of various types */
+	SESSION {
+		@Override
+		Object create(final Object shared) {
+			final BenchmarkHttpSession httpSession = new BenchmarkHttpSession();
+			for (int i = 0; i < 10; ++i) {
+				httpSession.setAttribute("string" + i, "value of attribute " + i);
+				httpSession.setAttribute("date" + i, new Date());
+				httpSession.setAttribute("list" + i, new ArrayList<Object>(Collections.nCopies(100, Integer.valueOf(i))));
+				httpSession.setAttribute("bytes" + i, new byte[1024 * i]);
+				httpSession.setAttribute("map" + i, new HashMap<Object, Object>(Collections.singletonMap("key", "value" + i)));
+			}
+			httpSession.setAttribute("shared", shared);
+			return new Session(httpSession);
+		}
+	},
+	/** 1,000 small roots, all referencing the shared subgraph */
+	SHARED_SUBGRAPHS {
+		@Override
+		Object create(final Object shared) {
+			final Object[] roots = new Object[1000];
+			for (int i = 0; i < roots.length; ++i) {
+				final List<Object> root = new ArrayList<Object>();
+				root.add("root" + i);
+				root.add(new Date());
+				root.add(shared);
+				roots[i] = root;
+			}
+			return roots;
+		}
+	};
+
+	abstract Object create(Object shared);
+
+	/**
+	 * @return the "shared" subgraph: 1,000 strings in a map
+	 */
+	static Object createShared() {
+		final Map<Object, Object> shared = new HashMap<Object, Object>();
+		for (int i = 0; i < 1000; ++i) {
+			shared.put(Integer.valueOf(i), "shared value " + i);
+		}
+		return shared;
+	}
+
+	/*
+	 * Minimal HttpSession: attributes only.
+	 */
+	private static final class BenchmarkHttpSession implements HttpSession {
+		private final Map<String, Object> m_attributes = new HashMap<String, Object>();
+		private final long m_creationTime = System.currentTimeMillis();
+
+		public long getCreationTime() {return m_creationTime;}
+		public String getId() {return "benchmark";}
+		public long getLastAccessedTime() {return m_creationTime;}
+		public ServletContext getServletContext() {return null;}
+		public void setMaxInactiveInterval(int interval) {}
+		public int getMaxInactiveInterval() {return 0;}
+		@Deprecated
+		public HttpSessionContext getSessionContext() {return null;}
+		public Object getAttribute(String name) {return m_attributes.get(name);}
+		@Deprecated
+		public Object getValue(String name) {return getAttribute(name);}
+		public Enumeration getAttributeNames() {return Collections.enumeration(m_attributes.keySet());}
+		@Deprecated
+		public String[] getValueNames() {return m_attributes.keySet().toArray(new String[m_attributes.size()]);}
+		public void setAttribute(String name, Object value) {m_attributes.put(name, value);}
+		@Deprecated
+		public void putValue(String name, Object value) {setAttribute(name, value);}
+		public void removeAttribute(String name) {m_attributes.remove(name);}
+		@Deprecated
+		public void removeValue(String name) {removeAttribute(name);}
+		public void invalidate() {}
+		public boolean isNew() {return false;}
+	}
+}
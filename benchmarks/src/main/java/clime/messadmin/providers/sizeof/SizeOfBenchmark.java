@@ -0,0 +1,80 @@
+package clime.messadmin.providers.sizeof;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the sizing engines, for each {@link GraphShape}.
+ *
+ * @author C&eacute;drik LIME
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Benchmark)
+public class SizeOfBenchmark {
+
+	@Param
+	public GraphShape shape;
+
+	private Object m_shared;
+	private Object m_graph;
+	private Baseline m_baseline;
+
+	@Setup
+	public void setUp() {
+		m_shared = GraphShape.createShared();
+		m_graph = shape.create(m_shared);
+		m_baseline = ObjectProfiler.baseline(m_shared);
+		if (ObjectProfiler.sizeof(m_graph) <= 0) {
+			throw new IllegalStateException("Can not size " + shape);
+		}
+	}
+
+	@Benchmark
+	public long sizeof() {
+		return ObjectProfiler.sizeof(m_graph);
+	}
+
+	/**
+	 * Same as {@link #sizeof()}, with generated class walkers (see ClassWalkers).
+	 */
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g", "-D" + ClassWalkers.ENABLED_PROPERTY + "=true"})
+	public long sizeofWalkers() {
+		return ObjectProfiler.sizeof(m_graph);
+	}
+
+	@Benchmark
+	public long sizedelta() {
+		return ObjectProfiler.sizedelta(m_shared, m_graph);
+	}
+
+	@Benchmark
+	public long sizedeltaBaseline() {
+		return ObjectProfiler.sizedelta(m_baseline, m_graph);
+	}
+
+	@Benchmark
+	public long sizeofParallel() {
+		return ObjectProfiler.sizeofParallel(m_graph);
+	}
+
+	@Benchmark
+	public Object histogram() {
+		return ObjectProfiler.histogram(m_graph);
+	}
+}
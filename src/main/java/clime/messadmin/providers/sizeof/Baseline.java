@@ -0,0 +1,67 @@
+package clime.messadmin.providers.sizeof;
+
+/**
+ * Snapshot of the objects reachable from a graph boundary (e.g. the
+ * <code>ServletContext</code>, or the application state shared by all
+ * sessions), for {@link ObjectProfiler#sizedelta(Baseline, Object)}: the
+ * boundary is walked once, instead of once per delta.
+ *
+ * <P>
+ * The snapshot is an identity set, which references the objects of the
+ * boundary: drop (or re-capture) a baseline when its boundary changes.
+ * Objects which are added to the boundary afterwards are counted by the deltas.
+ *
+ * <P>
+ * This class is immutable, and can be shared by concurrent
+ * {@link ObjectProfiler#sizedelta(Baseline, Object)} calls.
+ *
+ * @author C&eacute;drik LIME
+ * @see ObjectProfiler#baseline(Object)
+ */
+public final class Baseline {
+	// public: ................................................................
+
+	/**
+	 * @return size of the boundary graph
+	 */
+	public long getSize() {
+		return m_size;
+	}
+
+	/**
+	 * @return number of objects of the boundary graph
+	 */
+	public int getObjectCount() {
+		return m_objects.size();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public String toString() {
+		return "Baseline[size=" + m_size + ", objects=" + m_objects.size() + ']';
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	Baseline(final IdentitySet objects, final long size) {
+		m_objects = objects;
+		m_size = size;
+	}
+
+	/**
+	 * @return the objects of the boundary graph [read-only]
+	 */
+	IdentitySet getObjects() {
+		return m_objects;
+	}
+
+	// private: ...............................................................
+
+	private final IdentitySet m_objects;
+	private final long m_size;
+
+} // end of class
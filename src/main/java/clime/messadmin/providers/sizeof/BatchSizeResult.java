@@ -0,0 +1,100 @@
+package clime.messadmin.providers.sizeof;
+
+/**
+ * Result of {@link ObjectProfiler#sizeofAll(Object[])}: sizes of several
+ * object graphs, measured in a single traversal.
+ *
+ * <P>
+ * Each object reachable from the roots is accounted for exactly once in
+ * {@link #getTotalSize()}. For each root, objects are either:
+ * <ul>
+ * <li><em>exclusive</em>: only reachable from this root
+ * ({@link #getExclusiveSize(int)});</li>
+ * <li><em>shared</em>: also reachable from at least one other root
+ * ({@link #getSharedSize(int)}).</li>
+ * </ul>
+ * Therefore the sum of all exclusive sizes plus {@link #getSharedTotalSize()}
+ * is the total size.
+ *
+ * <P>
+ * The native memory of the direct and mapped buffers reachable from the roots
+ * is reported separately, for all roots ({@link #getOffHeapSize()}): it is
+ * not part of the heap sizes.
+ *
+ * @author C&eacute;drik LIME
+ */
+public class BatchSizeResult {
+	private final long[] m_exclusiveSizes;
+	private final long[] m_sharedSizes;
+	private final long m_totalSize;
+	private final long m_sharedTotalSize;
+	private final long m_offHeapSize;
+
+	BatchSizeResult(final long[] exclusiveSizes, final long[] sharedSizes,
+			final long totalSize, final long sharedTotalSize, final long offHeapSize) {
+		m_exclusiveSizes = exclusiveSizes;
+		m_sharedSizes = sharedSizes;
+		m_totalSize = totalSize;
+		m_sharedTotalSize = sharedTotalSize;
+		m_offHeapSize = offHeapSize;
+	}
+
+	/**
+	 * @return number of roots (including <code>null</code> ones)
+	 */
+	public int getRootCount() {
+		return m_exclusiveSizes.length;
+	}
+
+	/**
+	 * @return size of the objects only reachable from root <code>i</code>
+	 */
+	public long getExclusiveSize(final int i) {
+		return m_exclusiveSizes[i];
+	}
+
+	/**
+	 * @return size of the objects reachable from root <code>i</code> and from other roots
+	 */
+	public long getSharedSize(final int i) {
+		return m_sharedSizes[i];
+	}
+
+	/**
+	 * @return full size of the object graph rooted at root <code>i</code>,
+	 *	i.e. what {@link ObjectProfiler#sizeof(Object)} would return
+	 */
+	public long getSize(final int i) {
+		return m_exclusiveSizes[i] + m_sharedSizes[i];
+	}
+
+	/**
+	 * @return deduplicated size of all roots
+	 */
+	public long getTotalSize() {
+		return m_totalSize;
+	}
+
+	/**
+	 * @return deduplicated size of the objects shared between roots
+	 */
+	public long getSharedTotalSize() {
+		return m_sharedTotalSize;
+	}
+
+	/**
+	 * @return deduplicated number of bytes of native memory held by the direct buffers of all roots
+	 * @see SizeOfResult#getOffHeapSize()
+	 */
+	public long getOffHeapSize() {
+		return m_offHeapSize;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[roots=" + getRootCount()
+				+ ", total=" + m_totalSize + ", shared=" + m_sharedTotalSize
+				+ (m_offHeapSize > 0 ? ", offHeap=" + m_offHeapSize : "") + ']';
+	}
+}
@@ -0,0 +1,300 @@
+package clime.messadmin.providers.sizeof;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Implementation of {@link ObjectProfiler#sizeofAll(Object[])}: sizes several
+ * roots in one traversal, attributing each object either to the single root
+ * it is reachable from, or to the "shared" pool.
+ *
+ * <P>
+ * Roots are walked in order; each object is owned by the first root reaching
+ * it. When a root reaches an object owned by another root, the subgraph of that
+ * object is converted to "shared" (this subgraph only contains objects owned
+ * by that other root, or already shared ones). Hence each object is sized at
+ * most twice, whatever the number of roots.
+ *
+ * <P>
+ * The shared size of each root is then computed by walking the shared
+ * subgraph only, from the entry points each root reached. Since most roots
+ * usually reach the shared objects through the same few entry points (e.g. the
+ * <code>ServletContext</code>), this walk is only done once per distinct set
+ * of entry points.
+ *
+ * <P>
+ * All objects are sized by the per-object step of
+ * {@link ObjectProfiler#sizeof(Object)}; the ownership of each object is
+ * handled when it is visited (see {@link WalkTraversal} and
+ * {@link ShareTraversal}), which also covers the internal structures of the
+ * FastSizers.
+ *
+ * @author C&eacute;drik LIME
+ */
+final class BatchSizeof {
+	// public: ................................................................
+
+	/**
+	 * @see ObjectProfiler#sizeofAll(Object[])
+	 */
+	static BatchSizeResult sizeofAll(final Object[] roots) {
+		final BatchSizeof batch = new BatchSizeof(roots.length);
+		for (int r = 0; r < roots.length; ++r) {
+			final Object root = roots[r];
+			if (root != null && !ObjectProfiler.isSharedFlyweight(root)) {
+				batch.walk(r, root);
+			}
+		}
+		final long[] sharedSizes = new long[roots.length];
+		batch.computeSharedSizes(sharedSizes);
+		return new BatchSizeResult(batch.m_exclusiveSizes, sharedSizes,
+				batch.m_totalSize, batch.m_sharedTotalSize, batch.m_offHeap.getSize());
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private static final int SHARED = -1;
+	private static final int NONE = -1;
+
+	private final IdentityIntMap m_owners = new IdentityIntMap(0); // object -> root index, or SHARED
+	private final ObjectStack m_stack = new ObjectStack();
+	private final WalkTraversal m_walkTraversal = new WalkTraversal();
+	private final ShareTraversal m_shareTraversal = new ShareTraversal();
+	private final OffHeapMemory m_offHeap = new OffHeapMemory(); // recorded by the walks only: shared objects are sized again
+	private final long[] m_exclusiveSizes;
+	private long m_totalSize = 0;
+	private long m_sharedTotalSize = 0;
+
+	// shared entry points, as one linked list per root:
+	private final int[] m_entryHeads; // root -> index of first entry, or NONE
+	private int[] m_entryNexts = new int[16];
+	private Object[] m_entryObjects = new Object[16];
+	private int m_entryCount = 0;
+
+	private BatchSizeof(final int rootCount) {
+		m_walkTraversal.m_offHeap = m_offHeap;
+		m_exclusiveSizes = new long[rootCount];
+		m_entryHeads = new int[rootCount];
+		Arrays.fill(m_entryHeads, NONE);
+	}
+
+	/*
+	 * Walks the graph of root 'r', claiming all unowned objects.
+	 */
+	private void walk(final int r, final Object root) {
+		final ObjectStack stack = m_stack;
+		final WalkTraversal traversal = m_walkTraversal;
+		traversal.m_root = r;
+		if (!traversal.markVisited(root)) {
+			return;
+		}
+		Object obj = root;
+		while (true) {
+			final long size = ObjectProfiler.sizeofObject(obj, traversal);
+			m_exclusiveSizes[r] += size;
+			m_totalSize += size;
+			if (stack.isEmpty()) {
+				return;
+			}
+			obj = stack.pop();
+		}
+	}
+
+	/*
+	 * Converts the subgraph rooted at 'obj' (owned by 'owner') to SHARED.
+	 * Uses the top of the stack, leaving it as it was.
+	 */
+	private void share(final Object obj, final int owner) {
+		final ObjectStack stack = m_stack;
+		final ShareTraversal traversal = m_shareTraversal;
+		traversal.m_owner = owner;
+		final int mark = stack.size();
+		traversal.markVisited(obj);
+		Object o = obj;
+		while (true) {
+			final long size = ObjectProfiler.sizeofObject(o, traversal);
+			m_exclusiveSizes[owner] -= size;
+			m_sharedTotalSize += size;
+			if (stack.size() == mark) {
+				break;
+			}
+			o = stack.pop();
+		}
+	}
+
+	/*
+	 * Traversal of the graph of a root: an object is visited the first time
+	 * any root reaches it; reaching an object owned by another root shares it.
+	 */
+	private final class WalkTraversal extends ObjectProfiler.Traversal {
+		int m_root;
+
+		WalkTraversal() {
+			super(null, null);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		boolean markVisited(final Object obj) {
+			final int owner = m_owners.get(obj);
+			if (owner == IdentityIntMap.NO_VALUE) {
+				m_owners.put(obj, m_root);
+				return true;
+			}
+			if (owner == m_root || ObjectProfiler.isExcluded(obj)) {
+				return false;
+			}
+			if (owner == SHARED) {
+				addEntry(m_root, obj);
+			} else {
+				share(obj, owner);
+				addEntry(owner, obj);
+				addEntry(m_root, obj);
+			}
+			return false;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		void schedule(final Object obj) {
+			m_stack.push(obj);
+		}
+	} // end of nested class
+
+	/*
+	 * Traversal of the subgraph of an object owned by m_owner, which converts
+	 * the objects owned by m_owner to SHARED (the only ones it visits).
+	 */
+	private final class ShareTraversal extends ObjectProfiler.Traversal {
+		int m_owner;
+
+		ShareTraversal() {
+			super(null, null);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		boolean markVisited(final Object obj) {
+			if (m_owners.get(obj) == m_owner) {
+				m_owners.put(obj, SHARED);
+				return true;
+			}
+			return false;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		void schedule(final Object obj) {
+			m_stack.push(obj);
+		}
+	} // end of nested class
+
+	private void addEntry(final int r, final Object obj) {
+		final int head = m_entryHeads[r];
+		if (head != NONE && m_entryObjects[head] == obj) {
+			return; // cheap de-duplication
+		}
+		if (m_entryCount == m_entryObjects.length) {
+			final int newLength = m_entryCount << 1;
+			final Object[] newObjects = new Object[newLength];
+			System.arraycopy(m_entryObjects, 0, newObjects, 0, m_entryCount);
+			m_entryObjects = newObjects;
+			final int[] newNexts = new int[newLength];
+			System.arraycopy(m_entryNexts, 0, newNexts, 0, m_entryCount);
+			m_entryNexts = newNexts;
+		}
+		m_entryObjects[m_entryCount] = obj;
+		m_entryNexts[m_entryCount] = head;
+		m_entryHeads[r] = m_entryCount;
+		++m_entryCount;
+	}
+
+	/*
+	 * All objects reachable from a SHARED object are SHARED.
+	 * The shared subgraph is walked once per distinct set of entry points.
+	 */
+	private void computeSharedSizes(final long[] sharedSizes) {
+		final IdentityIntMap entryIds = new IdentityIntMap(0); // entry point -> id
+		final Map<EntrySet, Long> entrySetSizes = new HashMap<EntrySet, Long>();
+		final IdentitySet seen = new IdentitySet(0);
+		final ObjectProfiler.Traversal sharedTraversal = new ObjectProfiler.SequentialTraversal(seen, m_stack, null, null);
+		int[] ids = new int[16];
+		for (int r = 0; r < sharedSizes.length; ++r) {
+			// entry points of root r, as sorted distinct ids
+			int count = 0;
+			for (int e = m_entryHeads[r]; e != NONE; e = m_entryNexts[e]) {
+				final Object entry = m_entryObjects[e];
+				int id = entryIds.get(entry);
+				if (id == IdentityIntMap.NO_VALUE) {
+					id = entryIds.size();
+					entryIds.put(entry, id);
+				}
+				if (count == ids.length) {
+					ids = Arrays.copyOf(ids, count << 1);
+				}
+				ids[count++] = id;
+			}
+			if (count == 0) {
+				continue;
+			}
+			Arrays.sort(ids, 0, count);
+			int distinctCount = 1;
+			for (int i = 1; i < count; ++i) {
+				if (ids[i] != ids[distinctCount - 1]) {
+					ids[distinctCount++] = ids[i];
+				}
+			}
+			final EntrySet entrySet = new EntrySet(Arrays.copyOf(ids, distinctCount));
+			final Long knownSize = entrySetSizes.get(entrySet);
+			if (knownSize != null) {
+				sharedSizes[r] = knownSize.longValue();
+				continue;
+			}
+			// walk the shared subgraph reachable from the entry points
+			seen.clear();
+			final ObjectStack stack = m_stack;
+			for (int e = m_entryHeads[r]; e != NONE; e = m_entryNexts[e]) {
+				if (seen.add(m_entryObjects[e])) {
+					stack.push(m_entryObjects[e]);
+				}
+			}
+			long size = 0;
+			while (!stack.isEmpty()) {
+				size += ObjectProfiler.sizeofObject(stack.pop(), sharedTraversal);
+			}
+			sharedSizes[r] = size;
+			entrySetSizes.put(entrySet, Long.valueOf(size));
+		}
+	}
+
+	/*
+	 * Set of shared entry points (sorted ids), as a hash key.
+	 */
+	private static final class EntrySet {
+		private final int[] m_ids;
+		private final int m_hashCode;
+
+		EntrySet(final int[] ids) {
+			m_ids = ids;
+			m_hashCode = Arrays.hashCode(ids);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public int hashCode() {
+			return m_hashCode;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public boolean equals(final Object obj) {
+			return obj instanceof EntrySet && Arrays.equals(m_ids, ((EntrySet) obj).m_ids);
+		}
+	} // end of nested class
+
+} // end of class
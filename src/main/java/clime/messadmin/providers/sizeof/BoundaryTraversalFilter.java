@@ -0,0 +1,134 @@
+package clime.messadmin.providers.sizeof;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+/**
+ * Default {@link TraversalFilter}, configured with a list of boundaries:
+ * <ul>
+ * <li><code>com.example.Type</code>: instances of this class, its subclasses, or of
+ * 	the classes implementing this interface;</li>
+ * <li><code>com.example.*</code>: instances of the classes of this package and its subpackages;</li>
+ * <li><code>com.example.Type#field</code>: objects referenced by this field.</li>
+ * </ul>
+ * Types are matched by name: they need not be loadable.
+ *
+ * <P>
+ * The default instance stops at the servlet container (<code>ServletContext</code>,
+ * requests...), class loaders, threads, loggers, and common application
+ * containers (Spring, JPA, Hibernate, JNDI, JMX), the JVM-wide list of the
+ * direct buffer cleaners, plus the boundaries listed in
+ * the <code>clime.messadmin.providers.sizeof.boundaries</code> system property
+ * (comma-separated).
+ *
+ * @author C&eacute;drik LIME
+ */
+public class BoundaryTraversalFilter implements TraversalFilter {
+	/**
+	 * System property: additional boundaries of the default instance (comma-separated)
+	 */
+	public static final String BOUNDARIES_PROPERTY = "clime.messadmin.providers.sizeof.boundaries";
+
+	/**
+	 * Boundaries of the default instance
+	 */
+	public static final String[] DEFAULT_BOUNDARIES = {
+		"java.lang.ClassLoader", "java.lang.Thread", "java.lang.ThreadGroup", "java.security.ProtectionDomain",
+		"java.util.logging.Logger", "org.apache.commons.logging.Log", "org.slf4j.Logger",
+		"org.apache.log4j.Category", "org.apache.logging.log4j.Logger",
+		"javax.servlet.ServletContext", "javax.servlet.ServletConfig", "javax.servlet.FilterConfig",
+		"javax.servlet.Servlet", "javax.servlet.Filter",
+		"javax.servlet.ServletRequest", "javax.servlet.ServletResponse",
+		"jakarta.servlet.ServletContext", "jakarta.servlet.ServletConfig", "jakarta.servlet.FilterConfig",
+		"jakarta.servlet.Servlet", "jakarta.servlet.Filter",
+		"jakarta.servlet.ServletRequest", "jakarta.servlet.ServletResponse",
+		"org.apache.catalina.Container", "org.apache.catalina.Manager",
+		"org.eclipse.jetty.server.handler.ContextHandler", "org.eclipse.jetty.server.session.SessionHandler",
+		"javax.naming.Context", "javax.sql.DataSource", "javax.management.MBeanServer",
+		"javax.persistence.EntityManagerFactory", "jakarta.persistence.EntityManagerFactory",
+		"org.hibernate.SessionFactory",
+		"org.springframework.beans.factory.BeanFactory", "org.springframework.aop.SpringProxy",
+		// global list of the cleaners of all the direct buffers
+		"sun.misc.Cleaner#next", "sun.misc.Cleaner#prev", "jdk.internal.ref.Cleaner#next", "jdk.internal.ref.Cleaner#prev"
+	};
+
+	private final Set<String> m_types = new HashSet<String>();
+	private final String[] m_packages; // package prefixes, with trailing '.'
+	private final Set<String> m_fields = new HashSet<String>();
+
+	/**
+	 * Default instance: {@link #DEFAULT_BOUNDARIES} and {@link #BOUNDARIES_PROPERTY}.
+	 */
+	public BoundaryTraversalFilter() {
+		this(getDefaultBoundaries());
+	}
+
+	/**
+	 * @param boundaries see class documentation
+	 */
+	public BoundaryTraversalFilter(final Collection<String> boundaries) {
+		super();
+		final List<String> packages = new ArrayList<String>();
+		for (String boundary : boundaries) {
+			if (boundary.endsWith(".*")) {
+				packages.add(boundary.substring(0, boundary.length() - 1));
+			} else if (boundary.indexOf('#') > 0) {
+				m_fields.add(boundary);
+			} else {
+				m_types.add(boundary);
+			}
+		}
+		m_packages = packages.toArray(new String[packages.size()]);
+	}
+
+	/** {@inheritDoc} */
+	public boolean isBoundary(final Class<?> type) {
+		final String name = type.getName();
+		for (int i = 0; i < m_packages.length; ++i) {
+			if (name.startsWith(m_packages[i])) {
+				return true;
+			}
+		}
+		for (Class<?> cls = type; cls != null; cls = cls.getSuperclass()) {
+			if (m_types.contains(cls.getName()) || implementsBoundary(cls)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** {@inheritDoc} */
+	public boolean isBoundary(final Field field) {
+		return m_fields.contains(field.getDeclaringClass().getName() + '#' + field.getName());
+	}
+
+	private boolean implementsBoundary(final Class<?> cls) {
+		final Class<?>[] interfaces = cls.getInterfaces();
+		for (int i = 0; i < interfaces.length; ++i) {
+			if (m_types.contains(interfaces[i].getName()) || implementsBoundary(interfaces[i])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static Collection<String> getDefaultBoundaries() {
+		final List<String> result = new ArrayList<String>();
+		for (int i = 0; i < DEFAULT_BOUNDARIES.length; ++i) {
+			result.add(DEFAULT_BOUNDARIES[i]);
+		}
+		final String boundaries = System.getProperty(BOUNDARIES_PROPERTY);
+		if (boundaries != null) {
+			final StringTokenizer tokenizer = new StringTokenizer(boundaries, ", \t");
+			while (tokenizer.hasMoreTokens()) {
+				result.add(tokenizer.nextToken());
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,206 @@
+package clime.messadmin.providers.sizeof;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Implementation of {@link ObjectProfiler#sizeof(Object, SizeOfBudget)}:
+ * depth-first walk which checks the budget after each object.
+ *
+ * <P>
+ * Objects are sized by the same per-object step as {@link ObjectProfiler#sizeof(Object)}
+ * (FastSizers included), except that all the visited objects are scheduled
+ * instead of leaves being sized as soon as they are found: a String is sized
+ * along with its internal array, a collection along with its internal
+ * structure, but the budget is checked before each element.
+ *
+ * <P>
+ * The number of objects and of bytes are checked for each object; the
+ * deadline and the cancellation flag only every {@value #CHECK_INTERVAL} objects,
+ * as reading the clock is not free. <code>Object[]</code> arrays longer than
+ * {@value #ARRAY_CHUNK_SIZE} (including the backing arrays of lists) are
+ * walked in chunks of this size, the deadline and the cancellation flag being
+ * checked for each chunk: a huge array does not hold up the walk.
+ *
+ * <P>
+ * When stopped, the objects left on the stack are the frontier of the visited
+ * part of the graph: they are visited, but not sized yet. The slots left in
+ * the arrays being walked are estimated from a bounded sample of each array.
+ * The full size is extrapolated by sizing each pending object as an average
+ * visited object: since the frontier objects may reference yet unknown
+ * objects, this estimate is still lower than the actual size for deep graphs.
+ *
+ * @author C&eacute;drik LIME
+ */
+final class BoundedSizeof {
+	// public: ................................................................
+
+	/**
+	 * @see ObjectProfiler#sizeof(Object, SizeOfBudget)
+	 */
+	static SizeOfResult sizeof(final Object root, final IdentitySet visited,
+			final ObjectProfiler.ShallowSizer sizer, final SizeOfBudget budget) {
+		final long maxObjects = (budget == null || budget.getMaxObjects() <= 0) ? Long.MAX_VALUE : budget.getMaxObjects();
+		final long maxBytes = (budget == null || budget.getMaxBytes() <= 0) ? Long.MAX_VALUE : budget.getMaxBytes();
+		final long deadline = (budget == null || budget.getMaxMillis() <= 0) ? 0 : System.nanoTime() + budget.getMaxMillis() * 1000000;
+		final boolean checkPeriodically = budget != null;
+
+		final ObjectStack stack = new ObjectStack();
+		final BoundedTraversal traversal = new BoundedTraversal(visited, stack, sizer);
+		final OffHeapMemory offHeap = new OffHeapMemory();
+		traversal.m_offHeap = offHeap;
+		visited.add(root);
+		stack.push(root);
+		long size = 0;
+		long steps = 0;
+		boolean partial = false;
+		while (!stack.isEmpty()) {
+			final Object obj = stack.pop();
+			if (obj instanceof ArraySlice) {
+				size += ((ArraySlice) obj).visitNextChunk(traversal);
+				if (checkPeriodically && isOver(budget, deadline)) {
+					partial = !stack.isEmpty();
+					break;
+				}
+				continue;
+			}
+			size += ObjectProfiler.sizeofObject(obj, traversal);
+			if (traversal.m_objectCount >= maxObjects || size >= maxBytes) {
+				partial = !stack.isEmpty();
+				break;
+			}
+			if (checkPeriodically && (++steps & (CHECK_INTERVAL - 1)) == 0 && isOver(budget, deadline)) {
+				partial = !stack.isEmpty();
+				break;
+			}
+		}
+
+		final long objectCount = traversal.m_objectCount;
+		if (!partial) {
+			return new SizeOfResult(size, size, objectCount, 0, false, 0, offHeap.getSize());
+		}
+		// frontier: pending objects, and the slots left in the arrays being walked
+		final long pendingCount = traversal.estimatePendingCount();
+		final long estimatedSize = size + (long) ((double) size / objectCount * pendingCount);
+		return new SizeOfResult(size, estimatedSize, objectCount, pendingCount, true, 0, offHeap.getSize());
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	/*
+	 * Deadline and cancellation check interval, in number of objects; must be a power of 2.
+	 */
+	private static final int CHECK_INTERVAL = 256;
+	/*
+	 * Object[] arrays longer than this are walked in chunks of this size.
+	 */
+	private static final int ARRAY_CHUNK_SIZE = 4096;
+	/*
+	 * Maximum number of slots of an array slice looked at to estimate the frontier.
+	 */
+	private static final int SLICE_SAMPLES = 16;
+
+	private BoundedSizeof() {
+	} // this class is not extendible
+
+	/*
+	 * Sequential traversal which walks large arrays in chunks.
+	 */
+	private static final class BoundedTraversal extends ObjectProfiler.SequentialTraversal {
+		private final List<ArraySlice> m_slices = new ArrayList<ArraySlice>();
+		private int m_liveSliceCount = 0; // slices with slots left, which are on the stack
+
+		BoundedTraversal(final IdentitySet visited, final ObjectStack stack, final ObjectProfiler.ShallowSizer sizer) {
+			super(visited, stack, sizer, null, true, false);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		long visitElements(final Object[] array) {
+			if (array.length <= ARRAY_CHUNK_SIZE) {
+				return super.visitElements(array);
+			}
+			final ArraySlice slice = new ArraySlice(array);
+			m_slices.add(slice);
+			++m_liveSliceCount;
+			return slice.visitNextChunk(this);
+		}
+
+		/*
+		 * @return number of pending objects: those on the stack, plus the
+		 * estimated number of slots left to objects which were not visited
+		 */
+		long estimatePendingCount() {
+			double pending = m_stack.size() - m_liveSliceCount;
+			for (int i = 0; i < m_slices.size(); ++i) {
+				final ArraySlice slice = m_slices.get(i);
+				if (slice.hasSlotsLeft()) {
+					pending += slice.estimatePendingCount(m_visited);
+				}
+			}
+			return Math.round(pending);
+		}
+	} // end of nested class
+
+	/*
+	 * Remaining slots of a large array, on the stack below its current chunk.
+	 */
+	private static final class ArraySlice {
+		private final Object[] m_array;
+		private int m_from = 0;
+
+		ArraySlice(final Object[] array) {
+			m_array = array;
+		}
+
+		/*
+		 * Visits the next chunk of slots, after pushing this slice if there are slots left.
+		 * @return the size of the objects which were sized when visited
+		 */
+		long visitNextChunk(final BoundedTraversal traversal) {
+			final int to = Math.min(m_from + ARRAY_CHUNK_SIZE, m_array.length);
+			if (to < m_array.length) {
+				traversal.m_stack.push(this);
+			} else {
+				--traversal.m_liveSliceCount;
+			}
+			long size = 0;
+			for (int i = m_from; i < to; ++i) {
+				size += ObjectProfiler.visit(m_array[i], traversal);
+			}
+			m_from = to;
+			return size;
+		}
+
+		boolean hasSlotsLeft() {
+			return m_from < m_array.length;
+		}
+
+		/*
+		 * @return estimated number of remaining slots to an object which was not visited
+		 */
+		double estimatePendingCount(final IdentitySet visited) {
+			final int remaining = m_array.length - m_from;
+			final int step = Math.max(1, remaining / SLICE_SAMPLES);
+			int pending = 0;
+			int sampled = 0;
+			for (int i = m_from; i < m_array.length; i += step) {
+				final Object ref = m_array[i];
+				if (ref != null && !ObjectProfiler.isExcluded(ref) && !visited.contains(ref)) {
+					++pending;
+				}
+				++sampled;
+			}
+			return (double) pending * remaining / sampled;
+		}
+	} // end of nested class
+
+	private static boolean isOver(final SizeOfBudget budget, final long deadline) {
+		return budget.isCancelled() || (deadline != 0 && System.nanoTime() - deadline > 0);
+	}
+
+} // end of class
@@ -0,0 +1,291 @@
+package clime.messadmin.providers.sizeof;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Per-class breakdown of an object graph size: number of instances and total
+ * bytes for each class, collected during the {@link ObjectProfiler#histogram(Object)}
+ * traversal, or read from an exported graph (see {@link ObjectGraphReader#readHistogram(java.io.File)}).
+ *
+ * <P>
+ * Counters are kept in primitive arrays, indexed through an identity map of
+ * the classes: recording an object does not allocate.
+ *
+ * <P>
+ * The native memory of the direct and mapped buffers of the graph is
+ * reported separately ({@link #getOffHeapSize()}): it is not part of the heap size.
+ *
+ * <P>
+ * This class is not thread-safe.
+ *
+ * @author C&eacute;drik LIME
+ */
+public class ClassHistogram {
+
+	/**
+	 * Histogram line: instances of one class.
+	 */
+	public static class Entry {
+		private final Class<?> m_type;
+		private final String m_typeName;
+		private final long m_count;
+		private final long m_size;
+
+		Entry(final Class<?> type, final String typeName, final long count, final long size) {
+			m_type = type;
+			m_typeName = typeName;
+			m_count = count;
+			m_size = size;
+		}
+
+		/**
+		 * @return the class [null if only its name is known, e.g. read from an exported graph]
+		 */
+		public Class<?> getType() {
+			return m_type;
+		}
+
+		/**
+		 * @return the class name, as given by {@link Class#getName()}
+		 */
+		public String getTypeName() {
+			return m_typeName;
+		}
+
+		/**
+		 * @return number of instances
+		 */
+		public long getCount() {
+			return m_count;
+		}
+
+		/**
+		 * @return total size of the instances, in bytes
+		 */
+		public long getSize() {
+			return m_size;
+		}
+
+		public boolean isArray() {
+			return m_typeName.charAt(0) == '[';
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public String toString() {
+			return m_typeName + ": " + m_count + " instance(s), " + m_size + " bytes";
+		}
+	} // end of nested class
+
+	ClassHistogram() {
+		super();
+	}
+
+	/**
+	 * @return total size of the object graph
+	 */
+	public long getTotalSize() {
+		return m_arrayBytes + m_instanceBytes;
+	}
+
+	/**
+	 * @return number of bytes of native memory held by the direct buffers of the object graph
+	 * @see SizeOfResult#getOffHeapSize()
+	 */
+	public long getOffHeapSize() {
+		return m_offHeapSize;
+	}
+
+	/**
+	 * @return total number of objects
+	 */
+	public long getTotalCount() {
+		return m_arrayCount + m_instanceCount;
+	}
+
+	/**
+	 * @return number of arrays
+	 */
+	public long getArrayCount() {
+		return m_arrayCount;
+	}
+
+	/**
+	 * @return total size of the arrays
+	 */
+	public long getArraySize() {
+		return m_arrayBytes;
+	}
+
+	/**
+	 * @return number of non-array objects
+	 */
+	public long getInstanceCount() {
+		return m_instanceCount;
+	}
+
+	/**
+	 * @return total size of the non-array objects
+	 */
+	public long getInstanceSize() {
+		return m_instanceBytes;
+	}
+
+	/**
+	 * @return number of distinct classes
+	 */
+	public int getClassCount() {
+		return m_classCount;
+	}
+
+	/**
+	 * @return the entry for <code>type</code>, or <code>null</code> if there is no such object
+	 */
+	public Entry getEntry(final Class<?> type) {
+		final int index = m_indexes.get(type);
+		return (index == IdentityIntMap.NO_VALUE) ? null : newEntry(index);
+	}
+
+	/**
+	 * @return the entry for the class named <code>typeName</code>, or <code>null</code> if there is no such object
+	 */
+	public Entry getEntry(final String typeName) {
+		for (int i = 0; i < m_classCount; ++i) {
+			if (getTypeName(i).equals(typeName)) {
+				return newEntry(i);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return all entries, by decreasing size
+	 */
+	public List<Entry> getEntries() {
+		return getTopEntries(m_classCount);
+	}
+
+	/**
+	 * @return the <code>n</code> biggest entries, by decreasing size
+	 */
+	public List<Entry> getTopEntries(final int n) {
+		final int resultSize = Math.min(Math.max(n, 0), m_classCount);
+		if (resultSize == 0) {
+			return Collections.emptyList();
+		}
+		final List<Entry> result = new ArrayList<Entry>(resultSize);
+		// sort indexes only; the number of classes is small compared to the number of objects
+		final Integer[] indexes = new Integer[m_classCount];
+		for (int i = 0; i < m_classCount; ++i) {
+			indexes[i] = Integer.valueOf(i);
+		}
+		final long[] bytes = m_bytes;
+		Arrays.sort(indexes, new Comparator<Integer>() {
+			/** {@inheritDoc} */
+			public int compare(final Integer i1, final Integer i2) {
+				final long b1 = bytes[i1.intValue()];
+				final long b2 = bytes[i2.intValue()];
+				return (b1 < b2) ? 1 : ((b1 == b2) ? 0 : -1);
+			}
+		});
+		for (int i = 0; i < resultSize; ++i) {
+			result.add(newEntry(indexes[i].intValue()));
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[size=" + getTotalSize() + ", objects=" + getTotalCount()
+				+ ", classes=" + m_classCount + (m_offHeapSize > 0 ? ", offHeap=" + m_offHeapSize : "") + ']';
+	}
+
+	// package: ...............................................................
+
+	/*
+	 * Records an object of class 'type', of size 'size'.
+	 * 'type' is a Class, or a (unique) class name String.
+	 */
+	void record(final Object type, final long size) {
+		int index;
+		if (type == m_lastType) {
+			index = m_lastIndex;
+		} else {
+			index = m_indexes.get(type);
+			if (index == IdentityIntMap.NO_VALUE) {
+				index = addClass(type);
+			}
+			m_lastType = type;
+			m_lastIndex = index;
+		}
+		++m_counts[index];
+		m_bytes[index] += size;
+		if (m_isArray[index]) {
+			++m_arrayCount;
+			m_arrayBytes += size;
+		} else {
+			++m_instanceCount;
+			m_instanceBytes += size;
+		}
+	}
+
+	void setOffHeapSize(final long offHeapSize) {
+		m_offHeapSize = offHeapSize;
+	}
+
+	// private: ...............................................................
+
+	private final IdentityIntMap m_indexes = new IdentityIntMap(0); // class -> index
+	private Object[] m_classes = new Object[32]; // Class or class name
+	private boolean[] m_isArray = new boolean[32];
+	private long[] m_counts = new long[32];
+	private long[] m_bytes = new long[32];
+	private int m_classCount = 0;
+	private Object m_lastType; // consecutive objects are often of the same class
+	private int m_lastIndex;
+	private long m_arrayCount = 0;
+	private long m_arrayBytes = 0;
+	private long m_instanceCount = 0;
+	private long m_instanceBytes = 0;
+	private long m_offHeapSize = 0;
+
+	private int addClass(final Object type) {
+		final int index = m_classCount;
+		if (index == m_classes.length) {
+			final int newLength = index << 1;
+			final Object[] newClasses = new Object[newLength];
+			System.arraycopy(m_classes, 0, newClasses, 0, index);
+			m_classes = newClasses;
+			final boolean[] newIsArray = new boolean[newLength];
+			System.arraycopy(m_isArray, 0, newIsArray, 0, index);
+			m_isArray = newIsArray;
+			final long[] newCounts = new long[newLength];
+			System.arraycopy(m_counts, 0, newCounts, 0, index);
+			m_counts = newCounts;
+			final long[] newBytes = new long[newLength];
+			System.arraycopy(m_bytes, 0, newBytes, 0, index);
+			m_bytes = newBytes;
+		}
+		m_classes[index] = type;
+		m_isArray[index] = (type instanceof Class) ? ((Class) type).isArray() : ((String) type).charAt(0) == '[';
+		m_indexes.put(type, index);
+		++m_classCount;
+		return index;
+	}
+
+	private String getTypeName(final int index) {
+		final Object type = m_classes[index];
+		return (type instanceof Class) ? ((Class) type).getName() : (String) type;
+	}
+
+	private Entry newEntry(final int index) {
+		final Object type = m_classes[index];
+		return new Entry((type instanceof Class) ? (Class) type : null, getTypeName(index),
+				m_counts[index], m_bytes[index]);
+	}
+}
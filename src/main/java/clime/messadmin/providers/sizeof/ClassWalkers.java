@@ -0,0 +1,316 @@
+package clime.messadmin.providers.sizeof;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generated per-class walkers, used by {@link ObjectProfiler#sizeof(Object)}
+ * instead of the generic loop over the reference fields of a class, once this
+ * class has been seen {@value #DEFAULT_THRESHOLD} times (system property
+ * <code>{@value #THRESHOLD_PROPERTY}</code>).
+ *
+ * <P>
+ * A walker is a tiny class whose single method returns the (constant) shell
+ * size of an object plus the sizes of its children, reading each reference
+ * field at a constant offset and visiting it, with no loop nor array
+ * access: the JIT can inline it all. For example, for a class with 2 reference
+ * fields:
+ * <pre>
+ * long walk(Object obj, ObjectProfiler.Traversal traversal) {
+ *     return 24 + ObjectProfiler.visit(UnsafeAccess.getObject(obj, 12), traversal)
+ *               + ObjectProfiler.visit(UnsafeAccess.getObject(obj, 16), traversal);
+ * }
+ * </pre>
+ * Walkers are defined as hidden classes (Java 15+), in this class' package
+ * (Java 9+), or as anonymous classes (Java 8); they do not reference the
+ * walked class, which can still be unloaded.
+ *
+ * <P>
+ * This mode is enabled with the <code>{@value #ENABLED_PROPERTY}</code> system
+ * property (<code>true</code>). Classes which can not be walked this way (no
+ * field offsets, too many fields, class generation not supported...) are
+ * walked by the generic loop.
+ *
+ * @author C&eacute;drik LIME
+ */
+final class ClassWalkers {
+	// public: ................................................................
+
+	static final String ENABLED_PROPERTY = "clime.messadmin.providers.sizeof.walkers";
+	static final String THRESHOLD_PROPERTY = "clime.messadmin.providers.sizeof.walkers.threshold";
+	static final int DEFAULT_THRESHOLD = 1000;
+
+	static final boolean ENABLED = Boolean.valueOf(getProperty(ENABLED_PROPERTY, "false")).booleanValue();
+
+	/*
+	 * Base class of the generated walkers.
+	 */
+	abstract static class ClassWalker {
+		ClassWalker() {
+			super();
+		}
+
+		/**
+		 * @return the shell size of <code>obj</code>, plus the sizes of its
+		 * 	children which were sized when visited (see ObjectProfiler.visit())
+		 */
+		abstract long walk(Object obj, ObjectProfiler.Traversal traversal);
+	} // end of nested class
+
+	/**
+	 * Counts an occurrence of an instance of the class of <code>metadata</code>,
+	 * generating its walker when the threshold is reached.
+	 *
+	 * @return the walker of the class of <code>metadata</code> [null if none (yet)]
+	 */
+	static ClassWalker getWalker(final ObjectProfiler.ClassMetadata metadata) {
+		final ClassWalker walker = metadata.m_walker;
+		if (walker != null || metadata.m_walkerCountdown <= 0) {
+			return walker;
+		}
+		// racy countdown: the exact threshold does not matter
+		if (--metadata.m_walkerCountdown == 0) {
+			metadata.m_walker = generate(metadata);
+		}
+		return metadata.m_walker;
+	}
+
+	/**
+	 * @return the number of occurrences of a class before its walker is generated [0: never]
+	 */
+	static int getThreshold(final ObjectProfiler.ClassMetadata metadata) {
+		if (!ENABLED || metadata.m_skippedSize > 0 || metadata.m_fastSizer != null
+				|| metadata.m_refFields.length > 0 || metadata.m_refFieldOffsets.length == 0
+				|| metadata.m_refFieldOffsets.length > MAX_FIELDS) {
+			return 0;
+		}
+		return THRESHOLD;
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	/**
+	 * @return a new walker for the class of <code>metadata</code> [null if class generation failed]
+	 */
+	static ClassWalker generate(final ObjectProfiler.ClassMetadata metadata) {
+		try {
+			final byte[] bytes = generateClass(PACKAGE + "ClassWalkers$Walker" + s_walkerNumber.incrementAndGet(),
+					metadata.m_shellSize, metadata.m_refFieldOffsets);
+			final Class<?> walkerClass = defineClass(bytes);
+			if (walkerClass == null) {
+				return null;
+			}
+			final Constructor<?> constructor = walkerClass.getDeclaredConstructor();
+			constructor.setAccessible(true);
+			return (ClassWalker) constructor.newInstance();
+		} catch (Exception e) {
+			// ReflectiveOperationException, SecurityException...
+			return null;
+		} catch (LinkageError le) {
+			// VerifyError...
+			return null;
+		}
+	}
+
+	// private: ...............................................................
+
+	private static final int THRESHOLD = Math.max(1, getIntProperty(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD));
+	private static final int MAX_FIELDS = 256; // keeps the generated code small
+
+	private static final String PACKAGE = "clime/messadmin/providers/sizeof/";
+	private static final String WALKER_CLASS = PACKAGE + "ClassWalkers$ClassWalker";
+	private static final String WALK_DESCRIPTOR = "(Ljava/lang/Object;L" + PACKAGE + "ObjectProfiler$Traversal;)J";
+	private static final AtomicInteger s_walkerNumber = new AtomicInteger();
+
+	private ClassWalkers() {
+	} // this class is not extendible
+
+	/*
+	 * Defines a class in this package, with the best available API.
+	 */
+	private static Class<?> defineClass(final byte[] bytes) throws Exception {
+		final MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			// Java 15+: lookup.defineHiddenClass(bytes, true).lookupClass()
+			final Class<?> optionClass = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			final Method defineHiddenClass = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+					byte[].class, boolean.class, Array.newInstance(optionClass, 0).getClass());
+			final Object hiddenLookup = defineHiddenClass.invoke(lookup, bytes, Boolean.TRUE, Array.newInstance(optionClass, 0));
+			return ((MethodHandles.Lookup) hiddenLookup).lookupClass();
+		} catch (ClassNotFoundException cnfe) {
+			// Java 14-
+		} catch (NoSuchMethodException nsme) {
+			// Java 14-
+		}
+		try {
+			// Java 9+: lookup.defineClass(bytes)
+			final Method defineClass = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+			return (Class<?>) defineClass.invoke(lookup, bytes);
+		} catch (NoSuchMethodException nsme) {
+			// Java 8
+		}
+		return UnsafeAccess.defineAnonymousClass(ClassWalkers.class, bytes);
+	}
+
+	/*
+	 * Class file (Java 6 format: no stack map needed, the code has no branch) of:
+	 * final class <name> extends ClassWalker {
+	 *     <name>() {super();}
+	 *     long walk(Object obj, ObjectProfiler.Traversal traversal) {
+	 *         return shellSize + ObjectProfiler.visit(UnsafeAccess.getObject(obj, offsets[0]), traversal) + ...;
+	 *     }
+	 * }
+	 */
+	private static byte[] generateClass(final String name, final long shellSize, final long[] offsets) throws IOException {
+		final ConstantPool pool = new ConstantPool();
+		final int thisClass = pool.classRef(name);
+		final int superClass = pool.classRef(WALKER_CLASS);
+		final int superInit = pool.methodRef(superClass, "<init>", "()V");
+		final int getObject = pool.methodRef(pool.classRef(PACKAGE + "UnsafeAccess"), "getObject",
+				"(Ljava/lang/Object;J)Ljava/lang/Object;");
+		final int visit = pool.methodRef(pool.classRef(PACKAGE + "ObjectProfiler"), "visit", WALK_DESCRIPTOR);
+		final int initName = pool.utf8("<init>");
+		final int initDescriptor = pool.utf8("()V");
+		final int walkName = pool.utf8("walk");
+		final int walkDescriptor = pool.utf8(WALK_DESCRIPTOR);
+		final int codeName = pool.utf8("Code");
+
+		final ByteArrayOutputStream walkCode = new ByteArrayOutputStream(4 + offsets.length * 12);
+		final DataOutputStream walk = new DataOutputStream(walkCode);
+		walk.writeByte(0x14); // ldc2_w shellSize
+		walk.writeShort(pool.longConstant(shellSize));
+		for (int i = 0; i < offsets.length; ++i) {
+			walk.writeByte(0x2B); // aload_1 (obj)
+			walk.writeByte(0x14); // ldc2_w offset
+			walk.writeShort(pool.longConstant(offsets[i]));
+			walk.writeByte(0xB8); // invokestatic UnsafeAccess.getObject
+			walk.writeShort(getObject);
+			walk.writeByte(0x2C); // aload_2 (traversal)
+			walk.writeByte(0xB8); // invokestatic ObjectProfiler.visit
+			walk.writeShort(visit);
+			walk.writeByte(0x61); // ladd
+		}
+		walk.writeByte(0xAD); // lreturn
+		walk.flush();
+
+		final ByteArrayOutputStream result = new ByteArrayOutputStream(512 + walkCode.size());
+		final DataOutputStream out = new DataOutputStream(result);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0); // minor version
+		out.writeShort(50); // major version: Java 6
+		pool.write(out);
+		out.writeShort(0x0030); // ACC_FINAL | ACC_SUPER
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(0); // interfaces
+		out.writeShort(0); // fields
+		out.writeShort(2); // methods
+		// <init>
+		out.writeShort(0); // package-private
+		out.writeShort(initName);
+		out.writeShort(initDescriptor);
+		out.writeShort(1); // attributes
+		out.writeShort(codeName);
+		out.writeInt(12 + 5);
+		out.writeShort(1); // max stack
+		out.writeShort(1); // max locals
+		out.writeInt(5); // code length
+		out.writeByte(0x2A); // aload_0
+		out.writeByte(0xB7); // invokespecial ClassWalker.<init>
+		out.writeShort(superInit);
+		out.writeByte(0xB1); // return
+		out.writeShort(0); // exception table
+		out.writeShort(0); // attributes
+		// walk()
+		out.writeShort(0); // package-private
+		out.writeShort(walkName);
+		out.writeShort(walkDescriptor);
+		out.writeShort(1); // attributes
+		out.writeShort(codeName);
+		out.writeInt(12 + walkCode.size());
+		out.writeShort(5); // max stack: long, Object, long, then long, Object, traversal
+		out.writeShort(3); // max locals: this, obj, traversal
+		out.writeInt(walkCode.size());
+		walkCode.writeTo(out);
+		out.writeShort(0); // exception table
+		out.writeShort(0); // attributes
+		out.writeShort(0); // class attributes
+		out.flush();
+		return result.toByteArray();
+	}
+
+	/*
+	 * Minimal class file constant pool.
+	 */
+	private static final class ConstantPool {
+		private final ByteArrayOutputStream m_bytes = new ByteArrayOutputStream(256);
+		private final DataOutputStream m_out = new DataOutputStream(m_bytes);
+		private int m_count = 1; // index 0 is not used
+
+		int utf8(final String value) throws IOException {
+			m_out.writeByte(1); // CONSTANT_Utf8
+			m_out.writeUTF(value);
+			return m_count++;
+		}
+
+		int classRef(final String internalName) throws IOException {
+			final int nameIndex = utf8(internalName);
+			m_out.writeByte(7); // CONSTANT_Class
+			m_out.writeShort(nameIndex);
+			return m_count++;
+		}
+
+		int methodRef(final int classIndex, final String name, final String descriptor) throws IOException {
+			final int nameIndex = utf8(name);
+			final int descriptorIndex = utf8(descriptor);
+			m_out.writeByte(12); // CONSTANT_NameAndType
+			m_out.writeShort(nameIndex);
+			m_out.writeShort(descriptorIndex);
+			final int nameAndType = m_count++;
+			m_out.writeByte(10); // CONSTANT_Methodref
+			m_out.writeShort(classIndex);
+			m_out.writeShort(nameAndType);
+			return m_count++;
+		}
+
+		int longConstant(final long value) throws IOException {
+			m_out.writeByte(5); // CONSTANT_Long, takes 2 entries
+			m_out.writeLong(value);
+			final int index = m_count;
+			m_count += 2;
+			return index;
+		}
+
+		void write(final DataOutputStream out) throws IOException {
+			m_out.flush();
+			out.writeShort(m_count);
+			m_bytes.writeTo(out);
+		}
+	} // end of nested class
+
+	private static String getProperty(final String name, final String defaultValue) {
+		try {
+			final String value = System.getProperty(name);
+			return (value != null) ? value.trim() : defaultValue;
+		} catch (SecurityException ignore) {
+			return defaultValue;
+		}
+	}
+
+	private static int getIntProperty(final String name, final int defaultValue) {
+		try {
+			return Integer.parseInt(getProperty(name, String.valueOf(defaultValue)));
+		} catch (NumberFormatException ignore) {
+			return defaultValue;
+		}
+	}
+
+} // end of class
@@ -0,0 +1,72 @@
+package clime.messadmin.providers.sizeof;
+
+/**
+ * Thread-safe identity set, used as the shared "visited" set of the parallel
+ * graph traversal ({@link ParallelSizeof}).
+ *
+ * <P>
+ * This is a lock-striped array of {@link IdentitySet}s: the stripe is selected
+ * by the low bits of the identity hash code, whereas each stripe uses the high
+ * bits, so that stripes are evenly loaded.
+ *
+ * @author C&eacute;drik LIME
+ */
+final class ConcurrentIdentitySet {
+	// public: ................................................................
+
+	/**
+	 * @param concurrencyLevel
+	 *			estimated number of concurrently updating threads
+	 */
+	ConcurrentIdentitySet(final int concurrencyLevel) {
+		int stripes = 1;
+		while (stripes < concurrencyLevel * 4 && stripes < MAX_STRIPES) {
+			stripes <<= 1;
+		}
+		m_stripes = new IdentitySet[stripes];
+		for (int i = 0; i < stripes; ++i) {
+			m_stripes[i] = new IdentitySet(0);
+		}
+		m_mask = stripes - 1;
+	}
+
+	/**
+	 * @return <code>true</code> if <code>obj</code> was not already present
+	 */
+	boolean add(final Object obj) {
+		final IdentitySet stripe = m_stripes[System.identityHashCode(obj) & m_mask];
+		synchronized (stripe) {
+			return stripe.add(obj);
+		}
+	}
+
+	boolean contains(final Object obj) {
+		final IdentitySet stripe = m_stripes[System.identityHashCode(obj) & m_mask];
+		synchronized (stripe) {
+			return stripe.contains(obj);
+		}
+	}
+
+	int size() {
+		int result = 0;
+		for (int i = 0; i < m_stripes.length; ++i) {
+			final IdentitySet stripe = m_stripes[i];
+			synchronized (stripe) {
+				result += stripe.size();
+			}
+		}
+		return result;
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private static final int MAX_STRIPES = 256;
+
+	private final IdentitySet[] m_stripes;
+	private final int m_mask;
+
+} // end of class
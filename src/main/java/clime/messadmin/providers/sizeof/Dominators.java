@@ -0,0 +1,206 @@
+package clime.messadmin.providers.sizeof;
+
+/**
+ * Lengauer-Tarjan dominator tree computation (simple version, with path
+ * compression: O(E log V)), on a graph of <code>int</code> nodes given as
+ * compressed adjacency arrays.
+ * All data structures are <code>int[]</code>, and neither the depth-first
+ * search nor the path compression are recursive: this scales to graphs of
+ * millions of nodes.
+ *
+ * <P>
+ * See T. Lengauer, R. E. Tarjan, "A Fast Algorithm for Finding Dominators in
+ * a Flowgraph", ACM TOPLAS 1(1), 1979.
+ *
+ * @author C&eacute;drik LIME
+ */
+final class Dominators {
+	// public: ................................................................
+
+	static final int NONE = -1;
+
+	/**
+	 * Computes the immediate dominators of all nodes reachable from node 0.
+	 *
+	 * @param nodeCount number of nodes
+	 * @param edgeStart edges of node <code>v</code> are <code>edgeTargets[edgeStart[v] .. edgeStart[v+1]-1]</code>
+	 * @param edgeTargets edge targets
+	 */
+	Dominators(final int nodeCount, final int[] edgeStart, final int[] edgeTargets) {
+		m_nodeCount = nodeCount;
+		m_idom = new int[nodeCount];
+		m_vertex = new int[nodeCount];
+		compute(edgeStart, edgeTargets);
+	}
+
+	/**
+	 * @return immediate dominator of <code>node</code>, or {@link #NONE} for
+	 *	node 0 and unreachable nodes
+	 */
+	int getImmediateDominator(final int node) {
+		return m_idom[node];
+	}
+
+	/**
+	 * @return number of nodes reachable from node 0
+	 */
+	int getReachableCount() {
+		return m_reachableCount;
+	}
+
+	/**
+	 * @return the <code>i</code>-th node in depth-first order (node 0 first);
+	 *	a node is always after its dominators
+	 */
+	int getNodeInDepthFirstOrder(final int i) {
+		return m_vertex[i];
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private final int m_nodeCount;
+	private final int[] m_idom;
+	private final int[] m_vertex; // depth-first number -> node
+	private int m_reachableCount;
+
+	private void compute(final int[] edgeStart, final int[] edgeTargets) {
+		final int n = m_nodeCount;
+		final int[] idom = m_idom;
+		final int[] vertex = m_vertex;
+		final int[] semi = new int[n]; // node -> depth-first number of its semidominator (initially: its own)
+		final int[] parent = new int[n];
+		final int[] ancestor = new int[n];
+		final int[] label = new int[n];
+		final int[] work = new int[n]; // DFS stack, then compress() stack
+
+		// 1. depth-first numbering
+		final int[] cursor = new int[n];
+		for (int v = 0; v < n; ++v) {
+			semi[v] = NONE;
+			idom[v] = NONE;
+			ancestor[v] = NONE;
+			label[v] = v;
+		}
+		int count = 0;
+		if (n > 0) {
+			int sp = 0;
+			work[sp++] = 0;
+			semi[0] = count;
+			vertex[count++] = 0;
+			parent[0] = NONE;
+			cursor[0] = edgeStart[0];
+			while (sp > 0) {
+				final int v = work[sp - 1];
+				if (cursor[v] < edgeStart[v + 1]) {
+					final int w = edgeTargets[cursor[v]++];
+					if (semi[w] == NONE) {
+						semi[w] = count;
+						vertex[count++] = w;
+						parent[w] = v;
+						cursor[w] = edgeStart[w];
+						work[sp++] = w;
+					}
+				} else {
+					--sp;
+				}
+			}
+		}
+		m_reachableCount = count;
+
+		// predecessors (reachable nodes only)
+		final int[] predStart = new int[n + 1];
+		for (int i = 0; i < count; ++i) {
+			final int v = vertex[i];
+			for (int e = edgeStart[v]; e < edgeStart[v + 1]; ++e) {
+				++predStart[edgeTargets[e] + 1];
+			}
+		}
+		for (int v = 0; v < n; ++v) {
+			predStart[v + 1] += predStart[v];
+		}
+		final int[] preds = new int[predStart[n]];
+		final int[] predFill = cursor; // reuse
+		System.arraycopy(predStart, 0, predFill, 0, n);
+		for (int i = 0; i < count; ++i) {
+			final int v = vertex[i];
+			for (int e = edgeStart[v]; e < edgeStart[v + 1]; ++e) {
+				final int w = edgeTargets[e];
+				preds[predFill[w]++] = v;
+			}
+		}
+
+		// buckets: linked lists of nodes, by semidominator
+		final int[] bucketHead = new int[n];
+		final int[] bucketNext = new int[n];
+		for (int v = 0; v < n; ++v) {
+			bucketHead[v] = NONE;
+		}
+
+		// 2. semidominators, and implicit immediate dominators
+		for (int i = count - 1; i > 0; --i) {
+			final int w = vertex[i];
+			for (int p = predStart[w]; p < predStart[w + 1]; ++p) {
+				final int u = eval(preds[p], ancestor, label, semi, work);
+				if (semi[u] < semi[w]) {
+					semi[w] = semi[u];
+				}
+			}
+			final int s = vertex[semi[w]];
+			bucketNext[w] = bucketHead[s];
+			bucketHead[s] = w;
+			final int pw = parent[w];
+			ancestor[w] = pw; // link
+			for (int v = bucketHead[pw]; v != NONE; v = bucketNext[v]) {
+				final int u = eval(v, ancestor, label, semi, work);
+				idom[v] = (semi[u] < semi[v]) ? u : pw;
+			}
+			bucketHead[pw] = NONE;
+		}
+
+		// 3. explicit immediate dominators
+		for (int i = 1; i < count; ++i) {
+			final int w = vertex[i];
+			if (idom[w] != vertex[semi[w]]) {
+				idom[w] = idom[idom[w]];
+			}
+		}
+		if (n > 0) {
+			idom[0] = NONE;
+		}
+	}
+
+	private static int eval(final int v, final int[] ancestor, final int[] label,
+			final int[] semi, final int[] work) {
+		if (ancestor[v] == NONE) {
+			return v;
+		}
+		compress(v, ancestor, label, semi, work);
+		return label[v];
+	}
+
+	/*
+	 * Non-recursive path compression.
+	 */
+	private static void compress(final int v, final int[] ancestor, final int[] label,
+			final int[] semi, final int[] work) {
+		int sp = 0;
+		int x = v;
+		while (ancestor[ancestor[x]] != NONE) {
+			work[sp++] = x;
+			x = ancestor[x];
+		}
+		while (sp > 0) {
+			x = work[--sp];
+			final int a = ancestor[x];
+			if (semi[label[a]] < semi[label[x]]) {
+				label[x] = label[a];
+			}
+			ancestor[x] = ancestor[a];
+		}
+	}
+
+} // end of class
@@ -0,0 +1,274 @@
+package clime.messadmin.providers.sizeof;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Implementation of {@link ObjectProfiler#duplicates(Object, int)}.
+ *
+ * <P>
+ * The object graph is walked depth-first; the contents of each
+ * <code>String</code> and primitive array are hashed (64 bits) as they are
+ * found, and counted in an open-addressing table of fingerprints. Only the
+ * first object of each fingerprint is retained (for the preview), until
+ * the end of the analysis.
+ *
+ * <P>
+ * A <code>String</code> is sized along with its internal array by its
+ * FastSizer: its size includes the array, unless the array is shared with
+ * another <code>String</code> of the graph. Without FastSizers, the internal
+ * array is analyzed on its own.
+ *
+ * @author C&eacute;drik LIME
+ */
+final class DuplicateAnalysis {
+	// public: ................................................................
+
+	/**
+	 * @see ObjectProfiler#duplicates(Object, int)
+	 */
+	static DuplicateResult analyze(final Object root, final IdentitySet visited, final int topCount) {
+		final DuplicateAnalysis analysis = new DuplicateAnalysis();
+		final ObjectStack stack = new ObjectStack();
+		// not eager: each object is popped, to be fingerprinted
+		final ObjectProfiler.Traversal traversal = new ObjectProfiler.SequentialTraversal(visited, stack, null, null, true, false);
+		visited.add(root);
+		stack.push(root);
+		long size = 0;
+		while (!stack.isEmpty()) {
+			final Object obj = stack.pop();
+			final long shallowSize = ObjectProfiler.sizeofObject(obj, traversal);
+			size += shallowSize;
+			if (obj instanceof String) {
+				analysis.add(fingerprint((String) obj), obj, shallowSize);
+			} else {
+				final Class<?> objClass = obj.getClass();
+				if (objClass.isArray() && objClass.getComponentType().isPrimitive()) {
+					analysis.add(fingerprintArray(obj), obj, shallowSize);
+				}
+			}
+		}
+		return analysis.getResult(size, traversal.m_objectCount, topCount);
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	/*
+	 * 64-bit FNV-1a hash of the contents, with a final avalanche (MurmurHash3 fmix64).
+	 */
+	static long fingerprint(final String str) {
+		long h = FNV_OFFSET_BASIS ^ 1; // type: String
+		for (int i = 0, n = str.length(); i < n; ++i) {
+			h = (h ^ str.charAt(i)) * FNV_PRIME;
+		}
+		return mix(h, str.length());
+	}
+
+	static long fingerprintArray(final Object array) {
+		long h;
+		final int length;
+		if (array instanceof byte[]) {
+			final byte[] a = (byte[]) array;
+			h = FNV_OFFSET_BASIS ^ 2;
+			for (int i = 0; i < a.length; ++i) {
+				h = (h ^ a[i]) * FNV_PRIME;
+			}
+			length = a.length;
+		} else if (array instanceof char[]) {
+			final char[] a = (char[]) array;
+			h = FNV_OFFSET_BASIS ^ 3;
+			for (int i = 0; i < a.length; ++i) {
+				h = (h ^ a[i]) * FNV_PRIME;
+			}
+			length = a.length;
+		} else if (array instanceof int[]) {
+			final int[] a = (int[]) array;
+			h = FNV_OFFSET_BASIS ^ 4;
+			for (int i = 0; i < a.length; ++i) {
+				h = (h ^ a[i]) * FNV_PRIME;
+			}
+			length = a.length;
+		} else if (array instanceof long[]) {
+			final long[] a = (long[]) array;
+			h = FNV_OFFSET_BASIS ^ 5;
+			for (int i = 0; i < a.length; ++i) {
+				h = (h ^ a[i]) * FNV_PRIME;
+			}
+			length = a.length;
+		} else if (array instanceof short[]) {
+			final short[] a = (short[]) array;
+			h = FNV_OFFSET_BASIS ^ 6;
+			for (int i = 0; i < a.length; ++i) {
+				h = (h ^ a[i]) * FNV_PRIME;
+			}
+			length = a.length;
+		} else if (array instanceof double[]) {
+			final double[] a = (double[]) array;
+			h = FNV_OFFSET_BASIS ^ 7;
+			for (int i = 0; i < a.length; ++i) {
+				h = (h ^ Double.doubleToRawLongBits(a[i])) * FNV_PRIME;
+			}
+			length = a.length;
+		} else if (array instanceof float[]) {
+			final float[] a = (float[]) array;
+			h = FNV_OFFSET_BASIS ^ 8;
+			for (int i = 0; i < a.length; ++i) {
+				h = (h ^ Float.floatToRawIntBits(a[i])) * FNV_PRIME;
+			}
+			length = a.length;
+		} else if (array instanceof boolean[]) {
+			final boolean[] a = (boolean[]) array;
+			h = FNV_OFFSET_BASIS ^ 9;
+			for (int i = 0; i < a.length; ++i) {
+				h = (h ^ (a[i] ? 1 : 0)) * FNV_PRIME;
+			}
+			length = a.length;
+		} else {
+			throw new IllegalArgumentException("not a primitive array: " + array.getClass());
+		}
+		return mix(h, length);
+	}
+
+	// private: ...............................................................
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final int PREVIEW_LENGTH = 32;
+
+	// fingerprint table (open addressing, linear probing); fingerprint 0 marks a free slot
+	private long[] m_fingerprints = new long[1024]; // size must be a power of 2
+	private int[] m_counts = new int[1024];
+	private long[] m_sizes = new long[1024]; // size of all the objects
+	private long[] m_firstSizes = new long[1024]; // size of the first object
+	private Object[] m_firsts = new Object[1024]; // first object, for the preview
+	private int m_size = 0;
+
+	private DuplicateAnalysis() {
+	}
+
+	private static long mix(long h, final int length) {
+		h ^= length;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (h == 0) ? 1 : h;
+	}
+
+	private void add(final long fingerprint, final Object obj, final long size) {
+		final int mask = m_fingerprints.length - 1;
+		int i = (int) fingerprint & mask;
+		while (m_fingerprints[i] != 0) {
+			if (m_fingerprints[i] == fingerprint) {
+				++m_counts[i];
+				m_sizes[i] += size;
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		m_fingerprints[i] = fingerprint;
+		m_counts[i] = 1;
+		m_sizes[i] = size;
+		m_firstSizes[i] = size;
+		m_firsts[i] = obj;
+		if (++m_size > (m_fingerprints.length >>> 1)) { // load factor is 0.5
+			resize(m_fingerprints.length << 1);
+		}
+	}
+
+	private void resize(final int newCapacity) {
+		final long[] fingerprints = m_fingerprints;
+		final int[] counts = m_counts;
+		final long[] sizes = m_sizes;
+		final long[] firstSizes = m_firstSizes;
+		final Object[] firsts = m_firsts;
+		m_fingerprints = new long[newCapacity];
+		m_counts = new int[newCapacity];
+		m_sizes = new long[newCapacity];
+		m_firstSizes = new long[newCapacity];
+		m_firsts = new Object[newCapacity];
+		final int mask = newCapacity - 1;
+		for (int j = 0; j < fingerprints.length; ++j) {
+			if (fingerprints[j] != 0) {
+				int i = (int) fingerprints[j] & mask;
+				while (m_fingerprints[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				m_fingerprints[i] = fingerprints[j];
+				m_counts[i] = counts[j];
+				m_sizes[i] = sizes[j];
+				m_firstSizes[i] = firstSizes[j];
+				m_firsts[i] = firsts[j];
+			}
+		}
+	}
+
+	private DuplicateResult getResult(final long totalSize, final long objectCount, final int topCount) {
+		long analyzedCount = 0;
+		long analyzedSize = 0;
+		long groupCount = 0;
+		long duplicateCount = 0;
+		long wastedSize = 0;
+		final long[] wastedSizes = new long[m_fingerprints.length];
+		for (int i = 0; i < m_fingerprints.length; ++i) {
+			if (m_fingerprints[i] == 0) {
+				continue;
+			}
+			analyzedCount += m_counts[i];
+			analyzedSize += m_sizes[i];
+			if (m_counts[i] > 1) {
+				++groupCount;
+				duplicateCount += m_counts[i] - 1;
+				wastedSizes[i] = m_sizes[i] - m_firstSizes[i];
+				wastedSize += wastedSizes[i];
+			}
+		}
+		final int[] top = RetainedSizeAnalysis.selectTop(wastedSizes, 0, wastedSizes.length, topCount);
+		final List<DuplicateResult.Group> topGroups = new ArrayList<DuplicateResult.Group>(top.length);
+		for (int t = 0; t < top.length; ++t) {
+			final int i = top[t];
+			if (m_counts[i] > 1) {
+				topGroups.add(new DuplicateResult.Group(m_firsts[i].getClass(), m_counts[i], m_sizes[i],
+						wastedSizes[i], preview(m_firsts[i])));
+			}
+		}
+		Collections.sort(topGroups, BY_DECREASING_WASTED_SIZE);
+		return new DuplicateResult(totalSize, objectCount, analyzedCount, analyzedSize,
+				groupCount, duplicateCount, wastedSize, Collections.unmodifiableList(topGroups));
+	}
+
+	private static final Comparator<DuplicateResult.Group> BY_DECREASING_WASTED_SIZE = new Comparator<DuplicateResult.Group>() {
+		/** {@inheritDoc} */
+		public int compare(final DuplicateResult.Group g1, final DuplicateResult.Group g2) {
+			final long s1 = g1.getWastedSize();
+			final long s2 = g2.getWastedSize();
+			return (s1 < s2) ? 1 : ((s1 == s2) ? 0 : -1);
+		}
+	};
+
+	private static String preview(final Object obj) {
+		if (obj instanceof String) {
+			final String str = (String) obj;
+			return (str.length() <= PREVIEW_LENGTH) ? str : str.substring(0, PREVIEW_LENGTH) + "...";
+		}
+		final int length = java.lang.reflect.Array.getLength(obj);
+		final StringBuilder result = new StringBuilder(PREVIEW_LENGTH * 2);
+		result.append(obj.getClass().getComponentType().getName()).append('[').append(length).append("] {");
+		for (int i = 0; i < length && result.length() < PREVIEW_LENGTH; ++i) {
+			if (i > 0) {
+				result.append(", ");
+			}
+			result.append(java.lang.reflect.Array.get(obj, i));
+		}
+		if (result.length() >= PREVIEW_LENGTH) {
+			result.append("...");
+		}
+		return result.append('}').toString();
+	}
+
+} // end of class
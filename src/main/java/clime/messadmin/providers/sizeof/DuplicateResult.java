@@ -0,0 +1,162 @@
+package clime.messadmin.providers.sizeof;
+
+import java.util.List;
+
+/**
+ * Result of {@link ObjectProfiler#duplicates(Object, int)}: <code>String</code>s
+ * and primitive arrays with identical contents, and the memory which
+ * interning or deduplicating them would save.
+ *
+ * <P>
+ * Contents are compared through 64-bit fingerprints: distinct contents may
+ * (very rarely) be reported as duplicates.
+ *
+ * @author C&eacute;drik LIME
+ */
+public class DuplicateResult {
+
+	/**
+	 * Objects with identical contents.
+	 */
+	public static class Group {
+		private final Class<?> m_type;
+		private final long m_count;
+		private final long m_size;
+		private final long m_wastedSize;
+		private final String m_preview;
+
+		Group(final Class<?> type, final long count, final long size, final long wastedSize, final String preview) {
+			m_type = type;
+			m_count = count;
+			m_size = size;
+			m_wastedSize = wastedSize;
+			m_preview = preview;
+		}
+
+		/**
+		 * @return <code>String</code>, or primitive array class
+		 */
+		public Class<?> getType() {
+			return m_type;
+		}
+
+		/**
+		 * @return number of objects with these contents
+		 */
+		public long getCount() {
+			return m_count;
+		}
+
+		/**
+		 * @return size of all the objects of this group
+		 */
+		public long getSize() {
+			return m_size;
+		}
+
+		/**
+		 * @return size which would be saved by keeping only one of the objects
+		 */
+		public long getWastedSize() {
+			return m_wastedSize;
+		}
+
+		/**
+		 * @return beginning of the contents, for display
+		 */
+		public String getPreview() {
+			return m_preview;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public String toString() {
+			return m_preview + " (" + m_type.getSimpleName() + "): " + m_count + " copies, wasting "
+					+ m_wastedSize + " bytes";
+		}
+	} // end of nested class
+
+	DuplicateResult(final long totalSize, final long objectCount, final long analyzedCount, final long analyzedSize,
+			final long groupCount, final long duplicateCount, final long wastedSize, final List<Group> topGroups) {
+		m_totalSize = totalSize;
+		m_objectCount = objectCount;
+		m_analyzedCount = analyzedCount;
+		m_analyzedSize = analyzedSize;
+		m_groupCount = groupCount;
+		m_duplicateCount = duplicateCount;
+		m_wastedSize = wastedSize;
+		m_topGroups = topGroups;
+	}
+
+	/**
+	 * @return reachable size of the root (same as {@link ObjectProfiler#sizeof(Object)})
+	 */
+	public long getTotalSize() {
+		return m_totalSize;
+	}
+
+	/**
+	 * @return number of objects reachable from the root
+	 */
+	public long getObjectCount() {
+		return m_objectCount;
+	}
+
+	/**
+	 * @return number of <code>String</code>s and primitive arrays
+	 */
+	public long getAnalyzedCount() {
+		return m_analyzedCount;
+	}
+
+	/**
+	 * @return size of the <code>String</code>s and primitive arrays
+	 */
+	public long getAnalyzedSize() {
+		return m_analyzedSize;
+	}
+
+	/**
+	 * @return number of distinct contents found more than once
+	 */
+	public long getDuplicateGroupCount() {
+		return m_groupCount;
+	}
+
+	/**
+	 * @return number of objects whose contents were already found (not counting the first of each group)
+	 */
+	public long getDuplicateCount() {
+		return m_duplicateCount;
+	}
+
+	/**
+	 * @return size which would be saved by deduplicating all groups
+	 */
+	public long getWastedSize() {
+		return m_wastedSize;
+	}
+
+	/**
+	 * @return groups with the largest wasted sizes, by decreasing wasted size
+	 */
+	public List<Group> getTopGroups() {
+		return m_topGroups;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[size=" + m_totalSize + ", objects=" + m_objectCount
+				+ ", duplicates=" + m_duplicateCount + ", wasted=" + m_wastedSize + ", top=" + m_topGroups + ']';
+	}
+
+	private final long m_totalSize;
+	private final long m_objectCount;
+	private final long m_analyzedCount;
+	private final long m_analyzedSize;
+	private final long m_groupCount;
+	private final long m_duplicateCount;
+	private final long m_wastedSize;
+	private final List<Group> m_topGroups;
+}
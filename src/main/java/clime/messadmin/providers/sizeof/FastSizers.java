@@ -0,0 +1,391 @@
+package clime.messadmin.providers.sizeof;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Specialized sizers for the most common JDK types (<code>String</code>,
+ * <code>Date</code>, <code>ArrayList</code>, <code>HashMap</code>,
+ * <code>LinkedHashMap</code>, <code>ConcurrentHashMap</code>), used by
+ * {@link ObjectProfiler#sizeof(Object)} and the other sizing engines (unless
+ * their traversal needs to see each object) instead of walking their internal
+ * structure field by field:
+ * <ul>
+ * <li>internal arrays (<code>String</code> value, <code>ArrayList</code>
+ * elements, hash tables) are sized directly;</li>
+ * <li>hash map nodes are sized without being queued: one shell size per
+ * node class; they are still marked as visited, so that a node which is
+ * also referenced from outside its map (e.g. by an iterator, or a
+ * <code>Map.Entry</code> stored elsewhere) is counted once;</li>
+ * <li>the elements (list items, keys, values) and the other reference
+ * fields are visited as usual, so that shared elements are still
+ * accounted for once.</li>
+ * </ul>
+ * Boxed numbers do not need a specialized sizer: they have no reference
+ * fields and are sized as soon as they are found (see ObjectProfiler).
+ *
+ * <P>
+ * The sizes are the same as those of the generic traversal.
+ * Only exact classes are specialized: subclasses may add state. A sizer is not
+ * used if the internal layout of its class is not the expected one (other JDK
+ * implementations), or if one of its fields is a traversal boundary
+ * (see {@link TraversalFilter}).
+ *
+ * <P>
+ * Specialized sizers can be disabled with the <code>{@value #ENABLED_PROPERTY}</code>
+ * system property (<code>false</code>).
+ *
+ * @author C&eacute;drik LIME
+ */
+final class FastSizers {
+	// public: ................................................................
+
+	static final String ENABLED_PROPERTY = "clime.messadmin.providers.sizeof.fastSizers";
+
+	/*
+	 * Sizes an object along with its internal structure.
+	 */
+	abstract static class FastSizer {
+		private final long[] m_otherOffsets; // reference fields which are visited as usual
+		private final boolean m_container;
+
+		FastSizer(final long[] otherOffsets, final boolean container) {
+			m_otherOffsets = otherOffsets;
+			m_container = container;
+		}
+
+		/**
+		 * @return <code>true</code> if this sizer visits (many) elements: objects
+		 * 	of this class are sized when dequeued, so that the traversal stays non-recursive;
+		 * 	otherwise, they are sized as soon as they are found, like leaves
+		 */
+		final boolean isContainer() {
+			return m_container;
+		}
+
+		/**
+		 * @return the size of <code>obj</code> and of its internal structure
+		 */
+		final long sizeof(final Object obj, final ObjectProfiler.ClassMetadata metadata, final ObjectProfiler.Traversal traversal) {
+			long size = metadata.m_shellSize;
+			if (traversal.m_histogram != null) {
+				traversal.m_histogram.record(obj.getClass(), size);
+			}
+			final long[] offsets = m_otherOffsets;
+			for (int f = 0, fLimit = offsets.length; f < fLimit; ++f) {
+				size += ObjectProfiler.visit(UnsafeAccess.getObject(obj, offsets[f]), traversal);
+			}
+			return size + sizeofContents(obj, traversal);
+		}
+
+		abstract long sizeofContents(Object obj, ObjectProfiler.Traversal traversal);
+	} // end of nested class
+
+	/**
+	 * @param refFieldOffsets
+	 *			reference fields of <code>cls</code> which are to be traversed (see ObjectProfiler)
+	 * @param refFields
+	 *			reference fields which can only be read through reflection
+	 * @return the specialized sizer for <code>cls</code>, or <code>null</code>
+	 */
+	static FastSizer forClass(final Class<?> cls, final long[] refFieldOffsets, final Field[] refFields) {
+		if (!ENABLED || refFields.length > 0) {
+			return null;
+		}
+		try {
+			if (cls == String.class && STRING_VALUE != UnsafeAccess.INVALID_OFFSET) {
+				final long[] others = remove(refFieldOffsets, new long[] {STRING_VALUE});
+				return (others == null) ? null : new StringSizer(others);
+			} else if (cls == Date.class) {
+				return new FastSizer(refFieldOffsets, false) {
+					/** {@inheritDoc} */
+					@Override
+					long sizeofContents(Object obj, ObjectProfiler.Traversal traversal) {
+						return 0;
+					}
+				};
+			} else if (cls == ArrayList.class && ARRAY_LIST_ELEMENTS != UnsafeAccess.INVALID_OFFSET) {
+				final long[] others = remove(refFieldOffsets, new long[] {ARRAY_LIST_ELEMENTS});
+				return (others == null) ? null : new ArrayListSizer(others);
+			} else if (cls == HashMap.class && HASH_MAP_NODE_OFFSETS != null) {
+				final long[] others = remove(refFieldOffsets, new long[] {HASH_MAP_TABLE});
+				return (others == null) ? null : new HashMapSizer(others);
+			} else if (cls == LinkedHashMap.class && HASH_MAP_NODE_OFFSETS != null) {
+				// head and tail are nodes of the table
+				final long[] others = remove(refFieldOffsets, new long[] {HASH_MAP_TABLE,
+						getOffset(cls, "head"), getOffset(cls, "tail")});
+				return (others == null) ? null : new HashMapSizer(others);
+			} else if (cls == ConcurrentHashMap.class && CONCURRENT_MAP_NODE_OFFSETS != null) {
+				final long[] others = remove(refFieldOffsets, new long[] {CONCURRENT_MAP_TABLE});
+				return (others == null) ? null : new ConcurrentHashMapSizer(others);
+			}
+		} catch (ReflectiveOperationException roe) {
+			// unexpected layout
+		} catch (RuntimeException re) {
+			// SecurityException...
+		}
+		return null;
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	/**
+	 * @return the internal array (<code>char[]</code> or <code>byte[]</code>) of
+	 * 	<code>str</code> [null if not available]
+	 */
+	static Object getStringValue(final String str) {
+		return (STRING_VALUE == UnsafeAccess.INVALID_OFFSET) ? null : UnsafeAccess.getObject(str, STRING_VALUE);
+	}
+
+	// private: ...............................................................
+
+	private static final boolean ENABLED = isEnabled();
+
+	private static final long STRING_VALUE = findOffset("java.lang.String", "value");
+	private static final long ARRAY_LIST_ELEMENTS = findOffset("java.util.ArrayList", "elementData");
+	private static final long HASH_MAP_TABLE = findOffset("java.util.HashMap", "table");
+	private static final long[] HASH_MAP_NODE_OFFSETS = findOffsets(HASH_MAP_TABLE,
+			"java.util.HashMap$Node", new String[] {"key", "value", "next"});
+	private static final long CONCURRENT_MAP_TABLE = findOffset("java.util.concurrent.ConcurrentHashMap", "table");
+	private static final long[] CONCURRENT_MAP_NODE_OFFSETS = findOffsets(CONCURRENT_MAP_TABLE,
+			"java.util.concurrent.ConcurrentHashMap$Node", new String[] {"key", "val", "next"});
+	private static final Class<?> CONCURRENT_MAP_NODE = findClass("java.util.concurrent.ConcurrentHashMap$Node");
+
+	private FastSizers() {
+	} // this class is not extendible
+
+	/*
+	 * String: closed form (value array).
+	 */
+	private static final class StringSizer extends FastSizer {
+		StringSizer(final long[] otherOffsets) {
+			super(otherOffsets, false);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		long sizeofContents(final Object obj, final ObjectProfiler.Traversal traversal) {
+			// value arrays may be shared by Strings (substring() in Java 6, string deduplication...)
+			return sizeofInternalArray(UnsafeAccess.getObject(obj, STRING_VALUE), traversal);
+		}
+	} // end of nested class
+
+	/*
+	 * ArrayList: element array, and elements.
+	 */
+	private static final class ArrayListSizer extends FastSizer {
+		ArrayListSizer(final long[] otherOffsets) {
+			super(otherOffsets, true);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		long sizeofContents(final Object obj, final ObjectProfiler.Traversal traversal) {
+			final Object[] elements = (Object[]) UnsafeAccess.getObject(obj, ARRAY_LIST_ELEMENTS);
+			long size = sizeofInternalArray(elements, traversal);
+			if (size > 0) {
+				size += traversal.visitElements(elements);
+			}
+			return size;
+		}
+	} // end of nested class
+
+	/*
+	 * HashMap, LinkedHashMap: table length plus node count; keys and values.
+	 */
+	private static final class HashMapSizer extends FastSizer {
+		HashMapSizer(final long[] otherOffsets) {
+			super(otherOffsets, true);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		long sizeofContents(final Object obj, final ObjectProfiler.Traversal traversal) {
+			final Object[] table = (Object[]) UnsafeAccess.getObject(obj, HASH_MAP_TABLE);
+			long size = sizeofInternalArray(table, traversal);
+			if (size == 0) {
+				return 0;
+			}
+			final long keyOffset = HASH_MAP_NODE_OFFSETS[0], valueOffset = HASH_MAP_NODE_OFFSETS[1], nextOffset = HASH_MAP_NODE_OFFSETS[2];
+			// guard against a corrupted (cyclic) table, should the map have been modified concurrently
+			long remainingNodes = (long) ((Map) obj).size() + table.length;
+			Class<?> nodeClass = null;
+			int nodeSize = 0;
+			for (int i = 0; i < table.length; ++i) {
+				for (Object node = table[i]; node != null && --remainingNodes >= 0; node = UnsafeAccess.getObject(node, nextOffset)) {
+					if (node.getClass() != nodeClass) {
+						// Node, LinkedHashMap.Entry or TreeNode
+						nodeClass = node.getClass();
+						nodeSize = ObjectProfiler.getClassMetadata(nodeClass).m_shellSize;
+						++traversal.m_metadataLookups;
+					}
+					if (!traversal.markVisited(node)) {
+						continue; // already walked, along with its key and value
+					}
+					++traversal.m_objectCount;
+					size += nodeSize;
+					if (traversal.m_histogram != null) {
+						traversal.m_histogram.record(nodeClass, nodeSize);
+					}
+					size += ObjectProfiler.visit(UnsafeAccess.getObject(node, keyOffset), traversal);
+					size += ObjectProfiler.visit(UnsafeAccess.getObject(node, valueOffset), traversal);
+				}
+			}
+			return size;
+		}
+	} // end of nested class
+
+	/*
+	 * ConcurrentHashMap: table length plus node count; keys and values.
+	 * Special bins (tree bins, forwarding nodes during a resize) are visited as usual.
+	 */
+	private static final class ConcurrentHashMapSizer extends FastSizer {
+		ConcurrentHashMapSizer(final long[] otherOffsets) {
+			super(otherOffsets, true);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		long sizeofContents(final Object obj, final ObjectProfiler.Traversal traversal) {
+			final Object[] table = (Object[]) UnsafeAccess.getObject(obj, CONCURRENT_MAP_TABLE);
+			long size = sizeofInternalArray(table, traversal);
+			if (size == 0) {
+				return 0;
+			}
+			final long keyOffset = CONCURRENT_MAP_NODE_OFFSETS[0], valueOffset = CONCURRENT_MAP_NODE_OFFSETS[1], nextOffset = CONCURRENT_MAP_NODE_OFFSETS[2];
+			final int nodeSize = ObjectProfiler.getClassMetadata(CONCURRENT_MAP_NODE).m_shellSize;
+			++traversal.m_metadataLookups;
+			for (int i = 0; i < table.length; ++i) {
+				final Object bin = table[i];
+				if (bin != null && bin.getClass() != CONCURRENT_MAP_NODE) {
+					size += ObjectProfiler.visit(bin, traversal);
+					continue;
+				}
+				for (Object node = bin; node != null; node = UnsafeAccess.getObject(node, nextOffset)) {
+					if (!traversal.markVisited(node)) {
+						continue; // already walked, along with its key and value
+					}
+					++traversal.m_objectCount;
+					size += nodeSize;
+					if (traversal.m_histogram != null) {
+						traversal.m_histogram.record(CONCURRENT_MAP_NODE, nodeSize);
+					}
+					size += ObjectProfiler.visit(UnsafeAccess.getObject(node, keyOffset), traversal);
+					size += ObjectProfiler.visit(UnsafeAccess.getObject(node, valueOffset), traversal);
+				}
+			}
+			return size;
+		}
+	} // end of nested class
+
+	/*
+	 * Sizes an array which is part of the internal structure of an object,
+	 * as the generic traversal would.
+	 * @return the size of 'array' [0 if null, already visited or shared]
+	 */
+	private static long sizeofInternalArray(final Object array, final ObjectProfiler.Traversal traversal) {
+		if (array == null || !traversal.markVisited(array) || FlyweightRegistry.contains(array)) {
+			return 0;
+		}
+		++traversal.m_objectCount;
+		final Class<?> arrayClass = array.getClass();
+		final long size = ObjectProfiler.sizeofArrayShell(java.lang.reflect.Array.getLength(array), arrayClass.getComponentType());
+		if (traversal.m_histogram != null) {
+			traversal.m_histogram.record(arrayClass, size);
+		}
+		return size;
+	}
+
+	/*
+	 * @return 'offsets' without 'removed', or null if one of 'removed' is missing (boundary field)
+	 */
+	private static long[] remove(final long[] offsets, final long[] removed) {
+		final long[] result = new long[offsets.length];
+		int n = 0;
+		int found = 0;
+		for (int i = 0; i < offsets.length; ++i) {
+			boolean keep = true;
+			for (int j = 0; j < removed.length; ++j) {
+				if (offsets[i] == removed[j]) {
+					keep = false;
+					++found;
+					break;
+				}
+			}
+			if (keep) {
+				result[n++] = offsets[i];
+			}
+		}
+		if (found != removed.length) {
+			return null;
+		}
+		final long[] trimmed = new long[n];
+		System.arraycopy(result, 0, trimmed, 0, n);
+		return trimmed;
+	}
+
+	private static long getOffset(final Class<?> cls, final String fieldName) throws NoSuchFieldException {
+		final long offset = UnsafeAccess.objectFieldOffset(cls.getDeclaredField(fieldName));
+		if (offset == UnsafeAccess.INVALID_OFFSET) {
+			throw new NoSuchFieldException(fieldName);
+		}
+		return offset;
+	}
+
+	static long findOffset(final String className, final String fieldName) {
+		try {
+			return getOffset(Class.forName(className), fieldName);
+		} catch (ReflectiveOperationException roe) {
+			return UnsafeAccess.INVALID_OFFSET;
+		} catch (RuntimeException re) {
+			// SecurityException...
+			return UnsafeAccess.INVALID_OFFSET;
+		} catch (LinkageError le) {
+			return UnsafeAccess.INVALID_OFFSET;
+		}
+	}
+
+	/*
+	 * @return the offsets of the given fields of a node class [null if not all found, or if the table is not]
+	 */
+	private static long[] findOffsets(final long tableOffset, final String className, final String[] fieldNames) {
+		if (tableOffset == UnsafeAccess.INVALID_OFFSET) {
+			return null;
+		}
+		final long[] result = new long[fieldNames.length];
+		for (int i = 0; i < fieldNames.length; ++i) {
+			result[i] = findOffset(className, fieldNames[i]);
+			if (result[i] == UnsafeAccess.INVALID_OFFSET) {
+				return null;
+			}
+		}
+		return result;
+	}
+
+	private static Class<?> findClass(final String className) {
+		try {
+			return Class.forName(className);
+		} catch (ClassNotFoundException cnfe) {
+			return null;
+		} catch (LinkageError le) {
+			return null;
+		}
+	}
+
+	private static boolean isEnabled() {
+		try {
+			final String value = System.getProperty(ENABLED_PROPERTY);
+			return value == null || Boolean.valueOf(value.trim()).booleanValue();
+		} catch (SecurityException ignore) {
+			return true;
+		}
+	}
+
+} // end of class
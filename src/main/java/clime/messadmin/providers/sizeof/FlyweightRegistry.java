@@ -0,0 +1,322 @@
+package clime.messadmin.providers.sizeof;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.StringTokenizer;
+
+/**
+ * Registry of the shared "flyweight" instances (constants, singletons), which
+ * are not counted in object sizes, nor walked. Lookups are O(1) and lock-free,
+ * so that every object of a graph can be checked.
+ *
+ * <P>
+ * The registry is initially filled with the public constants
+ * (<code>public static final</code> reference fields) of selected JDK classes,
+ * e.g. <code>Boolean.TRUE</code>, <code>Locale.US</code>, <code>BigInteger.ONE</code>.
+ * Classes which are not available in the running JVM are ignored.
+ * Applications can add the constants of their own classes with the
+ * <code>clime.messadmin.providers.sizeof.flyweight.classes</code> system property
+ * (comma-separated class names), or by calling {@link #registerConstants(Class)}
+ * and {@link #register(Object)}.
+ * Note that registered objects are strongly referenced: unregister them when
+ * the application is undeployed.
+ *
+ * <P>
+ * Enum constants and a few types whose instances are all shared
+ * (<code>Class</code>, <code>Character.UnicodeBlock</code>...) are always
+ * considered as flyweights, and need not be registered.
+ *
+ * <P>
+ * This class is thread-safe.
+ *
+ * @author C&eacute;drik LIME
+ */
+public final class FlyweightRegistry {
+	// public: ................................................................
+
+	/**
+	 * System property: comma-separated names of application classes whose
+	 * public constants are flyweights.
+	 */
+	public static final String CLASSES_PROPERTY = "clime.messadmin.providers.sizeof.flyweight.classes";
+
+	/**
+	 * @return <code>true</code> if <code>obj</code> is a registered flyweight
+	 */
+	public static boolean contains(final Object obj) {
+		final Table table = s_table;
+		final Object[] keys = table.m_keys;
+		final int mask = keys.length - 1;
+		int i = hash(obj, table.m_shift);
+		Object key;
+		while ((key = keys[i]) != null) {
+			if (key == obj) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * Registers a shared instance.
+	 */
+	public static void register(final Object obj) {
+		if (obj == null) {
+			throw new IllegalArgumentException("null input: obj");
+		}
+		synchronized (FlyweightRegistry.class) {
+			if (!contains(obj)) {
+				s_table = s_table.with(new Object[] {obj}, 1);
+			}
+		}
+	}
+
+	/**
+	 * Unregisters a shared instance.
+	 */
+	public static void unregister(final Object obj) {
+		synchronized (FlyweightRegistry.class) {
+			if (obj != null && contains(obj)) {
+				s_table = s_table.without(obj);
+			}
+		}
+	}
+
+	/**
+	 * Registers the values of the <code>public static final</code> reference
+	 * fields of <code>cls</code>.
+	 *
+	 * @return number of newly registered instances
+	 */
+	public static int registerConstants(final Class<?> cls) {
+		final Object[] constants = getConstants(cls);
+		synchronized (FlyweightRegistry.class) {
+			final int sizeBefore = s_table.m_size;
+			s_table = s_table.with(constants, constants.length);
+			return s_table.m_size - sizeBefore;
+		}
+	}
+
+	/**
+	 * Unregisters the values of the <code>public static final</code> reference
+	 * fields of <code>cls</code>.
+	 */
+	public static void unregisterConstants(final Class<?> cls) {
+		final Object[] constants = getConstants(cls);
+		synchronized (FlyweightRegistry.class) {
+			for (int i = 0; i < constants.length; ++i) {
+				unregister(constants[i]);
+			}
+		}
+	}
+
+	/**
+	 * @return number of registered instances
+	 */
+	public static int size() {
+		return s_table.m_size;
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	/*
+	 * Very incomplete, but better than nothing...
+	 * See http://docs.oracle.com/javase/7/docs/api/constant-values.html for JDK's String constants
+	 */
+	private static final String[] JDK_CLASSES = {
+		"java.lang.Boolean", "java.lang.String", "java.lang.System",
+		"java.math.BigInteger", "java.math.BigDecimal", "java.math.MathContext",
+		"java.util.Collections", "java.util.Locale",
+		"java.util.jar.JarFile", "java.util.jar.Attributes$Name",
+		"java.util.jar.Pack200$Packer", "java.util.jar.Pack200$Unpacker", // up to Java 13
+		"java.util.logging.Level", "java.util.logging.Logger", "java.util.logging.LogManager",
+		"java.io.File", "java.io.FileDescriptor", "java.io.ObjectStreamClass",
+		"java.net.Proxy",
+		"java.beans.DesignMode",
+		"java.lang.management.ManagementFactory", "java.lang.management.MemoryNotificationInfo",
+		"java.rmi.server.LoaderHandler", "java.rmi.server.RemoteRef",
+		"java.security.spec.ECPoint", "java.security.spec.MGF1ParameterSpec",
+		"java.security.spec.PSSParameterSpec", "java.security.spec.RSAKeyGenParameterSpec",
+		"java.text.AttributedCharacterIterator$Attribute",
+		"java.awt.AlphaComposite", "java.awt.Color",
+		"javax.accessibility.AccessibleContext", "javax.accessibility.AccessibleRelation",
+		"javax.accessibility.AccessibleRole", "javax.accessibility.AccessibleState",
+		"javax.crypto.spec.OAEPParameterSpec", "javax.crypto.spec.PSource$PSpecified",
+		"javax.imageio.metadata.IIOMetadataFormatImpl",
+		"javax.imageio.plugins.jpeg.JPEGHuffmanTable", "javax.imageio.plugins.jpeg.JPEGQTable",
+		"javax.management.AttributeChangeNotification", "javax.management.JMX",
+		"javax.management.MBeanServerNotification",
+		"javax.management.monitor.MonitorNotification", "javax.management.relation.RelationNotification",
+		"javax.management.remote.JMXConnectionNotification", "javax.management.remote.JMXConnector",
+		"javax.management.remote.JMXConnectorFactory", "javax.management.remote.JMXConnectorServer",
+		"javax.management.remote.JMXConnectorServerFactory", "javax.management.remote.rmi.RMIConnectorServer",
+		"javax.naming.Context", "javax.naming.ldap.LdapContext",
+		"javax.naming.ldap.ManageReferralControl", "javax.naming.ldap.PagedResultsControl",
+		"javax.naming.ldap.PagedResultsResponseControl", "javax.naming.ldap.SortControl",
+		"javax.naming.ldap.SortResponseControl", "javax.naming.ldap.StartTlsRequest",
+		"javax.naming.ldap.StartTlsResponse", "javax.naming.spi.NamingManager",
+		"javax.print.ServiceUIFactory",
+		"javax.print.DocFlavor$BYTE_ARRAY", "javax.print.DocFlavor$CHAR_ARRAY",
+		"javax.print.DocFlavor$INPUT_STREAM", "javax.print.DocFlavor$READER",
+		"javax.print.DocFlavor$SERVICE_FORMATTED", "javax.print.DocFlavor$STRING", "javax.print.DocFlavor$URL",
+		"javax.script.ScriptEngine",
+		"javax.security.auth.x500.X500Principal", "javax.security.sasl.Sasl",
+		"javax.sound.sampled.AudioFileFormat$Type", "javax.sound.sampled.BooleanControl$Type",
+		"javax.sound.sampled.EnumControl$Type", "javax.sound.sampled.FloatControl$Type",
+		"javax.sound.sampled.LineEvent$Type", "javax.sound.sampled.Port$Info",
+		"javax.sql.rowset.WebRowSet", "javax.sql.rowset.spi.SyncFactory",
+		"javax.xml.XMLConstants", "javax.xml.datatype.DatatypeConstants", "javax.xml.datatype.DatatypeFactory",
+		"javax.xml.transform.OutputKeys", "javax.xml.transform.Result",
+		"javax.xml.transform.dom.DOMResult", "javax.xml.transform.dom.DOMSource",
+		"javax.xml.transform.sax.SAXResult", "javax.xml.transform.sax.SAXSource",
+		"javax.xml.transform.sax.SAXTransformerFactory",
+		"javax.xml.transform.stax.StAXResult", "javax.xml.transform.stax.StAXSource",
+		"javax.xml.transform.stream.StreamResult", "javax.xml.transform.stream.StreamSource",
+		"javax.xml.xpath.XPathConstants", "javax.xml.xpath.XPathFactory",
+		"org.w3c.dom.bootstrap.DOMImplementationRegistry", "org.xml.sax.helpers.NamespaceSupport"
+	};
+
+	private static final int MIN_CAPACITY = 16;
+
+	private static volatile Table s_table = new Table(MIN_CAPACITY);
+
+	static {
+		for (int i = 0; i < JDK_CLASSES.length; ++i) {
+			registerConstants(JDK_CLASSES[i], null);
+		}
+		final String applicationClasses = System.getProperty(CLASSES_PROPERTY);
+		if (applicationClasses != null) {
+			final StringTokenizer tokenizer = new StringTokenizer(applicationClasses, ", \t");
+			while (tokenizer.hasMoreTokens()) {
+				registerConstants(tokenizer.nextToken(), Thread.currentThread().getContextClassLoader());
+			}
+		}
+	}
+
+	/*
+	 * Immutable open-addressing (linear probing) identity table: updates
+	 * build a new table, which is then published through the volatile s_table.
+	 */
+	private static final class Table {
+		final Object[] m_keys; // null for empty slots
+		final int m_shift;
+		final int m_size;
+
+		Table(final int capacity) {
+			this(new Object[capacity], 0);
+		}
+
+		private Table(final Object[] keys, final int size) {
+			m_keys = keys;
+			m_shift = 32 - Integer.numberOfTrailingZeros(keys.length);
+			m_size = size;
+		}
+
+		/*
+		 * @return a copy of this table, with the 'count' first 'objects' added
+		 */
+		Table with(final Object[] objects, final int count) {
+			int capacity = m_keys.length;
+			while ((m_size + count) * 2 > capacity) {
+				capacity <<= 1;
+			}
+			final Object[] keys = new Object[capacity];
+			int size = 0;
+			for (int i = 0; i < m_keys.length; ++i) {
+				if (m_keys[i] != null && insert(keys, m_keys[i])) {
+					++size;
+				}
+			}
+			for (int i = 0; i < count; ++i) {
+				if (objects[i] != null && insert(keys, objects[i])) {
+					++size;
+				}
+			}
+			return new Table(keys, size);
+		}
+
+		/*
+		 * @return a copy of this table, without 'obj'
+		 */
+		Table without(final Object obj) {
+			final Object[] keys = new Object[m_keys.length];
+			int size = 0;
+			for (int i = 0; i < m_keys.length; ++i) {
+				if (m_keys[i] != null && m_keys[i] != obj && insert(keys, m_keys[i])) {
+					++size;
+				}
+			}
+			return new Table(keys, size);
+		}
+
+		private static boolean insert(final Object[] keys, final Object obj) {
+			final int mask = keys.length - 1;
+			int i = hash(obj, 32 - Integer.numberOfTrailingZeros(keys.length));
+			Object key;
+			while ((key = keys[i]) != null) {
+				if (key == obj) {
+					return false;
+				}
+				i = (i + 1) & mask;
+			}
+			keys[i] = obj;
+			return true;
+		}
+	} // end of nested class
+
+	private FlyweightRegistry() {
+	} // this class is not instantiable
+
+	private static int hash(final Object obj, final int shift) {
+		// Fibonacci hashing: spreads the (poorly distributed) identity hash codes
+		return (System.identityHashCode(obj) * 0x9E3779B9) >>> shift;
+	}
+
+	private static void registerConstants(final String className, final ClassLoader classLoader) {
+		try {
+			final Class<?> cls = (classLoader == null) ? Class.forName(className)
+					: Class.forName(className, true, classLoader);
+			registerConstants(cls);
+		} catch (ClassNotFoundException cnfe) {
+			// not available in this JVM
+		} catch (LinkageError le) {
+			// not available in this JVM (headless, modules...)
+		} catch (RuntimeException re) {
+			// SecurityException...
+		}
+	}
+
+	/*
+	 * @return values of the public static final reference fields of 'cls'
+	 */
+	private static Object[] getConstants(final Class<?> cls) {
+		final Field[] fields = cls.getFields();
+		final Object[] result = new Object[fields.length];
+		int count = 0;
+		for (int i = 0; i < fields.length; ++i) {
+			final Field field = fields[i];
+			final int modifiers = field.getModifiers();
+			if (Modifier.isStatic(modifiers) && Modifier.isFinal(modifiers) && !field.getType().isPrimitive()) {
+				try {
+					final Object value = field.get(null);
+					if (value != null) {
+						result[count++] = value;
+					}
+				} catch (IllegalAccessException iae) {
+					// can't happen: public field
+				} catch (RuntimeException re) {
+					// Java 9+ non-exported package...
+				}
+			}
+		}
+		final Object[] constants = new Object[count];
+		System.arraycopy(result, 0, constants, 0, count);
+		return constants;
+	}
+
+} // end of class
@@ -0,0 +1,128 @@
+package clime.messadmin.providers.sizeof;
+
+/**
+ * Open-addressing (linear probing) identity map from objects to
+ * <code>int</code> values, without boxing.
+ * Used by the analyses which need to attach data to the objects of a graph
+ * (owner, node id...).
+ *
+ * <P>
+ * This class is not thread-safe.
+ *
+ * @author C&eacute;drik LIME
+ * @see IdentitySet
+ */
+final class IdentityIntMap {
+	// public: ................................................................
+
+	/**
+	 * Returned by {@link #get(Object)} for absent keys.
+	 */
+	static final int NO_VALUE = Integer.MIN_VALUE;
+
+	IdentityIntMap(final int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2 && capacity < MAX_CAPACITY) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	/**
+	 * @return the value mapped to <code>key</code>, or {@link #NO_VALUE}
+	 */
+	int get(final Object key) {
+		final Object[] keys = m_keys;
+		final int mask = keys.length - 1;
+		int i = hash(key, m_shift);
+		Object k;
+		while ((k = keys[i]) != null) {
+			if (k == key) {
+				return m_values[i];
+			}
+			i = (i + 1) & mask;
+		}
+		return NO_VALUE;
+	}
+
+	/**
+	 * @return the previous value mapped to <code>key</code>, or {@link #NO_VALUE}
+	 */
+	int put(final Object key, final int value) {
+		final Object[] keys = m_keys;
+		final int mask = keys.length - 1;
+		int i = hash(key, m_shift);
+		Object k;
+		while ((k = keys[i]) != null) {
+			if (k == key) {
+				final int previous = m_values[i];
+				m_values[i] = value;
+				return previous;
+			}
+			i = (i + 1) & mask;
+		}
+		keys[i] = key;
+		m_values[i] = value;
+		if (++m_size > m_threshold) {
+			resize(keys.length << 1);
+		}
+		return NO_VALUE;
+	}
+
+	int size() {
+		return m_size;
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private static final int MIN_CAPACITY = 64; // must be a power of 2
+	private static final int MAX_CAPACITY = 1 << 30;
+
+	private Object[] m_keys;
+	private int[] m_values;
+	private int m_shift; // 32 - log2(capacity)
+	private int m_size;
+	private int m_threshold; // load factor is 0.5
+
+	private void allocate(final int capacity) {
+		m_keys = new Object[capacity];
+		m_values = new int[capacity];
+		m_shift = Integer.numberOfLeadingZeros(capacity) + 1;
+		m_threshold = capacity >>> 1;
+	}
+
+	private void resize(final int newCapacity) {
+		if (newCapacity > MAX_CAPACITY) {
+			throw new IllegalStateException("IdentityIntMap capacity exceeded: " + m_size);
+		}
+		final Object[] oldKeys = m_keys;
+		final int[] oldValues = m_values;
+		allocate(newCapacity);
+		final Object[] keys = m_keys;
+		final int[] values = m_values;
+		final int mask = newCapacity - 1;
+		for (int j = 0; j < oldKeys.length; ++j) {
+			final Object key = oldKeys[j];
+			if (key != null) {
+				int i = hash(key, m_shift);
+				while (keys[i] != null) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = key;
+				values[i] = oldValues[j];
+			}
+		}
+	}
+
+	/*
+	 * Fibonacci hashing: keeps the high (well-mixed) bits of the product.
+	 */
+	private static int hash(final Object obj, final int shift) {
+		return (System.identityHashCode(obj) * 0x9E3779B9) >>> shift;
+	}
+
+} // end of class
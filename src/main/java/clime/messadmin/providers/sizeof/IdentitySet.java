@@ -0,0 +1,225 @@
+package clime.messadmin.providers.sizeof;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing (linear probing) identity set, used as the "visited" set of
+ * the {@link ObjectProfiler} graph traversal.
+ *
+ * <P>
+ * This replaces the <code>new IdentityHashMap(80000)</code> that was allocated
+ * (and zeroed) on each sizing call:
+ * <ul>
+ * <li>tables start small and only grow with the graph, so sizing a tiny
+ * attribute costs (almost) nothing;</li>
+ * <li>{@link #clear()} is O(1): slots are tagged with a generation stamp, and
+ * clearing merely bumps the current generation;</li>
+ * <li>instances are recycled through a small pool, see {@link #acquire()} and
+ * {@link #release(IdentitySet)}.</li>
+ * </ul>
+ * A set may be given a read-only {@link #setBaseline(IdentitySet) baseline}: the
+ * objects of the baseline are considered present, without being copied.
+ *
+ * <P>
+ * This class is not thread-safe; a set which is no longer modified can be
+ * read (e.g. as a baseline) by several threads, once safely published.
+ *
+ * @author C&eacute;drik LIME
+ */
+final class IdentitySet {
+	// public: ................................................................
+
+	/**
+	 * @param expectedSize
+	 *			expected number of elements [the set will grow as needed]
+	 */
+	IdentitySet(final int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2 && capacity < MAX_CAPACITY) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+
+	/**
+	 * @return <code>true</code> if <code>obj</code> was not already present
+	 */
+	boolean add(final Object obj) {
+		final Object[] keys = m_keys;
+		final int[] stamps = m_stamps;
+		final int generation = m_generation;
+		final int mask = keys.length - 1;
+		int i = hash(obj, m_shift);
+		while (stamps[i] == generation) {
+			if (keys[i] == obj) {
+				return false;
+			}
+			i = (i + 1) & mask;
+		}
+		if (m_baseline != null && m_baseline.contains(obj)) {
+			return false;
+		}
+		keys[i] = obj;
+		stamps[i] = generation;
+		if (++m_size > m_threshold) {
+			resize(keys.length << 1);
+		}
+		return true;
+	}
+
+	boolean contains(final Object obj) {
+		final Object[] keys = m_keys;
+		final int[] stamps = m_stamps;
+		final int generation = m_generation;
+		final int mask = keys.length - 1;
+		int i = hash(obj, m_shift);
+		while (stamps[i] == generation) {
+			if (keys[i] == obj) {
+				return true;
+			}
+			i = (i + 1) & mask;
+		}
+		return m_baseline != null && m_baseline.contains(obj);
+	}
+
+	/**
+	 * @return number of elements, not counting the baseline
+	 */
+	int size() {
+		return m_size;
+	}
+
+	/**
+	 * @param baseline
+	 *			read-only set whose elements are considered present [null for none]
+	 */
+	void setBaseline(final IdentitySet baseline) {
+		if (baseline == this) {
+			throw new IllegalArgumentException("baseline");
+		}
+		m_baseline = baseline;
+	}
+
+	/**
+	 * @return a copy of this set, with the smallest capacity for its size
+	 * 	(ignoring the baseline)
+	 */
+	IdentitySet compact() {
+		final IdentitySet result = new IdentitySet(m_size);
+		for (int j = 0; j < m_keys.length; ++j) {
+			if (m_stamps[j] == m_generation) {
+				result.add(m_keys[j]);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Constant-time clear.
+	 * Note that stale keys are still referenced until they are overwritten
+	 * or the set is {@link #release(IdentitySet) released}.
+	 */
+	void clear() {
+		m_size = 0;
+		m_baseline = null;
+		if (++m_generation == 0) {
+			// wrap-around (once every 4 billion clears...)
+			Arrays.fill(m_stamps, 0);
+			m_generation = 1;
+		}
+	}
+
+	/**
+	 * @return a cleared set, from the pool if possible
+	 */
+	static IdentitySet acquire() {
+		synchronized (POOL) {
+			if (s_poolSize > 0) {
+				final IdentitySet result = POOL[--s_poolSize];
+				POOL[s_poolSize] = null;
+				return result;
+			}
+		}
+		return new IdentitySet(0);
+	}
+
+	/**
+	 * Gives back a set obtained through {@link #acquire()}.
+	 * Large sets are not retained, so that sizing a huge graph once does not
+	 * pin its visited set forever.
+	 */
+	static void release(final IdentitySet set) {
+		if (set == null || set.m_keys.length > MAX_POOLED_CAPACITY) {
+			return;
+		}
+		set.clear();
+		// do not retain references to the measured objects
+		Arrays.fill(set.m_keys, null);
+		synchronized (POOL) {
+			if (s_poolSize < POOL.length) {
+				POOL[s_poolSize++] = set;
+			}
+		}
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private static final int MIN_CAPACITY = 64; // must be a power of 2
+	private static final int MAX_CAPACITY = 1 << 30;
+	private static final int MAX_POOLED_CAPACITY = 1 << 14;
+
+	private static final IdentitySet[] POOL = new IdentitySet[4];
+	private static int s_poolSize = 0; // guarded by POOL
+
+	private Object[] m_keys;
+	private int[] m_stamps; // slot is used iff m_stamps[i] == m_generation
+	private int m_generation;
+	private int m_shift; // 32 - log2(capacity)
+	private int m_size;
+	private int m_threshold; // load factor is 0.5
+	private IdentitySet m_baseline; // read-only
+
+	private void allocate(final int capacity) {
+		m_keys = new Object[capacity];
+		m_stamps = new int[capacity];
+		m_generation = 1;
+		m_shift = Integer.numberOfLeadingZeros(capacity) + 1;
+		m_threshold = capacity >>> 1;
+	}
+
+	private void resize(final int newCapacity) {
+		if (newCapacity > MAX_CAPACITY) {
+			throw new IllegalStateException("IdentitySet capacity exceeded: " + m_size);
+		}
+		final Object[] oldKeys = m_keys;
+		final int[] oldStamps = m_stamps;
+		final int oldGeneration = m_generation;
+		allocate(newCapacity);
+		final Object[] keys = m_keys;
+		final int[] stamps = m_stamps;
+		final int mask = newCapacity - 1;
+		for (int j = 0; j < oldKeys.length; ++j) {
+			if (oldStamps[j] == oldGeneration) {
+				final Object key = oldKeys[j];
+				int i = hash(key, m_shift);
+				while (stamps[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				keys[i] = key;
+				stamps[i] = 1;
+			}
+		}
+	}
+
+	/*
+	 * Fibonacci hashing: keeps the high (well-mixed) bits of the product.
+	 */
+	private static int hash(final Object obj, final int shift) {
+		return (System.identityHashCode(obj) * 0x9E3779B9) >>> shift;
+	}
+
+} // end of class
@@ -0,0 +1,109 @@
+/**
+ * 
+ */
+package clime.messadmin.providers.sizeof;
+
+import java.lang.instrument.Instrumentation;
+
+import clime.messadmin.providers.spi.SizeOfProvider;
+
+/**
+ * {@link SizeOfProvider} using {@link Instrumentation#getObjectSize(Object)}
+ * for the shallow size of each object of the graph, which is then walked as
+ * in {@link ObjectProfilerProvider}.
+ * Instance sizes are measured once per class, and computed sizes are
+ * cached (see {@link SizeCache}).
+ *
+ * <P>
+ * This requires this jar to be loaded as an agent (see {@link SizeOfAgent});
+ * when it is not, this provider falls back to the {@link ObjectProfiler} layout model.
+ *
+ * @author C&eacute;drik LIME
+ */
+public class InstrumentationSizeOfProvider implements SizeOfProvider {
+	private final SizeCache m_cache = new SizeCache();
+	private final SizeOfBudget m_budget = SizeOfBudget.getDefault(); // null if unlimited
+	private final int m_samplingThreshold = SamplingSizeof.getDefaultThreshold(); // 0 if no sampling
+	private final SizingService m_service = SizingService.isEnabled() ? new SizingService() {
+		@Override
+		protected long computeSize(final Object obj) {
+			return ObjectProfilerProvider.computeSize(obj, getSizer(), m_budget, m_samplingThreshold);
+		}
+	} : null; // null if synchronous
+
+	/**
+	 * 
+	 */
+	public InstrumentationSizeOfProvider() {
+		super();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getPriority() {
+		return 10;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long sizeof(Object objectToSize) {
+		if (m_service != null) {
+			return m_service.getSize(objectToSize);
+		}
+		long result = m_cache.get(objectToSize);
+		if (result < 0) {
+			final SizeCache.Sizing sizing = m_cache.begin(objectToSize);
+			result = ObjectProfilerProvider.computeSize(objectToSize, getSizer(), m_budget, m_samplingThreshold);
+			m_cache.put(sizing, result);
+		}
+		return result;
+	}
+
+	private static volatile InstrumentationSizer s_sizer;
+	private static volatile boolean s_initialized = false;
+
+	private static ObjectProfiler.ShallowSizer getSizer() {
+		if (!s_initialized) {
+			synchronized (InstrumentationSizeOfProvider.class) {
+				if (!s_initialized) {
+					try {
+						final Instrumentation inst = SizeOfAgent.getOrAttachInstrumentation();
+						if (inst != null) {
+							s_sizer = new InstrumentationSizer(inst);
+						}
+					} catch (LinkageError le) {
+						// no java.instrument
+					}
+					s_initialized = true;
+				}
+			}
+		}
+		return s_sizer;
+	}
+
+	private static final class InstrumentationSizer implements ObjectProfiler.ShallowSizer {
+		private final Instrumentation m_instrumentation;
+
+		InstrumentationSizer(final Instrumentation instrumentation) {
+			m_instrumentation = instrumentation;
+		}
+
+		/** {@inheritDoc} */
+		public long sizeofInstance(final Object obj, final ObjectProfiler.ClassMetadata metadata) {
+			int result = metadata.m_measuredShellSize;
+			if (result == 0) {
+				// all instances of a (non-array) class have the same size
+				result = (int) m_instrumentation.getObjectSize(obj);
+				metadata.m_measuredShellSize = result;
+			}
+			return result;
+		}
+
+		/** {@inheritDoc} */
+		public long sizeofArray(final Object array) {
+			return m_instrumentation.getObjectSize(array);
+		}
+	}
+}
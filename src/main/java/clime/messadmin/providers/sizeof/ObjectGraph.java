@@ -0,0 +1,164 @@
+package clime.messadmin.providers.sizeof;
+
+/**
+ * Compact representation of an object graph, for the analyses which need the
+ * graph structure: nodes are <code>int</code>s (in discovery order, the root
+ * being node 0), and edges are stored as compressed adjacency arrays
+ * (edges of node <code>v</code> are <code>m_edgeTargets[m_edgeStart[v] .. m_edgeStart[v+1]-1]</code>).
+ * No boxing: a node costs a few primitive array slots.
+ *
+ * <P>
+ * The references of the root can optionally be represented by intermediate
+ * "reference nodes" (nodes <code>1 .. n</code>, of size 0, without object),
+ * so that analyses can tell the references apart even when several of them
+ * point to the same object.
+ *
+ * @author C&eacute;drik LIME
+ */
+final class ObjectGraph {
+	// public: ................................................................
+
+	/**
+	 * Walks the object graph rooted at 'root'.
+	 *
+	 * @param rootReferences if not null, the references of the root, which will
+	 *	be nodes <code>1 .. rootReferences.length</code> [may contain nulls]
+	 */
+	static ObjectGraph build(final Object root, final Object[] rootReferences) {
+		final ObjectGraph graph = new ObjectGraph();
+		graph.walk(root, rootReferences);
+		return graph;
+	}
+
+	int getNodeCount() {
+		return m_nodeCount;
+	}
+
+	/**
+	 * @return the object of <code>node</code> [null for reference nodes]
+	 */
+	Object getObject(final int node) {
+		return m_objects[node];
+	}
+
+	/**
+	 * @return shallow size of <code>node</code>
+	 */
+	long getSize(final int node) {
+		return m_sizes[node];
+	}
+
+	int[] getEdgeStart() {
+		return m_edgeStart;
+	}
+
+	int[] getEdgeTargets() {
+		return m_edgeTargets;
+	}
+
+	/**
+	 * @return number of reference nodes (see {@link #build(Object, Object[])})
+	 */
+	int getReferenceNodeCount() {
+		return m_referenceNodeCount;
+	}
+
+	/**
+	 * Drops the references to the objects of the graph, keeping only its structure.
+	 */
+	void releaseObjects() {
+		m_objects = null;
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private IdentityIntMap m_ids = new IdentityIntMap(0); // object -> node, while walking
+	private Object[] m_objects = new Object[64];
+	private long[] m_sizes = new long[64];
+	private int m_nodeCount = 0;
+	private int[] m_edgeStart = new int[65];
+	private int[] m_edgeTargets = new int[128];
+	private int m_edgeCount = 0;
+	private int m_referenceNodeCount = 0;
+
+	private ObjectGraph() {
+	}
+
+	private void walk(final Object root, final Object[] rootReferences) {
+		final ObjectStack references = new ObjectStack();
+		final ObjectProfiler.Traversal traversal = new ObjectProfiler.ShallowTraversal(references);
+		addNode(root);
+		if (rootReferences != null) {
+			m_referenceNodeCount = rootReferences.length;
+			for (int i = 0; i < rootReferences.length; ++i) {
+				addNode(null);
+			}
+		}
+		// nodes are processed in discovery order, so that the edges of each node are contiguous
+		for (int node = 0; node < m_nodeCount; ++node) {
+			m_edgeStart[node] = m_edgeCount;
+			if (node == 0 && rootReferences != null) {
+				m_sizes[0] = ObjectProfiler.sizeofObject(root, traversal);
+				while (!references.isEmpty()) {
+					references.pop(); // replaced by the reference nodes
+				}
+				for (int i = 1; i <= rootReferences.length; ++i) {
+					addEdge(i);
+				}
+			} else if (node <= m_referenceNodeCount && node > 0) {
+				final Object target = rootReferences[node - 1];
+				if (target != null) {
+					addEdge(getOrAddNode(target));
+				}
+			} else {
+				m_sizes[node] = ObjectProfiler.sizeofObject(m_objects[node], traversal);
+				while (!references.isEmpty()) {
+					addEdge(getOrAddNode(references.pop()));
+				}
+			}
+		}
+		m_edgeStart[m_nodeCount] = m_edgeCount;
+		m_ids = null; // not needed anymore
+	}
+
+	private int getOrAddNode(final Object obj) {
+		final int id = m_ids.get(obj);
+		return (id != IdentityIntMap.NO_VALUE) ? id : addNode(obj);
+	}
+
+	private int addNode(final Object obj) {
+		final int id = m_nodeCount;
+		if (id == m_objects.length) {
+			final int newLength = id << 1;
+			final Object[] newObjects = new Object[newLength];
+			System.arraycopy(m_objects, 0, newObjects, 0, id);
+			m_objects = newObjects;
+			final long[] newSizes = new long[newLength];
+			System.arraycopy(m_sizes, 0, newSizes, 0, id);
+			m_sizes = newSizes;
+			final int[] newEdgeStart = new int[newLength + 1];
+			System.arraycopy(m_edgeStart, 0, newEdgeStart, 0, id + 1);
+			m_edgeStart = newEdgeStart;
+		}
+		m_objects[id] = obj;
+		if (obj != null) {
+			m_ids.put(obj, id);
+		}
+		++m_nodeCount;
+		return id;
+	}
+
+	private void addEdge(final int target) {
+		if (m_edgeCount == m_edgeTargets.length) {
+			final int[] newTargets = new int[m_edgeCount << 1];
+			System.arraycopy(m_edgeTargets, 0, newTargets, 0, m_edgeCount);
+			m_edgeTargets = newTargets;
+		}
+		m_edgeTargets[m_edgeCount++] = target;
+	}
+
+} // end of class
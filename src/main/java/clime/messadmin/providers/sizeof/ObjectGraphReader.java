@@ -0,0 +1,206 @@
+package clime.messadmin.providers.sizeof;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sequential reader of the object graphs exported by
+ * {@link ObjectProfiler#export(Object, File)}, for offline analysis.
+ * Nodes are read one at a time: memory use does not depend on the number
+ * of nodes (only on the number of classes).
+ *
+ * <pre>
+ * ObjectGraphReader reader = new ObjectGraphReader(file);
+ * try {
+ *   while (reader.next()) {
+ *     reader.getNodeId(); reader.getClassName(); reader.getShallowSize();
+ *     for (int i = 0; i &lt; reader.getEdgeCount(); ++i) {
+ *       reader.getEdge(i);
+ *     }
+ *   }
+ * } finally {
+ *   reader.close();
+ * }
+ * </pre>
+ *
+ * <P>
+ * This class is not thread-safe.
+ *
+ * @author C&eacute;drik LIME
+ */
+public class ObjectGraphReader implements Closeable {
+	private final DataInputStream m_input;
+	private final List<String> m_classNames = new ArrayList<String>();
+	private final int m_version;
+	private boolean m_ended = false;
+	private int m_nodeCount = -1;
+	private long m_totalSize = -1;
+	private long m_offHeapSize = -1;
+
+	// current node
+	private int m_nodeId;
+	private int m_classId;
+	private long m_shallowSize;
+	private int m_edgeCount;
+	private int[] m_edges = new int[16];
+
+	/**
+	 * @throws IOException if <code>file</code> is not an exported object graph
+	 */
+	public ObjectGraphReader(final File file) throws IOException {
+		m_input = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+		boolean success = false;
+		try {
+			if (m_input.readInt() != ObjectGraphWriter.MAGIC) {
+				throw new IOException("Not an object graph file: " + file);
+			}
+			m_version = m_input.readInt();
+			if (m_version < 1 || m_version > ObjectGraphWriter.VERSION) {
+				throw new IOException("Unsupported object graph file version: " + m_version);
+			}
+			success = true;
+		} finally {
+			if (!success) {
+				m_input.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads the next node.
+	 *
+	 * @return <code>false</code> if there are no more nodes
+	 */
+	public boolean next() throws IOException {
+		while (!m_ended) {
+			final byte tag = m_input.readByte();
+			switch (tag) {
+			case ObjectGraphWriter.NODE:
+				m_nodeId = m_input.readInt();
+				m_classId = m_input.readInt();
+				m_shallowSize = m_input.readLong();
+				m_edgeCount = m_input.readInt();
+				if (m_edgeCount > m_edges.length) {
+					m_edges = new int[Math.max(m_edgeCount, m_edges.length << 1)];
+				}
+				for (int i = 0; i < m_edgeCount; ++i) {
+					m_edges[i] = m_input.readInt();
+				}
+				return true;
+			case ObjectGraphWriter.CLASS:
+				final int classId = m_input.readInt();
+				final byte[] name = new byte[m_input.readInt()];
+				m_input.readFully(name);
+				if (classId != m_classNames.size()) {
+					throw new IOException("Corrupted object graph file: class id " + classId);
+				}
+				m_classNames.add(new String(name, "UTF-8"));
+				break;
+			case ObjectGraphWriter.END:
+				m_nodeCount = m_input.readInt();
+				m_totalSize = m_input.readLong();
+				m_offHeapSize = (m_version >= 2) ? m_input.readLong() : 0;
+				m_ended = true;
+				break;
+			default:
+				throw new IOException("Corrupted object graph file: record type " + tag);
+			}
+		}
+		return false;
+	}
+
+	public int getNodeId() {
+		return m_nodeId;
+	}
+
+	/**
+	 * @return class id of the current node (see {@link #getClassName(int)})
+	 */
+	public int getClassId() {
+		return m_classId;
+	}
+
+	public String getClassName() {
+		return m_classNames.get(m_classId);
+	}
+
+	public String getClassName(final int classId) {
+		return m_classNames.get(classId);
+	}
+
+	public long getShallowSize() {
+		return m_shallowSize;
+	}
+
+	/**
+	 * @return number of references of the current node
+	 */
+	public int getEdgeCount() {
+		return m_edgeCount;
+	}
+
+	/**
+	 * @return node id of the <code>i</code>-th reference of the current node
+	 */
+	public int getEdge(final int i) {
+		if (i >= m_edgeCount) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + m_edgeCount);
+		}
+		return m_edges[i];
+	}
+
+	/**
+	 * @return number of nodes [-1 until all nodes have been read]
+	 */
+	public int getNodeCount() {
+		return m_nodeCount;
+	}
+
+	/**
+	 * @return total size of the graph [-1 until all nodes have been read]
+	 */
+	public long getTotalSize() {
+		return m_totalSize;
+	}
+
+	/**
+	 * @return native memory held by the direct buffers of the graph [-1 until all nodes have been read; 0 if not recorded]
+	 */
+	public long getOffHeapSize() {
+		return m_offHeapSize;
+	}
+
+	/** {@inheritDoc} */
+	public void close() throws IOException {
+		m_input.close();
+	}
+
+	/**
+	 * Rebuilds the per-class histogram of an exported object graph.
+	 */
+	public static ClassHistogram readHistogram(final File file) throws IOException {
+		final ObjectGraphReader reader = new ObjectGraphReader(file);
+		try {
+			final ClassHistogram histogram = new ClassHistogram();
+			while (reader.next()) {
+				// same String instance for all nodes of a class
+				histogram.record(reader.getClassName(), reader.getShallowSize());
+			}
+			histogram.setOffHeapSize(reader.getOffHeapSize());
+			return histogram;
+		} catch (EOFException eofe) {
+			final IOException ioe = new IOException("Truncated object graph file: " + file);
+			ioe.initCause(eofe);
+			throw ioe;
+		} finally {
+			reader.close();
+		}
+	}
+}
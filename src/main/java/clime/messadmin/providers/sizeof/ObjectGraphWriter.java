@@ -0,0 +1,195 @@
+package clime.messadmin.providers.sizeof;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Implementation of {@link ObjectProfiler#export(Object, File)}: walks the
+ * object graph and streams it to a file, through a sliding memory-mapped
+ * window. Whatever the size of the graph, the Java heap only holds the
+ * identity map of the visited objects (which any traversal needs) and the
+ * traversal stack.
+ *
+ * <P>
+ * File format (big-endian):
+ * <pre>
+ * file   := MAGIC:int VERSION:int record* end
+ * record := CLASS:byte classId:int nameLength:int name:byte[nameLength] (UTF-8)
+ *         | NODE:byte nodeId:int classId:int shallowSize:long edgeCount:int targetNodeId:int[edgeCount]
+ * end    := END:byte nodeCount:int totalSize:long offHeapSize:long
+ * </pre>
+ * Node ids are assigned in discovery order (the root is node 0), class ids in
+ * order of appearance. A CLASS record always precedes the first NODE record
+ * of this class. An edge target may be written before its own NODE record.
+ * The native memory of the direct buffers of the graph (see {@link OffHeapMemory})
+ * is only given by the END record (version 2 and up).
+ * The file is truncated after the END record on a best-effort basis: it may be
+ * padded with zeros (up to the window size), e.g. on Windows, where a mapped
+ * file can not be truncated.
+ *
+ * @author C&eacute;drik LIME
+ * @see ObjectGraphReader
+ */
+final class ObjectGraphWriter {
+	// public: ................................................................
+
+	static final int MAGIC = 0x4D415347; // "MASG"
+	static final int VERSION = 2; // 1: no offHeapSize
+	static final byte NODE = 1;
+	static final byte CLASS = 2;
+	static final byte END = 3;
+
+	/**
+	 * @see ObjectProfiler#export(Object, File)
+	 */
+	static ObjectGraphWriter export(final Object root, final File file) throws IOException {
+		final ObjectGraphWriter writer = new ObjectGraphWriter(file);
+		boolean success = false;
+		try {
+			if (root != null) {
+				writer.walk(root);
+			}
+			writer.writeEnd();
+			success = true;
+		} finally {
+			writer.close(success);
+		}
+		return writer;
+	}
+
+	int getNodeCount() {
+		return m_nodeCount;
+	}
+
+	long getTotalSize() {
+		return m_totalSize;
+	}
+
+	long getOffHeapSize() {
+		return m_offHeap.getSize();
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private static final int WINDOW_SIZE = 8 * 1024 * 1024;
+
+	private final RandomAccessFile m_file;
+	private final FileChannel m_channel;
+	private MappedByteBuffer m_buffer;
+	private long m_windowStart = 0;
+
+	private final IdentityIntMap m_nodeIds = new IdentityIntMap(0);
+	private final IdentityIntMap m_classIds = new IdentityIntMap(0);
+	private int m_nodeCount = 0;
+	private long m_totalSize = 0;
+	private final OffHeapMemory m_offHeap = new OffHeapMemory();
+
+	private ObjectGraphWriter(final File file) throws IOException {
+		m_file = new RandomAccessFile(file, "rw");
+		m_channel = m_file.getChannel();
+		m_channel.truncate(0);
+		m_buffer = m_channel.map(FileChannel.MapMode.READ_WRITE, 0, WINDOW_SIZE);
+		m_buffer.putInt(MAGIC);
+		m_buffer.putInt(VERSION);
+	}
+
+	private void walk(final Object root) throws IOException {
+		final ObjectStack stack = new ObjectStack(); // objects to write
+		final ObjectStack references = new ObjectStack();
+		final ObjectProfiler.Traversal traversal = new ObjectProfiler.ShallowTraversal(references);
+		traversal.m_offHeap = m_offHeap;
+		m_nodeIds.put(root, m_nodeCount++);
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			final Object obj = stack.pop();
+			final long size = ObjectProfiler.sizeofObject(obj, traversal);
+			m_totalSize += size;
+			final int classId = getClassId(obj.getClass());
+
+			ensureCapacity(1 + 4 + 4 + 8 + 4);
+			m_buffer.put(NODE);
+			m_buffer.putInt(m_nodeIds.get(obj));
+			m_buffer.putInt(classId);
+			m_buffer.putLong(size);
+			m_buffer.putInt(references.size());
+			while (!references.isEmpty()) {
+				final Object ref = references.pop();
+				int id = m_nodeIds.get(ref);
+				if (id == IdentityIntMap.NO_VALUE) {
+					id = m_nodeCount++;
+					m_nodeIds.put(ref, id);
+					stack.push(ref);
+				}
+				ensureCapacity(4);
+				m_buffer.putInt(id);
+			}
+		}
+	}
+
+	private int getClassId(final Class<?> cls) throws IOException {
+		int id = m_classIds.get(cls);
+		if (id == IdentityIntMap.NO_VALUE) {
+			id = m_classIds.size();
+			m_classIds.put(cls, id);
+			final byte[] name = cls.getName().getBytes("UTF-8");
+			ensureCapacity(1 + 4 + 4);
+			m_buffer.put(CLASS);
+			m_buffer.putInt(id);
+			m_buffer.putInt(name.length);
+			for (int i = 0; i < name.length; ++i) {
+				ensureCapacity(1);
+				m_buffer.put(name[i]);
+			}
+		}
+		return id;
+	}
+
+	private void writeEnd() throws IOException {
+		ensureCapacity(1 + 4 + 8 + 8);
+		m_buffer.put(END);
+		m_buffer.putInt(m_nodeCount);
+		m_buffer.putLong(m_totalSize);
+		m_buffer.putLong(m_offHeap.getSize());
+	}
+
+	/*
+	 * Slides the mapped window if less than 'length' bytes are left.
+	 * The previous window is written out first: its mapping is only released
+	 * when the buffer is garbage collected, whereas its dirty pages could
+	 * otherwise pile up until then.
+	 */
+	private void ensureCapacity(final int length) throws IOException {
+		if (m_buffer.remaining() < length) {
+			m_buffer.force();
+			m_windowStart += m_buffer.position();
+			m_buffer = m_channel.map(FileChannel.MapMode.READ_WRITE, m_windowStart, WINDOW_SIZE);
+		}
+	}
+
+	private void close(final boolean success) throws IOException {
+		try {
+			if (success) {
+				m_buffer.force();
+				final long length = m_windowStart + m_buffer.position();
+				m_buffer = null;
+				// best effort: the last window (and maybe the previous ones) are still mapped until garbage collected
+				try {
+					m_channel.truncate(length);
+				} catch (IOException ioe) {
+					// some platforms (Windows) can not truncate a mapped file: keep the padding
+				}
+			}
+		} finally {
+			m_buffer = null;
+			m_file.close();
+		}
+	}
+
+} // end of class
@@ -0,0 +1,280 @@
+package clime.messadmin.providers.sizeof;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Memory layout model of Java objects: pointer size, compressed oops and class
+ * pointers, object header size, object alignment and field packing.
+ *
+ * <P>
+ * The layout of the running JVM ({@link #getInstance()}) is detected once, at
+ * class initialization time, from the HotSpot diagnostic MBean
+ * (<code>UseCompressedOops</code>, <code>UseCompressedClassPointers</code>,
+ * <code>ObjectAlignmentInBytes</code>) and from system properties. Unknown
+ * values default to HotSpot's defaults.
+ *
+ * <P>
+ * Field packing follows HotSpot's rules: fields are grouped by size, larger
+ * first (long/double, int/float, short/char, byte/boolean, then references),
+ * each class of the hierarchy after its superclass; the alignment gap before
+ * the first 8-byte field is filled with smaller fields when possible.
+ * Instances are then padded to the object alignment.
+ *
+ * @author C&eacute;drik LIME
+ */
+public final class ObjectLayout {
+	// public: ................................................................
+
+	/**
+	 * @param addressSize
+	 *			4 (32-bit JVM) or 8 (64-bit JVM)
+	 * @param compressedOops
+	 *			64-bit JVM only: are references 4 bytes?
+	 * @param compressedClassPointers
+	 *			64-bit JVM only: are class pointers (in the header) 4 bytes?
+	 * @param objectAlignment
+	 *			object alignment, in bytes (power of 2)
+	 * @param fillSuperclassGaps
+	 *			can fields be allocated in the padding of superclasses? (Java 15+)
+	 */
+	public ObjectLayout(final int addressSize, final boolean compressedOops,
+			final boolean compressedClassPointers, final int objectAlignment,
+			final boolean fillSuperclassGaps) {
+		if (addressSize != 4 && addressSize != 8) {
+			throw new IllegalArgumentException("addressSize: " + addressSize);
+		}
+		if (objectAlignment < 4 || Integer.bitCount(objectAlignment) != 1) {
+			throw new IllegalArgumentException("objectAlignment: " + objectAlignment);
+		}
+		final boolean is64bit = addressSize == 8;
+		m_addressSize = addressSize;
+		m_referenceSize = (is64bit && !compressedOops) ? 8 : 4;
+		m_headerSize = addressSize + ((is64bit && !compressedClassPointers) ? 8 : 4); // mark word + class pointer
+		m_objectAlignment = objectAlignment;
+		m_fillSuperclassGaps = fillSuperclassGaps;
+	}
+
+	/**
+	 * @return the layout of the running JVM
+	 */
+	public static ObjectLayout getInstance() {
+		return CURRENT;
+	}
+
+	/**
+	 * @return 4 (32-bit JVM) or 8 (64-bit JVM)
+	 */
+	public int getAddressSize() {
+		return m_addressSize;
+	}
+
+	/**
+	 * @return size of a reference field or array slot
+	 */
+	public int getReferenceSize() {
+		return m_referenceSize;
+	}
+
+	/**
+	 * @return size of an object header (mark word + class pointer)
+	 */
+	public int getHeaderSize() {
+		return m_headerSize;
+	}
+
+	public int getObjectAlignment() {
+		return m_objectAlignment;
+	}
+
+	/**
+	 * @return size of a <code>java.lang.Object</code> instance
+	 */
+	public int getObjectShellSize() {
+		return align(m_headerSize);
+	}
+
+	/**
+	 * @return <code>size</code>, padded to the object alignment
+	 */
+	public int align(final int size) {
+		return (size + m_objectAlignment - 1) & -m_objectAlignment;
+	}
+
+	/**
+	 * @return <code>size</code>, padded to the object alignment
+	 */
+	public long align(final long size) {
+		return (size + m_objectAlignment - 1) & -m_objectAlignment;
+	}
+
+	/**
+	 * @param elementSize
+	 *			size of an array slot (see {@link #getReferenceSize()} for non-primitive arrays)
+	 * @return offset of the first element of an array
+	 */
+	public int getArrayBaseOffset(final int elementSize) {
+		final int lengthEnd = m_headerSize + 4; // int length
+		// 64-bit HotSpot aligns the array header to a heap word
+		return alignTo(lengthEnd, m_addressSize == 8 ? 8 : Math.min(elementSize, 8));
+	}
+
+	/**
+	 * @return size of an array instance
+	 */
+	public long sizeofArray(final int length, final int elementSize) {
+		return align(getArrayBaseOffset(elementSize) + (long) length * elementSize);
+	}
+
+	/**
+	 * Allocates fields of one class of a hierarchy.
+	 *
+	 * @param superEnd
+	 *			end offset of the superclass fields (as returned by this method), or
+	 *			{@link #getHeaderSize()} for direct <code>java.lang.Object</code> subclasses
+	 * @param longs		number of long/double fields
+	 * @param ints		number of int/float fields
+	 * @param shorts	number of short/char fields
+	 * @param bytes		number of byte/boolean fields
+	 * @param refs		number of reference fields
+	 * @return end offset of the class fields (not padded)
+	 */
+	public int layoutFields(final int superEnd, int longs, int ints, int shorts, int bytes, int refs) {
+		if (longs + ints + shorts + bytes + refs == 0) {
+			return superEnd;
+		}
+		int offset = m_fillSuperclassGaps ? superEnd : alignTo(superEnd, m_referenceSize);
+		if (longs > 0 && (offset & 7) != 0) {
+			// fill the alignment gap with smaller fields
+			int gap = alignTo(offset, 8) - offset;
+			while (gap >= 4 && ints > 0) {
+				offset += 4; gap -= 4; --ints;
+			}
+			while (gap >= 2 && shorts > 0) {
+				offset += 2; gap -= 2; --shorts;
+			}
+			while (gap >= 1 && bytes > 0) {
+				offset += 1; gap -= 1; --bytes;
+			}
+			while (gap >= 4 && (gap & 3) == 0 && refs > 0 && m_referenceSize == 4) {
+				offset += 4; gap -= 4; --refs;
+			}
+			offset = alignTo(offset, 8);
+		}
+		offset += longs * 8;
+		offset += ints * 4;
+		offset += shorts * 2;
+		offset += bytes;
+		if (refs > 0) {
+			offset = alignTo(offset, m_referenceSize) + refs * m_referenceSize;
+		}
+		return offset;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return (m_addressSize * 8) + "-bit, " + m_referenceSize + "-byte references, "
+				+ m_headerSize + "-byte headers, " + m_objectAlignment + "-byte alignment";
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private static final ObjectLayout CURRENT = detect();
+
+	private final int m_addressSize;
+	private final int m_referenceSize;
+	private final int m_headerSize;
+	private final int m_objectAlignment;
+	private final boolean m_fillSuperclassGaps;
+
+	private static int alignTo(final int offset, final int alignment) {
+		return (offset + alignment - 1) & -alignment;
+	}
+
+	/*
+	 * Detects the layout of the running JVM.
+	 */
+	private static ObjectLayout detect() {
+		final int addressSize = is64bitJVM() ? 8 : 4;
+		boolean compressedOops = false;
+		boolean compressedClassPointers = false;
+		int objectAlignment = 8;
+		if (addressSize == 8) {
+			// HotSpot defaults (Java 7+) for heaps < 32 GB
+			final String useCompressedOops = getVMOption("UseCompressedOops");
+			compressedOops = useCompressedOops == null || Boolean.valueOf(useCompressedOops).booleanValue();
+			final String useCompressedClassPointers = getVMOption("UseCompressedClassPointers");
+			// Java 7: no UseCompressedClassPointers, class pointers are compressed along with oops
+			compressedClassPointers = useCompressedClassPointers == null ? compressedOops : Boolean.valueOf(useCompressedClassPointers).booleanValue();
+		}
+		final String objectAlignmentInBytes = getVMOption("ObjectAlignmentInBytes");
+		if (objectAlignmentInBytes != null) {
+			try {
+				objectAlignment = Integer.parseInt(objectAlignmentInBytes);
+			} catch (NumberFormatException ignore) {
+			}
+		}
+		return new ObjectLayout(addressSize, compressedOops, compressedClassPointers,
+				objectAlignment, getJavaMajorVersion() >= 15);
+	}
+
+	private static boolean is64bitJVM() {
+		try {
+			String model = System.getProperty("sun.arch.data.model");
+			if (model == null) {
+				model = System.getProperty("com.ibm.vm.bitmode");
+			}
+			if (model != null) {
+				return "64".equals(model.trim());
+			}
+			final String arch = System.getProperty("os.arch", "");
+			return arch.indexOf("64") >= 0;
+		} catch (SecurityException se) {
+			return false;
+		}
+	}
+
+	private static int getJavaMajorVersion() {
+		try {
+			String version = System.getProperty("java.specification.version", "1.5");
+			if (version.startsWith("1.")) {
+				version = version.substring(2);
+			}
+			final int dot = version.indexOf('.');
+			return Integer.parseInt(dot < 0 ? version : version.substring(0, dot));
+		} catch (RuntimeException e) {
+			// SecurityException, NumberFormatException
+			return 5;
+		}
+	}
+
+	/*
+	 * HotSpotDiagnosticMXBean.getVMOption(name).getValue(), via JMX so as not to
+	 * depend on com.sun.management
+	 * @return null if not available
+	 */
+	private static String getVMOption(final String name) {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			final Object option = server.invoke(new ObjectName("com.sun.management:type=HotSpotDiagnostic"),
+					"getVMOption", new Object[] {name}, new String[] {String.class.getName()});
+			if (option instanceof CompositeData) {
+				final Object value = ((CompositeData) option).get("value");
+				return value == null ? null : value.toString();
+			}
+		} catch (Exception e) {
+			// not HotSpot, unknown option, SecurityException...
+		} catch (LinkageError le) {
+		}
+		return null;
+	}
+
+} // end of class
@@ -1,14 +1,13 @@
 //package com.vladium.utils;
 package clime.messadmin.providers.sizeof;
 
-import java.lang.management.ManagementFactory;
-import java.lang.management.MemoryNotificationInfo;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
-import java.math.BigDecimal;
-import java.math.BigInteger;
-import java.math.MathContext;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
@@ -16,31 +15,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.WeakHashMap;
-import java.util.jar.Pack200;
-
-import javax.accessibility.AccessibleContext;
-import javax.accessibility.AccessibleRelation;
-import javax.accessibility.AccessibleRole;
-import javax.accessibility.AccessibleState;
-import javax.management.monitor.MonitorNotification;
-import javax.management.relation.RelationNotification;
-import javax.management.remote.JMXConnectionNotification;
-import javax.management.remote.JMXConnectorFactory;
-import javax.management.remote.JMXConnectorServerFactory;
-import javax.management.remote.rmi.RMIConnectorServer;
-import javax.naming.Context;
-import javax.print.DocFlavor;
-import javax.security.sasl.Sasl;
-import javax.xml.XMLConstants;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 import javax.xml.datatype.DatatypeConstants;
-import javax.xml.transform.OutputKeys;
 
 // ----------------------------------------------------------------------------
 /**
@@ -50,8 +32,10 @@ import javax.xml.transform.OutputKeys;
  * See individual methods for details.
  *
  * <P>
- * This implementation is 32 bits J2SE 1.4+ only. You would need to code your own
- * identity hashmap to port this to earlier Java versions.
+ * Sizes are computed for the memory layout of the running JVM (32 or 64 bits,
+ * compressed oops, alignment: see {@link ObjectLayout}). The "visited" set is a pooled,
+ * open-addressing {@link IdentitySet}: sizing a small graph does not allocate
+ * a large identity map.
  *
  * <P>
  * Security: this implementation uses AccessController.doPrivileged() so it
@@ -62,8 +46,13 @@ import javax.xml.transform.OutputKeys;
  * <pre>
  *	   permission java.lang.RuntimePermission &quot;accessDeclaredMembers&quot;;
  *	   permission java.lang.reflect.ReflectPermission &quot;suppressAccessChecks&quot;;
+ *	   permission java.lang.RuntimePermission &quot;accessClassInPackage.sun.misc&quot;;
  * </pre>
  *
+ * <P>
+ * Reference fields are read by offset (see {@link UnsafeAccess}), which does not
+ * require them to be accessible; reflection is only a fallback.
+ *
  * @author (C) <a href="http://www.javaworld.com/columns/jw-qna-index.shtml">Vlad
  *		 Roubtsov</a>, 2003
  */
@@ -72,9 +61,14 @@ public abstract class ObjectProfiler {
 
 	// the following constants are physical sizes (in bytes) and are JVM-dependent:
 	// [the current values are Ok for most 32-bit JVMs]
+	// The sizes actually used are those of the running JVM, see ObjectLayout.
 
+	/** @deprecated use {@link ObjectLayout#getObjectShellSize()} */
+	@Deprecated
 	public static final int OBJECT_SHELL_SIZE  = 8; // java.lang.Object shell
 													// size in bytes
+	/** @deprecated use {@link ObjectLayout#getReferenceSize()} */
+	@Deprecated
 	public static final int OBJREF_SIZE        = 4;
 	public static final int LONG_FIELD_SIZE    = 8;
 	public static final int INT_FIELD_SIZE     = 4;
@@ -99,18 +93,53 @@ public abstract class ObjectProfiler {
 			return 0;
 		}
 
-		final IdentityHashMap visited = new IdentityHashMap(80000);
+		final IdentitySet visited = IdentitySet.acquire();
 
+		final long start = System.nanoTime();
 		try {
-			return computeSizeof(obj, visited, CLASS_METADATA_CACHE);
+			final long size = computeSizeof(obj, visited, null, null, null);
+			STATISTICS.record(start, visited.size(), size);
+			return size;
 		} catch (RuntimeException re) {
+			STATISTICS.recordFailure(start, re);
 			//re.printStackTrace();//DEBUG
 			return -1;
 		} catch (NoClassDefFoundError ncdfe) {
+			STATISTICS.recordFailure(start, ncdfe);
 			// BUG: throws "java.lang.NoClassDefFoundError: org.eclipse.core.resources.IWorkspaceRoot" when run in WSAD 5
 			// see http://www.javaworld.com/javaforums/showflat.php?Cat=&Board=958763&Number=15235&page=0&view=collapsed&sb=5&o=
 			//System.err.println(ncdfe);//DEBUG
 			return -1;
+		} finally {
+			IdentitySet.release(visited);
+		}
+	}
+
+	/*
+	 * Same as sizeof(Object), with shallow sizes given by 'sizer' [null: ObjectLayout model],
+	 * also recording the native memory of the direct buffers in 'offHeap' [null if not needed].
+	 */
+	static long sizeof(final Object obj, final ShallowSizer sizer, final OffHeapMemory offHeap) {
+		if (null == obj || isSharedFlyweight(obj)) {
+			return 0;
+		}
+
+		final IdentitySet visited = IdentitySet.acquire();
+
+		final long start = System.nanoTime();
+		try {
+			final long size = computeSizeof(obj, visited, sizer, null, offHeap);
+			STATISTICS.record(start, visited.size(), size);
+			return size;
+		} catch (RuntimeException re) {
+			STATISTICS.recordFailure(start, re);
+			return -1;
+		} catch (NoClassDefFoundError ncdfe) {
+			STATISTICS.recordFailure(start, ncdfe);
+			// see sizeof(Object)
+			return -1;
+		} finally {
+			IdentitySet.release(visited);
 		}
 	}
 
@@ -119,6 +148,8 @@ public abstract class ObjectProfiler {
 	 * pre-populating the "visited" set with the object graph rooted at 'base'.
 	 * The net effect is to compute the size of 'obj' by summing over all
 	 * instance data contained in 'obj' but not in 'base'.
+	 * When measuring several objects against the same 'base', walk it only
+	 * once with {@link #baseline(Object)}.
 	 *
 	 * @param base
 	 *			graph boundary [may not be null]
@@ -134,20 +165,444 @@ public abstract class ObjectProfiler {
 			throw new IllegalArgumentException("null input: base");
 		}
 
-		final IdentityHashMap visited = new IdentityHashMap(40000);
+		final IdentitySet visited = IdentitySet.acquire();
 
+		final long start = System.nanoTime();
 		try {
-			computeSizeof(base, visited, CLASS_METADATA_CACHE);
-			return visited.containsKey(obj) ? 0 : computeSizeof(obj, visited, CLASS_METADATA_CACHE);
+			computeSizeof(base, visited, null, null, null);
+			final long size = visited.contains(obj) ? 0 : computeSizeof(obj, visited, null, null, null);
+			STATISTICS.record(start, visited.size(), size);
+			return size;
 		} catch (RuntimeException re) {
+			STATISTICS.recordFailure(start, re);
 			return -1;
 		} catch (NoClassDefFoundError ncdfe) {
+			STATISTICS.recordFailure(start, ncdfe);
 			// BUG: throws "java.lang.NoClassDefFoundError: org.eclipse.core.resources.IWorkspaceRoot" when run in WSAD 5
 			// see http://www.javaworld.com/javaforums/showflat.php?Cat=&Board=958763&Number=15235&page=0&view=collapsed&sb=5&o=
 			return -1;
+		} finally {
+			IdentitySet.release(visited);
+		}
+	}
+
+	/**
+	 * Walks the object graph rooted at 'base' once, for repeated
+	 * {@link #sizedelta(Baseline, Object)} calls against the same boundary.
+	 *
+	 * @param base
+	 *			graph boundary [may not be null]
+	 * @return 'base' snapshot [null if the computation failed]
+	 */
+	public static Baseline baseline(final Object base) {
+		if (null == base) {
+			throw new IllegalArgumentException("null input: base");
+		}
+
+		// not pooled: retained by the baseline
+		final IdentitySet visited = new IdentitySet(0);
+		final long start = System.nanoTime();
+		try {
+			final long size = computeSizeof(base, visited, null, null, null);
+			STATISTICS.record(start, visited.size(), size);
+			return new Baseline(visited.compact(), size);
+		} catch (RuntimeException re) {
+			STATISTICS.recordFailure(start, re);
+			return null;
+		} catch (NoClassDefFoundError ncdfe) {
+			STATISTICS.recordFailure(start, ncdfe);
+			// see sizeof(Object)
+			return null;
+		}
+	}
+
+	/**
+	 * Same as {@link #sizedelta(Object, Object)}, with a boundary graph which
+	 * was walked beforehand: only 'obj' is walked.
+	 *
+	 * @param base
+	 *			graph boundary [may not be null]
+	 * @param obj
+	 *			input object instance to be measured
+	 * @return 'obj' size [0 if 'obj' is null']
+	 * @see #baseline(Object)
+	 */
+	public static long sizedelta(final Baseline base, final Object obj) {
+		if (null == obj || isSharedFlyweight(obj)) {
+			return 0;
+		}
+		if (null == base) {
+			throw new IllegalArgumentException("null input: base");
+		}
+
+		final IdentitySet visited = IdentitySet.acquire();
+		visited.setBaseline(base.getObjects());
+
+		final long start = System.nanoTime();
+		try {
+			final long size = visited.contains(obj) ? 0 : computeSizeof(obj, visited, null, null, null);
+			STATISTICS.record(start, visited.size(), size);
+			return size;
+		} catch (RuntimeException re) {
+			STATISTICS.recordFailure(start, re);
+			return -1;
+		} catch (NoClassDefFoundError ncdfe) {
+			STATISTICS.recordFailure(start, ncdfe);
+			// see sizeof(Object)
+			return -1;
+		} finally {
+			IdentitySet.release(visited);
+		}
+	}
+
+	/**
+	 * Same as {@link #sizeof(Object)}, but also gives the per-class breakdown
+	 * of the size (number of instances and bytes), collected in the same
+	 * traversal.
+	 *
+	 * @param obj
+	 *			input object instance to be measured
+	 * @return 'obj' size histogram [empty if 'obj' is null'; null if the computation failed]
+	 */
+	public static ClassHistogram histogram(final Object obj) {
+		final ClassHistogram histogram = new ClassHistogram();
+		if (null == obj || isSharedFlyweight(obj)) {
+			return histogram;
+		}
+
+		final IdentitySet visited = IdentitySet.acquire();
+
+		final long start = System.nanoTime();
+		try {
+			final OffHeapMemory offHeap = new OffHeapMemory();
+			final long size = computeSizeof(obj, visited, null, histogram, offHeap);
+			histogram.setOffHeapSize(offHeap.getSize());
+			STATISTICS.record(start, visited.size(), size);
+			return histogram;
+		} catch (RuntimeException re) {
+			STATISTICS.recordFailure(start, re);
+			return null;
+		} catch (NoClassDefFoundError ncdfe) {
+			STATISTICS.recordFailure(start, ncdfe);
+			// see sizeof(Object)
+			return null;
+		} finally {
+			IdentitySet.release(visited);
+		}
+	}
+
+	/**
+	 * Computes the retained size of each reference of 'obj' (the memory which
+	 * would be freed by clearing this reference), and the objects of the graph
+	 * with the largest retained sizes, using the dominator tree of the object
+	 * graph. Unlike {@link #sizeof(Object)}, this builds the whole object graph
+	 * in memory (a few bytes per object and reference).
+	 *
+	 * @param obj
+	 *			input object instance to be analyzed
+	 * @param topCount
+	 *			number of heaviest dominator subtrees to report
+	 * @return retained sizes [empty if 'obj' is null'; null if the computation failed]
+	 */
+	public static RetainedSizeResult retainedSizes(final Object obj, final int topCount) {
+		if (null == obj || isSharedFlyweight(obj)) {
+			return new RetainedSizeResult(0, 0, Collections.<RetainedSizeResult.Entry>emptyList(),
+					Collections.<RetainedSizeResult.Entry>emptyList());
+		}
+
+		final long start = System.nanoTime();
+		try {
+			final RetainedSizeResult result = RetainedSizeAnalysis.analyze(obj, topCount);
+			STATISTICS.record(start, result.getObjectCount(), result.getTotalSize());
+			return result;
+		} catch (RuntimeException re) {
+			STATISTICS.recordFailure(start, re);
+			return null;
+		} catch (NoClassDefFoundError ncdfe) {
+			STATISTICS.recordFailure(start, ncdfe);
+			// see sizeof(Object)
+			return null;
+		}
+	}
+
+	/**
+	 * Finds the <code>String</code>s and primitive arrays reachable from 'obj'
+	 * which have identical contents, and the memory which would be saved by
+	 * deduplicating them. Contents are compared by 64-bit fingerprints,
+	 * computed during a single walk of the object graph; only one object per
+	 * distinct contents is retained during the analysis.
+	 *
+	 * @param obj
+	 *			input object instance to be analyzed
+	 * @param topCount
+	 *			number of largest duplicate groups to report
+	 * @return duplicates [empty if 'obj' is null'; null if the computation failed]
+	 */
+	public static DuplicateResult duplicates(final Object obj, final int topCount) {
+		if (null == obj || isSharedFlyweight(obj)) {
+			return new DuplicateResult(0, 0, 0, 0, 0, 0, 0, Collections.<DuplicateResult.Group>emptyList());
+		}
+
+		final long start = System.nanoTime();
+		final IdentitySet visited = IdentitySet.acquire();
+		try {
+			final DuplicateResult result = DuplicateAnalysis.analyze(obj, visited, topCount);
+			STATISTICS.record(start, result.getObjectCount(), result.getTotalSize());
+			return result;
+		} catch (RuntimeException re) {
+			STATISTICS.recordFailure(start, re);
+			return null;
+		} catch (NoClassDefFoundError ncdfe) {
+			STATISTICS.recordFailure(start, ncdfe);
+			// see sizeof(Object)
+			return null;
+		} finally {
+			IdentitySet.release(visited);
+		}
+	}
+
+	/**
+	 * Walks the object graph rooted at 'obj', writing each object (class,
+	 * shallow size and references) to 'file' for offline analysis, e.g. with
+	 * {@link ObjectGraphReader#readHistogram(File)}. The file is written
+	 * through a memory-mapped window: the Java heap use does not depend on
+	 * the size of the file.
+	 *
+	 * @param obj
+	 *			input object instance to be exported
+	 * @param file
+	 *			output file (overwritten)
+	 * @return 'obj' size [0 if 'obj' is null', -1 if an error occurred while walking the graph]
+	 * @throws IOException if the file can not be written
+	 * @see ObjectGraphReader
+	 */
+	public static long export(final Object obj, final File file) throws IOException {
+		if (null == file) {
+			throw new IllegalArgumentException("null input: file");
+		}
+
+		final long start = System.nanoTime();
+		try {
+			final ObjectGraphWriter writer = ObjectGraphWriter.export(isSharedFlyweight(obj) ? null : obj, file);
+			STATISTICS.record(start, writer.getNodeCount(), writer.getTotalSize());
+			return writer.getTotalSize();
+		} catch (IOException ioe) {
+			STATISTICS.record(start, -1, -1); // not a sizing failure
+			throw ioe;
+		} catch (RuntimeException re) {
+			STATISTICS.recordFailure(start, re);
+			return -1;
+		} catch (NoClassDefFoundError ncdfe) {
+			STATISTICS.recordFailure(start, ncdfe);
+			// see sizeof(Object)
+			return -1;
+		}
+	}
+
+	/**
+	 * Same as {@link #sizeof(Object)}, but stops when the given budget is
+	 * exhausted (number of objects, bytes, duration) or cancelled. The result of
+	 * an interrupted computation is marked as partial, and gives both a lower
+	 * bound and an extrapolated estimate of the full size.
+	 *
+	 * @param obj
+	 *			input object instance to be measured
+	 * @param budget
+	 *			limits of the computation [null for no limit]
+	 * @return 'obj' size [0 if 'obj' is null'; null if the computation failed]
+	 * @see SizeOfBudget
+	 */
+	public static SizeOfResult sizeof(final Object obj, final SizeOfBudget budget) {
+		return sizeof(obj, null, budget);
+	}
+
+	/*
+	 * Same as sizeof(Object, SizeOfBudget), with shallow sizes given by 'sizer'.
+	 */
+	static SizeOfResult sizeof(final Object obj, final ShallowSizer sizer, final SizeOfBudget budget) {
+		if (null == obj || isSharedFlyweight(obj)) {
+			return SizeOfResult.EMPTY;
+		}
+
+		final IdentitySet visited = IdentitySet.acquire();
+
+		final long start = System.nanoTime();
+		try {
+			final SizeOfResult result = BoundedSizeof.sizeof(obj, visited, sizer, budget);
+			STATISTICS.record(start, result.getObjectCount(), result.getSize());
+			return result;
+		} catch (RuntimeException re) {
+			STATISTICS.recordFailure(start, re);
+			return null;
+		} catch (NoClassDefFoundError ncdfe) {
+			STATISTICS.recordFailure(start, ncdfe);
+			// see sizeof(Object)
+			return null;
+		} finally {
+			IdentitySet.release(visited);
+		}
+	}
+
+	/**
+	 * Estimates the size of the object graph rooted at 'obj', sampling the
+	 * elements of large <code>Object[]</code> arrays (e.g. the backing arrays of
+	 * big lists and maps) instead of walking all of them: the cost of sizing a
+	 * huge collection is then roughly proportional to the sample size.
+	 * The result is {@link SizeOfResult#isPartial() partial} if sampling occurred,
+	 * and then gives an {@link SizeOfResult#getErrorMargin() error margin}.
+	 * Best suited for homogeneous collections.
+	 *
+	 * @param obj
+	 *			input object instance to be measured
+	 * @param threshold
+	 *			arrays with more slots than this are sampled (e.g. 10000)
+	 * @param sampleSize
+	 *			number of slots to walk per sampled array (e.g. 1000)
+	 * @return 'obj' estimated size [0 if 'obj' is null'; null if the computation failed]
+	 */
+	public static SizeOfResult sizeofSampled(final Object obj, final int threshold, final int sampleSize) {
+		return sizeofSampled(obj, null, threshold, sampleSize);
+	}
+
+	/*
+	 * Same as sizeofSampled(Object, int, int), with shallow sizes given by 'sizer'.
+	 */
+	static SizeOfResult sizeofSampled(final Object obj, final ShallowSizer sizer, final int threshold, final int sampleSize) {
+		if (null == obj || isSharedFlyweight(obj)) {
+			return SizeOfResult.EMPTY;
+		}
+
+		final IdentitySet visited = IdentitySet.acquire();
+
+		final long start = System.nanoTime();
+		try {
+			final SizeOfResult result = SamplingSizeof.sizeof(obj, visited, sizer, threshold, sampleSize);
+			STATISTICS.record(start, visited.size(), result.getSize());
+			return result;
+		} catch (RuntimeException re) {
+			STATISTICS.recordFailure(start, re);
+			return null;
+		} catch (NoClassDefFoundError ncdfe) {
+			STATISTICS.recordFailure(start, ncdfe);
+			// see sizeof(Object)
+			return null;
+		} finally {
+			IdentitySet.release(visited);
+		}
+	}
+
+	/**
+	 * Estimates the sizes of several object graphs in a single traversal.
+	 * Objects reachable from several roots are only visited once, and are
+	 * reported as "shared" instead of being counted for each root.
+	 * Sizing all the sessions of an application this way costs one walk
+	 * instead of one per session.
+	 *
+	 * @param roots
+	 *			input object instances to be measured [may contain nulls]
+	 * @return sizes per root and deduplicated total [null if the computation failed]
+	 * @see BatchSizeResult
+	 */
+	public static BatchSizeResult sizeofAll(final Object[] roots) {
+		if (null == roots) {
+			throw new IllegalArgumentException("null input: roots");
+		}
+
+		final long start = System.nanoTime();
+		try {
+			final BatchSizeResult result = BatchSizeof.sizeofAll(roots);
+			STATISTICS.record(start, -1, result.getTotalSize());
+			return result;
+		} catch (RuntimeException re) {
+			STATISTICS.recordFailure(start, re);
+			return null;
+		} catch (NoClassDefFoundError ncdfe) {
+			STATISTICS.recordFailure(start, ncdfe);
+			// see sizeof(Object)
+			return null;
+		}
+	}
+
+	/**
+	 * Reports the capacity which common collections (<code>ArrayList</code>,
+	 * <code>HashMap</code>...) and string builders reachable from the roots
+	 * have allocated beyond what their contents need, per class and per root:
+	 * where trimming or presizing them would free memory.
+	 *
+	 * @param roots
+	 *			input object instances to be analyzed [may contain nulls]
+	 * @return allocated and used sizes, per class and per root [null if the computation failed]
+	 * @see SlackResult
+	 */
+	public static SlackResult slack(final Object[] roots) {
+		if (null == roots) {
+			throw new IllegalArgumentException("null input: roots");
+		}
+
+		final long start = System.nanoTime();
+		final IdentitySet visited = IdentitySet.acquire();
+		try {
+			final SlackResult result = SlackAnalysis.analyze(roots, visited);
+			STATISTICS.record(start, visited.size(), result.getTotalSize());
+			return result;
+		} catch (RuntimeException re) {
+			STATISTICS.recordFailure(start, re);
+			return null;
+		} catch (NoClassDefFoundError ncdfe) {
+			STATISTICS.recordFailure(start, ncdfe);
+			// see sizeof(Object)
+			return null;
+		} finally {
+			IdentitySet.release(visited);
+		}
+	}
+
+	/**
+	 * Same as {@link #sizeof(Object)}, but the object graph is walked by a
+	 * fork/join pool of {@link #getParallelism()} threads.
+	 * Only worth it for (very) large object graphs.
+	 *
+	 * @param obj
+	 *			input object instance to be measured
+	 * @return 'obj' size [0 if 'obj' is null']
+	 */
+	public static long sizeofParallel(final Object obj) {
+		if (null == obj || isSharedFlyweight(obj)) {
+			return 0;
+		}
+
+		final long start = System.nanoTime();
+		try {
+			final long size = ParallelSizeof.sizeof(obj);
+			STATISTICS.record(start, -1, size);
+			return size;
+		} catch (RuntimeException re) {
+			STATISTICS.recordFailure(start, re);
+			return -1;
+		} catch (NoClassDefFoundError ncdfe) {
+			STATISTICS.recordFailure(start, ncdfe);
+			// see sizeof(Object)
+			return -1;
 		}
 	}
 
+	/**
+	 * @return the number of threads used by {@link #sizeofParallel(Object)}
+	 */
+	public static int getParallelism() {
+		return ParallelSizeof.getParallelism();
+	}
+
+	/**
+	 * Sets the number of threads used by {@link #sizeofParallel(Object)}.
+	 * Default value is half the number of available processors, and can also be
+	 * set via the <code>clime.messadmin.providers.sizeof.parallelism</code>
+	 * system property.
+	 */
+	public static void setParallelism(final int parallelism) {
+		ParallelSizeof.setParallelism(parallelism);
+	}
+
 	// protected: .............................................................
 
 	// package: ...............................................................
@@ -157,21 +612,183 @@ public abstract class ObjectProfiler {
 	/*
 	 * Internal class used to cache class metadata information.
 	 */
-	private static final class ClassMetadata {
-		ClassMetadata(final int primitiveFieldCount, final int shellSize,
-				final Field[] refFields) {
+	static final class ClassMetadata {
+		ClassMetadata(final int primitiveFieldCount, final int fieldsEnd,
+				final long[] refFieldOffsets, final Field[] refFields,
+				final int skippedSize, final boolean flyweightType, final boolean boundary,
+				final boolean buffer, final FastSizers.FastSizer fastSizer) {
 			m_primitiveFieldCount = primitiveFieldCount;
-			m_shellSize = shellSize;
+			m_fieldsEnd = fieldsEnd;
+			m_shellSize = LAYOUT.align(fieldsEnd);
+			m_refFieldOffsets = refFieldOffsets;
 			m_refFields = refFields;
+			m_skippedSize = skippedSize;
+			m_flyweightType = flyweightType;
+			m_excluded = flyweightType || boundary;
+			m_leaf = (skippedSize > 0) || (refFieldOffsets.length == 0 && refFields.length == 0);
+			m_buffer = buffer;
+			m_fastSizer = (skippedSize > 0) ? null : fastSizer;
+			m_walkerCountdown = ClassWalkers.getThreshold(this);
 		}
 
 		// all fields are inclusive of superclasses:
 
 		final int m_primitiveFieldCount;
 
-		final int m_shellSize; // class shell size
+		final int m_fieldsEnd; // end offset of the instance fields (see ObjectLayout)
+
+		final int m_shellSize; // class shell size (aligned)
+
+		final long[] m_refFieldOffsets; // non-static reference fields, read via UnsafeAccess
+
+		final Field[] m_refFields; // non-static reference fields with no offset (made accessible)
+
+		final int m_skippedSize; // fixed size of the instances which are not walked, see skipClassDueToSunJVMBug() [0 if walked]
+
+		final boolean m_flyweightType; // all instances are shared flyweights, see isSharedFlyweight()
+
+		final boolean m_excluded; // instances are neither counted nor walked (flyweights, traversal boundaries), see isExcluded()
+
+		final boolean m_leaf; // no reference to traverse (instances of non-array classes only)
+
+		final boolean m_buffer; // NIO buffer, which may hold native memory (see OffHeapMemory)
+
+		final FastSizers.FastSizer m_fastSizer; // specialized sizer (ObjectLayout model only) [null if none]
+
+		ClassWalkers.ClassWalker m_walker; // generated walker (ObjectLayout model only) [null if none (yet)]
+
+		int m_walkerCountdown; // occurrences before the walker is generated [0: never, or done]
+
+		int m_measuredShellSize; // class shell size, as measured by a ShallowSizer [0 if unknown]
+
+	} // end of nested class
+
+	/*
+	 * Alternate source of "shallow" sizes, instead of the ObjectLayout model.
+	 */
+	interface ShallowSizer {
+		long sizeofInstance(Object obj, ClassMetadata metadata);
+
+		long sizeofArray(Object array);
+	} // end of nested interface
+
+	/*
+	 * Traversal state for sizeofObject(), the FastSizers and the ClassWalkers:
+	 * the "visited" marks and the pending objects, which each engine keeps its
+	 * own way (computeSizeof(), ParallelSizeof, BatchSizeof...).
+	 */
+	abstract static class Traversal {
+		Traversal(final ShallowSizer sizer, final ClassHistogram histogram) {
+			this(sizer, histogram, true, true);
+		}
+
+		Traversal(final ShallowSizer sizer, final ClassHistogram histogram,
+				final boolean fastSizers, final boolean eager) {
+			m_sizer = sizer;
+			m_histogram = histogram;
+			m_fastSizers = fastSizers && sizer == null;
+			m_eager = eager;
+		}
+
+		final ShallowSizer m_sizer; // [null: ObjectLayout model]
+
+		final ClassHistogram m_histogram; // [null if none]
+
+		final boolean m_fastSizers; // FastSizers are used [false: internal structures are walked as any object, e.g. to be sampled]
+
+		final boolean m_eager; // leaves and non-container FastSizer objects are sized when visited [false: scheduled, as any object]
+
+		long m_objectCount = 0; // number of objects sized, internal structures included (same as the histogram)
+
+		OffHeapMemory m_offHeap; // native memory of the sized direct buffers [null if not collected]
+
+		long m_metadataLookups = 0; // getClassMetadata() calls, see SizeOfStatistics
+
+		/*
+		 * @return true if 'obj' was not visited yet (it now is)
+		 */
+		abstract boolean markVisited(Object obj);
+
+		/*
+		 * Schedules a newly visited object for sizeofObject().
+		 */
+		abstract void schedule(Object obj);
+
+		/*
+		 * Visits the slots of an array of references; may be overridden to split large arrays.
+		 */
+		long visitElements(final Object[] array) {
+			long size = 0;
+			for (int i = 0, length = array.length; i < length; ++i) {
+				size += visit(array[i], this);
+			}
+			return size;
+		}
+	} // end of nested class
+
+	/*
+	 * Single-threaded traversal: "visited" set, and stack of the objects to size.
+	 */
+	static class SequentialTraversal extends Traversal {
+		SequentialTraversal(final IdentitySet visited, final ObjectStack stack,
+				final ShallowSizer sizer, final ClassHistogram histogram) {
+			this(visited, stack, sizer, histogram, true, true);
+		}
+
+		SequentialTraversal(final IdentitySet visited, final ObjectStack stack,
+				final ShallowSizer sizer, final ClassHistogram histogram,
+				final boolean fastSizers, final boolean eager) {
+			super(sizer, histogram, fastSizers, eager);
+			m_visited = visited;
+			m_stack = stack;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		boolean markVisited(final Object obj) {
+			return m_visited.add(obj);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		void schedule(final Object obj) {
+			m_stack.push(obj);
+		}
+
+		final IdentitySet m_visited;
+
+		final ObjectStack m_stack;
+
+	} // end of nested class
+
+	/*
+	 * Traversal which visits nothing: the non-null references of the objects
+	 * given to sizeofObject() (except excluded ones) are pushed onto a stack
+	 * instead, without any "visited" check, and each object is sized on its own.
+	 * For the analyses which manage the object graph themselves.
+	 */
+	static final class ShallowTraversal extends Traversal {
+		ShallowTraversal(final ObjectStack references) {
+			super(null, null, false, false);
+			m_references = references;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		boolean markVisited(final Object obj) {
+			if (!isExcluded(obj)) {
+				m_references.push(obj);
+			}
+			return false;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		void schedule(final Object obj) {
+			throw new IllegalStateException("nothing is visited");
+		}
 
-		final Field[] m_refFields; // cached non-static fields (made accessible)
+		private final ObjectStack m_references;
 
 	} // end of nested class
 
@@ -208,14 +825,14 @@ public abstract class ObjectProfiler {
 	} // this class is not extendible
 
 	/*
-	 * The main worker method for sizeof() and sizedelta().
+	 * The main worker method for sizeof(), sizedelta() and histogram().
 	 */
-	private static long computeSizeof(Object obj, final IdentityHashMap visited,
-			final Map<Class,ClassMetadata> metadataMap) {
+	private static long computeSizeof(Object obj, final IdentitySet visited,
+			final ShallowSizer sizer, final ClassHistogram histogram, final OffHeapMemory offHeap) {
 		// this uses depth-first traversal; the exact graph traversal algorithm
 		// does not matter for computing the total size and this method could be
-		// easily adjusted to do breadth-first instead (addLast() instead of
-		// addFirst()),
+		// easily adjusted to do breadth-first instead (a queue instead of a
+		// stack),
 		// however, dfs/bfs require max queue length to be the length of the
 		// longest
 		// graph path/width of traversal front correspondingly, so I expect
@@ -225,96 +842,196 @@ public abstract class ObjectProfiler {
 			return 0;
 		}
 
-		final LinkedList queue = new LinkedList();
+		final ObjectStack stack = new ObjectStack();
+		final Traversal traversal = new SequentialTraversal(visited, stack, sizer, histogram);
+		traversal.m_offHeap = offHeap;
 
-		visited.put(obj, obj);
-		queue.add(obj);
+		visited.add(obj);
+		stack.push(obj);
 
 		long result = 0;
 
-		final ClassAccessPrivilegedAction caAction = new ClassAccessPrivilegedAction();
-		final FieldAccessPrivilegedAction faAction = new FieldAccessPrivilegedAction();
+		while (!stack.isEmpty()) {
+			obj = stack.pop();
+			result += sizeofObject(obj, traversal);
+		}
 
-		while (!queue.isEmpty()) {
-			obj = queue.removeFirst();
-			final Class objClass = obj.getClass();
+		STATISTICS.recordMetadataHits(traversal.m_metadataLookups);
+		return result;
+	}
 
-			int skippedBytes = skipClassDueToSunJVMBug(objClass);
-			if (skippedBytes > 0) {
-				result += skippedBytes; // can't do better than that
-				continue;
+	/*
+	 * Sizes an object taken from a traversal (already visited), visiting its
+	 * references: the per-object step shared by all the engines, which only
+	 * differ by their Traversal.
+	 * @return the size of 'obj', plus the sizes of its children which were sized when visited (see enqueue())
+	 */
+	static long sizeofObject(final Object obj, final Traversal traversal) {
+		final Class<?> objClass = obj.getClass();
+		final ShallowSizer sizer = traversal.m_sizer;
+		final ClassHistogram histogram = traversal.m_histogram;
+		++traversal.m_objectCount;
+
+		if (objClass.isArray()) {
+			final Class<?> componentType = objClass.getComponentType();
+
+			long size = (sizer == null) ? sizeofArrayShell(Array.getLength(obj), componentType) : sizer.sizeofArray(obj);
+			if (histogram != null) {
+				histogram.record(objClass, size);
+			}
+			if (!componentType.isPrimitive()) {
+				// traverse each array slot:
+				size += traversal.visitElements((Object[]) obj);
+			}
+			return size;
+		}
+		// the object is of a non-array type
+		final ClassMetadata metadata = getClassMetadata(objClass);
+		++traversal.m_metadataLookups;
+		if (metadata.m_buffer && traversal.m_offHeap != null) {
+			traversal.m_offHeap.add(obj);
+		}
+
+		if (traversal.m_fastSizers && metadata.m_fastSizer != null) {
+			return metadata.m_fastSizer.sizeof(obj, metadata, traversal);
+		}
+		if (sizer == null && ClassWalkers.ENABLED) {
+			final ClassWalkers.ClassWalker walker = ClassWalkers.getWalker(metadata);
+			if (walker != null) {
+				if (histogram != null) {
+					histogram.record(objClass, metadata.m_shellSize);
+				}
+				return walker.walk(obj, traversal);
 			}
+		}
 
-			if (objClass.isArray()) {
-				final int arrayLength = Array.getLength(obj);
-				final Class componentType = objClass.getComponentType();
+		long size = sizeofInstance(obj, metadata, sizer);
+		if (histogram != null) {
+			histogram.record(objClass, size);
+		}
+		if (metadata.m_skippedSize > 0) {
+			return size; // can't do better than that
+		}
 
-				result += sizeofArrayShell(arrayLength, componentType);
+		// traverse all non-null ref fields:
+		final long[] offsets = metadata.m_refFieldOffsets;
+		for (int f = 0, fLimit = offsets.length; f < fLimit; ++f) {
+			size += visit(UnsafeAccess.getObject(obj, offsets[f]), traversal);
+		}
+		final Field[] fields = metadata.m_refFields;
+		for (int f = 0, fLimit = fields.length; f < fLimit; ++f) {
+			size += visit(getFieldValue(fields[f], obj), traversal);
+		}
+		return size;
+	}
 
-				if (!componentType.isPrimitive()) {
-					// traverse each array slot:
-					for (int i = 0; i < arrayLength; ++i) {
-						final Object ref = Array.get(obj, i);
+	/*
+	 * Visits a reference: newly visited objects are given to enqueue().
+	 */
+	static long visit(final Object ref, final Traversal traversal) {
+		return (ref != null && traversal.markVisited(ref)) ? enqueue(ref, traversal) : 0;
+	}
 
-						if ((ref != null) && !visited.containsKey(ref)) {
-							visited.put(ref, ref);
-							queue.addFirst(ref);
-						}
-					}
+	/*
+	 * Schedules a newly visited object for sizeofObject(); unless the traversal
+	 * is not eager, leaf objects (no reference to traverse: boxed primitives...)
+	 * and objects with a non-container FastSizer (Strings...) are sized right
+	 * away instead. Excluded objects are skipped.
+	 * @return the size of 'ref' if it was sized, 0 otherwise
+	 */
+	private static long enqueue(final Object ref, final Traversal traversal) {
+		if (FlyweightRegistry.contains(ref)) {
+			return 0;
+		}
+		final Class<?> refClass = ref.getClass();
+		if (!refClass.isArray()) {
+			final ClassMetadata metadata = getClassMetadata(refClass);
+			++traversal.m_metadataLookups;
+			if (metadata.m_excluded) {
+				return 0;
+			}
+			if (!traversal.m_eager) {
+				traversal.schedule(ref);
+				return 0;
+			}
+			if (traversal.m_fastSizers && metadata.m_fastSizer != null && !metadata.m_fastSizer.isContainer()) {
+				++traversal.m_objectCount;
+				return metadata.m_fastSizer.sizeof(ref, metadata, traversal);
+			}
+			if (metadata.m_leaf) {
+				++traversal.m_objectCount;
+				if (metadata.m_buffer && traversal.m_offHeap != null) {
+					traversal.m_offHeap.add(ref);
 				}
-			} else { // the object is of a non-array type
-				final ClassMetadata metadata = getClassMetadata(objClass,
-						metadataMap, caAction, faAction);
-				final Field[] fields = metadata.m_refFields;
-
-				result += metadata.m_shellSize;
-
-				// traverse all non-null ref fields:
-				for (int f = 0, fLimit = fields.length; f < fLimit; ++f) {
-					final Field field = fields[f];
-
-					final Object ref;
-					try { // to get the field value:
-						ref = field.get(obj);
-					} catch (Exception e) {
-						throw new RuntimeException("cannot get field ["
-								+ field.getName() + "] of class ["
-								+ field.getDeclaringClass().getName() + "]: "
-								+ e.toString());
-					}
-
-					if ((ref != null) && !visited.containsKey(ref)) {
-						visited.put(ref, ref);
-						queue.addFirst(ref);
-					}
+				final long size = sizeofInstance(ref, metadata, traversal.m_sizer);
+				if (traversal.m_histogram != null) {
+					traversal.m_histogram.record(refClass, size);
 				}
+				return size;
 			}
 		}
+		traversal.schedule(ref);
+		return 0;
+	}
 
-		return result;
+	/*
+	 * Computes the "shallow" size of a non-array object.
+	 */
+	static long sizeofInstance(final Object obj, final ClassMetadata metadata, final ShallowSizer sizer) {
+		if (metadata.m_skippedSize > 0) {
+			return metadata.m_skippedSize;
+		}
+		return (sizer == null) ? metadata.m_shellSize : sizer.sizeofInstance(obj, metadata);
 	}
 
 	/*
-	 * A helper method for manipulating a class metadata cache.
+	 * Reads a reference field (made accessible by getClassMetadata()) for which
+	 * no offset is available.
+	 * A field which can not be read is not traversed, instead of failing the
+	 * whole computation.
 	 */
-	private static ClassMetadata getClassMetadata(final Class cls,
-			final Map<Class,ClassMetadata> metadataMap,
-			final ClassAccessPrivilegedAction caAction,
-			final FieldAccessPrivilegedAction faAction) {
-		if (null == cls) {
+	static Object getFieldValue(final Field field, final Object obj) {
+		try { // to get the field value:
+			return field.get(obj);
+		} catch (IllegalAccessException iae) {
 			return null;
 		}
+	}
 
-		ClassMetadata result;
-		synchronized (metadataMap) {
-			result = metadataMap.get(cls);
-		}
-		if (result != null) {
-			return result;
+	/*
+	 * Looks up the (global) class metadata cache.
+	 * Lock-free: the metadata is stored with each class by a ClassValue, and is
+	 * unloaded with it. A class which is not loaded by the class loader of this
+	 * library (or by one of its descendants) may outlive it, e.g. String: it only
+	 * gets a WeakReference (a JDK type, which does not pin the class loader of
+	 * this library) to its metadata, which is kept by FOREIGN_CLASS_METADATA
+	 * until evicted; it is then computed again.
+	 */
+	static ClassMetadata getClassMetadata(final Class<?> cls) {
+		while (true) {
+			final Object value = CLASS_METADATA_CACHE.get(cls);
+			if (value instanceof ClassMetadata) {
+				return (ClassMetadata) value;
+			}
+			final ClassMetadata metadata = (ClassMetadata) ((Reference<?>) value).get();
+			if (metadata != null) {
+				return metadata;
+			}
+			CLASS_METADATA_CACHE.remove(cls); // evicted from FOREIGN_CLASS_METADATA, and collected
 		}
+	}
+
+	/*
+	 * Computes the metadata of 'cls', for CLASS_METADATA_CACHE.
+	 * May be called concurrently for the same class: the first result wins.
+	 */
+	private static ClassMetadata computeClassMetadata(final Class cls) {
+		final ClassAccessPrivilegedAction caAction = new ClassAccessPrivilegedAction();
+		final FieldAccessPrivilegedAction faAction = new FieldAccessPrivilegedAction();
 
 		int primitiveFieldCount = 0;
-		int shellSize = OBJECT_SHELL_SIZE; // java.lang.Object shell
+		int longs = 0, ints = 0, shorts = 0, bytes = 0, refs = 0; // declared field counts, by size
+		final List<Long> refFieldOffsets = new LinkedList<Long>();
 		final List<Field> refFields = new LinkedList<Field>();
 
 		final Field[] declaredFields;
@@ -334,64 +1051,83 @@ public abstract class ObjectProfiler {
 			}
 			/* Can't do that: HashMap data is transient, for example...
 			if (Modifier.isTransient(field.getModifiers())) {
-				shellSize += OBJREF_SIZE;
+				++refs;
 				continue;
 			}
 			*/
 
 			final Class fieldType = field.getType();
 			if (fieldType.isPrimitive()) {
-				// memory alignment ignored:
-				shellSize += sizeofPrimitiveType(fieldType);
+				switch (sizeofPrimitiveType(fieldType)) {
+				case 8: ++longs; break;
+				case 4: ++ints; break;
+				case 2: ++shorts; break;
+				default: ++bytes; break;
+				}
 				++primitiveFieldCount;
 			} else {
+				++refs;
+
 				// prepare for graph traversal later:
-				if (!field.isAccessible()) {
+				final long offset = UnsafeAccess.objectFieldOffset(field);
+				if (TraversalFilters.isBoundary(field)) {
+					// don't traverse this field
+				} else if (offset != UnsafeAccess.INVALID_OFFSET) {
+					refFieldOffsets.add(Long.valueOf(offset));
+				} else if (field.isAccessible()) {
+					refFields.add(field);
+				} else {
 					try {
 						faAction.setContext(field);
 						AccessController.doPrivileged(faAction);
+						refFields.add(field);
 					} catch (PrivilegedActionException pae) {
-						throw new RuntimeException("could not make field "
-								+ field + " accessible: " + pae.getException());
+						// can't traverse this field
+					} catch (RuntimeException re) {
+						// Java 9+ InaccessibleObjectException, SecurityException: can't traverse this field
 					}
 				}
-
-				// memory alignment ignored:
-				shellSize += OBJREF_SIZE;
-				refFields.add(field);
 			}
 		}
 
 		// recurse into superclass:
-		final ClassMetadata superMetadata = getClassMetadata(cls
-				.getSuperclass(), metadataMap, caAction, faAction);
+		final Class superclass = cls.getSuperclass();
+		final ClassMetadata superMetadata = (superclass != null) ? getClassMetadata(superclass) : null;
+		final int superFieldsEnd = (superMetadata != null) ? superMetadata.m_fieldsEnd : LAYOUT.getHeaderSize();
 		if (superMetadata != null) {
 			primitiveFieldCount += superMetadata.m_primitiveFieldCount;
-			shellSize += superMetadata.m_shellSize - OBJECT_SHELL_SIZE;
+			for (int i = 0; i < superMetadata.m_refFieldOffsets.length; ++i) {
+				refFieldOffsets.add(Long.valueOf(superMetadata.m_refFieldOffsets[i]));
+			}
 			refFields.addAll(Arrays.asList(superMetadata.m_refFields));
 		}
 
+		final long[] _refFieldOffsets = new long[refFieldOffsets.size()];
+		int i = 0;
+		for (Long offset : refFieldOffsets) {
+			_refFieldOffsets[i++] = offset.longValue();
+		}
 		final Field[] _refFields = new Field[refFields.size()];
 		refFields.toArray(_refFields);
 
-		result = new ClassMetadata(primitiveFieldCount, shellSize, _refFields);
-		synchronized (metadataMap) {
-			metadataMap.put(cls, result);
-		}
+		// field packing and padding:
+		final int fieldsEnd = LAYOUT.layoutFields(superFieldsEnd, longs, ints, shorts, bytes, refs);
 
-		return result;
+		return new ClassMetadata(primitiveFieldCount, fieldsEnd, _refFieldOffsets, _refFields,
+				skipClassDueToSunJVMBug(cls), isFlyweightType(cls),
+				!cls.isArray() && TraversalFilters.isBoundary(cls),
+				java.nio.Buffer.class.isAssignableFrom(cls),
+				FastSizers.forClass(cls, _refFieldOffsets, _refFields));
 	}
 
 	/*
 	 * Computes the "shallow" size of an array instance.
 	 */
-	private static int sizeofArrayShell(final int length, final Class componentType) {
-		// this ignores memory alignment issues by design:
-
+	static long sizeofArrayShell(final int length, final Class componentType) {
 		final int slotSize = componentType.isPrimitive() ? sizeofPrimitiveType(componentType)
-				: OBJREF_SIZE;
+				: LAYOUT.getReferenceSize();
 
-		return OBJECT_SHELL_SIZE + INT_FIELD_SIZE + OBJREF_SIZE + length * slotSize;
+		return LAYOUT.sizeofArray(length, slotSize);
 	}
 
 	/*
@@ -419,8 +1155,30 @@ public abstract class ObjectProfiler {
 		}
 	}
 
-	// class metadata cache:
-	private static final Map<Class,ClassMetadata> CLASS_METADATA_CACHE = new WeakHashMap<Class,ClassMetadata>(101);
+	// memory layout of the running JVM:
+	static final ObjectLayout LAYOUT = ObjectLayout.getInstance();
+
+	private static final SizeOfStatistics STATISTICS = SizeOfStatistics.getInstance();
+
+	// class metadata cache: ClassMetadata, or WeakReference to it (see getClassMetadata())
+	private static final ClassValue<Object> CLASS_METADATA_CACHE = new ClassValue<Object>() {
+		/** {@inheritDoc} */
+		@Override
+		protected Object computeValue(final Class<?> type) {
+			STATISTICS.recordMetadataMiss();
+			final ClassMetadata metadata = computeClassMetadata(type);
+			if (isLoadedByThisLibrary(type)) {
+				return metadata;
+			}
+			FOREIGN_CLASS_METADATA.set(FOREIGN_CLASS_METADATA_INDEX.getAndIncrement() & (FOREIGN_CLASS_METADATA_CAPACITY - 1), metadata);
+			return new WeakReference<ClassMetadata>(metadata); // not a subclass: must not be loaded by this library
+		}
+	};
+	// strong references to the metadata of the classes which are not loaded by this library (see getClassMetadata()):
+	// a ring of the last computed ones, so that the metadata of the classes which went away is not kept forever
+	static final int FOREIGN_CLASS_METADATA_CAPACITY = 4096; // power of 2
+	private static final AtomicReferenceArray<ClassMetadata> FOREIGN_CLASS_METADATA = new AtomicReferenceArray<ClassMetadata>(FOREIGN_CLASS_METADATA_CAPACITY);
+	private static final AtomicInteger FOREIGN_CLASS_METADATA_INDEX = new AtomicInteger();
 
 	static final Class[] sunProblematicClasses;
 	static final Map<String, Integer> sunProblematicClassesSizes;
@@ -429,21 +1187,22 @@ public abstract class ObjectProfiler {
 		Map<String, Integer> classesSizes = new HashMap<String, Integer>();
 		classesSizes.put("java.lang.Class", Integer.valueOf(0));//not really a pb, but since this is shared, so there's no point in going further
 		// 1.3+
-		classesSizes.put("java.lang.Throwable", Integer.valueOf(OBJECT_SHELL_SIZE+4*OBJREF_SIZE));
+		final int objectShellSize = LAYOUT.getObjectShellSize();
+		classesSizes.put("java.lang.Throwable", Integer.valueOf(LAYOUT.align(LAYOUT.layoutFields(LAYOUT.getHeaderSize(), 0, 0, 0, 0, 4))));
 		// 1.4+
-		classesSizes.put("sun.reflect.UnsafeStaticFieldAccessorImpl",        Integer.valueOf(OBJECT_SHELL_SIZE));//unknown
-		classesSizes.put("sun.reflect.UnsafeStaticBooleanFieldAccessorImpl", Integer.valueOf(OBJECT_SHELL_SIZE));//unknown
-		classesSizes.put("sun.reflect.UnsafeStaticByteFieldAccessorImpl",    Integer.valueOf(OBJECT_SHELL_SIZE));//unknown
-		classesSizes.put("sun.reflect.UnsafeStaticShortFieldAccessorImpl",   Integer.valueOf(OBJECT_SHELL_SIZE));//unknown
-		classesSizes.put("sun.reflect.UnsafeStaticIntegerFieldAccessorImpl", Integer.valueOf(OBJECT_SHELL_SIZE));//unknown
-		classesSizes.put("sun.reflect.UnsafeStaticLongFieldAccessorImpl",    Integer.valueOf(OBJECT_SHELL_SIZE));//unknown
-		classesSizes.put("sun.reflect.UnsafeStaticCharacterFieldAccessorImpl", Integer.valueOf(OBJECT_SHELL_SIZE));//unknown
-		classesSizes.put("sun.reflect.UnsafeStaticFloatFieldAccessorImpl",   Integer.valueOf(OBJECT_SHELL_SIZE));//unknown
-		classesSizes.put("sun.reflect.UnsafeStaticDoubleFieldAccessorImpl",  Integer.valueOf(OBJECT_SHELL_SIZE));//unknown
-		classesSizes.put("sun.reflect.UnsafeStaticObjectFieldAccessorImpl",  Integer.valueOf(OBJECT_SHELL_SIZE));//unknown
+		classesSizes.put("sun.reflect.UnsafeStaticFieldAccessorImpl",        Integer.valueOf(objectShellSize));//unknown
+		classesSizes.put("sun.reflect.UnsafeStaticBooleanFieldAccessorImpl", Integer.valueOf(objectShellSize));//unknown
+		classesSizes.put("sun.reflect.UnsafeStaticByteFieldAccessorImpl",    Integer.valueOf(objectShellSize));//unknown
+		classesSizes.put("sun.reflect.UnsafeStaticShortFieldAccessorImpl",   Integer.valueOf(objectShellSize));//unknown
+		classesSizes.put("sun.reflect.UnsafeStaticIntegerFieldAccessorImpl", Integer.valueOf(objectShellSize));//unknown
+		classesSizes.put("sun.reflect.UnsafeStaticLongFieldAccessorImpl",    Integer.valueOf(objectShellSize));//unknown
+		classesSizes.put("sun.reflect.UnsafeStaticCharacterFieldAccessorImpl", Integer.valueOf(objectShellSize));//unknown
+		classesSizes.put("sun.reflect.UnsafeStaticFloatFieldAccessorImpl",   Integer.valueOf(objectShellSize));//unknown
+		classesSizes.put("sun.reflect.UnsafeStaticDoubleFieldAccessorImpl",  Integer.valueOf(objectShellSize));//unknown
+		classesSizes.put("sun.reflect.UnsafeStaticObjectFieldAccessorImpl",  Integer.valueOf(objectShellSize));//unknown
 		// 1.5+
 		classesSizes.put("java.lang.Enum", Integer.valueOf(0));//not really a pb, but since this is shared, so there's no point in going further
-		classesSizes.put("sun.reflect.ConstantPool", Integer.valueOf(OBJECT_SHELL_SIZE + OBJECT_SHELL_SIZE));
+		classesSizes.put("sun.reflect.ConstantPool", Integer.valueOf(objectShellSize + objectShellSize));
 		sunProblematicClassesSizes = Collections.unmodifiableMap(classesSizes);
 
 		List classes = new ArrayList(sunProblematicClassesSizes.size());
@@ -470,7 +1229,7 @@ public abstract class ObjectProfiler {
 	 * 	we can compare classes with == since they will always be loaded from the same ClassLoader
 	 * 	(they are "low" in the hierarchy)
 	 */
-	private static int skipClassDueToSunJVMBug(Class<?> clazz) {
+	static int skipClassDueToSunJVMBug(Class<?> clazz) {
 		for (int i = 0; i < sunProblematicClasses.length; ++i) {
 			Class<?> sunPbClass = sunProblematicClasses[i];
 			if (clazz == sunPbClass) {
@@ -481,183 +1240,55 @@ public abstract class ObjectProfiler {
 	}
 
 	/*
-	 * Very incomplete, but better than nothing...
-	 */
-	// See http://docs.oracle.com/javase/7/docs/api/constant-values.html for JDK's String constants
-	// a bit of help on the html docs: grep -r "public static final&nbsp;<a href=\"" . | uniq
-	// a bit of help from docs: e.g. http://docs.oracle.com/javase/7/docs/api/java/lang/class-use/Float.html
-	@SuppressWarnings("deprecation")
-	private static boolean isSharedFlyweight(Object obj) {
-		if (obj == null || Enum.class.isInstance(obj) || Class.class.isInstance(obj) || javax.print.attribute.EnumSyntax.class.isInstance(obj) ||
-				Character.UnicodeBlock.class.isInstance(obj) ||
-				java.nio.ByteOrder.class.isInstance(obj) ||
-				java.nio.channels.FileChannel.MapMode.class.isInstance(obj) ||
-				java.nio.charset.CoderResult.class.isInstance(obj) ||
-				java.nio.charset.CodingErrorAction.class.isInstance(obj) ||
-				java.text.DateFormat.Field.class.isInstance(obj) || java.text.MessageFormat.Field.class.isInstance(obj) || java.text.NumberFormat.Field.class.isInstance(obj) ||
-				javax.management.openmbean.SimpleType.class.isInstance(obj) ||
-				javax.security.auth.login.AppConfigurationEntry.LoginModuleControlFlag.class.isInstance(obj) ||
-				DatatypeConstants.Field.class.isInstance(obj)
-				) {
-			return true;
-		}
-		if (obj == Boolean.TRUE || obj == Boolean.FALSE) {
-			return true;
-		}
-		if (/*obj == Locale.ROOT ||*//*Java 6*/
-				obj == Locale.ENGLISH  || obj == Locale.FRENCH || obj == Locale.GERMAN || obj == Locale.ITALIAN ||
-				obj == Locale.JAPANESE || obj == Locale.KOREAN || obj == Locale.CHINESE ||
-				obj == Locale.SIMPLIFIED_CHINESE || obj == Locale.TRADITIONAL_CHINESE  || obj == Locale.FRANCE ||
-				obj == Locale.GERMANY  || obj == Locale.ITALY || obj == Locale.JAPAN   ||
-				obj == Locale.KOREA    || obj == Locale.CHINA || obj == Locale.PRC     || obj == Locale.TAIWAN ||
-				obj == Locale.UK       || obj == Locale.US    || obj == Locale.CANADA  || obj == Locale.CANADA_FRENCH) {
-			return true;
-		}
-		if (obj == Collections.EMPTY_SET || obj == Collections.EMPTY_LIST || obj == Collections.EMPTY_MAP) {
-			return true;
-		}
-		if (obj == BigInteger.ZERO || obj == BigInteger.ONE || obj == BigInteger.TEN
-				|| obj == java.security.spec.RSAKeyGenParameterSpec.F0 || obj == java.security.spec.RSAKeyGenParameterSpec.F4) {
-			return true;
-		}
-		if (obj == BigDecimal.ZERO || obj == BigDecimal.ONE || obj == BigDecimal.TEN) {
-			return true;
-		}
-		if (obj == MathContext.UNLIMITED || obj == MathContext.DECIMAL32 || obj == MathContext.DECIMAL64 || obj == MathContext.DECIMAL128) {
-			return true;
-		}
-		if (obj == System.in || obj == System.out || obj == System.err) {
-			return true;
-		}
-		if (obj == String.CASE_INSENSITIVE_ORDER) {
-			return true;
-		}
-		if (obj == java.net.Proxy.NO_PROXY) {
-			return true;
-		}
-		if (obj == java.util.logging.Logger.global || obj == java.util.logging.Level.OFF || obj == java.util.logging.Level.SEVERE || obj == java.util.logging.Level.WARNING || obj == java.util.logging.Level.INFO || obj == java.util.logging.Level.CONFIG || obj == java.util.logging.Level.FINE || obj == java.util.logging.Level.FINER || obj == java.util.logging.Level.FINEST || obj == java.util.logging.Level.ALL) {
-			return true;
-		}
-		if (obj == java.beans.DesignMode.PROPERTYNAME ||
-				obj == ManagementFactory.CLASS_LOADING_MXBEAN_NAME || obj == ManagementFactory.COMPILATION_MXBEAN_NAME || obj == ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE || obj == ManagementFactory.MEMORY_MANAGER_MXBEAN_DOMAIN_TYPE || obj == ManagementFactory.MEMORY_MXBEAN_NAME || obj == ManagementFactory.MEMORY_POOL_MXBEAN_DOMAIN_TYPE || obj == ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME || obj == ManagementFactory.RUNTIME_MXBEAN_NAME || obj == ManagementFactory.THREAD_MXBEAN_NAME ||
-				obj == MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED || obj == MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED ||
-				obj == java.rmi.server.LoaderHandler.packagePrefix || obj == java.rmi.server.RemoteRef.packagePrefix ||
-				obj == java.io.File.separator || obj == java.io.File.pathSeparator ||
-				obj == java.util.jar.JarFile.MANIFEST_NAME ||
-				obj == Pack200.Packer.CLASS_ATTRIBUTE_PFX || obj == Pack200.Packer.CODE_ATTRIBUTE_PFX || obj == Pack200.Packer.DEFLATE_HINT || obj == Pack200.Packer.EFFORT || obj == Pack200.Packer.ERROR || obj == Pack200.Packer.FALSE || obj == Pack200.Packer.FIELD_ATTRIBUTE_PFX || obj == Pack200.Packer.KEEP || obj == Pack200.Packer.KEEP_FILE_ORDER || obj == Pack200.Packer.LATEST || obj == Pack200.Packer.METHOD_ATTRIBUTE_PFX || obj == Pack200.Packer.MODIFICATION_TIME || obj == Pack200.Packer.PASS || obj == Pack200.Packer.PASS_FILE_PFX || obj == Pack200.Packer.PROGRESS || obj == Pack200.Packer.SEGMENT_LIMIT || obj == Pack200.Packer.STRIP || obj == Pack200.Packer.TRUE || obj == Pack200.Packer.UNKNOWN_ATTRIBUTE ||
-				obj == Pack200.Unpacker.DEFLATE_HINT || obj == Pack200.Unpacker.FALSE || obj == Pack200.Unpacker.KEEP || obj == Pack200.Unpacker.PROGRESS || obj == Pack200.Unpacker.TRUE ||
-				/*obj == java.util.logging.Logger.GLOBAL_LOGGER_NAME || Java 6*/ obj == java.util.logging.LogManager.LOGGING_MXBEAN_NAME ||
-				obj == AccessibleContext.ACCESSIBLE_ACTION_PROPERTY || obj == AccessibleContext.ACCESSIBLE_ACTIVE_DESCENDANT_PROPERTY || obj == AccessibleContext.ACCESSIBLE_CARET_PROPERTY || obj == AccessibleContext.ACCESSIBLE_CHILD_PROPERTY || obj == AccessibleContext.ACCESSIBLE_COMPONENT_BOUNDS_CHANGED || obj == AccessibleContext.ACCESSIBLE_DESCRIPTION_PROPERTY || obj == AccessibleContext.ACCESSIBLE_HYPERTEXT_OFFSET || obj == AccessibleContext.ACCESSIBLE_INVALIDATE_CHILDREN || obj == AccessibleContext.ACCESSIBLE_NAME_PROPERTY || obj == AccessibleContext.ACCESSIBLE_SELECTION_PROPERTY || obj == AccessibleContext.ACCESSIBLE_STATE_PROPERTY || obj == AccessibleContext.ACCESSIBLE_TABLE_CAPTION_CHANGED || obj == AccessibleContext.ACCESSIBLE_TABLE_COLUMN_DESCRIPTION_CHANGED || obj == AccessibleContext.ACCESSIBLE_TABLE_COLUMN_HEADER_CHANGED || obj == AccessibleContext.ACCESSIBLE_TABLE_MODEL_CHANGED || obj == AccessibleContext.ACCESSIBLE_TABLE_ROW_DESCRIPTION_CHANGED || obj == AccessibleContext.ACCESSIBLE_TABLE_ROW_HEADER_CHANGED || obj == AccessibleContext.ACCESSIBLE_TABLE_SUMMARY_CHANGED || obj == AccessibleContext.ACCESSIBLE_TEXT_ATTRIBUTES_CHANGED || obj == AccessibleContext.ACCESSIBLE_TEXT_PROPERTY || obj == AccessibleContext.ACCESSIBLE_VALUE_PROPERTY || obj == AccessibleContext.ACCESSIBLE_VISIBLE_DATA_PROPERTY ||
-				obj == AccessibleRelation.CHILD_NODE_OF || obj == AccessibleRelation.CHILD_NODE_OF_PROPERTY || obj == AccessibleRelation.CONTROLLED_BY || obj == AccessibleRelation.CONTROLLED_BY_PROPERTY || obj == AccessibleRelation.CONTROLLER_FOR || obj == AccessibleRelation.CONTROLLER_FOR_PROPERTY || obj == AccessibleRelation.EMBEDDED_BY || obj == AccessibleRelation.EMBEDDED_BY_PROPERTY || obj == AccessibleRelation.EMBEDS || obj == AccessibleRelation.EMBEDS_PROPERTY || obj == AccessibleRelation.FLOWS_FROM || obj == AccessibleRelation.FLOWS_FROM_PROPERTY || obj == AccessibleRelation.FLOWS_TO || obj == AccessibleRelation.FLOWS_TO_PROPERTY || obj == AccessibleRelation.LABEL_FOR || obj == AccessibleRelation.LABEL_FOR_PROPERTY || obj == AccessibleRelation.LABELED_BY || obj == AccessibleRelation.LABELED_BY_PROPERTY || obj == AccessibleRelation.MEMBER_OF || obj == AccessibleRelation.MEMBER_OF_PROPERTY || obj == AccessibleRelation.PARENT_WINDOW_OF || obj == AccessibleRelation.PARENT_WINDOW_OF_PROPERTY || obj == AccessibleRelation.SUBWINDOW_OF || obj == AccessibleRelation.SUBWINDOW_OF_PROPERTY ||
-				obj == javax.imageio.metadata.IIOMetadataFormatImpl.standardMetadataFormatName || obj == javax.management.AttributeChangeNotification.ATTRIBUTE_CHANGE ||
-				/*obj == javax.management.JMX.* || Java 6*/
-				obj == javax.management.MBeanServerNotification.REGISTRATION_NOTIFICATION || obj == javax.management.MBeanServerNotification.UNREGISTRATION_NOTIFICATION ||
-				obj == MonitorNotification.OBSERVED_ATTRIBUTE_ERROR || obj == MonitorNotification.OBSERVED_ATTRIBUTE_TYPE_ERROR || obj == MonitorNotification.OBSERVED_OBJECT_ERROR || obj == MonitorNotification.RUNTIME_ERROR || obj == MonitorNotification.STRING_TO_COMPARE_VALUE_DIFFERED || obj == MonitorNotification.STRING_TO_COMPARE_VALUE_MATCHED || obj == MonitorNotification.THRESHOLD_ERROR || obj == MonitorNotification.THRESHOLD_HIGH_VALUE_EXCEEDED || obj == MonitorNotification.THRESHOLD_LOW_VALUE_EXCEEDED || obj == MonitorNotification.THRESHOLD_VALUE_EXCEEDED ||
-				obj == RelationNotification.RELATION_BASIC_CREATION || obj == RelationNotification.RELATION_BASIC_REMOVAL || obj == RelationNotification.RELATION_BASIC_UPDATE || obj == RelationNotification.RELATION_MBEAN_CREATION || obj == RelationNotification.RELATION_MBEAN_REMOVAL || obj == RelationNotification.RELATION_MBEAN_UPDATE ||
-				obj == JMXConnectionNotification.CLOSED || obj == JMXConnectionNotification.FAILED || obj == JMXConnectionNotification.NOTIFS_LOST || obj == JMXConnectionNotification.OPENED ||
-				obj == javax.management.remote.JMXConnector.CREDENTIALS ||
-				obj == JMXConnectorFactory.DEFAULT_CLASS_LOADER || obj == JMXConnectorFactory.PROTOCOL_PROVIDER_CLASS_LOADER || obj == JMXConnectorFactory.PROTOCOL_PROVIDER_PACKAGES ||
-				obj == javax.management.remote.JMXConnectorServer.AUTHENTICATOR ||
-				obj == JMXConnectorServerFactory.DEFAULT_CLASS_LOADER || obj == JMXConnectorServerFactory.DEFAULT_CLASS_LOADER_NAME || obj == JMXConnectorServerFactory.PROTOCOL_PROVIDER_CLASS_LOADER || obj == JMXConnectorServerFactory.PROTOCOL_PROVIDER_PACKAGES ||
-				obj == RMIConnectorServer.JNDI_REBIND_ATTRIBUTE || obj == RMIConnectorServer.RMI_CLIENT_SOCKET_FACTORY_ATTRIBUTE || obj == RMIConnectorServer.RMI_SERVER_SOCKET_FACTORY_ATTRIBUTE ||
-				obj == Context.APPLET || obj == Context.AUTHORITATIVE || obj == Context.BATCHSIZE || obj == Context.DNS_URL || obj == Context.INITIAL_CONTEXT_FACTORY || obj == Context.LANGUAGE || obj == Context.OBJECT_FACTORIES || obj == Context.PROVIDER_URL || obj == Context.REFERRAL || obj == Context.SECURITY_AUTHENTICATION || obj == Context.SECURITY_CREDENTIALS || obj == Context.SECURITY_PRINCIPAL || obj == Context.SECURITY_PROTOCOL || obj == Context.STATE_FACTORIES || obj == Context.URL_PKG_PREFIXES ||
-				obj == javax.naming.ldap.LdapContext.CONTROL_FACTORIES ||
-				obj == javax.naming.ldap.ManageReferralControl.OID || obj == javax.naming.ldap.PagedResultsControl.OID || obj == javax.naming.ldap.PagedResultsResponseControl.OID || obj == javax.naming.ldap.SortControl.OID || obj == javax.naming.ldap.SortResponseControl.OID || obj == javax.naming.ldap.StartTlsRequest.OID || obj == javax.naming.ldap.StartTlsResponse.OID ||
-				obj == javax.naming.spi.NamingManager.CPE ||
-				obj == javax.print.ServiceUIFactory.DIALOG_UI || obj == javax.print.ServiceUIFactory.JCOMPONENT_UI || obj == javax.print.ServiceUIFactory.JDIALOG_UI || obj == javax.print.ServiceUIFactory.PANEL_UI ||
-				/*obj == javax.script.ScriptEngine.* || Java 6*/
-				obj == javax.security.auth.x500.X500Principal.CANONICAL || obj == javax.security.auth.x500.X500Principal.RFC1779 || obj == javax.security.auth.x500.X500Principal.RFC2253 ||
-				/*obj == Sasl.CREDENTIALS || Java 6*/ obj == Sasl.MAX_BUFFER || obj == Sasl.POLICY_FORWARD_SECRECY || obj == Sasl.POLICY_NOACTIVE || obj == Sasl.POLICY_NOANONYMOUS || obj == Sasl.POLICY_NODICTIONARY || obj == Sasl.POLICY_NOPLAINTEXT || obj == Sasl.POLICY_PASS_CREDENTIALS || obj == Sasl.QOP || obj == Sasl.RAW_SEND_SIZE || obj == Sasl.REUSE || obj == Sasl.SERVER_AUTH || obj == Sasl.STRENGTH ||
-				obj == javax.sql.rowset.WebRowSet.PUBLIC_XML_SCHEMA || obj == javax.sql.rowset.WebRowSet.SCHEMA_SYSTEM_ID ||
-				obj == javax.sql.rowset.spi.SyncFactory.ROWSET_SYNC_PROVIDER || obj == javax.sql.rowset.spi.SyncFactory.ROWSET_SYNC_PROVIDER_VERSION || obj == javax.sql.rowset.spi.SyncFactory.ROWSET_SYNC_VENDOR ||
-				obj == XMLConstants.DEFAULT_NS_PREFIX || obj == XMLConstants.FEATURE_SECURE_PROCESSING || obj == XMLConstants.NULL_NS_URI || obj == XMLConstants.RELAXNG_NS_URI || obj == XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI || obj == XMLConstants.W3C_XML_SCHEMA_NS_URI || obj == XMLConstants.W3C_XPATH_DATATYPE_NS_URI || obj == XMLConstants.XML_DTD_NS_URI || obj == XMLConstants.XML_NS_PREFIX || obj == XMLConstants.XML_NS_URI || obj == XMLConstants.XMLNS_ATTRIBUTE || obj == XMLConstants.XMLNS_ATTRIBUTE_NS_URI ||
-				/*obj == javax.xml.bind.JAXBContext.JAXB_CONTEXT_FACTORY || Java 6*/
-				/*obj == javax.xml.bind.Marshaller.* || Java 6*/
-				/*obj == javax.xml.bind.annotation.XmlSchema.NO_LOCATION || java 6*/
-				/*obj == javax.xml.crypto.dsig.*.* || Java 6*/
-				obj == javax.xml.datatype.DatatypeFactory.DATATYPEFACTORY_PROPERTY ||
-				/*obj == javax.xml.soap.SOAPConstants.* || Java 6*/
-				/*obj == javax.xml.soap.SOAPMessage.* || Java 6*/
-				/*obj == javax.xml.stream.*.* || Java 6*/
-				obj == OutputKeys.CDATA_SECTION_ELEMENTS || obj == OutputKeys.DOCTYPE_PUBLIC || obj == OutputKeys.DOCTYPE_SYSTEM || obj == OutputKeys.ENCODING || obj == OutputKeys.INDENT || obj == OutputKeys.MEDIA_TYPE || obj == OutputKeys.METHOD || obj == OutputKeys.OMIT_XML_DECLARATION || obj == OutputKeys.STANDALONE || obj == OutputKeys.VERSION ||
-				obj == javax.xml.transform.Result.PI_DISABLE_OUTPUT_ESCAPING || obj == javax.xml.transform.Result.PI_ENABLE_OUTPUT_ESCAPING ||
-				obj == javax.xml.transform.dom.DOMResult.FEATURE || obj == javax.xml.transform.dom.DOMSource.FEATURE || obj == javax.xml.transform.sax.SAXResult.FEATURE || obj == javax.xml.transform.sax.SAXSource.FEATURE || obj == javax.xml.transform.sax.SAXTransformerFactory.FEATURE || obj == javax.xml.transform.sax.SAXTransformerFactory.FEATURE_XMLFILTER || /*obj == javax.xml.transform.stax.StAXResult.FEATURE || obj == javax.xml.transform.stax.StAXSource.FEATURE || Java 6*/ obj == javax.xml.transform.stream.StreamResult.FEATURE || obj == javax.xml.transform.stream.StreamSource.FEATURE ||
-				/*obj == javax.xml.ws.*.* || Java 6*/
-				obj == javax.xml.xpath.XPathConstants.DOM_OBJECT_MODEL || obj == javax.xml.xpath.XPathFactory.DEFAULT_OBJECT_MODEL_URI || obj == javax.xml.xpath.XPathFactory.DEFAULT_PROPERTY_NAME ||
-				obj == org.w3c.dom.bootstrap.DOMImplementationRegistry.PROPERTY ||
-				obj == org.xml.sax.helpers.NamespaceSupport.NSDECL || obj == org.xml.sax.helpers.NamespaceSupport.XMLNS) {
-			return true;
-		}
-		if (obj == java.awt.AlphaComposite.Clear
-				|| obj == java.awt.AlphaComposite.Src
-				|| obj == java.awt.AlphaComposite.Dst
-				|| obj == java.awt.AlphaComposite.SrcOver
-				|| obj == java.awt.AlphaComposite.DstOver
-				|| obj == java.awt.AlphaComposite.SrcIn
-				|| obj == java.awt.AlphaComposite.DstIn
-				|| obj == java.awt.AlphaComposite.SrcOut
-				|| obj == java.awt.AlphaComposite.DstOut
-				|| obj == java.awt.AlphaComposite.SrcAtop
-				|| obj == java.awt.AlphaComposite.DstAtop
-				|| obj == java.awt.AlphaComposite.Xor) {
-			return true;
-		}
-		if (obj == java.awt.Color.WHITE
-				|| obj == java.awt.Color.LIGHT_GRAY || obj == java.awt.Color.GRAY || obj == java.awt.Color.DARK_GRAY
-				|| obj == java.awt.Color.BLACK || obj == java.awt.Color.RED
-				|| obj == java.awt.Color.PINK || obj == java.awt.Color.ORANGE
-				|| obj == java.awt.Color.YELLOW || obj == java.awt.Color.GREEN
-				|| obj == java.awt.Color.MAGENTA || obj == java.awt.Color.CYAN
-				|| obj == java.awt.Color.BLUE) {
-			return true;
-		}
-		if (obj == java.io.FileDescriptor.in || obj == java.io.FileDescriptor.out || obj == java.io.FileDescriptor.err || obj == java.io.ObjectStreamClass.NO_FIELDS) {
-			return true;
-		}
-		if (obj == java.security.spec.ECPoint.POINT_INFINITY
-				|| obj == java.security.spec.MGF1ParameterSpec.SHA1 || obj == java.security.spec.MGF1ParameterSpec.SHA256 || obj == java.security.spec.MGF1ParameterSpec.SHA384 || obj == java.security.spec.MGF1ParameterSpec.SHA512
-				|| obj == java.security.spec.PSSParameterSpec.DEFAULT) {
-			return true;
-		}
-		if (obj == java.text.AttributedCharacterIterator.Attribute.LANGUAGE || obj == java.text.AttributedCharacterIterator.Attribute.READING || obj == java.text.AttributedCharacterIterator.Attribute.INPUT_METHOD_SEGMENT) {
-			return true;
-		}
-		if (obj == java.util.jar.Attributes.Name.MANIFEST_VERSION || obj == java.util.jar.Attributes.Name.SIGNATURE_VERSION || obj == java.util.jar.Attributes.Name.CONTENT_TYPE || obj == java.util.jar.Attributes.Name.CLASS_PATH || obj == java.util.jar.Attributes.Name.MAIN_CLASS || obj == java.util.jar.Attributes.Name.SEALED || obj == java.util.jar.Attributes.Name.EXTENSION_LIST || obj == java.util.jar.Attributes.Name.EXTENSION_NAME || obj == java.util.jar.Attributes.Name.EXTENSION_INSTALLATION || obj == java.util.jar.Attributes.Name.IMPLEMENTATION_TITLE || obj == java.util.jar.Attributes.Name.IMPLEMENTATION_VERSION || obj == java.util.jar.Attributes.Name.IMPLEMENTATION_VENDOR || obj == java.util.jar.Attributes.Name.IMPLEMENTATION_VENDOR_ID || obj == java.util.jar.Attributes.Name.IMPLEMENTATION_URL || obj == java.util.jar.Attributes.Name.SPECIFICATION_TITLE || obj == java.util.jar.Attributes.Name.SPECIFICATION_VERSION || obj == java.util.jar.Attributes.Name.SPECIFICATION_VENDOR) {
-			return true;
-		}
-		if (obj == AccessibleRole.ALERT || obj == AccessibleRole.COLUMN_HEADER || obj == AccessibleRole.CANVAS || obj == AccessibleRole.COMBO_BOX || obj == AccessibleRole.DESKTOP_ICON /*|| obj == AccessibleRole.HTML_CONTAINER */|| obj == AccessibleRole.INTERNAL_FRAME || obj == AccessibleRole.DESKTOP_PANE || obj == AccessibleRole.OPTION_PANE || obj == AccessibleRole.WINDOW || obj == AccessibleRole.FRAME || obj == AccessibleRole.DIALOG || obj == AccessibleRole.COLOR_CHOOSER || obj == AccessibleRole.DIRECTORY_PANE || obj == AccessibleRole.FILE_CHOOSER || obj == AccessibleRole.FILLER || obj == AccessibleRole.HYPERLINK || obj == AccessibleRole.ICON || obj == AccessibleRole.LABEL || obj == AccessibleRole.ROOT_PANE || obj == AccessibleRole.GLASS_PANE || obj == AccessibleRole.LAYERED_PANE || obj == AccessibleRole.LIST || obj == AccessibleRole.LIST_ITEM || obj == AccessibleRole.MENU_BAR || obj == AccessibleRole.POPUP_MENU || obj == AccessibleRole.MENU || obj == AccessibleRole.MENU_ITEM || obj == AccessibleRole.SEPARATOR || obj == AccessibleRole.PAGE_TAB_LIST || obj == AccessibleRole.PAGE_TAB || obj == AccessibleRole.PANEL || obj == AccessibleRole.PROGRESS_BAR || obj == AccessibleRole.PASSWORD_TEXT || obj == AccessibleRole.PUSH_BUTTON || obj == AccessibleRole.TOGGLE_BUTTON || obj == AccessibleRole.CHECK_BOX || obj == AccessibleRole.RADIO_BUTTON || obj == AccessibleRole.ROW_HEADER || obj == AccessibleRole.SCROLL_PANE || obj == AccessibleRole.SCROLL_BAR || obj == AccessibleRole.VIEWPORT || obj == AccessibleRole.SLIDER || obj == AccessibleRole.SPLIT_PANE || obj == AccessibleRole.TABLE || obj == AccessibleRole.TEXT || obj == AccessibleRole.TREE || obj == AccessibleRole.TOOL_BAR || obj == AccessibleRole.TOOL_TIP || obj == AccessibleRole.AWT_COMPONENT || obj == AccessibleRole.SWING_COMPONENT || obj == AccessibleRole.UNKNOWN || obj == AccessibleRole.STATUS_BAR || obj == AccessibleRole.DATE_EDITOR || obj == AccessibleRole.SPIN_BOX || obj == AccessibleRole.FONT_CHOOSER || obj == AccessibleRole.GROUP_BOX || obj == AccessibleRole.HEADER || obj == AccessibleRole.FOOTER || obj == AccessibleRole.PARAGRAPH || obj == AccessibleRole.RULER || obj == AccessibleRole.EDITBAR || obj == AccessibleRole.PROGRESS_MONITOR
-				|| obj == AccessibleState.ACTIVE || obj == AccessibleState.PRESSED || obj == AccessibleState.ARMED || obj == AccessibleState.BUSY || obj == AccessibleState.CHECKED || obj == AccessibleState.EDITABLE || obj == AccessibleState.EXPANDABLE || obj == AccessibleState.COLLAPSED || obj == AccessibleState.EXPANDED || obj == AccessibleState.ENABLED || obj == AccessibleState.FOCUSABLE || obj == AccessibleState.FOCUSED || obj == AccessibleState.ICONIFIED || obj == AccessibleState.MODAL || obj == AccessibleState.OPAQUE || obj == AccessibleState.RESIZABLE || obj == AccessibleState.MULTISELECTABLE || obj == AccessibleState.SELECTABLE || obj == AccessibleState.SELECTED || obj == AccessibleState.SHOWING || obj == AccessibleState.VISIBLE || obj == AccessibleState.VERTICAL || obj == AccessibleState.HORIZONTAL || obj == AccessibleState.SINGLE_LINE || obj == AccessibleState.MULTI_LINE || obj == AccessibleState.TRANSIENT || obj == AccessibleState.MANAGES_DESCENDANTS || obj == AccessibleState.INDETERMINATE || obj == AccessibleState.TRUNCATED) {
-			return true;
-		}
-//		if (obj == javax.crypto.spec.OAEPParameterSpec.DEFAULT || obj == javax.crypto.spec.PSource.PSpecified.DEFAULT) {Java 6
-//			return true;
-//		}
-		if (obj == javax.imageio.plugins.jpeg.JPEGHuffmanTable.StdDCLuminance || obj == javax.imageio.plugins.jpeg.JPEGHuffmanTable.StdDCChrominance || obj == javax.imageio.plugins.jpeg.JPEGHuffmanTable.StdACLuminance || obj == javax.imageio.plugins.jpeg.JPEGHuffmanTable.StdACChrominance
-				|| obj == javax.imageio.plugins.jpeg.JPEGQTable.K1Luminance || obj == javax.imageio.plugins.jpeg.JPEGQTable.K1Div2Luminance || obj == javax.imageio.plugins.jpeg.JPEGQTable.K2Chrominance || obj == javax.imageio.plugins.jpeg.JPEGQTable.K2Div2Chrominance) {
-			return true;
-		}
-		if (obj == DatatypeConstants.DATETIME || obj == DatatypeConstants.TIME || obj == DatatypeConstants.DATE || obj == DatatypeConstants.GYEARMONTH || obj == DatatypeConstants.GMONTHDAY || obj == DatatypeConstants.GYEAR || obj == DatatypeConstants.GMONTH || obj == DatatypeConstants.GDAY || obj == DatatypeConstants.DURATION || obj == DatatypeConstants.DURATION_DAYTIME || obj == DatatypeConstants.DURATION_YEARMONTH
-				|| obj == javax.xml.xpath.XPathConstants.NUMBER || obj == javax.xml.xpath.XPathConstants.STRING || obj == javax.xml.xpath.XPathConstants.BOOLEAN || obj == javax.xml.xpath.XPathConstants.NODESET || obj == javax.xml.xpath.XPathConstants.NODE || obj == javax.xml.xpath.XPathConstants.DOM_OBJECT_MODEL) {
-			return true;
-		}
-		if (obj == DocFlavor.BYTE_ARRAY.TEXT_PLAIN_HOST || obj == DocFlavor.BYTE_ARRAY.TEXT_PLAIN_UTF_8 || obj == DocFlavor.BYTE_ARRAY.TEXT_PLAIN_UTF_16 || obj == DocFlavor.BYTE_ARRAY.TEXT_PLAIN_UTF_16BE || obj == DocFlavor.BYTE_ARRAY.TEXT_PLAIN_UTF_16LE || obj == DocFlavor.BYTE_ARRAY.TEXT_PLAIN_US_ASCII || obj == DocFlavor.BYTE_ARRAY.TEXT_HTML_HOST || obj == DocFlavor.BYTE_ARRAY.TEXT_HTML_UTF_8 || obj == DocFlavor.BYTE_ARRAY.TEXT_HTML_UTF_16 || obj == DocFlavor.BYTE_ARRAY.TEXT_HTML_UTF_16BE || obj == DocFlavor.BYTE_ARRAY.TEXT_HTML_UTF_16LE || obj == DocFlavor.BYTE_ARRAY.TEXT_HTML_US_ASCII || obj == DocFlavor.BYTE_ARRAY.PDF || obj == DocFlavor.BYTE_ARRAY.POSTSCRIPT || obj == DocFlavor.BYTE_ARRAY.PCL || obj == DocFlavor.BYTE_ARRAY.GIF || obj == DocFlavor.BYTE_ARRAY.JPEG || obj == DocFlavor.BYTE_ARRAY.PNG || obj == DocFlavor.BYTE_ARRAY.AUTOSENSE
-				|| obj == DocFlavor.INPUT_STREAM.TEXT_PLAIN_HOST || obj == DocFlavor.INPUT_STREAM.TEXT_PLAIN_UTF_8 || obj == DocFlavor.INPUT_STREAM.TEXT_PLAIN_UTF_16 || obj == DocFlavor.INPUT_STREAM.TEXT_PLAIN_UTF_16BE || obj == DocFlavor.INPUT_STREAM.TEXT_PLAIN_UTF_16LE || obj == DocFlavor.INPUT_STREAM.TEXT_PLAIN_US_ASCII || obj == DocFlavor.INPUT_STREAM.TEXT_HTML_HOST || obj == DocFlavor.INPUT_STREAM.TEXT_HTML_UTF_8 || obj == DocFlavor.INPUT_STREAM.TEXT_HTML_UTF_16 || obj == DocFlavor.INPUT_STREAM.TEXT_HTML_UTF_16BE || obj == DocFlavor.INPUT_STREAM.TEXT_HTML_UTF_16LE || obj == DocFlavor.INPUT_STREAM.TEXT_HTML_US_ASCII || obj == DocFlavor.INPUT_STREAM.PDF || obj == DocFlavor.INPUT_STREAM.POSTSCRIPT || obj == DocFlavor.INPUT_STREAM.PCL || obj == DocFlavor.INPUT_STREAM.GIF || obj == DocFlavor.INPUT_STREAM.JPEG || obj == DocFlavor.INPUT_STREAM.PNG || obj == DocFlavor.INPUT_STREAM.AUTOSENSE
-				|| obj == DocFlavor.URL.TEXT_PLAIN_HOST || obj == DocFlavor.URL.TEXT_PLAIN_UTF_8 || obj == DocFlavor.URL.TEXT_PLAIN_UTF_16 || obj == DocFlavor.URL.TEXT_PLAIN_UTF_16BE || obj == DocFlavor.URL.TEXT_PLAIN_UTF_16LE || obj == DocFlavor.URL.TEXT_PLAIN_US_ASCII || obj == DocFlavor.URL.TEXT_HTML_HOST || obj == DocFlavor.URL.TEXT_HTML_UTF_8 || obj == DocFlavor.URL.TEXT_HTML_UTF_16 || obj == DocFlavor.URL.TEXT_HTML_UTF_16BE || obj == DocFlavor.URL.TEXT_HTML_UTF_16LE || obj == DocFlavor.URL.TEXT_HTML_US_ASCII || obj == DocFlavor.URL.PDF || obj == DocFlavor.URL.POSTSCRIPT || obj == DocFlavor.URL.PCL || obj == DocFlavor.URL.GIF || obj == DocFlavor.URL.JPEG || obj == DocFlavor.URL.PNG || obj == DocFlavor.URL.AUTOSENSE
-				|| obj == DocFlavor.CHAR_ARRAY.TEXT_PLAIN || obj == DocFlavor.CHAR_ARRAY.TEXT_HTML
-				|| obj == DocFlavor.STRING.TEXT_PLAIN || obj == DocFlavor.STRING.TEXT_HTML
-				|| obj == DocFlavor.READER.TEXT_PLAIN || obj == DocFlavor.READER.TEXT_HTML
-				|| obj == DocFlavor.SERVICE_FORMATTED.RENDERABLE_IMAGE || obj == DocFlavor.SERVICE_FORMATTED.PRINTABLE || obj == DocFlavor.SERVICE_FORMATTED.PAGEABLE) {
-			return true;
-		}
-		if (obj == javax.sound.sampled.AudioFileFormat.Type.WAVE || obj == javax.sound.sampled.AudioFileFormat.Type.AU || obj == javax.sound.sampled.AudioFileFormat.Type.AIFF || obj == javax.sound.sampled.AudioFileFormat.Type.AIFC || obj == javax.sound.sampled.AudioFileFormat.Type.SND
-				|| obj == javax.sound.sampled.BooleanControl.Type.MUTE || obj == javax.sound.sampled.BooleanControl.Type.APPLY_REVERB
-				|| obj == javax.sound.sampled.EnumControl.Type.REVERB
-				|| obj == javax.sound.sampled.FloatControl.Type.MASTER_GAIN || obj == javax.sound.sampled.FloatControl.Type.AUX_SEND || obj == javax.sound.sampled.FloatControl.Type.AUX_RETURN || obj == javax.sound.sampled.FloatControl.Type.REVERB_SEND || obj == javax.sound.sampled.FloatControl.Type.REVERB_RETURN || obj == javax.sound.sampled.FloatControl.Type.VOLUME || obj == javax.sound.sampled.FloatControl.Type.PAN || obj == javax.sound.sampled.FloatControl.Type.BALANCE || obj == javax.sound.sampled.FloatControl.Type.SAMPLE_RATE
-				|| obj == javax.sound.sampled.LineEvent.Type.OPEN || obj == javax.sound.sampled.LineEvent.Type.CLOSE || obj == javax.sound.sampled.LineEvent.Type.START || obj == javax.sound.sampled.LineEvent.Type.STOP
-				|| obj == javax.sound.sampled.Port.Info.MICROPHONE || obj == javax.sound.sampled.Port.Info.LINE_IN || obj == javax.sound.sampled.Port.Info.COMPACT_DISC || obj == javax.sound.sampled.Port.Info.SPEAKER || obj == javax.sound.sampled.Port.Info.HEADPHONE || obj == javax.sound.sampled.Port.Info.LINE_OUT) {
-			return true;
+	 * @return true if 'cls' can not outlive this library: loaded by its class loader, or by one of its descendants
+	 */
+	private static boolean isLoadedByThisLibrary(final Class<?> cls) {
+		final ClassLoader library = ObjectProfiler.class.getClassLoader();
+		if (library == null) {
+			return true; // bootstrap: never unloaded
+		}
+		try {
+			for (ClassLoader loader = cls.getClassLoader(); loader != null; loader = loader.getParent()) {
+				if (loader == library) {
+					return true;
+				}
+			}
+		} catch (SecurityException ignore) {
 		}
 		return false;
 	}
+
+	/*
+	 * Classes whose instances are all shared flyweights (see isSharedFlyweight()).
+	 */
+	private static boolean isFlyweightType(Class<?> clazz) {
+		return Enum.class.isAssignableFrom(clazz) || Class.class == clazz || javax.print.attribute.EnumSyntax.class.isAssignableFrom(clazz) ||
+				Character.UnicodeBlock.class.isAssignableFrom(clazz) ||
+				java.nio.ByteOrder.class.isAssignableFrom(clazz) ||
+				java.nio.channels.FileChannel.MapMode.class.isAssignableFrom(clazz) ||
+				java.nio.charset.CoderResult.class.isAssignableFrom(clazz) ||
+				java.nio.charset.CodingErrorAction.class.isAssignableFrom(clazz) ||
+				java.text.DateFormat.Field.class.isAssignableFrom(clazz) || java.text.MessageFormat.Field.class.isAssignableFrom(clazz) || java.text.NumberFormat.Field.class.isAssignableFrom(clazz) ||
+				javax.management.openmbean.SimpleType.class.isAssignableFrom(clazz) ||
+				javax.security.auth.login.AppConfigurationEntry.LoginModuleControlFlag.class.isAssignableFrom(clazz) ||
+				DatatypeConstants.Field.class.isAssignableFrom(clazz);
+	}
+
+	/*
+	 * O(1): instances of flyweight classes (enums...), and registered
+	 * constants (see FlyweightRegistry).
+	 */
+	static boolean isSharedFlyweight(final Object obj) {
+		return obj == null || getClassMetadata(obj.getClass()).m_flyweightType || FlyweightRegistry.contains(obj);
+	}
+
+	/*
+	 * O(1): references which are neither counted nor walked: shared
+	 * flyweights, and traversal boundaries (see TraversalFilter).
+	 * The root of a computation is never a boundary.
+	 */
+	static boolean isExcluded(final Object ref) {
+		return ref == null || getClassMetadata(ref.getClass()).m_excluded || FlyweightRegistry.contains(ref);
+	}
 } // end of class
 // ----------------------------------------------------------------------------
@@ -6,9 +6,27 @@ package clime.messadmin.providers.sizeof;
 import clime.messadmin.providers.spi.SizeOfProvider;
 
 /**
+ * Computed sizes are cached (see {@link SizeCache}): refreshing the
+ * administration pages does not re-walk unchanged attributes.
+ * The computation can be bounded (see {@link SizeOfBudget#MAX_OBJECTS_PROPERTY}
+ * and {@link SizeOfBudget#MAX_MILLIS_PROPERTY}), in which case the size of
+ * huge object graphs is estimated. Large arrays can also be sampled (see
+ * {@link ObjectProfiler#sizeofSampled(Object, int, int)}).
+ * Sizes can also be computed in the background (see {@link SizingService}),
+ * and include the native memory of direct buffers (see {@link OffHeapMemory#INCLUDE_PROPERTY}).
+ *
  * @author C&eacute;drik LIME
  */
 public class ObjectProfilerProvider implements SizeOfProvider {
+	private final SizeCache m_cache = new SizeCache();
+	private final SizeOfBudget m_budget = SizeOfBudget.getDefault(); // null if unlimited
+	private final int m_samplingThreshold = SamplingSizeof.getDefaultThreshold(); // 0 if no sampling
+	private final SizingService m_service = SizingService.isEnabled() ? new SizingService() {
+		@Override
+		protected long computeSize(final Object obj) {
+			return ObjectProfilerProvider.computeSize(obj, null, m_budget, m_samplingThreshold);
+		}
+	} : null; // null if synchronous
 
 	/**
 	 * 
@@ -28,7 +46,44 @@ public class ObjectProfilerProvider implements SizeOfProvider {
 	 * {@inheritDoc}
 	 */
 	public long sizeof(Object objectToSize) {
-		return ObjectProfiler.sizeof(objectToSize);
+		if (m_service != null) {
+			return m_service.getSize(objectToSize);
+		}
+		long result = m_cache.get(objectToSize);
+		if (result < 0) {
+			final SizeCache.Sizing sizing = m_cache.begin(objectToSize);
+			result = computeSize(objectToSize, null, m_budget, m_samplingThreshold);
+			m_cache.put(sizing, result);
+		}
+		return result;
+	}
+
+	private static final boolean INCLUDE_OFF_HEAP = OffHeapMemory.isIncludedByProviders();
+
+	/*
+	 * Sizing policy of the SizeOfProviders: sampled, bounded or exact.
+	 */
+	static long computeSize(final Object obj, final ObjectProfiler.ShallowSizer sizer,
+			final SizeOfBudget budget, final int samplingThreshold) {
+		if (samplingThreshold > 0) {
+			return estimatedSize(ObjectProfiler.sizeofSampled(obj, sizer, samplingThreshold, SamplingSizeof.getDefaultSampleSize()));
+		} else if (budget != null) {
+			return estimatedSize(ObjectProfiler.sizeof(obj, sizer, budget));
+		} else {
+			final OffHeapMemory offHeap = INCLUDE_OFF_HEAP ? new OffHeapMemory() : null;
+			final long size = ObjectProfiler.sizeof(obj, sizer, offHeap);
+			return (offHeap == null || size < 0) ? size : size + offHeap.getSize();
+		}
+	}
+
+	/*
+	 * @return the (estimated, if partial) size, or -1 if the computation failed
+	 */
+	private static long estimatedSize(final SizeOfResult result) {
+		if (result == null) {
+			return -1;
+		}
+		return INCLUDE_OFF_HEAP ? result.getEstimatedSize() + result.getOffHeapSize() : result.getEstimatedSize();
 	}
 
 }
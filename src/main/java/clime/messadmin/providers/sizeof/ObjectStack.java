@@ -0,0 +1,58 @@
+package clime.messadmin.providers.sizeof;
+
+/**
+ * Array-based stack of objects: unlike <code>LinkedList</code>, pushing does
+ * not allocate (once the stack has grown).
+ *
+ * <P>
+ * This class is not thread-safe.
+ *
+ * @author C&eacute;drik LIME
+ */
+final class ObjectStack {
+	// public: ................................................................
+
+	ObjectStack() {
+		m_elements = new Object[32];
+	}
+
+	void push(final Object obj) {
+		if (m_size == m_elements.length) {
+			final Object[] newElements = new Object[m_size << 1];
+			System.arraycopy(m_elements, 0, newElements, 0, m_size);
+			m_elements = newElements;
+		}
+		m_elements[m_size++] = obj;
+	}
+
+	Object pop() {
+		final Object result = m_elements[--m_size];
+		m_elements[m_size] = null;
+		return result;
+	}
+
+	boolean isEmpty() {
+		return m_size == 0;
+	}
+
+	int size() {
+		return m_size;
+	}
+
+	/**
+	 * @return the <code>i</code>-th element, from the bottom of the stack
+	 */
+	Object get(final int i) {
+		return m_elements[i];
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private Object[] m_elements;
+	private int m_size = 0;
+
+} // end of class
@@ -0,0 +1,145 @@
+package clime.messadmin.providers.sizeof;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Native memory held by the direct and mapped NIO buffers of an object
+ * graph (<code>ByteBuffer.allocateDirect()</code>, <code>FileChannel.map()</code>,
+ * and their views), which the heap size of their (small) buffer objects does
+ * not reflect.
+ *
+ * <P>
+ * Buffers are deduplicated by address: slices, duplicates and views of a
+ * buffer share its memory, which is counted once. The memory range of each
+ * buffer is recorded as it is found; overlapping ranges are merged when the
+ * total is computed. If the buffer addresses can not be read
+ * (<code>sun.misc.Unsafe</code> not available), the capacities of all the
+ * buffers are summed.
+ *
+ * <P>
+ * Buffers are recorded by the per-object step shared by the sizing engines,
+ * when they are sized: it is reported by {@link SizeOfResult},
+ * {@link ClassHistogram}, {@link BatchSizeResult} and the exported graphs.
+ * The {@link clime.messadmin.providers.spi.SizeOfProvider}s add this native
+ * memory to the heap size if the system property <code>{@value #INCLUDE_PROPERTY}</code>
+ * is <code>true</code>.
+ *
+ * <P>
+ * This class is not thread-safe.
+ *
+ * @author C&eacute;drik LIME
+ */
+final class OffHeapMemory {
+	// public: ................................................................
+
+	static final String INCLUDE_PROPERTY = "clime.messadmin.providers.sizeof.offHeap";
+
+	OffHeapMemory() {
+	}
+
+	/**
+	 * Records the native memory of 'obj', if it is a direct buffer.
+	 */
+	void add(final Object obj) {
+		if (!(obj instanceof Buffer) || !((Buffer) obj).isDirect()) {
+			return;
+		}
+		final Buffer buffer = (Buffer) obj;
+		final long length = (long) buffer.capacity() * getElementSize(buffer);
+		if (length == 0) {
+			return;
+		}
+		final long address = (BUFFER_ADDRESS == UnsafeAccess.INVALID_OFFSET) ? 0
+				: UnsafeAccess.getLong(buffer, BUFFER_ADDRESS);
+		if (address == 0) {
+			// unknown address: can not be deduplicated
+			m_unmergedSize += length;
+			return;
+		}
+		if (m_count == m_starts.length) {
+			m_starts = Arrays.copyOf(m_starts, m_count * 2);
+			m_ends = Arrays.copyOf(m_ends, m_count * 2);
+		}
+		m_starts[m_count] = address;
+		m_ends[m_count] = address + length;
+		++m_count;
+	}
+
+	/**
+	 * @return number of bytes of native memory of the recorded buffers, shared memory counted once
+	 */
+	long getSize() {
+		if (m_count == 0) {
+			return m_unmergedSize;
+		}
+		// the length of a union of ranges only depends on the sorted starts and the sorted ends
+		final long[] starts = Arrays.copyOf(m_starts, m_count);
+		final long[] ends = Arrays.copyOf(m_ends, m_count);
+		Arrays.sort(starts);
+		Arrays.sort(ends);
+		long size = m_unmergedSize;
+		long rangeStart = 0;
+		int depth = 0;
+		int s = 0;
+		for (int e = 0; e < ends.length; ++e) {
+			while (s < starts.length && starts[s] <= ends[e]) {
+				if (depth++ == 0) {
+					rangeStart = starts[s];
+				}
+				++s;
+			}
+			if (--depth == 0) {
+				size += ends[e] - rangeStart;
+			}
+		}
+		return size;
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	/*
+	 * @return true if the SizeOfProviders are to add the native memory to the heap size
+	 */
+	static boolean isIncludedByProviders() {
+		try {
+			final String value = System.getProperty(INCLUDE_PROPERTY);
+			return value != null && Boolean.valueOf(value.trim()).booleanValue();
+		} catch (SecurityException ignore) {
+			return false;
+		}
+	}
+
+	// private: ...............................................................
+
+	private static final long BUFFER_ADDRESS = FastSizers.findOffset("java.nio.Buffer", "address");
+
+	private long[] m_starts = new long[8];
+	private long[] m_ends = new long[8];
+	private int m_count = 0;
+	private long m_unmergedSize = 0;
+
+	private static int getElementSize(final Buffer buffer) {
+		if (buffer instanceof ByteBuffer) {
+			return 1;
+		} else if (buffer instanceof CharBuffer || buffer instanceof ShortBuffer) {
+			return 2;
+		} else if (buffer instanceof IntBuffer || buffer instanceof FloatBuffer) {
+			return 4;
+		} else if (buffer instanceof LongBuffer || buffer instanceof DoubleBuffer) {
+			return 8;
+		} else {
+			return 1;
+		}
+	}
+
+} // end of class
@@ -0,0 +1,269 @@
+package clime.messadmin.providers.sizeof;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fork/join (work-stealing) implementation of {@link ObjectProfiler#sizeof(Object)},
+ * for very large object graphs.
+ *
+ * <P>
+ * Each task walks its part of the graph depth-first, using a private stack;
+ * when its stack grows and other workers are idle, the bottom half of the
+ * stack is handed over to a new task. Large <code>Object[]</code> arrays are
+ * split into chunks. The "visited" set is shared by all tasks (see
+ * {@link ConcurrentIdentitySet}), so that each object is accounted for exactly
+ * once, and objects are sized by the same code as the sequential
+ * implementation (including the {@link FastSizers} and {@link ClassWalkers}):
+ * the result is the same.
+ *
+ * <P>
+ * The pool parallelism is configurable (system property
+ * <code>{@value #PARALLELISM_PROPERTY}</code>, or {@link #setParallelism(int)}),
+ * and defaults to half the available processors, so that sizing can not
+ * starve the request threads.
+ *
+ * <P>
+ * This class is only loaded when parallel sizing is requested (Java 7+).
+ *
+ * @author C&eacute;drik LIME
+ */
+final class ParallelSizeof {
+	// public: ................................................................
+
+	static final String PARALLELISM_PROPERTY = "clime.messadmin.providers.sizeof.parallelism";
+
+	/**
+	 * @see ObjectProfiler#sizeofParallel(Object)
+	 */
+	static long sizeof(final Object obj) {
+		final ForkJoinPool pool = getPool();
+		final ParallelSizeof context = new ParallelSizeof(pool.getParallelism());
+		context.m_visited.add(obj);
+		return pool.invoke(new SubgraphTask(context, new Object[] {obj})).longValue();
+	}
+
+	static synchronized int getParallelism() {
+		return s_parallelism;
+	}
+
+	static synchronized void setParallelism(final int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+		}
+		if (parallelism != s_parallelism) {
+			s_parallelism = parallelism;
+			// no shutdown(): other threads may still be invoking the old pool;
+			// its (daemon) workers terminate once idle
+			s_pool = null;
+		}
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	/*
+	 * Object[] arrays longer than this are split into chunks of this size.
+	 */
+	private static final int ARRAY_CHUNK_SIZE = 4096;
+	/*
+	 * A task does not share its stack below this size.
+	 */
+	private static final int SPLIT_THRESHOLD = 64;
+
+	private static int s_parallelism = getDefaultParallelism(); // guarded by class
+	private static ForkJoinPool s_pool; // guarded by class
+
+	private final ConcurrentIdentitySet m_visited;
+
+	private ParallelSizeof(final int parallelism) {
+		m_visited = new ConcurrentIdentitySet(parallelism);
+	}
+
+	private static synchronized ForkJoinPool getPool() {
+		if (s_pool == null) {
+			s_pool = new ForkJoinPool(s_parallelism);
+		}
+		return s_pool;
+	}
+
+	private static int getDefaultParallelism() {
+		int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		try {
+			final String value = System.getProperty(PARALLELISM_PROPERTY);
+			if (value != null) {
+				parallelism = Math.max(1, Integer.parseInt(value.trim()));
+			}
+		} catch (SecurityException ignore) {
+		} catch (NumberFormatException ignore) {
+		}
+		return parallelism;
+	}
+
+	/*
+	 * Base task: depth-first walk using a private stack of already-visited
+	 * objects, which are sized by ObjectProfiler.sizeofObject().
+	 */
+	@SuppressWarnings("serial") // ForkJoinTask is Serializable, but these tasks are never serialized
+	private static abstract class SizingTask extends RecursiveTask<Long> {
+		private static final long serialVersionUID = 1L;
+
+		protected final ParallelSizeof m_context;
+		protected final ObjectProfiler.Traversal m_traversal = new TaskTraversal();
+		private Object[] m_stack = new Object[32];
+		private int m_top = 0;
+		private List<SizingTask> m_forked;
+
+		SizingTask(final ParallelSizeof context) {
+			m_context = context;
+		}
+
+		/*
+		 * Schedules an object which is already marked as visited.
+		 */
+		final void pushVisited(final Object obj) {
+			if (m_top == m_stack.length) {
+				final Object[] newStack = new Object[m_top << 1];
+				System.arraycopy(m_stack, 0, newStack, 0, m_top);
+				m_stack = newStack;
+			}
+			m_stack[m_top++] = obj;
+		}
+
+		final long drain() {
+			long result = 0;
+			while (m_top > 0) {
+				final Object obj = m_stack[--m_top];
+				m_stack[m_top] = null;
+				result += ObjectProfiler.sizeofObject(obj, m_traversal);
+				if (m_top > SPLIT_THRESHOLD && getSurplusQueuedTaskCount() < 2) {
+					splitStack();
+				}
+			}
+			if (m_forked != null) {
+				for (int i = m_forked.size() - 1; i >= 0; --i) {
+					result += m_forked.get(i).join().longValue();
+				}
+			}
+			return result;
+		}
+
+		/*
+		 * Hands over the bottom (oldest, hence probably largest subgraphs)
+		 * half of the stack to a new task.
+		 */
+		private void splitStack() {
+			final int half = m_top >>> 1;
+			final Object[] seeds = new Object[half];
+			System.arraycopy(m_stack, 0, seeds, 0, half);
+			System.arraycopy(m_stack, half, m_stack, 0, m_top - half);
+			for (int i = m_top - half; i < m_top; ++i) {
+				m_stack[i] = null;
+			}
+			m_top -= half;
+			fork(new SubgraphTask(m_context, seeds));
+		}
+
+		private void fork(final SizingTask task) {
+			if (m_forked == null) {
+				m_forked = new ArrayList<SizingTask>();
+			}
+			m_forked.add(task);
+			task.fork();
+		}
+
+		/*
+		 * Traversal over the shared "visited" set and the stack of this task.
+		 */
+		private final class TaskTraversal extends ObjectProfiler.Traversal {
+			TaskTraversal() {
+				super(null, null);
+			}
+
+			/** {@inheritDoc} */
+			@Override
+			boolean markVisited(final Object obj) {
+				return m_context.m_visited.add(obj);
+			}
+
+			/** {@inheritDoc} */
+			@Override
+			void schedule(final Object obj) {
+				pushVisited(obj);
+			}
+
+			/** {@inheritDoc} */
+			@Override
+			long visitElements(final Object[] array) {
+				int from = 0;
+				while (array.length - from > ARRAY_CHUNK_SIZE) {
+					fork(new ArraySliceTask(m_context, array, from, from + ARRAY_CHUNK_SIZE));
+					from += ARRAY_CHUNK_SIZE;
+				}
+				long size = 0;
+				for (int i = from; i < array.length; ++i) {
+					size += ObjectProfiler.visit(array[i], this);
+				}
+				return size;
+			}
+		} // end of nested class
+	} // end of nested class
+
+	/*
+	 * Sizes the subgraphs rooted at already-visited objects.
+	 */
+	@SuppressWarnings("serial")
+	private static final class SubgraphTask extends SizingTask {
+		private static final long serialVersionUID = 1L;
+
+		private final Object[] m_seeds;
+
+		SubgraphTask(final ParallelSizeof context, final Object[] seeds) {
+			super(context);
+			m_seeds = seeds;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		protected Long compute() {
+			for (int i = 0; i < m_seeds.length; ++i) {
+				pushVisited(m_seeds[i]);
+			}
+			return Long.valueOf(drain());
+		}
+	} // end of nested class
+
+	/*
+	 * Sizes the elements of a slice of a (large) Object[] array.
+	 */
+	@SuppressWarnings("serial")
+	private static final class ArraySliceTask extends SizingTask {
+		private static final long serialVersionUID = 1L;
+
+		private final Object[] m_array;
+		private final int m_from, m_to;
+
+		ArraySliceTask(final ParallelSizeof context, final Object[] array, final int from, final int to) {
+			super(context);
+			m_array = array;
+			m_from = from;
+			m_to = to;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		protected Long compute() {
+			long size = 0;
+			for (int i = m_from; i < m_to; ++i) {
+				size += ObjectProfiler.visit(m_array[i], m_traversal);
+			}
+			return Long.valueOf(size + drain());
+		}
+	} // end of nested class
+
+} // end of class
@@ -0,0 +1,203 @@
+package clime.messadmin.providers.sizeof;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Implementation of {@link ObjectProfiler#retainedSizes(Object, int)}.
+ *
+ * <P>
+ * The object graph is first built as an {@link ObjectGraph}, where each
+ * reference of the root is an intermediate node: the retained size of such a
+ * node is the size freed by clearing this reference alone (0 if the referenced
+ * object is also reachable otherwise). The dominator tree is then computed
+ * with {@link Dominators}, and retained sizes are accumulated bottom-up.
+ *
+ * @author C&eacute;drik LIME
+ */
+final class RetainedSizeAnalysis {
+	// public: ................................................................
+
+	/**
+	 * @see ObjectProfiler#retainedSizes(Object, int)
+	 */
+	static RetainedSizeResult analyze(final Object root, final int topCount) {
+		// references of the root, with their names
+		final List<String> names = new ArrayList<String>();
+		final List<Object> references = new ArrayList<Object>();
+		getReferences(root, names, references);
+
+		final ObjectGraph graph = ObjectGraph.build(root, references.toArray());
+		final int nodeCount = graph.getNodeCount();
+		final Dominators dominators = new Dominators(nodeCount, graph.getEdgeStart(), graph.getEdgeTargets());
+
+		// retained sizes, bottom-up: a node is always after its dominators in depth-first order
+		final long[] retainedSizes = new long[nodeCount];
+		final int[] retainedCounts = new int[nodeCount];
+		final int referenceNodeCount = graph.getReferenceNodeCount();
+		for (int v = 0; v < nodeCount; ++v) {
+			retainedSizes[v] = graph.getSize(v);
+			retainedCounts[v] = (v == 0 || v > referenceNodeCount) ? 1 : 0;
+		}
+		for (int i = dominators.getReachableCount() - 1; i > 0; --i) {
+			final int v = dominators.getNodeInDepthFirstOrder(i);
+			final int idom = dominators.getImmediateDominator(v);
+			retainedSizes[idom] += retainedSizes[v];
+			retainedCounts[idom] += retainedCounts[v];
+		}
+
+		// root references
+		final List<RetainedSizeResult.Entry> fields = new ArrayList<RetainedSizeResult.Entry>(referenceNodeCount);
+		final int[] edgeStart = graph.getEdgeStart();
+		final int[] edgeTargets = graph.getEdgeTargets();
+		for (int r = 1; r <= referenceNodeCount; ++r) {
+			final int target = edgeTargets[edgeStart[r]];
+			fields.add(new RetainedSizeResult.Entry(names.get(r - 1), graph.getObject(target).getClass(),
+					graph.getSize(target), retainedSizes[r], retainedCounts[r]));
+		}
+		Collections.sort(fields, BY_DECREASING_RETAINED_SIZE);
+
+		// heaviest dominator subtrees
+		final int[] top = selectTop(retainedSizes, referenceNodeCount + 1, nodeCount, topCount);
+		final List<RetainedSizeResult.Entry> topDominators = new ArrayList<RetainedSizeResult.Entry>(top.length);
+		for (int i = 0; i < top.length; ++i) {
+			final int v = top[i];
+			final Class<?> type = graph.getObject(v).getClass();
+			topDominators.add(new RetainedSizeResult.Entry(type.getName(), type,
+					graph.getSize(v), retainedSizes[v], retainedCounts[v]));
+		}
+		Collections.sort(topDominators, BY_DECREASING_RETAINED_SIZE);
+
+		return new RetainedSizeResult(retainedSizes[0], retainedCounts[0],
+				Collections.unmodifiableList(fields), Collections.unmodifiableList(topDominators));
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private static final Comparator<RetainedSizeResult.Entry> BY_DECREASING_RETAINED_SIZE = new Comparator<RetainedSizeResult.Entry>() {
+		/** {@inheritDoc} */
+		public int compare(final RetainedSizeResult.Entry e1, final RetainedSizeResult.Entry e2) {
+			final long s1 = e1.getRetainedSize();
+			final long s2 = e2.getRetainedSize();
+			return (s1 < s2) ? 1 : ((s1 == s2) ? 0 : -1);
+		}
+	};
+
+	private RetainedSizeAnalysis() {
+	} // this class is not extendible
+
+	/*
+	 * Non-null references of the root (except excluded ones): array slots, or reference fields.
+	 */
+	private static void getReferences(final Object root, final List<String> names, final List<Object> references) {
+		if (root instanceof Object[]) {
+			final Object[] array = (Object[]) root;
+			for (int i = 0; i < array.length; ++i) {
+				if (!ObjectProfiler.isExcluded(array[i])) {
+					names.add("[" + i + ']');
+					references.add(array[i]);
+				}
+			}
+			return;
+		}
+		if (root.getClass().isArray()) {
+			return; // primitive array
+		}
+		try {
+			for (Class<?> cls = root.getClass(); cls != null; cls = cls.getSuperclass()) {
+				final Field[] declaredFields = cls.getDeclaredFields();
+				for (int f = 0; f < declaredFields.length; ++f) {
+					final Field field = declaredFields[f];
+					if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()
+							|| TraversalFilters.isBoundary(field)) {
+						continue;
+					}
+					final Object value = getFieldValue(field, root);
+					if (!ObjectProfiler.isExcluded(value)) {
+						names.add(field.getName());
+						references.add(value);
+					}
+				}
+			}
+		} catch (SecurityException se) {
+			// no field names: anonymous references
+			names.clear();
+			references.clear();
+			final ObjectStack stack = new ObjectStack();
+			ObjectProfiler.sizeofObject(root, new ObjectProfiler.ShallowTraversal(stack));
+			for (int i = 0, n = stack.size(); i < n; ++i) {
+				names.add("#" + i);
+				references.add(stack.get(i));
+			}
+		}
+	}
+
+	private static Object getFieldValue(final Field field, final Object obj) {
+		final long offset = UnsafeAccess.objectFieldOffset(field);
+		if (offset != UnsafeAccess.INVALID_OFFSET) {
+			return UnsafeAccess.getObject(obj, offset);
+		}
+		try {
+			field.setAccessible(true);
+			return field.get(obj);
+		} catch (IllegalAccessException iae) {
+			return null;
+		} catch (RuntimeException re) {
+			// Java 9+ InaccessibleObjectException
+			return null;
+		}
+	}
+
+	/*
+	 * @return the (at most) 'count' nodes in [from, to[ with the largest values, in no particular order
+	 */
+	static int[] selectTop(final long[] values, final int from, final int to, final int count) {
+		final int heapCapacity = Math.max(0, Math.min(count, to - from));
+		// min-heap of node ids, by value
+		final int[] heap = new int[heapCapacity];
+		int heapSize = 0;
+		for (int v = from; v < to; ++v) {
+			if (heapSize < heapCapacity) {
+				// sift up
+				int i = heapSize++;
+				while (i > 0) {
+					final int parent = (i - 1) >>> 1;
+					if (values[heap[parent]] <= values[v]) {
+						break;
+					}
+					heap[i] = heap[parent];
+					i = parent;
+				}
+				heap[i] = v;
+			} else if (heapCapacity > 0 && values[v] > values[heap[0]]) {
+				// replace the smallest, and sift down
+				int i = 0;
+				while (true) {
+					int child = 2 * i + 1;
+					if (child >= heapSize) {
+						break;
+					}
+					if (child + 1 < heapSize && values[heap[child + 1]] < values[heap[child]]) {
+						++child;
+					}
+					if (values[heap[child]] >= values[v]) {
+						break;
+					}
+					heap[i] = heap[child];
+					i = child;
+				}
+				heap[i] = v;
+			}
+		}
+		return heap;
+	}
+
+} // end of class
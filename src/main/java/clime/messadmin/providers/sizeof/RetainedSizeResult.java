@@ -0,0 +1,130 @@
+package clime.messadmin.providers.sizeof;
+
+import java.util.List;
+
+/**
+ * Result of {@link ObjectProfiler#retainedSizes(Object, int)}: how much memory
+ * would be freed by removing each reference of the root, and the heaviest
+ * dominator subtrees of the object graph.
+ *
+ * <P>
+ * Retained sizes are computed within the object graph of the root: objects
+ * also referenced from outside of this graph would not actually be freed.
+ *
+ * @author C&eacute;drik LIME
+ */
+public class RetainedSizeResult {
+
+	/**
+	 * Retained size of a field of the root, or of a dominator subtree.
+	 */
+	public static class Entry {
+		private final String m_name;
+		private final Class<?> m_type;
+		private final long m_shallowSize;
+		private final long m_retainedSize;
+		private final long m_retainedCount;
+
+		Entry(final String name, final Class<?> type, final long shallowSize,
+				final long retainedSize, final long retainedCount) {
+			m_name = name;
+			m_type = type;
+			m_shallowSize = shallowSize;
+			m_retainedSize = retainedSize;
+			m_retainedCount = retainedCount;
+		}
+
+		/**
+		 * @return field name (<code>[index]</code> for array slots) or class name
+		 */
+		public String getName() {
+			return m_name;
+		}
+
+		/**
+		 * @return class of the referenced (or dominating) object
+		 */
+		public Class<?> getType() {
+			return m_type;
+		}
+
+		/**
+		 * @return size of the referenced (or dominating) object itself
+		 */
+		public long getShallowSize() {
+			return m_shallowSize;
+		}
+
+		/**
+		 * @return size of the objects which would be freed
+		 */
+		public long getRetainedSize() {
+			return m_retainedSize;
+		}
+
+		/**
+		 * @return number of objects which would be freed
+		 */
+		public long getRetainedCount() {
+			return m_retainedCount;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public String toString() {
+			return m_name + " (" + m_type.getName() + "): retained " + m_retainedSize
+					+ " bytes in " + m_retainedCount + " object(s)";
+		}
+	} // end of nested class
+
+	RetainedSizeResult(final long totalSize, final long objectCount,
+			final List<Entry> fields, final List<Entry> topDominators) {
+		m_totalSize = totalSize;
+		m_objectCount = objectCount;
+		m_fields = fields;
+		m_topDominators = topDominators;
+	}
+
+	/**
+	 * @return reachable size of the root (same as {@link ObjectProfiler#sizeof(Object)})
+	 */
+	public long getTotalSize() {
+		return m_totalSize;
+	}
+
+	/**
+	 * @return number of objects reachable from the root
+	 */
+	public long getObjectCount() {
+		return m_objectCount;
+	}
+
+	/**
+	 * @return retained size of each (non-null) reference field or array slot of the root,
+	 *	by decreasing retained size
+	 */
+	public List<Entry> getFields() {
+		return m_fields;
+	}
+
+	/**
+	 * @return objects (other than the root) with the largest retained sizes,
+	 *	by decreasing retained size. A dominator subtree includes the smaller
+	 *	ones it dominates, which may then also be listed.
+	 */
+	public List<Entry> getTopDominators() {
+		return m_topDominators;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[size=" + m_totalSize + ", objects=" + m_objectCount
+				+ ", fields=" + m_fields + ", top=" + m_topDominators + ']';
+	}
+
+	private final long m_totalSize;
+	private final long m_objectCount;
+	private final List<Entry> m_fields;
+	private final List<Entry> m_topDominators;
+}
@@ -0,0 +1,255 @@
+package clime.messadmin.providers.sizeof;
+
+import java.util.Random;
+
+/**
+ * Implementation of {@link ObjectProfiler#sizeofSampled(Object, int, int)}:
+ * same walk as {@link ObjectProfiler#sizeof(Object)}, except that the elements
+ * of <code>Object[]</code> arrays longer than a threshold (e.g. the backing
+ * arrays of big lists and maps) are sampled. Objects are sized by the same
+ * per-object step, without the FastSizers: the backing arrays of collections
+ * are walked as any array, so that they can be sampled.
+ *
+ * <P>
+ * For such an array, only a systematic sample of slots (random start, fixed
+ * stride) is looked at: the distinct elements of those slots are marked as
+ * visited, then walked. The marginal size of each sampled element (its
+ * subgraph not already visited) is extrapolated to all the slots of the array.
+ * Duplicates are accounted for from the sample itself: an element found in
+ * several sampled slots is counted once, and is not extrapolated. When sampled
+ * elements are reached from each other (linked structure, e.g.
+ * <code>LinkedHashMap</code>), the walks have also gone through the slots
+ * which were not sampled, which are then not extrapolated either. Nested large
+ * arrays are sampled as well.
+ *
+ * <P>
+ * The error margin is the 95% confidence interval computed from the sample
+ * variance of the marginal sizes of the sampled slots (with finite population
+ * correction), plus the variance of the nested estimates. When elements share
+ * big subgraphs between them, the first sampled element accounts for the
+ * shared subgraph, which is then over-extrapolated; an element found in only one
+ * sampled slot is extrapolated as if it was not found in other slots.
+ *
+ * <P>
+ * The {@link clime.messadmin.providers.spi.SizeOfProvider}s use sampling if the
+ * system property <code>{@value #THRESHOLD_PROPERTY}</code> is set (sample size:
+ * <code>{@value #SAMPLE_SIZE_PROPERTY}</code>, default {@value #DEFAULT_SAMPLE_SIZE}).
+ *
+ * @author C&eacute;drik LIME
+ */
+final class SamplingSizeof {
+	// public: ................................................................
+
+	static final String THRESHOLD_PROPERTY = "clime.messadmin.providers.sizeof.sampling.threshold";
+	static final String SAMPLE_SIZE_PROPERTY = "clime.messadmin.providers.sizeof.sampling.size";
+	static final int DEFAULT_SAMPLE_SIZE = 1000;
+
+	/**
+	 * @see ObjectProfiler#sizeofSampled(Object, int, int)
+	 */
+	static SizeOfResult sizeof(final Object root, final IdentitySet visited,
+			final ObjectProfiler.ShallowSizer sizer, final int threshold, final int sampleSize) {
+		final SamplingSizeof sampling = new SamplingSizeof(visited, sizer, threshold, sampleSize);
+		visited.add(root);
+		final double estimatedSize = sampling.walk(root);
+		final long errorMargin = (long) Math.ceil(Z_95 * Math.sqrt(sampling.m_variance));
+		return new SizeOfResult(sampling.m_size, Math.round(estimatedSize), sampling.m_traversal.m_objectCount,
+				sampling.m_pendingCount, sampling.m_pendingCount > 0, errorMargin, sampling.m_offHeap.getSize());
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private static final double Z_95 = 1.96;
+
+	private final IdentitySet m_visited;
+	private final int m_threshold;
+	private final int m_sampleSize;
+	private final Random m_random = new Random();
+	private final ObjectStack m_stack = new ObjectStack();
+	private final SamplingTraversal m_traversal;
+	private final OffHeapMemory m_offHeap = new OffHeapMemory(); // visited buffers only: not extrapolated
+	private long m_size = 0; // exact size of the visited objects
+	private double m_estimatedSize = 0; // m_size, plus the extrapolations of the sampled arrays
+	private long m_pendingCount = 0; // not sampled array elements
+	private double m_variance = 0;
+	private IdentityIntMap m_sampleIndexes; // elements of the array being sampled -> sample index [null if none]
+	private boolean[] m_linked; // sampled elements reaching, or reached from, another sampled element
+	private int m_currentSample;
+
+	/*
+	 * @return the sampling threshold of the SizeOfProviders [0: no sampling]
+	 */
+	static int getDefaultThreshold() {
+		return getIntProperty(THRESHOLD_PROPERTY, 0);
+	}
+
+	static int getDefaultSampleSize() {
+		return getIntProperty(SAMPLE_SIZE_PROPERTY, DEFAULT_SAMPLE_SIZE);
+	}
+
+	private static int getIntProperty(final String name, final int defaultValue) {
+		try {
+			final String value = System.getProperty(name);
+			if (value != null) {
+				return Math.max(0, Integer.parseInt(value.trim()));
+			}
+		} catch (SecurityException ignore) {
+		} catch (NumberFormatException ignore) {
+		}
+		return defaultValue;
+	}
+
+	private SamplingSizeof(final IdentitySet visited, final ObjectProfiler.ShallowSizer sizer,
+			final int threshold, final int sampleSize) {
+		m_visited = visited;
+		m_threshold = Math.max(threshold, 1);
+		m_sampleSize = Math.max(sampleSize, 2);
+		m_traversal = new SamplingTraversal(visited, m_stack, sizer);
+		m_traversal.m_offHeap = m_offHeap;
+	}
+
+	/*
+	 * Sequential traversal which samples large arrays, and tells which
+	 * sampled elements are linked.
+	 */
+	private final class SamplingTraversal extends ObjectProfiler.SequentialTraversal {
+		SamplingTraversal(final IdentitySet visited, final ObjectStack stack, final ObjectProfiler.ShallowSizer sizer) {
+			super(visited, stack, sizer, null, false, false);
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		boolean markVisited(final Object obj) {
+			if (m_visited.add(obj)) {
+				return true;
+			}
+			if (m_sampleIndexes != null) {
+				final int index = m_sampleIndexes.get(obj);
+				if (index != IdentityIntMap.NO_VALUE && index != m_currentSample) {
+					m_linked[index] = true;
+					m_linked[m_currentSample] = true;
+				}
+			}
+			return false;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		long visitElements(final Object[] array) {
+			if (array.length <= m_threshold) {
+				return super.visitElements(array);
+			}
+			sampleArray(array);
+			return 0; // the sampled elements are accounted for by their own walks
+		}
+	} // end of nested class
+
+	/*
+	 * @return estimated size of the subgraph of 'root' (already marked as visited)
+	 * which was not visited yet. Uses the top of the stack, leaving it as it was.
+	 */
+	private double walk(final Object root) {
+		final ObjectStack stack = m_stack;
+		final int mark = stack.size();
+		final double estimatedSizeBefore = m_estimatedSize;
+		Object obj = root;
+		while (true) {
+			// large arrays are sampled by visitElements(), nested walks included
+			final long size = ObjectProfiler.sizeofObject(obj, m_traversal);
+			m_size += size;
+			m_estimatedSize += size;
+			if (stack.size() == mark) {
+				return m_estimatedSize - estimatedSizeBefore;
+			}
+			obj = stack.pop();
+		}
+	}
+
+	/*
+	 * Samples the elements of 'array', whose shell is already sized.
+	 */
+	private void sampleArray(final Object[] array) {
+		final int length = array.length;
+
+		// select the sample slots, and mark their distinct new elements as visited
+		final int stride = Math.max(1, length / m_sampleSize);
+		final IdentityIntMap sampleIndexes = new IdentityIntMap(0);
+		final Object[] samples = new Object[length / stride + 1];
+		final int[] occurrences = new int[samples.length];
+		int slotCount = 0;
+		int sampleCount = 0;
+		for (int i = m_random.nextInt(stride); i < length; i += stride) {
+			++slotCount;
+			final Object element = array[i];
+			if (element == null || ObjectProfiler.isExcluded(element)) {
+				continue;
+			}
+			final int index = sampleIndexes.get(element);
+			if (index != IdentityIntMap.NO_VALUE) {
+				++occurrences[index];
+			} else if (m_visited.add(element)) {
+				sampleIndexes.put(element, sampleCount);
+				occurrences[sampleCount] = 1;
+				samples[sampleCount++] = element;
+			} // else: already visited
+		}
+		if (sampleCount == 0) {
+			return;
+		}
+
+		// walk the sample
+		final double outerVariance = m_variance;
+		final IdentityIntMap outerSampleIndexes = m_sampleIndexes;
+		final boolean[] outerLinked = m_linked;
+		final int outerCurrentSample = m_currentSample;
+		m_variance = 0;
+		m_sampleIndexes = sampleIndexes;
+		m_linked = new boolean[sampleCount];
+		final double[] marginalSizes = new double[sampleCount];
+		for (int s = 0; s < sampleCount; ++s) {
+			m_currentSample = s;
+			marginalSizes[s] = walk(samples[s]);
+			samples[s] = null;
+		}
+		final double nestedVariance = m_variance;
+		final boolean[] linked = m_linked;
+		m_sampleIndexes = outerSampleIndexes;
+		m_linked = outerLinked;
+		m_currentSample = outerCurrentSample;
+
+		// elements found in one sampled slot are extrapolated; those found in several
+		// are counted once, and linked ones have been walked along with the slots which were not sampled
+		double extrapolatedSum = 0;
+		double extrapolatedSumOfSquares = 0;
+		double countedSum = 0;
+		int extrapolatedCount = 0;
+		for (int s = 0; s < sampleCount; ++s) {
+			if (occurrences[s] == 1 && !linked[s]) {
+				extrapolatedSum += marginalSizes[s];
+				extrapolatedSumOfSquares += marginalSizes[s] * marginalSizes[s];
+				++extrapolatedCount;
+			} else {
+				countedSum += marginalSizes[s];
+			}
+		}
+		final double scale = (double) length / slotCount;
+		m_pendingCount += Math.round((scale - 1) * extrapolatedCount); // estimated elements not sampled
+
+		double variance = nestedVariance * scale * scale;
+		if (slotCount > 1 && length > slotCount) {
+			// per-slot marginal sizes: 0 for null, excluded, already visited, repeated or linked elements
+			final double mean = extrapolatedSum / slotCount;
+			final double slotVariance = Math.max(0, (extrapolatedSumOfSquares - slotCount * mean * mean) / (slotCount - 1));
+			final double populationCorrection = 1 - (double) slotCount / length;
+			variance += (double) length * length * slotVariance / slotCount * populationCorrection;
+		}
+		m_variance = outerVariance + variance;
+		// the walks of the sample have accounted for extrapolatedSum + countedSum
+		m_estimatedSize += (scale - 1) * extrapolatedSum;
+	}
+
+} // end of class
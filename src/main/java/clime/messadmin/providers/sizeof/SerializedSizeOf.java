@@ -0,0 +1,196 @@
+package clime.messadmin.providers.sizeof;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpSession;
+
+/**
+ * Serialized size of objects: number of bytes written by an
+ * <code>ObjectOutputStream</code>, which is what session replication
+ * or persistence costs, as opposed to the heap size given by {@link ObjectProfiler}.
+ *
+ * <P>
+ * The serialized bytes are counted and dropped as they are written: no
+ * buffer is kept besides the internal ones of <code>ObjectOutputStream</code>
+ * (1 KB block buffer, and its table of the objects already written).
+ * Each attribute is written with its own stream, as most replication
+ * implementations do.
+ *
+ * <P>
+ * A {@link SizeOfBudget} bounds the number of bytes
+ * ({@link SizeOfBudget#getMaxBytes()}) and the duration
+ * ({@link SizeOfBudget#getMaxMillis()}) of the computation, which can also be
+ * {@link SizeOfBudget#cancel() cancelled}; its maximum number of objects is
+ * not used (the serialization does not expose it).
+ *
+ * @author C&eacute;drik LIME
+ */
+public final class SerializedSizeOf {
+	// public: ................................................................
+
+	/**
+	 * @param obj
+	 *			input object instance to be measured
+	 * @param budget
+	 *			limits of the computation [null: unlimited]
+	 * @return serialized size of 'obj' [empty if 'obj' is null']
+	 */
+	public static SerializedSizeResult sizeof(final Object obj, final SizeOfBudget budget) {
+		if (obj == null) {
+			return new SerializedSizeResult(0, false, Collections.<SerializedSizeResult.Entry>emptyList());
+		}
+		return sizeofAttributes(Collections.singletonMap((String) null, obj), budget);
+	}
+
+	/**
+	 * Measures the serialized size of each attribute. Attributes which can not be
+	 * serialized are reported, and do not prevent the others to be measured.
+	 *
+	 * @param attributes
+	 *			attributes to be measured, by name
+	 * @param budget
+	 *			limits of the computation, shared by all the attributes [null: unlimited]
+	 * @return serialized size per attribute
+	 */
+	public static SerializedSizeResult sizeofAttributes(final Map<String, ?> attributes, final SizeOfBudget budget) {
+		if (null == attributes) {
+			throw new IllegalArgumentException("null input: attributes");
+		}
+		final CountingOutputStream out = new CountingOutputStream(budget);
+		final List<SerializedSizeResult.Entry> entries = new ArrayList<SerializedSizeResult.Entry>(attributes.size());
+		long size = 0;
+		boolean partial = false;
+		for (Map.Entry<String, ?> attribute : attributes.entrySet()) {
+			final String name = attribute.getKey();
+			if (partial) {
+				entries.add(new SerializedSizeResult.Entry(name, 0, false, null));
+				continue;
+			}
+			final long start = out.getCount();
+			String error = null;
+			try {
+				final ObjectOutputStream oos = new ObjectOutputStream(out);
+				oos.writeObject(attribute.getValue());
+				oos.flush();
+			} catch (BudgetExhaustedException bee) {
+				partial = true;
+			} catch (IOException ioe) {
+				// NotSerializableException, InvalidClassException...
+				error = ioe.toString();
+			} catch (RuntimeException re) {
+				// from a writeObject() / writeReplace() method
+				error = re.toString();
+			} catch (StackOverflowError soe) {
+				// very deep object graph, e.g. long linked list without custom serialization
+				error = soe.toString();
+			}
+			final long attributeSize = out.getCount() - start;
+			entries.add(new SerializedSizeResult.Entry(name, attributeSize, !partial && error == null, error));
+			if (error == null) {
+				size += attributeSize;
+			}
+		}
+		return new SerializedSizeResult(size, partial, Collections.unmodifiableList(entries));
+	}
+
+	/**
+	 * @param session
+	 *			session whose attributes are to be measured
+	 * @param budget
+	 *			limits of the computation, shared by all the attributes [null: unlimited]
+	 * @return serialized size per session attribute
+	 * @see #sizeofAttributes(Map, SizeOfBudget)
+	 */
+	public static SerializedSizeResult sizeofAttributes(final HttpSession session, final SizeOfBudget budget) {
+		if (null == session) {
+			throw new IllegalArgumentException("null input: session");
+		}
+		final Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+		final Enumeration<?> names = session.getAttributeNames();
+		while (names != null && names.hasMoreElements()) {
+			final String name = (String) names.nextElement();
+			attributes.put(name, session.getAttribute(name));
+		}
+		return sizeofAttributes(attributes, budget);
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private SerializedSizeOf() {
+	} // this class is not instantiable
+
+	/*
+	 * Thrown by CountingOutputStream when its budget is exhausted.
+	 */
+	private static final class BudgetExhaustedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		BudgetExhaustedException() {
+			super("budget exhausted");
+		}
+	} // end of nested class
+
+	/*
+	 * Counts the bytes written, and drops them.
+	 */
+	private static final class CountingOutputStream extends OutputStream {
+		// check the clock (and cancellation) every CHECK_INTERVAL bytes
+		private static final int CHECK_INTERVAL = 8 * 1024;
+
+		private final SizeOfBudget m_budget; // null if unlimited
+		private final long m_maxBytes;
+		private final long m_deadline; // System.nanoTime(); only if m_budget has a maximum duration
+		private long m_count = 0;
+		private long m_nextCheck = CHECK_INTERVAL;
+
+		CountingOutputStream(final SizeOfBudget budget) {
+			m_budget = budget;
+			m_maxBytes = (budget == null || budget.getMaxBytes() <= 0) ? Long.MAX_VALUE : budget.getMaxBytes();
+			m_deadline = (budget == null || budget.getMaxMillis() <= 0) ? 0
+					: System.nanoTime() + budget.getMaxMillis() * 1000000;
+		}
+
+		long getCount() {
+			return m_count;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public void write(final int b) throws IOException {
+			m_count += 1;
+			check();
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			m_count += len;
+			check();
+		}
+
+		private void check() throws BudgetExhaustedException {
+			if (m_count > m_maxBytes) {
+				throw new BudgetExhaustedException();
+			}
+			if (m_budget != null && m_count >= m_nextCheck) {
+				m_nextCheck = m_count + CHECK_INTERVAL;
+				if (m_budget.isCancelled() || (m_deadline != 0 && System.nanoTime() - m_deadline > 0)) {
+					throw new BudgetExhaustedException();
+				}
+			}
+		}
+	} // end of nested class
+
+} // end of class
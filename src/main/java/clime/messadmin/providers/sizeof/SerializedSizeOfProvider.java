@@ -0,0 +1,72 @@
+/**
+ *
+ */
+package clime.messadmin.providers.sizeof;
+
+import clime.messadmin.providers.spi.SizeOfProvider;
+
+/**
+ * {@link SizeOfProvider} giving the serialized size of objects (see
+ * {@link SerializedSizeOf}) instead of their heap size: the cost of session
+ * replication or persistence in clustered deployments.
+ * Computed sizes are cached (see {@link SizeCache}), and the computation is
+ * bounded by the default budget (see {@link SizeOfBudget#MAX_MILLIS_PROPERTY}),
+ * in which case the size is a lower bound.
+ * Objects which can not be serialized have no size (-1); use
+ * {@link SerializedSizeOf#sizeofAttributes(javax.servlet.http.HttpSession, SizeOfBudget)}
+ * to find out which attributes are concerned.
+ *
+ * <P>
+ * This provider has a lower priority than the heap size providers by default:
+ * set the <code>{@value #PRIORITY_PROPERTY}</code> system property (e.g. to 20)
+ * to use it.
+ *
+ * @author C&eacute;drik LIME
+ */
+public class SerializedSizeOfProvider implements SizeOfProvider {
+	public static final String PRIORITY_PROPERTY = "clime.messadmin.providers.sizeof.serialized.priority";
+
+	private final SizeCache m_cache = new SizeCache();
+	private final SizeOfBudget m_budget = SizeOfBudget.getDefault(); // null if unlimited
+	private final int m_priority = getDefaultPriority();
+
+	/**
+	 *
+	 */
+	public SerializedSizeOfProvider() {
+		super();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public int getPriority() {
+		return m_priority;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public long sizeof(Object objectToSize) {
+		long result = m_cache.get(objectToSize);
+		if (result < 0) {
+			final SizeCache.Sizing sizing = m_cache.begin(objectToSize);
+			final SerializedSizeResult size = SerializedSizeOf.sizeof(objectToSize, m_budget);
+			result = size.getErrors().isEmpty() ? size.getSize() : -1;
+			m_cache.put(sizing, result);
+		}
+		return result;
+	}
+
+	private static int getDefaultPriority() {
+		try {
+			final String value = System.getProperty(PRIORITY_PROPERTY);
+			if (value != null) {
+				return Integer.parseInt(value.trim());
+			}
+		} catch (SecurityException ignore) {
+		} catch (NumberFormatException ignore) {
+		}
+		return -10;
+	}
+}
@@ -0,0 +1,124 @@
+package clime.messadmin.providers.sizeof;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result of {@link SerializedSizeOf}: number of bytes written by an
+ * <code>ObjectOutputStream</code>, per attribute.
+ *
+ * <P>
+ * An attribute which could not be serialized (not <code>Serializable</code>,
+ * exception while writing it...) is reported with its {@link Entry#getError() error};
+ * the other attributes are still measured. When the budget is exhausted,
+ * the remaining attributes are not measured: the result is then
+ * {@link #isPartial() partial}, and its size a lower bound.
+ *
+ * @author C&eacute;drik LIME
+ */
+public class SerializedSizeResult {
+
+	/**
+	 * Serialized size of one attribute.
+	 */
+	public static class Entry {
+		private final String m_name;
+		private final long m_size;
+		private final boolean m_complete;
+		private final String m_error;
+
+		Entry(final String name, final long size, final boolean complete, final String error) {
+			m_name = name;
+			m_size = size;
+			m_complete = complete;
+			m_error = error;
+		}
+
+		/**
+		 * @return attribute name [null for a single object]
+		 */
+		public String getName() {
+			return m_name;
+		}
+
+		/**
+		 * @return number of bytes written: the serialized size if complete, a lower bound otherwise
+		 */
+		public long getSize() {
+			return m_size;
+		}
+
+		/**
+		 * @return <code>true</code> if the attribute was fully serialized
+		 */
+		public boolean isComplete() {
+			return m_complete;
+		}
+
+		/**
+		 * @return why the attribute could not be serialized, e.g.
+		 * 	"java.io.NotSerializableException: com.example.Foo" [null if it could]
+		 */
+		public String getError() {
+			return m_error;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public String toString() {
+			return m_name + ": " + m_size + " bytes" + (m_complete ? "" : " (incomplete)")
+					+ (m_error == null ? "" : " - " + m_error);
+		}
+	} // end of nested class
+
+	SerializedSizeResult(final long size, final boolean partial, final List<Entry> entries) {
+		m_size = size;
+		m_partial = partial;
+		m_entries = entries;
+	}
+
+	/**
+	 * @return total number of bytes written for the serializable attributes
+	 */
+	public long getSize() {
+		return m_size;
+	}
+
+	/**
+	 * @return <code>true</code> if the budget was exhausted before all attributes were serialized
+	 */
+	public boolean isPartial() {
+		return m_partial;
+	}
+
+	/**
+	 * @return serialized size of each attribute, in iteration order
+	 */
+	public List<Entry> getEntries() {
+		return m_entries;
+	}
+
+	/**
+	 * @return attributes which could not be serialized
+	 */
+	public List<Entry> getErrors() {
+		final List<Entry> result = new ArrayList<Entry>();
+		for (Entry entry : m_entries) {
+			if (entry.getError() != null) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[size=" + m_size + (m_partial ? ", partial" : "")
+				+ ", entries=" + m_entries + ']';
+	}
+
+	private final long m_size;
+	private final boolean m_partial;
+	private final List<Entry> m_entries;
+}
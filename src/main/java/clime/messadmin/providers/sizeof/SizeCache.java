@@ -0,0 +1,372 @@
+package clime.messadmin.providers.sizeof;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of computed sizes, keyed by root identity. Keys are weakly
+ * referenced: caching the size of a session attribute does not prevent it
+ * from being garbage collected.
+ *
+ * <P>
+ * Entries are invalidated:
+ * <ul>
+ * <li>explicitly, through {@link #invalidateAll(Object)} (see {@link SizeCacheListener});</li>
+ * <li>when older than the maximum staleness (system property
+ * <code>{@value #MAX_STALENESS_PROPERTY}</code>, in milliseconds; default
+ * {@value #DEFAULT_MAX_STALENESS}), which covers in-place mutations;</li>
+ * <li>when the number of elements of a root <code>Collection</code> or
+ * <code>Map</code> has changed, which catches the most common in-place
+ * mutations before the staleness limit.</li>
+ * </ul>
+ * A maximum staleness of <code>0</code> disables caching.
+ *
+ * <P>
+ * A size is computed between {@link #begin(Object)}, which takes the state
+ * (fingerprint) of the root and the time before the object graph is walked,
+ * and {@link #put(Sizing, long)}: a change which happens while sizing
+ * outdates the result, and a result whose entry was invalidated in the
+ * meantime is not stored.
+ *
+ * <P>
+ * This class is thread-safe; the lock is not held while sizing.
+ *
+ * @author C&eacute;drik LIME
+ */
+final class SizeCache {
+	// public: ................................................................
+
+	static final String MAX_STALENESS_PROPERTY = "clime.messadmin.providers.sizeof.cache.maxStaleness";
+	static final long DEFAULT_MAX_STALENESS = 30000;
+
+	/**
+	 * Returned by {@link #get(Object)} when there is no valid entry.
+	 */
+	static final long NO_SIZE = -1;
+
+	SizeCache() {
+		this(getDefaultMaxStaleness());
+	}
+
+	SizeCache(final long maxStalenessMillis) {
+		setMaxStaleness(maxStalenessMillis);
+		register(this);
+	}
+
+	/**
+	 * @return the cached size of <code>key</code>, or {@link #NO_SIZE}
+	 */
+	synchronized long get(final Object key) {
+		expungeStaleEntries();
+		if (key == null || m_maxStalenessNanos <= 0) {
+			return NO_SIZE;
+		}
+		final int hash = System.identityHashCode(key);
+		final int index = hash & (m_table.length - 1);
+		Entry previous = null;
+		for (Entry e = m_table[index]; e != null; previous = e, e = e.m_next) {
+			if (e.get() == key) {
+				if (!isFresh(key, e)) {
+					unlink(index, previous, e);
+					return NO_SIZE;
+				}
+				return e.m_size;
+			}
+		}
+		return NO_SIZE;
+	}
+
+	/**
+	 * Unlike {@link #get(Object)}, this does not drop an outdated entry.
+	 *
+	 * @return <code>true</code> if <code>key</code> has a valid entry
+	 */
+	synchronized boolean isFresh(final Object key) {
+		final Entry e = getEntry(key);
+		return e != null && isFresh(key, e);
+	}
+
+	/**
+	 * @return the last size of <code>key</code> which was put in this cache,
+	 * 	even if outdated (see {@link #isFresh(Object)}), or {@link #NO_SIZE}
+	 */
+	synchronized long getLastKnown(final Object key) {
+		final Entry e = getEntry(key);
+		return (e != null) ? e.m_size : NO_SIZE;
+	}
+
+	/**
+	 * Starts the computation of the size of <code>key</code>, which is to be
+	 * given to {@link #put(Sizing, long)}.
+	 */
+	Sizing begin(final Object key) {
+		return new Sizing(key, fingerprint(key), System.nanoTime());
+	}
+
+	/**
+	 * Stores the size computed since <code>sizing</code> began, unless its
+	 * entry was invalidated since then (the size may be outdated already).
+	 */
+	synchronized void put(final Sizing sizing, final long size) {
+		expungeStaleEntries();
+		final Object key = sizing.m_key;
+		if (key == null || size < 0 || m_maxStalenessNanos <= 0) {
+			return;
+		}
+		final int hash = System.identityHashCode(key);
+		int index = hash & (m_table.length - 1);
+		for (Entry e = m_table[index]; e != null; e = e.m_next) {
+			if (e.get() == key) {
+				if (e.m_invalidated && e.m_invalidatedAt - sizing.m_start >= 0) {
+					return;
+				}
+				e.m_size = size;
+				e.m_timestamp = sizing.m_start;
+				e.m_fingerprint = sizing.m_fingerprint;
+				e.m_invalidated = false;
+				return;
+			}
+		}
+		if (m_size >= (m_table.length >>> 2) * 3) { // load factor is 0.75
+			resize(m_table.length << 1);
+			index = hash & (m_table.length - 1);
+		}
+		m_table[index] = new Entry(key, hash, size, sizing.m_start, sizing.m_fingerprint, m_queue, m_table[index]);
+		++m_size;
+	}
+
+	/**
+	 * Marks the entry of <code>key</code> as outdated; its size is still
+	 * available through {@link #getLastKnown(Object)}.
+	 *
+	 * @return <code>true</code> if a valid entry was invalidated
+	 */
+	synchronized boolean invalidate(final Object key) {
+		final Entry e = getEntry(key);
+		if (e == null) {
+			return false;
+		}
+		e.m_invalidatedAt = System.nanoTime(); // even if already invalidated: see put()
+		if (e.m_invalidated) {
+			return false;
+		}
+		e.m_invalidated = true;
+		return true;
+	}
+
+	synchronized void clear() {
+		// references are not enqueued by clear()
+		for (int i = 0; i < m_table.length; ++i) {
+			for (Entry e = m_table[i]; e != null; e = e.m_next) {
+				e.clear();
+			}
+			m_table[i] = null;
+		}
+		m_size = 0;
+		while (m_queue.poll() != null) {
+			// drain
+		}
+	}
+
+	/**
+	 * @return number of entries, including entries not yet known to be stale
+	 */
+	synchronized int size() {
+		expungeStaleEntries();
+		return m_size;
+	}
+
+	synchronized long getMaxStaleness() {
+		return m_maxStalenessNanos / 1000000;
+	}
+
+	synchronized void setMaxStaleness(final long maxStalenessMillis) {
+		m_maxStalenessNanos = Math.max(0, maxStalenessMillis) * 1000000;
+		if (m_maxStalenessNanos == 0 && m_table != null) {
+			clear();
+		}
+	}
+
+	/**
+	 * Invalidates the cached size of <code>key</code> in all caches.
+	 */
+	static void invalidateAll(final Object key) {
+		if (key == null) {
+			return;
+		}
+		final SizeCache[] caches;
+		synchronized (s_caches) {
+			caches = new SizeCache[s_caches.size()];
+			int n = 0;
+			for (Iterator<WeakReference<SizeCache>> iter = s_caches.iterator(); iter.hasNext();) {
+				final SizeCache cache = iter.next().get();
+				if (cache == null) {
+					iter.remove();
+				} else {
+					caches[n++] = cache;
+				}
+			}
+		}
+		for (int i = 0; i < caches.length && caches[i] != null; ++i) {
+			caches[i].invalidate(key);
+		}
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private static final List<WeakReference<SizeCache>> s_caches = new ArrayList<WeakReference<SizeCache>>();
+
+	private final ReferenceQueue<Object> m_queue = new ReferenceQueue<Object>();
+	private Entry[] m_table = new Entry[64]; // size must be a power of 2
+	private int m_size = 0;
+	private long m_maxStalenessNanos;
+
+	private static void register(final SizeCache cache) {
+		synchronized (s_caches) {
+			for (Iterator<WeakReference<SizeCache>> iter = s_caches.iterator(); iter.hasNext();) {
+				if (iter.next().get() == null) {
+					iter.remove();
+				}
+			}
+			s_caches.add(new WeakReference<SizeCache>(cache));
+		}
+	}
+
+	private static long getDefaultMaxStaleness() {
+		long maxStaleness = DEFAULT_MAX_STALENESS;
+		try {
+			final String value = System.getProperty(MAX_STALENESS_PROPERTY);
+			if (value != null) {
+				maxStaleness = Math.max(0, Long.parseLong(value.trim()));
+			}
+		} catch (SecurityException ignore) {
+		} catch (NumberFormatException ignore) {
+		}
+		return maxStaleness;
+	}
+
+	/*
+	 * Cheap summary of the (mutable) state of a root: number of elements of
+	 * collections and maps. Arrays and other objects can not be checked cheaply.
+	 */
+	private static int fingerprint(final Object obj) {
+		try {
+			if (obj instanceof Collection) {
+				return ((Collection) obj).size();
+			} else if (obj instanceof Map) {
+				return ((Map) obj).size();
+			}
+		} catch (RuntimeException e) {
+			// ConcurrentModificationException...
+			return -1;
+		}
+		return 0;
+	}
+
+	private Entry getEntry(final Object key) {
+		expungeStaleEntries();
+		if (key == null) {
+			return null;
+		}
+		final int index = System.identityHashCode(key) & (m_table.length - 1);
+		for (Entry e = m_table[index]; e != null; e = e.m_next) {
+			if (e.get() == key) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	private boolean isFresh(final Object key, final Entry e) {
+		return !e.m_invalidated && System.nanoTime() - e.m_timestamp <= m_maxStalenessNanos
+				&& fingerprint(key) == e.m_fingerprint;
+	}
+
+	private void unlink(final int index, final Entry previous, final Entry e) {
+		if (previous == null) {
+			m_table[index] = e.m_next;
+		} else {
+			previous.m_next = e.m_next;
+		}
+		e.m_next = null;
+		e.clear();
+		--m_size;
+	}
+
+	private void expungeStaleEntries() {
+		Reference<?> ref;
+		while ((ref = m_queue.poll()) != null) {
+			final Entry stale = (Entry) ref;
+			final int index = stale.m_hash & (m_table.length - 1);
+			Entry previous = null;
+			for (Entry e = m_table[index]; e != null; previous = e, e = e.m_next) {
+				if (e == stale) {
+					unlink(index, previous, e);
+					break;
+				}
+			}
+		}
+	}
+
+	private void resize(final int newCapacity) {
+		final Entry[] oldTable = m_table;
+		final Entry[] newTable = new Entry[newCapacity];
+		for (int i = 0; i < oldTable.length; ++i) {
+			Entry e = oldTable[i];
+			while (e != null) {
+				final Entry next = e.m_next;
+				final int index = e.m_hash & (newCapacity - 1);
+				e.m_next = newTable[index];
+				newTable[index] = e;
+				e = next;
+			}
+		}
+		m_table = newTable;
+	}
+
+	/*
+	 * Computation of a size: state of the root, and time, before sizing.
+	 */
+	static final class Sizing {
+		final Object m_key;
+		final int m_fingerprint;
+		final long m_start;
+
+		Sizing(final Object key, final int fingerprint, final long start) {
+			m_key = key;
+			m_fingerprint = fingerprint;
+			m_start = start;
+		}
+	} // end of nested class
+
+	private static final class Entry extends WeakReference<Object> {
+		final int m_hash;
+		long m_size;
+		long m_timestamp; // when the computation of m_size began
+		int m_fingerprint;
+		boolean m_invalidated;
+		long m_invalidatedAt; // last invalidation [if m_invalidated]
+		Entry m_next;
+
+		Entry(final Object key, final int hash, final long size, final long timestamp,
+				final int fingerprint, final ReferenceQueue<Object> queue, final Entry next) {
+			super(key, queue);
+			m_hash = hash;
+			m_size = size;
+			m_timestamp = timestamp;
+			m_fingerprint = fingerprint;
+			m_next = next;
+		}
+	} // end of nested class
+
+} // end of class
@@ -0,0 +1,93 @@
+/**
+ *
+ */
+package clime.messadmin.providers.sizeof;
+
+import javax.servlet.ServletContextAttributeEvent;
+import javax.servlet.ServletContextAttributeListener;
+import javax.servlet.http.HttpSessionAttributeListener;
+import javax.servlet.http.HttpSessionBindingEvent;
+
+/**
+ * Invalidates the cached sizes of session and application attributes when
+ * they are set, replaced or removed.
+ * The session (resp. application) size is invalidated as well.
+ *
+ * <P>
+ * To be declared in <code>web.xml</code>:
+ * <pre>
+ * &lt;listener&gt;
+ *   &lt;listener-class&gt;clime.messadmin.providers.sizeof.SizeCacheListener&lt;/listener-class&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ * Without this listener, cached sizes are only refreshed after their maximum staleness.
+ *
+ * @author C&eacute;drik LIME
+ * @see SizeCache
+ */
+public class SizeCacheListener implements HttpSessionAttributeListener, ServletContextAttributeListener {
+
+	/**
+	 *
+	 */
+	public SizeCacheListener() {
+		super();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void attributeAdded(HttpSessionBindingEvent event) {
+		SizeCache.invalidateAll(event.getValue());
+		SizeCache.invalidateAll(event.getSession());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void attributeRemoved(HttpSessionBindingEvent event) {
+		SizeCache.invalidateAll(event.getValue());
+		SizeCache.invalidateAll(event.getSession());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void attributeReplaced(HttpSessionBindingEvent event) {
+		// event value is the old value
+		SizeCache.invalidateAll(event.getValue());
+		try {
+			SizeCache.invalidateAll(event.getSession().getAttribute(event.getName()));
+		} catch (IllegalStateException ise) {
+			// session invalidated in the meantime
+		}
+		SizeCache.invalidateAll(event.getSession());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void attributeAdded(ServletContextAttributeEvent event) {
+		SizeCache.invalidateAll(event.getValue());
+		SizeCache.invalidateAll(event.getServletContext());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void attributeRemoved(ServletContextAttributeEvent event) {
+		SizeCache.invalidateAll(event.getValue());
+		SizeCache.invalidateAll(event.getServletContext());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void attributeReplaced(ServletContextAttributeEvent event) {
+		// event value is the old value
+		SizeCache.invalidateAll(event.getValue());
+		SizeCache.invalidateAll(event.getServletContext().getAttribute(event.getName()));
+		SizeCache.invalidateAll(event.getServletContext());
+	}
+
+}
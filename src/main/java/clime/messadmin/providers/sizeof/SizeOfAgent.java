@@ -0,0 +1,186 @@
+package clime.messadmin.providers.sizeof;
+
+import java.io.File;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSource;
+
+/**
+ * <code>java.lang.instrument</code> agent, giving access to
+ * {@link Instrumentation#getObjectSize(Object)}.
+ *
+ * <P>
+ * This jar can be used as an agent:
+ * <ul>
+ * <li>at startup: <code>-javaagent:MessAdmin-SizeOf.jar</code>;</li>
+ * <li>by self-attaching to the running JVM (see {@link #attach()}), if the
+ * system property <code>{@value #SELF_ATTACH_PROPERTY}</code> is <code>true</code>.
+ * Java 9+ additionally requires <code>-Djdk.attach.allowAttachSelf=true</code>.</li>
+ * </ul>
+ *
+ * <P>
+ * Agents are loaded by the system class loader, whereas this class may also
+ * be loaded by a web application class loader: {@link #getInstrumentation()}
+ * looks up both.
+ *
+ * @author C&eacute;drik LIME
+ */
+public final class SizeOfAgent {
+	// public: ................................................................
+
+	public static final String SELF_ATTACH_PROPERTY = "clime.messadmin.providers.sizeof.agent.attach";
+
+	/**
+	 * Entry point when started with <code>-javaagent</code>.
+	 */
+	public static void premain(final String agentArgs, final Instrumentation inst) {
+		s_instrumentation = inst;
+	}
+
+	/**
+	 * Entry point when dynamically attached.
+	 */
+	public static void agentmain(final String agentArgs, final Instrumentation inst) {
+		s_instrumentation = inst;
+	}
+
+	/**
+	 * @return the agent Instrumentation, or <code>null</code> if this jar was
+	 *	not loaded as an agent
+	 */
+	public static Instrumentation getInstrumentation() {
+		Instrumentation result = s_instrumentation;
+		if (result == null) {
+			result = getSystemInstrumentation();
+		}
+		return result;
+	}
+
+	/**
+	 * Loads this jar as an agent into the running JVM, if not already done.
+	 * Requires the <code>com.sun.tools.attach</code> API (<code>tools.jar</code>
+	 * or <code>jdk.attach</code> module).
+	 * This is only attempted once.
+	 *
+	 * @return <code>true</code> if the Instrumentation is available
+	 */
+	public static synchronized boolean attach() {
+		if (getInstrumentation() != null) {
+			return true;
+		}
+		if (s_attachAttempted) {
+			return false;
+		}
+		s_attachAttempted = true;
+		try {
+			final String agentJar = getAgentJar();
+			if (agentJar == null) {
+				return false;
+			}
+			final String runtimeName = ManagementFactory.getRuntimeMXBean().getName();
+			final String pid = runtimeName.substring(0, runtimeName.indexOf('@'));
+			final Class<?> vmClass = getVirtualMachineClass();
+			final Object vm = vmClass.getMethod("attach", String.class).invoke(null, pid);
+			try {
+				vmClass.getMethod("loadAgent", String.class).invoke(vm, agentJar);
+			} finally {
+				vmClass.getMethod("detach").invoke(vm);
+			}
+		} catch (Exception e) {
+			// no attach API, self-attach not allowed (Java 9+), SecurityException...
+			return false;
+		} catch (LinkageError le) {
+			return false;
+		}
+		return getInstrumentation() != null;
+	}
+
+	/**
+	 * Self-attaches (see {@link #attach()}) if allowed by the
+	 * <code>{@value #SELF_ATTACH_PROPERTY}</code> system property.
+	 *
+	 * @return the agent Instrumentation, or <code>null</code> if not available
+	 */
+	public static Instrumentation getOrAttachInstrumentation() {
+		Instrumentation result = getInstrumentation();
+		if (result == null && isSelfAttachAllowed()) {
+			attach();
+			result = getInstrumentation();
+		}
+		return result;
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private static volatile Instrumentation s_instrumentation;
+	private static boolean s_attachAttempted = false; // guarded by class
+
+	private SizeOfAgent() {
+	} // this class is not extendible
+
+	private static boolean isSelfAttachAllowed() {
+		try {
+			return Boolean.getBoolean(SELF_ATTACH_PROPERTY);
+		} catch (SecurityException se) {
+			return false;
+		}
+	}
+
+	/*
+	 * Looks up the Instrumentation of the agent class loaded by the system class loader.
+	 */
+	private static Instrumentation getSystemInstrumentation() {
+		try {
+			final Class<?> systemAgent = Class.forName(SizeOfAgent.class.getName(), true, ClassLoader.getSystemClassLoader());
+			if (systemAgent == SizeOfAgent.class) {
+				return null;
+			}
+			final Object inst = systemAgent.getMethod("getInstrumentation").invoke(null);
+			return (inst instanceof Instrumentation) ? (Instrumentation) inst : null;
+		} catch (Exception e) {
+			// ClassNotFoundException (not in system class path), SecurityException...
+			return null;
+		} catch (LinkageError le) {
+			return null;
+		}
+	}
+
+	/*
+	 * @return the path of the jar holding this class, or null if not in a jar
+	 */
+	private static String getAgentJar() throws Exception {
+		final CodeSource codeSource = SizeOfAgent.class.getProtectionDomain().getCodeSource();
+		if (codeSource == null || codeSource.getLocation() == null) {
+			return null;
+		}
+		final File file = new File(codeSource.getLocation().toURI());
+		return (file.isFile() && file.getName().endsWith(".jar")) ? file.getAbsolutePath() : null;
+	}
+
+	private static Class<?> getVirtualMachineClass() throws ClassNotFoundException {
+		final String className = "com.sun.tools.attach.VirtualMachine";
+		try {
+			// Java 9+ (jdk.attach module), or tools.jar already in class path
+			return Class.forName(className);
+		} catch (ClassNotFoundException cnfe) {
+			// Java 6-8 JDK
+			final File toolsJar = new File(System.getProperty("java.home"), "../lib/tools.jar");
+			if (!toolsJar.isFile()) {
+				throw cnfe;
+			}
+			try {
+				final ClassLoader loader = new URLClassLoader(new URL[] {toolsJar.toURI().toURL()});
+				return Class.forName(className, true, loader);
+			} catch (java.net.MalformedURLException mue) {
+				throw cnfe;
+			}
+		}
+	}
+
+} // end of class
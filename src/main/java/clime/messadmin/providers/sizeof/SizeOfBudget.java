@@ -0,0 +1,103 @@
+package clime.messadmin.providers.sizeof;
+
+/**
+ * Limits of a size computation (see {@link ObjectProfiler#sizeof(Object, SizeOfBudget)}):
+ * maximum number of objects visited, maximum number of bytes counted, and
+ * maximum duration. A limit &lt;= 0 means "no limit".
+ *
+ * <P>
+ * A computation can also be cancelled from another thread with {@link #cancel()};
+ * the sizing thread will stop shortly afterwards.
+ * A cancelled budget stays cancelled: use a new budget for each computation
+ * which may be cancelled.
+ *
+ * @author C&eacute;drik LIME
+ */
+public class SizeOfBudget {
+	/**
+	 * Default budget of the {@link clime.messadmin.providers.spi.SizeOfProvider}s: maximum number of objects
+	 */
+	public static final String MAX_OBJECTS_PROPERTY = "clime.messadmin.providers.sizeof.budget.maxObjects";
+	/**
+	 * Default budget of the {@link clime.messadmin.providers.spi.SizeOfProvider}s: maximum duration, in milliseconds
+	 */
+	public static final String MAX_MILLIS_PROPERTY = "clime.messadmin.providers.sizeof.budget.maxMillis";
+
+	private final long m_maxObjects;
+	private final long m_maxBytes;
+	private final long m_maxMillis;
+	private volatile boolean m_cancelled = false;
+
+	/**
+	 * @param maxObjects maximum number of objects to visit [&lt;= 0: no limit]
+	 * @param maxBytes maximum number of bytes to count [&lt;= 0: no limit]
+	 * @param maxMillis maximum duration of the computation, in milliseconds [&lt;= 0: no limit]
+	 */
+	public SizeOfBudget(final long maxObjects, final long maxBytes, final long maxMillis) {
+		super();
+		m_maxObjects = maxObjects;
+		m_maxBytes = maxBytes;
+		m_maxMillis = maxMillis;
+	}
+
+	/**
+	 * @return maximum number of objects to visit [&lt;= 0: no limit]
+	 */
+	public long getMaxObjects() {
+		return m_maxObjects;
+	}
+
+	/**
+	 * @return maximum number of bytes to count [&lt;= 0: no limit]
+	 */
+	public long getMaxBytes() {
+		return m_maxBytes;
+	}
+
+	/**
+	 * @return maximum duration of the computation, in milliseconds [&lt;= 0: no limit]
+	 */
+	public long getMaxMillis() {
+		return m_maxMillis;
+	}
+
+	/**
+	 * Requests the computation(s) using this budget to stop.
+	 */
+	public void cancel() {
+		m_cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return m_cancelled;
+	}
+
+	/*
+	 * @return the budget defined by the system properties, or null if unlimited
+	 */
+	static SizeOfBudget getDefault() {
+		final long maxObjects = getLongProperty(MAX_OBJECTS_PROPERTY);
+		final long maxMillis = getLongProperty(MAX_MILLIS_PROPERTY);
+		return (maxObjects <= 0 && maxMillis <= 0) ? null : new SizeOfBudget(maxObjects, 0, maxMillis);
+	}
+
+	private static long getLongProperty(final String name) {
+		try {
+			final String value = System.getProperty(name);
+			if (value != null) {
+				return Long.parseLong(value.trim());
+			}
+		} catch (SecurityException ignore) {
+		} catch (NumberFormatException ignore) {
+		}
+		return 0;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[maxObjects=" + m_maxObjects
+				+ ", maxBytes=" + m_maxBytes + ", maxMillis=" + m_maxMillis
+				+ (m_cancelled ? ", cancelled" : "") + ']';
+	}
+}
@@ -0,0 +1,105 @@
+package clime.messadmin.providers.sizeof;
+
+/**
+ * Result of {@link ObjectProfiler#sizeof(Object, SizeOfBudget)} and
+ * {@link ObjectProfiler#sizeofSampled(Object, int, int)}.
+ *
+ * <P>
+ * When the whole object graph was not visited (budget exhausted or cancelled,
+ * or sampling), the result is {@link #isPartial() partial}: {@link #getSize()}
+ * is then a lower bound, and {@link #getEstimatedSize()} an extrapolation
+ * of the full size. Sampling also gives an {@link #getErrorMargin() error margin}.
+ *
+ * <P>
+ * The native memory of the direct and mapped buffers which were visited is
+ * reported separately ({@link #getOffHeapSize()}): it is not part of the heap size.
+ *
+ * @author C&eacute;drik LIME
+ */
+public class SizeOfResult {
+	static final SizeOfResult EMPTY = new SizeOfResult(0, 0, 0, 0, false);
+
+	private final long m_size;
+	private final long m_estimatedSize;
+	private final long m_objectCount;
+	private final long m_pendingCount;
+	private final boolean m_partial;
+	private final long m_errorMargin;
+	private final long m_offHeapSize;
+
+	SizeOfResult(final long size, final long estimatedSize, final long objectCount,
+			final long pendingCount, final boolean partial) {
+		this(size, estimatedSize, objectCount, pendingCount, partial, 0, 0);
+	}
+
+	SizeOfResult(final long size, final long estimatedSize, final long objectCount,
+			final long pendingCount, final boolean partial, final long errorMargin, final long offHeapSize) {
+		m_size = size;
+		m_estimatedSize = estimatedSize;
+		m_objectCount = objectCount;
+		m_pendingCount = pendingCount;
+		m_partial = partial;
+		m_errorMargin = errorMargin;
+		m_offHeapSize = offHeapSize;
+	}
+
+	/**
+	 * @return size of the visited objects: the full size if not partial, a lower bound otherwise
+	 */
+	public long getSize() {
+		return m_size;
+	}
+
+	/**
+	 * @return extrapolated full size if partial, exact size otherwise
+	 */
+	public long getEstimatedSize() {
+		return m_estimatedSize;
+	}
+
+	/**
+	 * @return number of visited objects
+	 */
+	public long getObjectCount() {
+		return m_objectCount;
+	}
+
+	/**
+	 * @return number of objects known to be reachable, but not visited [0 if not partial]
+	 */
+	public long getPendingCount() {
+		return m_pendingCount;
+	}
+
+	/**
+	 * @return half-width of the 95% confidence interval of {@link #getEstimatedSize()}
+	 *	[0 if exact or unknown]
+	 */
+	public long getErrorMargin() {
+		return m_errorMargin;
+	}
+
+	/**
+	 * @return native memory of the visited direct and mapped buffers, memory
+	 *	shared by several buffers (slices, duplicates, views) counted once
+	 */
+	public long getOffHeapSize() {
+		return m_offHeapSize;
+	}
+
+	/**
+	 * @return <code>true</code> if the whole object graph was not visited
+	 */
+	public boolean isPartial() {
+		return m_partial;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[size=" + m_size
+				+ (m_partial ? ", partial, estimated=" + m_estimatedSize + (m_errorMargin > 0 ? "+/-" + m_errorMargin : "")
+						+ ", pending=" + m_pendingCount : "")
+				+ ", objects=" + m_objectCount + (m_offHeapSize > 0 ? ", offHeap=" + m_offHeapSize : "") + ']';
+	}
+}
@@ -0,0 +1,326 @@
+package clime.messadmin.providers.sizeof;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Statistics of the {@link ObjectProfiler} size computations: number of
+ * calls, objects and bytes, duration histogram, peak "visited" set size,
+ * class metadata cache hits and misses, and failures.
+ *
+ * <P>
+ * Counters are updated once per size computation (except the metadata cache
+ * misses, which are rare), and are striped to avoid contention between
+ * threads. Values are not an atomic snapshot.
+ *
+ * <P>
+ * The statistics can be registered in the platform MBean server (see
+ * {@link #register()}), under a name which is specific to the class loader of
+ * this library (see {@link #getObjectName()}): web applications do not clash.
+ * Registration is opt-in: declare {@link SizeOfStatisticsListener} in
+ * <code>web.xml</code>, which also unregisters the statistics when the web
+ * application is stopped, so as not to pin its class loader; or set the system
+ * property <code>{@value #JMX_PROPERTY}</code> to <code>true</code> (and call
+ * {@link #unregister()} when stopping).
+ *
+ * <P>
+ * This class is thread-safe.
+ *
+ * @author C&eacute;drik LIME
+ */
+public final class SizeOfStatistics implements SizeOfStatisticsMBean {
+	// public: ................................................................
+
+	/**
+	 * Prefix of the MBean name, see {@link #getObjectName()}
+	 */
+	public static final String OBJECT_NAME = "clime.messadmin:type=SizeOf";
+	/**
+	 * System property: register the statistics in the platform MBean server when loaded [default: false]
+	 */
+	public static final String JMX_PROPERTY = "clime.messadmin.providers.sizeof.jmx";
+
+	/**
+	 * Number of buckets of the {@link #getDurationHistogram() duration histogram}.
+	 */
+	public static final int HISTOGRAM_SIZE = 32;
+
+	/**
+	 * @return the statistics of {@link ObjectProfiler}
+	 */
+	public static SizeOfStatistics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * @return the MBean name of the statistics: <code>{@value #OBJECT_NAME},classloader=...</code>,
+	 * 	where <code>classloader</code> identifies the class loader of this library
+	 */
+	public static String getObjectName() {
+		final ClassLoader loader = SizeOfStatistics.class.getClassLoader();
+		final String loaderId = (loader == null) ? "bootstrap"
+				: loader.getClass().getName() + '@' + Integer.toHexString(System.identityHashCode(loader));
+		return OBJECT_NAME + ",classloader=" + ObjectName.quote(loaderId);
+	}
+
+	/**
+	 * Registers the statistics in the platform MBean server, if not already
+	 * done. An MBean which was registered under the same name by someone else is
+	 * left alone.
+	 */
+	public static synchronized void register() {
+		if (s_registeredName != null) {
+			return;
+		}
+		try {
+			final ObjectName name = new ObjectName(getObjectName());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, name);
+			s_registeredName = name;
+		} catch (InstanceAlreadyExistsException iaee) {
+			// not ours: never replace it
+		} catch (JMException ignore) {
+		} catch (SecurityException ignore) {
+		}
+	}
+
+	/**
+	 * Unregisters the statistics from the platform MBean server, if they were
+	 * registered by {@link #register()}.
+	 */
+	public static synchronized void unregister() {
+		if (s_registeredName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(s_registeredName);
+		} catch (InstanceNotFoundException ignore) {
+		} catch (JMException ignore) {
+		} catch (SecurityException ignore) {
+		}
+		s_registeredName = null;
+	}
+
+	/** {@inheritDoc} */
+	public long getCallCount() {
+		return m_calls.sum();
+	}
+
+	/** {@inheritDoc} */
+	public long getObjectCount() {
+		return m_objects.sum();
+	}
+
+	/** {@inheritDoc} */
+	public long getByteCount() {
+		return m_bytes.sum();
+	}
+
+	/** {@inheritDoc} */
+	public long getTotalTimeMillis() {
+		return m_nanos.sum() / 1000000;
+	}
+
+	/** {@inheritDoc} */
+	public long getMeanTimeMicros() {
+		final long calls = m_calls.sum();
+		return (calls == 0) ? 0 : m_nanos.sum() / 1000 / calls;
+	}
+
+	/** {@inheritDoc} */
+	public long getMaxTimeMicros() {
+		return m_maxNanos.get() / 1000;
+	}
+
+	/** {@inheritDoc} */
+	public long getMedianTimeMicros() {
+		return getPercentileMicros(50);
+	}
+
+	/** {@inheritDoc} */
+	public long get95thPercentileTimeMicros() {
+		return getPercentileMicros(95);
+	}
+
+	/** {@inheritDoc} */
+	public long get99thPercentileTimeMicros() {
+		return getPercentileMicros(99);
+	}
+
+	/** {@inheritDoc} */
+	public long[] getDurationHistogram() {
+		final long[] result = new long[HISTOGRAM_SIZE];
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = m_histogram.get(i);
+		}
+		return result;
+	}
+
+	/** {@inheritDoc} */
+	public long getPeakVisitedSetSize() {
+		return m_peakVisited.get();
+	}
+
+	/** {@inheritDoc} */
+	public long getMetadataCacheHitCount() {
+		return m_metadataHits.sum();
+	}
+
+	/** {@inheritDoc} */
+	public long getMetadataCacheMissCount() {
+		return m_metadataMisses.sum();
+	}
+
+	/** {@inheritDoc} */
+	public long getRuntimeExceptionCount() {
+		return m_runtimeExceptions.sum();
+	}
+
+	/** {@inheritDoc} */
+	public long getNoClassDefFoundErrorCount() {
+		return m_noClassDefFoundErrors.sum();
+	}
+
+	/** {@inheritDoc} */
+	public void reset() {
+		m_calls.reset();
+		m_objects.reset();
+		m_bytes.reset();
+		m_nanos.reset();
+		m_maxNanos.set(0);
+		for (int i = 0; i < HISTOGRAM_SIZE; ++i) {
+			m_histogram.set(i, 0);
+		}
+		m_peakVisited.set(0);
+		m_metadataHits.reset();
+		m_metadataMisses.reset();
+		m_runtimeExceptions.reset();
+		m_noClassDefFoundErrors.reset();
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	/**
+	 * Records a size computation.
+	 *
+	 * @param startNanos <code>System.nanoTime()</code> at the start of the computation
+	 * @param objectCount number of objects visited [negative if unknown]
+	 * @param size computed size [negative if the computation failed]
+	 */
+	void record(final long startNanos, final long objectCount, final long size) {
+		final long nanos = Math.max(0, System.nanoTime() - startNanos);
+		m_calls.increment();
+		m_nanos.add(nanos);
+		if (size > 0) {
+			m_bytes.add(size);
+		}
+		if (objectCount > 0) {
+			m_objects.add(objectCount);
+			updateMax(m_peakVisited, objectCount);
+		}
+		updateMax(m_maxNanos, nanos);
+		m_histogram.getAndIncrement(bucket(nanos / 1000));
+	}
+
+	/**
+	 * Records a failed size computation.
+	 */
+	void recordFailure(final long startNanos, final Throwable failure) {
+		if (failure instanceof NoClassDefFoundError) {
+			m_noClassDefFoundErrors.increment();
+		} else {
+			m_runtimeExceptions.increment();
+		}
+		record(startNanos, -1, -1);
+	}
+
+	void recordMetadataHits(final long hits) {
+		if (hits > 0) {
+			m_metadataHits.add(hits);
+		}
+	}
+
+	void recordMetadataMiss() {
+		m_metadataMisses.increment();
+	}
+
+	// private: ...............................................................
+
+	private static final SizeOfStatistics INSTANCE = new SizeOfStatistics();
+	private static ObjectName s_registeredName; // guarded by class [null if not registered]
+
+	static {
+		if (isJmxEnabled()) {
+			register();
+		}
+	}
+
+	private final StripedCounter m_calls = new StripedCounter();
+	private final StripedCounter m_objects = new StripedCounter();
+	private final StripedCounter m_bytes = new StripedCounter();
+	private final StripedCounter m_nanos = new StripedCounter();
+	private final AtomicLong m_maxNanos = new AtomicLong();
+	private final AtomicLongArray m_histogram = new AtomicLongArray(HISTOGRAM_SIZE); // log2 of microseconds
+	private final AtomicLong m_peakVisited = new AtomicLong();
+	private final StripedCounter m_metadataHits = new StripedCounter();
+	private final StripedCounter m_metadataMisses = new StripedCounter();
+	private final StripedCounter m_runtimeExceptions = new StripedCounter();
+	private final StripedCounter m_noClassDefFoundErrors = new StripedCounter();
+
+	private SizeOfStatistics() {
+		super();
+	}
+
+	private static boolean isJmxEnabled() {
+		try {
+			final String value = System.getProperty(JMX_PROPERTY);
+			return value != null && Boolean.valueOf(value.trim()).booleanValue();
+		} catch (SecurityException ignore) {
+			return false;
+		}
+	}
+
+	/*
+	 * Bucket i counts durations d such that 2^(i-1) <= d < 2^i microseconds.
+	 */
+	private static int bucket(final long micros) {
+		return Math.min(HISTOGRAM_SIZE - 1, 64 - Long.numberOfLeadingZeros(micros));
+	}
+
+	private static void updateMax(final AtomicLong max, final long value) {
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+
+	private long getPercentileMicros(final int percentile) {
+		final long[] histogram = getDurationHistogram();
+		long total = 0;
+		for (int i = 0; i < histogram.length; ++i) {
+			total += histogram[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		final long rank = (total * percentile + 99) / 100;
+		long count = 0;
+		for (int i = 0; i < histogram.length; ++i) {
+			count += histogram[i];
+			if (count >= rank) {
+				return 1L << i;
+			}
+		}
+		return 1L << (HISTOGRAM_SIZE - 1);
+	}
+
+} // end of class
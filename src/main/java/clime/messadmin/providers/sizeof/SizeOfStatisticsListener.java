@@ -0,0 +1,48 @@
+/**
+ *
+ */
+package clime.messadmin.providers.sizeof;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * Registers the {@link SizeOfStatistics} MBean when the web application is
+ * started, and unregisters it when the web application is stopped, so that
+ * the MBean server does not pin the web application class loader.
+ *
+ * <P>
+ * To be declared in <code>web.xml</code>:
+ * <pre>
+ * &lt;listener&gt;
+ *   &lt;listener-class&gt;clime.messadmin.providers.sizeof.SizeOfStatisticsListener&lt;/listener-class&gt;
+ * &lt;/listener&gt;
+ * </pre>
+ *
+ * @author C&eacute;drik LIME
+ * @see SizeOfStatistics#register()
+ */
+public class SizeOfStatisticsListener implements ServletContextListener {
+
+	/**
+	 *
+	 */
+	public SizeOfStatisticsListener() {
+		super();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void contextInitialized(ServletContextEvent event) {
+		SizeOfStatistics.register();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	public void contextDestroyed(ServletContextEvent event) {
+		SizeOfStatistics.unregister();
+	}
+
+}
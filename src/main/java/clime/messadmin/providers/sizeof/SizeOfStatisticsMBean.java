@@ -0,0 +1,92 @@
+package clime.messadmin.providers.sizeof;
+
+/**
+ * Management interface of {@link SizeOfStatistics}.
+ *
+ * @author C&eacute;drik LIME
+ */
+public interface SizeOfStatisticsMBean {
+	/**
+	 * @return number of size computations
+	 */
+	long getCallCount();
+
+	/**
+	 * @return number of objects visited (except by {@link ObjectProfiler#sizeofParallel(Object)})
+	 */
+	long getObjectCount();
+
+	/**
+	 * @return number of bytes counted
+	 */
+	long getByteCount();
+
+	/**
+	 * @return cumulated duration of the size computations, in milliseconds
+	 */
+	long getTotalTimeMillis();
+
+	/**
+	 * @return mean duration of a size computation, in microseconds
+	 */
+	long getMeanTimeMicros();
+
+	/**
+	 * @return longest duration of a size computation, in microseconds
+	 */
+	long getMaxTimeMicros();
+
+	/**
+	 * @return upper bound of the median duration of a size computation, in microseconds
+	 */
+	long getMedianTimeMicros();
+
+	/**
+	 * @return upper bound of the 95th percentile of the duration of a size computation, in microseconds
+	 */
+	long get95thPercentileTimeMicros();
+
+	/**
+	 * @return upper bound of the 99th percentile of the duration of a size computation, in microseconds
+	 */
+	long get99thPercentileTimeMicros();
+
+	/**
+	 * @return number of size computations per duration: element <code>i</code> counts
+	 * 	the durations <code>d</code> (in microseconds) such that <code>2^(i-1) &lt;= d &lt; 2^i</code>
+	 */
+	long[] getDurationHistogram();
+
+	/**
+	 * @return largest number of objects visited by a size computation
+	 */
+	long getPeakVisitedSetSize();
+
+	/**
+	 * @return number of class metadata cache lookups done by the traversals of {@link ObjectProfiler#sizeof(Object)},
+	 * 	{@link ObjectProfiler#sizedelta(Object, Object)} and {@link ObjectProfiler#histogram(Object)}
+	 * 	(a non-array object is looked up when it is visited, and again when it is sized if it was scheduled);
+	 * 	the first lookup of each class is also a miss
+	 */
+	long getMetadataCacheHitCount();
+
+	/**
+	 * @return number of class metadata computations (cache misses)
+	 */
+	long getMetadataCacheMissCount();
+
+	/**
+	 * @return number of size computations which failed with a <code>RuntimeException</code>
+	 */
+	long getRuntimeExceptionCount();
+
+	/**
+	 * @return number of size computations which failed with a <code>NoClassDefFoundError</code>
+	 */
+	long getNoClassDefFoundErrorCount();
+
+	/**
+	 * Resets all statistics.
+	 */
+	void reset();
+}
@@ -0,0 +1,288 @@
+package clime.messadmin.providers.sizeof;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Computes sizes in the background, so that the thread asking for a size
+ * (typically, a request thread rendering an administration page) does not
+ * wait for the object graph to be walked.
+ *
+ * <ul>
+ * <li>{@link #getSize(Object)} returns at once (or after a short, bounded wait)
+ * the last known size, and schedules a refresh if it is outdated;</li>
+ * <li>{@link #refresh(Object)} gives a {@link Future} for a fresh size;</li>
+ * <li>sizes are computed by a few low-priority daemon threads, which pause
+ * after each computation so as to use at most the given share of a CPU;</li>
+ * <li>back-pressure: refreshes of the same object are coalesced, and when
+ * the queue of pending refreshes is full, new requests are not queued: the last
+ * known size is returned instead.</li>
+ * </ul>
+ * Sizing is CPU-bound: a small pool of platform threads is used.
+ *
+ * <P>
+ * The {@link clime.messadmin.providers.spi.SizeOfProvider}s use a sizing service
+ * when the <code>clime.messadmin.providers.sizeof.async.threads</code> system
+ * property is set to a positive value.
+ *
+ * <P>
+ * This class is thread-safe.
+ *
+ * @author C&eacute;drik LIME
+ */
+public class SizingService {
+	/**
+	 * System property: number of sizing threads of the providers [0 (default): synchronous sizing]
+	 */
+	public static final String THREADS_PROPERTY = "clime.messadmin.providers.sizeof.async.threads";
+	/**
+	 * System property: maximum share of a CPU used by each sizing thread, in percents [default: 25]
+	 */
+	public static final String CPU_SHARE_PROPERTY = "clime.messadmin.providers.sizeof.async.cpuShare";
+	/**
+	 * System property: maximum number of pending refreshes [default: 64]
+	 */
+	public static final String QUEUE_SIZE_PROPERTY = "clime.messadmin.providers.sizeof.async.queueSize";
+	/**
+	 * System property: how long {@link #getSize(Object)} waits for a fresh size, in milliseconds [default: 50]
+	 */
+	public static final String MAX_WAIT_PROPERTY = "clime.messadmin.providers.sizeof.async.maxWait";
+
+	private static final AtomicInteger s_threadNumber = new AtomicInteger();
+
+	private final SizeCache m_cache = new SizeCache(); // last known sizes
+	private final int m_cpuShare;
+	private final long m_maxWaitMillis;
+	private final ThreadPoolExecutor m_executor;
+	private final Map<Object, Future<Long>> m_pending = new IdentityHashMap<Object, Future<Long>>();
+
+	/**
+	 * Sizing service configured by the system properties: {@link #THREADS_PROPERTY}
+	 * (default: 1), {@link #CPU_SHARE_PROPERTY}, {@link #QUEUE_SIZE_PROPERTY} and
+	 * {@link #MAX_WAIT_PROPERTY}.
+	 */
+	public SizingService() {
+		this((int) Math.max(1, getLongProperty(THREADS_PROPERTY, 1)), (int) getLongProperty(CPU_SHARE_PROPERTY, 25),
+				(int) getLongProperty(QUEUE_SIZE_PROPERTY, 64), getLongProperty(MAX_WAIT_PROPERTY, 50));
+	}
+
+	/**
+	 * @param threads number of sizing threads
+	 * @param cpuShare maximum share of a CPU used by each sizing thread, in percents [1-100]
+	 * @param queueSize maximum number of pending refreshes
+	 * @param maxWaitMillis how long {@link #getSize(Object)} waits for a fresh size [0: no wait]
+	 */
+	public SizingService(final int threads, final int cpuShare, final int queueSize, final long maxWaitMillis) {
+		super();
+		if (threads <= 0) {
+			throw new IllegalArgumentException("threads: " + threads);
+		}
+		if (m_cache.getMaxStaleness() == 0) {
+			m_cache.setMaxStaleness(1); // always refresh, but keep the last known sizes
+		}
+		m_cpuShare = Math.max(1, Math.min(100, cpuShare));
+		m_maxWaitMillis = Math.max(0, maxWaitMillis);
+		m_executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new SizingThreadFactory());
+		m_executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @return <code>true</code> if the providers should size asynchronously (see {@link #THREADS_PROPERTY})
+	 */
+	static boolean isEnabled() {
+		return getLongProperty(THREADS_PROPERTY, 0) > 0;
+	}
+
+	/**
+	 * Returns the size of <code>obj</code>, scheduling a refresh if the last
+	 * known size is outdated. Waits for the refresh at most the configured
+	 * maximum wait.
+	 *
+	 * @return the fresh or last known size of <code>obj</code> [-1 if not known yet]
+	 * 	(the last known size if the refresh failed)
+	 */
+	public long getSize(final Object obj) {
+		if (obj == null) {
+			return 0;
+		}
+		if (m_cache.isFresh(obj)) {
+			return m_cache.getLastKnown(obj);
+		}
+		final Future<Long> future = refresh(obj);
+		if (m_maxWaitMillis > 0) {
+			try {
+				final long size = future.get(m_maxWaitMillis, TimeUnit.MILLISECONDS).longValue();
+				if (size >= 0) {
+					return size;
+				} // else: failed, see getLastKnownSize()
+			} catch (TimeoutException te) {
+				// still running
+			} catch (ExecutionException ee) {
+				// see getLastKnownSize()
+			} catch (CancellationException ce) {
+				// shut down
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return getLastKnownSize(obj);
+	}
+
+	/**
+	 * @return the last known size of <code>obj</code>, even if outdated [-1 if not known]
+	 */
+	public long getLastKnownSize(final Object obj) {
+		return m_cache.getLastKnown(obj);
+	}
+
+	/**
+	 * Schedules the computation of the size of <code>obj</code>, unless
+	 * one is already pending. If too many computations are pending, the
+	 * returned future immediately gives the last known size.
+	 *
+	 * @return the fresh size of <code>obj</code> [-1 if the computation failed]
+	 */
+	public Future<Long> refresh(final Object obj) {
+		synchronized (m_pending) {
+			Future<Long> future = m_pending.get(obj);
+			if (future == null) {
+				final FutureTask<Long> task = new FutureTask<Long>(new SizingTask(obj));
+				try {
+					m_executor.execute(new ThrottledTask(task));
+					m_pending.put(obj, task);
+					future = task;
+				} catch (RejectedExecutionException ree) {
+					// back-pressure: don't queue, don't wait
+					final FutureTask<Long> lastKnown = new FutureTask<Long>(new Callable<Long>() {
+						public Long call() {
+							return Long.valueOf(getLastKnownSize(obj));
+						}
+					});
+					lastKnown.run();
+					future = lastKnown;
+				}
+			}
+			return future;
+		}
+	}
+
+	/**
+	 * @return number of pending (queued or running) computations
+	 */
+	public int getPendingCount() {
+		synchronized (m_pending) {
+			return m_pending.size();
+		}
+	}
+
+	/**
+	 * Stops the sizing threads, dropping the pending computations: their
+	 * futures are cancelled.
+	 */
+	public void shutdown() {
+		m_executor.shutdownNow();
+		synchronized (m_pending) {
+			// queued tasks will never run: don't leave their futures waiting
+			for (Future<Long> future : m_pending.values()) {
+				future.cancel(false);
+			}
+			m_pending.clear();
+		}
+	}
+
+	/**
+	 * Computes the size of <code>obj</code>, in a sizing thread.
+	 * Default implementation: {@link ObjectProfiler#sizeof(Object)}.
+	 *
+	 * @return the size of <code>obj</code> [-1 if the computation failed]
+	 */
+	protected long computeSize(final Object obj) {
+		return ObjectProfiler.sizeof(obj);
+	}
+
+	private final class SizingTask implements Callable<Long> {
+		private final Object m_obj;
+
+		SizingTask(final Object obj) {
+			m_obj = obj;
+		}
+
+		/** {@inheritDoc} */
+		public Long call() {
+			long size = -1;
+			try {
+				final SizeCache.Sizing sizing = m_cache.begin(m_obj);
+				size = computeSize(m_obj);
+				m_cache.put(sizing, size); // unless failed, or invalidated while sizing
+			} finally {
+				synchronized (m_pending) {
+					m_pending.remove(m_obj);
+				}
+			}
+			return Long.valueOf(size);
+		}
+	} // end of nested class
+
+	/*
+	 * CPU-share throttle: the sizing thread pauses in proportion of the time
+	 * spent, after the result has been published.
+	 */
+	private final class ThrottledTask implements Runnable {
+		private final Runnable m_task;
+
+		ThrottledTask(final Runnable task) {
+			m_task = task;
+		}
+
+		/** {@inheritDoc} */
+		public void run() {
+			final long start = System.nanoTime();
+			m_task.run();
+			if (m_cpuShare < 100) {
+				final long busyNanos = System.nanoTime() - start;
+				try {
+					TimeUnit.NANOSECONDS.sleep(busyNanos * (100 - m_cpuShare) / m_cpuShare);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt(); // shutdown
+				}
+			}
+		}
+	} // end of nested class
+
+	private static final class SizingThreadFactory implements ThreadFactory {
+		/** {@inheritDoc} */
+		public Thread newThread(final Runnable runnable) {
+			final Thread thread = new Thread(runnable, "MessAdmin-SizeOf-" + s_threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			// don't pin the class loader of the webapp which happened to create this thread
+			thread.setContextClassLoader(SizingService.class.getClassLoader());
+			return thread;
+		}
+	} // end of nested class
+
+	private static long getLongProperty(final String name, final long defaultValue) {
+		try {
+			final String value = System.getProperty(name);
+			if (value != null) {
+				return Long.parseLong(value.trim());
+			}
+		} catch (SecurityException ignore) {
+		} catch (NumberFormatException ignore) {
+		}
+		return defaultValue;
+	}
+}
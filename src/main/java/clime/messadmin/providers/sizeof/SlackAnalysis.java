@@ -0,0 +1,238 @@
+package clime.messadmin.providers.sizeof;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Implementation of {@link ObjectProfiler#slack(Object[])}.
+ *
+ * <P>
+ * The roots are walked depth-first, sharing a single "visited" set; the
+ * internal array of each recognized collection or string builder is
+ * compared to what its contents need:
+ * <ul>
+ * <li><code>ArrayList</code>, <code>Vector</code>, <code>PriorityQueue</code>:
+ * one slot per element;</li>
+ * <li><code>HashMap</code>, <code>LinkedHashMap</code> (and therefore
+ * <code>HashSet</code>, <code>LinkedHashSet</code>), <code>ConcurrentHashMap</code>:
+ * the smallest power-of-2 table holding the entries at the default load factor;</li>
+ * <li><code>Hashtable</code>: the smallest table holding the entries at the
+ * default load factor;</li>
+ * <li><code>StringBuilder</code>, <code>StringBuffer</code>: one slot per
+ * character (or 2 bytes per character for UTF-16 compact strings).</li>
+ * </ul>
+ * Only exact classes are recognized: subclasses may manage their capacity
+ * differently. An internal array which is shared (e.g. the empty array of
+ * empty <code>ArrayList</code>s) is not accounted for.
+ *
+ * @author C&eacute;drik LIME
+ */
+final class SlackAnalysis {
+	// public: ................................................................
+
+	/**
+	 * @see ObjectProfiler#slack(Object[])
+	 */
+	static SlackResult analyze(final Object[] roots, final IdentitySet visited) {
+		final SlackAnalysis analysis = new SlackAnalysis();
+		final long[] sizes = new long[roots.length];
+		final long[] slacks = new long[roots.length];
+		final ObjectStack stack = new ObjectStack();
+		// not eager: each object is popped, so that its container can be recorded before its internal array is visited
+		final ObjectProfiler.Traversal traversal = new ObjectProfiler.SequentialTraversal(visited, stack, null, null, true, false);
+		long totalSize = 0;
+		for (int r = 0; r < roots.length; ++r) {
+			if (ObjectProfiler.isSharedFlyweight(roots[r]) || !visited.add(roots[r])) {
+				continue;
+			}
+			stack.push(roots[r]);
+			long size = 0;
+			long slack = 0;
+			while (!stack.isEmpty()) {
+				final Object obj = stack.pop();
+				final Container container = CONTAINERS.get(obj.getClass());
+				if (container != null) {
+					slack += analysis.record(obj, container, visited);
+				}
+				size += ObjectProfiler.sizeofObject(obj, traversal);
+			}
+			sizes[r] = size;
+			slacks[r] = slack;
+			totalSize += size;
+		}
+		return analysis.getResult(sizes, slacks, totalSize);
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private static final float DEFAULT_LOAD_FACTOR = 0.75f;
+
+	private static final Map<Class<?>, Container> CONTAINERS = new IdentityHashMap<Class<?>, Container>();
+	static {
+		register("java.util.ArrayList", new Container(FastSizers.findOffset("java.util.ArrayList", "elementData")) {
+			/** {@inheritDoc} */
+			@Override
+			int getUsedLength(final Object obj, final int length) {
+				return ((Collection) obj).size();
+			}
+		});
+		register("java.util.Vector", new Container(FastSizers.findOffset("java.util.Vector", "elementData")) {
+			/** {@inheritDoc} */
+			@Override
+			int getUsedLength(final Object obj, final int length) {
+				return ((Collection) obj).size();
+			}
+		});
+		register("java.util.PriorityQueue", new Container(FastSizers.findOffset("java.util.PriorityQueue", "queue")) {
+			/** {@inheritDoc} */
+			@Override
+			int getUsedLength(final Object obj, final int length) {
+				return ((Collection) obj).size();
+			}
+		});
+		final Container hashMap = new HashContainer(FastSizers.findOffset("java.util.HashMap", "table"), true);
+		register("java.util.HashMap", hashMap);
+		register("java.util.LinkedHashMap", hashMap);
+		register("java.util.concurrent.ConcurrentHashMap",
+				new HashContainer(FastSizers.findOffset("java.util.concurrent.ConcurrentHashMap", "table"), true));
+		register("java.util.Hashtable", new HashContainer(FastSizers.findOffset("java.util.Hashtable", "table"), false));
+		final Container builder = new Container(FastSizers.findOffset("java.lang.AbstractStringBuilder", "value")) {
+			/** {@inheritDoc} */
+			@Override
+			int getUsedLength(final Object obj, final int length) {
+				final int capacity = (obj instanceof StringBuilder)
+						? ((StringBuilder) obj).capacity() : ((StringBuffer) obj).capacity();
+				// Java 9+: 1 or 2 bytes per character, depending on the coder
+				return (capacity == 0) ? 0 : ((CharSequence) obj).length() * (length / capacity);
+			}
+		};
+		register("java.lang.StringBuilder", builder);
+		register("java.lang.StringBuffer", builder);
+	}
+
+	/*
+	 * Object holding its contents in an internal array.
+	 */
+	private abstract static class Container {
+		final long m_arrayOffset;
+
+		Container(final long arrayOffset) {
+			m_arrayOffset = arrayOffset;
+		}
+
+		/**
+		 * @param length
+		 *			length of the internal array
+		 * @return length of the internal array, were 'obj' trimmed to its contents
+		 */
+		abstract int getUsedLength(Object obj, int length);
+	} // end of nested class
+
+	/*
+	 * Hash table, trimmed to its entries at the default load factor.
+	 */
+	private static final class HashContainer extends Container {
+		private final boolean m_powerOfTwo;
+
+		HashContainer(final long arrayOffset, final boolean powerOfTwo) {
+			super(arrayOffset);
+			m_powerOfTwo = powerOfTwo;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		int getUsedLength(final Object obj, final int length) {
+			final int size = ((Map) obj).size();
+			if (size == 0) {
+				return 0;
+			}
+			final int needed = (int) Math.min(Math.ceil(size / DEFAULT_LOAD_FACTOR), Integer.MAX_VALUE);
+			if (!m_powerOfTwo || needed > (1 << 30)) {
+				return needed;
+			}
+			final int highestOneBit = Integer.highestOneBit(needed);
+			return (highestOneBit == needed) ? needed : highestOneBit << 1;
+		}
+	} // end of nested class
+
+	// counters per class
+	private final Map<Class<?>, long[]> m_counters = new IdentityHashMap<Class<?>, long[]>();
+	private long m_allocatedSize = 0;
+	private long m_usedSize = 0;
+
+	private SlackAnalysis() {
+	}
+
+	private static void register(final String className, final Container container) {
+		if (container.m_arrayOffset == UnsafeAccess.INVALID_OFFSET) {
+			return; // unexpected layout
+		}
+		try {
+			CONTAINERS.put(Class.forName(className), container);
+		} catch (ClassNotFoundException cnfe) {
+			// not in this JVM
+		} catch (LinkageError le) {
+			// not in this JVM
+		}
+	}
+
+	/*
+	 * @return the slack of 'obj'
+	 */
+	private long record(final Object obj, final Container container, final IdentitySet visited) {
+		final Object array = UnsafeAccess.getObject(obj, container.m_arrayOffset);
+		if (array == null || visited.contains(array) || FlyweightRegistry.contains(array)) {
+			return 0;
+		}
+		final int length = java.lang.reflect.Array.getLength(array);
+		if (length == 0) {
+			return 0;
+		}
+		// the container may be modified concurrently
+		final int usedLength = Math.max(0, Math.min(length, container.getUsedLength(obj, length)));
+		final Class<?> componentType = array.getClass().getComponentType();
+		final long allocatedSize = ObjectProfiler.sizeofArrayShell(length, componentType);
+		final long usedSize = ObjectProfiler.sizeofArrayShell(usedLength, componentType);
+		long[] counters = m_counters.get(obj.getClass());
+		if (counters == null) {
+			counters = new long[3];
+			m_counters.put(obj.getClass(), counters);
+		}
+		++counters[0];
+		counters[1] += allocatedSize;
+		counters[2] += usedSize;
+		m_allocatedSize += allocatedSize;
+		m_usedSize += usedSize;
+		return allocatedSize - usedSize;
+	}
+
+	private SlackResult getResult(final long[] sizes, final long[] slacks, final long totalSize) {
+		final List<SlackResult.Entry> entries = new ArrayList<SlackResult.Entry>(m_counters.size());
+		for (Map.Entry<Class<?>, long[]> counter : m_counters.entrySet()) {
+			final long[] counters = counter.getValue();
+			entries.add(new SlackResult.Entry(counter.getKey(), counters[0], counters[1], counters[2]));
+		}
+		Collections.sort(entries, BY_DECREASING_SLACK);
+		return new SlackResult(sizes, slacks, totalSize, m_allocatedSize, m_usedSize,
+				Collections.unmodifiableList(entries));
+	}
+
+	private static final Comparator<SlackResult.Entry> BY_DECREASING_SLACK = new Comparator<SlackResult.Entry>() {
+		/** {@inheritDoc} */
+		public int compare(final SlackResult.Entry e1, final SlackResult.Entry e2) {
+			final long s1 = e1.getSlack();
+			final long s2 = e2.getSlack();
+			return (s1 < s2) ? 1 : ((s1 == s2) ? 0 : -1);
+		}
+	};
+
+} // end of class
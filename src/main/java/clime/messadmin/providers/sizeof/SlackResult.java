@@ -0,0 +1,161 @@
+package clime.messadmin.providers.sizeof;
+
+import java.util.List;
+
+/**
+ * Result of {@link ObjectProfiler#slack(Object[])}: capacity allocated by
+ * collections and string builders beyond what their contents need.
+ *
+ * <P>
+ * The <em>allocated</em> size of a collection is the size of its internal
+ * array; its <em>used</em> size is the size the array would have if the
+ * collection were trimmed (or presized) to its current contents. The
+ * difference is its <em>slack</em>.
+ *
+ * <P>
+ * Objects reachable from several roots are accounted for in the first root
+ * which reaches them only.
+ *
+ * @author C&eacute;drik LIME
+ */
+public class SlackResult {
+
+	/**
+	 * Slack of all the instances of one class.
+	 */
+	public static class Entry {
+		private final Class<?> m_type;
+		private final long m_count;
+		private final long m_allocatedSize;
+		private final long m_usedSize;
+
+		Entry(final Class<?> type, final long count, final long allocatedSize, final long usedSize) {
+			m_type = type;
+			m_count = count;
+			m_allocatedSize = allocatedSize;
+			m_usedSize = usedSize;
+		}
+
+		/**
+		 * @return collection or string builder class
+		 */
+		public Class<?> getType() {
+			return m_type;
+		}
+
+		/**
+		 * @return number of instances
+		 */
+		public long getCount() {
+			return m_count;
+		}
+
+		/**
+		 * @return size of the internal arrays of the instances
+		 */
+		public long getAllocatedSize() {
+			return m_allocatedSize;
+		}
+
+		/**
+		 * @return size the internal arrays would have if trimmed to their contents
+		 */
+		public long getUsedSize() {
+			return m_usedSize;
+		}
+
+		/**
+		 * @return size which would be saved by trimming all the instances
+		 */
+		public long getSlack() {
+			return m_allocatedSize - m_usedSize;
+		}
+
+		/** {@inheritDoc} */
+		@Override
+		public String toString() {
+			return m_type.getName() + ": " + m_count + " instance(s), " + m_allocatedSize + " bytes allocated, "
+					+ m_usedSize + " bytes used";
+		}
+	} // end of nested class
+
+	SlackResult(final long[] sizes, final long[] slacks, final long totalSize,
+			final long allocatedSize, final long usedSize, final List<Entry> entries) {
+		m_sizes = sizes;
+		m_slacks = slacks;
+		m_totalSize = totalSize;
+		m_allocatedSize = allocatedSize;
+		m_usedSize = usedSize;
+		m_entries = entries;
+	}
+
+	/**
+	 * @return number of roots (including <code>null</code> ones)
+	 */
+	public int getRootCount() {
+		return m_sizes.length;
+	}
+
+	/**
+	 * @return size of the objects first reached from root <code>i</code>
+	 */
+	public long getSize(final int i) {
+		return m_sizes[i];
+	}
+
+	/**
+	 * @return slack of the collections first reached from root <code>i</code>
+	 */
+	public long getSlack(final int i) {
+		return m_slacks[i];
+	}
+
+	/**
+	 * @return deduplicated size of all roots
+	 */
+	public long getTotalSize() {
+		return m_totalSize;
+	}
+
+	/**
+	 * @return size of the internal arrays of all the collections and string builders
+	 */
+	public long getAllocatedSize() {
+		return m_allocatedSize;
+	}
+
+	/**
+	 * @return size the internal arrays would have if trimmed to their contents
+	 */
+	public long getUsedSize() {
+		return m_usedSize;
+	}
+
+	/**
+	 * @return size which would be saved by trimming all the collections and string builders
+	 */
+	public long getSlack() {
+		return m_allocatedSize - m_usedSize;
+	}
+
+	/**
+	 * @return slack per class, by decreasing slack
+	 */
+	public List<Entry> getEntries() {
+		return m_entries;
+	}
+
+	/** {@inheritDoc} */
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[roots=" + getRootCount() + ", total=" + m_totalSize
+				+ ", allocated=" + m_allocatedSize + ", used=" + m_usedSize + ", entries=" + m_entries + ']';
+	}
+
+	private final long[] m_sizes;
+	private final long[] m_slacks;
+	private final long m_totalSize;
+	private final long m_allocatedSize;
+	private final long m_usedSize;
+	private final List<Entry> m_entries;
+}
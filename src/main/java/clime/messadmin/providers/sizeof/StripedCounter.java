@@ -0,0 +1,63 @@
+package clime.messadmin.providers.sizeof;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter for statistics updated concurrently by many threads: each thread
+ * updates one of several cells (each on its own cache line), which are summed
+ * when read. Updates do not contend; reads are not atomic snapshots.
+ *
+ * @author C&eacute;drik LIME
+ */
+final class StripedCounter {
+	// public: ................................................................
+
+	StripedCounter() {
+		int stripes = 1;
+		while (stripes < 2 * Runtime.getRuntime().availableProcessors() && stripes < MAX_STRIPES) {
+			stripes <<= 1;
+		}
+		m_cells = new AtomicLongArray(stripes * PADDING);
+		m_mask = stripes - 1;
+	}
+
+	void add(final long delta) {
+		m_cells.getAndAdd(cellIndex(), delta);
+	}
+
+	void increment() {
+		m_cells.getAndIncrement(cellIndex());
+	}
+
+	long sum() {
+		long result = 0;
+		for (int i = 0; i < m_cells.length(); i += PADDING) {
+			result += m_cells.get(i);
+		}
+		return result;
+	}
+
+	void reset() {
+		for (int i = 0; i < m_cells.length(); i += PADDING) {
+			m_cells.set(i, 0);
+		}
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private static final int PADDING = 8; // longs per cell: 64 bytes, a cache line
+	private static final int MAX_STRIPES = 64;
+
+	private final AtomicLongArray m_cells;
+	private final int m_mask;
+
+	private int cellIndex() {
+		final int id = System.identityHashCode(Thread.currentThread());
+		return ((id * 0x9E3779B9) >>> 16 & m_mask) * PADDING;
+	}
+
+} // end of class
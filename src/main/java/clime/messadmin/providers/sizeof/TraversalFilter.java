@@ -0,0 +1,38 @@
+package clime.messadmin.providers.sizeof;
+
+import java.lang.reflect.Field;
+
+/**
+ * Service Provider Interface: boundaries of the object graph traversal.
+ * Objects beyond a boundary (e.g. a <code>ServletContext</code> or a
+ * <code>ClassLoader</code> referenced by a session attribute) are neither
+ * counted nor walked: they belong to the application, not to the measured
+ * object.
+ *
+ * <P>
+ * Implementations are discovered with {@link java.util.ServiceLoader}: list them in
+ * <code>META-INF/services/clime.messadmin.providers.sizeof.TraversalFilter</code>
+ * (visible from the class loader of MessAdmin-SizeOf). An object is a boundary
+ * if any filter says so. See {@link BoundaryTraversalFilter} for the default
+ * implementation.
+ *
+ * <P>
+ * Decisions are made once per class (resp. field), and cached for the life of
+ * the class: implementations must be consistent, and need not be fast.
+ * The root of a size computation is always measured.
+ *
+ * @author C&eacute;drik LIME
+ */
+public interface TraversalFilter {
+	/**
+	 * @param type class of a referenced object [never an array class]
+	 * @return <code>true</code> if instances of <code>type</code> must be neither counted nor walked
+	 */
+	boolean isBoundary(Class<?> type);
+
+	/**
+	 * @param field non-static reference field
+	 * @return <code>true</code> if the objects referenced by <code>field</code> must be neither counted nor walked
+	 */
+	boolean isBoundary(Field field);
+}
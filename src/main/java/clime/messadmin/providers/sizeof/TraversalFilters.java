@@ -0,0 +1,85 @@
+package clime.messadmin.providers.sizeof;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * The {@link TraversalFilter}s discovered with {@link ServiceLoader}.
+ * Only called when computing the class metadata (see ObjectProfiler):
+ * decisions are cached per class.
+ *
+ * @author C&eacute;drik LIME
+ */
+final class TraversalFilters {
+	// public: ................................................................
+
+	/**
+	 * @see TraversalFilter#isBoundary(Class)
+	 */
+	static boolean isBoundary(final Class<?> type) {
+		for (int i = 0; i < FILTERS.length; ++i) {
+			try {
+				if (FILTERS[i].isBoundary(type)) {
+					return true;
+				}
+			} catch (RuntimeException re) {
+				// faulty filter: ignore
+			} catch (LinkageError le) {
+				// faulty filter: ignore
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @see TraversalFilter#isBoundary(Field)
+	 */
+	static boolean isBoundary(final Field field) {
+		for (int i = 0; i < FILTERS.length; ++i) {
+			try {
+				if (FILTERS[i].isBoundary(field)) {
+					return true;
+				}
+			} catch (RuntimeException re) {
+				// faulty filter: ignore
+			} catch (LinkageError le) {
+				// faulty filter: ignore
+			}
+		}
+		return false;
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private static final TraversalFilter[] FILTERS = loadFilters();
+
+	private TraversalFilters() {
+	} // this class is not extendible
+
+	private static TraversalFilter[] loadFilters() {
+		final List<TraversalFilter> filters = new ArrayList<TraversalFilter>();
+		final Iterator<TraversalFilter> iter = ServiceLoader.load(TraversalFilter.class,
+				TraversalFilters.class.getClassLoader()).iterator();
+		try {
+			while (iter.hasNext()) {
+				try {
+					filters.add(iter.next());
+				} catch (ServiceConfigurationError sce) {
+					// can't load this filter: skip it
+				}
+			}
+		} catch (ServiceConfigurationError sce) {
+			// unreadable configuration file: keep the filters found so far
+		}
+		return filters.toArray(new TraversalFilter[filters.size()]);
+	}
+
+} // end of class
@@ -0,0 +1,170 @@
+package clime.messadmin.providers.sizeof;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.security.AccessController;
+import java.security.PrivilegedExceptionAction;
+
+/**
+ * Non-reflective, offset-based field reading (via <code>sun.misc.Unsafe</code>).
+ *
+ * <P>
+ * Reading a field by its offset does not require the field to be made
+ * accessible, which is not possible anymore for module-encapsulated classes
+ * in Java 9+. This is also much faster than <code>Field.get()</code>.
+ *
+ * <P>
+ * <code>sun.misc.Unsafe</code> is accessed through (constant) method handles,
+ * so that this class compiles whatever the target platform, while the JIT
+ * can still inline the accesses. If <code>Unsafe</code> can not be obtained,
+ * {@link #AVAILABLE} is <code>false</code> and callers must fall back to
+ * reflection.
+ *
+ * @author C&eacute;drik LIME
+ */
+final class UnsafeAccess {
+	// public: ................................................................
+
+	/**
+	 * Returned by {@link #objectFieldOffset(Field)} when the offset is not available.
+	 */
+	static final long INVALID_OFFSET = -1;
+
+	static final boolean AVAILABLE;
+
+	/**
+	 * @return the offset of the (non-static) field, or {@link #INVALID_OFFSET}
+	 *	(e.g. Unsafe not available, or hidden class or record in Java 15+)
+	 */
+	static long objectFieldOffset(final Field field) {
+		if (!AVAILABLE) {
+			return INVALID_OFFSET;
+		}
+		try {
+			return (long) OBJECT_FIELD_OFFSET.invokeExact(field);
+		} catch (Throwable t) {
+			return INVALID_OFFSET;
+		}
+	}
+
+	/**
+	 * Reads a reference field.
+	 * @param offset
+	 *			a valid offset, as returned by {@link #objectFieldOffset(Field)}
+	 */
+	static Object getObject(final Object obj, final long offset) {
+		try {
+			return (Object) GET_OBJECT.invokeExact(obj, offset);
+		} catch (RuntimeException re) {
+			throw re;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	/**
+	 * Reads a <code>long</code> field.
+	 * @param offset
+	 *			a valid offset, as returned by {@link #objectFieldOffset(Field)}
+	 */
+	static long getLong(final Object obj, final long offset) {
+		try {
+			return (long) GET_LONG.invokeExact(obj, offset);
+		} catch (RuntimeException re) {
+			throw re;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	/**
+	 * Defines a class which is only reachable through the returned
+	 * <code>Class</code>, with the access rights of <code>hostClass</code>
+	 * (Java 8 only: <code>sun.misc.Unsafe.defineAnonymousClass()</code>).
+	 * @return the new class, or <code>null</code> if not supported
+	 */
+	static Class<?> defineAnonymousClass(final Class<?> hostClass, final byte[] bytes) {
+		if (DEFINE_ANONYMOUS_CLASS == null) {
+			return null;
+		}
+		try {
+			return (Class<?>) DEFINE_ANONYMOUS_CLASS.invokeExact(hostClass, bytes, (Object[]) null);
+		} catch (RuntimeException re) {
+			throw re;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	// protected: .............................................................
+
+	// package: ...............................................................
+
+	// private: ...............................................................
+
+	private static final MethodHandle OBJECT_FIELD_OFFSET; // (Field)long
+	private static final MethodHandle GET_OBJECT; // (Object,long)Object
+	private static final MethodHandle GET_LONG; // (Object,long)long
+	private static final MethodHandle DEFINE_ANONYMOUS_CLASS; // (Class,byte[],Object[])Class [Java 8 only]
+
+	static {
+		MethodHandle objectFieldOffset = null;
+		MethodHandle getObject = null;
+		MethodHandle getLong = null;
+		MethodHandle defineAnonymousClass = null;
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			// AccessController is deprecated for removal, but still needed where a SecurityManager may be installed
+			@SuppressWarnings("removal")
+			final Object unsafe = AccessController.doPrivileged(new PrivilegedExceptionAction<Object>() {
+				/** {@inheritDoc} */
+				public Object run() throws Exception {
+					final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+					theUnsafe.setAccessible(true);
+					return theUnsafe.get(null);
+				}
+			});
+			final MethodHandles.Lookup lookup = MethodHandles.lookup();
+			objectFieldOffset = lookup.findVirtual(unsafeClass, "objectFieldOffset",
+					MethodType.methodType(long.class, Field.class)).bindTo(unsafe);
+			getObject = lookup.findVirtual(unsafeClass, "getObject",
+					MethodType.methodType(Object.class, Object.class, long.class)).bindTo(unsafe);
+			getLong = lookup.findVirtual(unsafeClass, "getLong",
+					MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe);
+			try {
+				defineAnonymousClass = lookup.findVirtual(unsafeClass, "defineAnonymousClass",
+						MethodType.methodType(Class.class, Class.class, byte[].class, Object[].class)).bindTo(unsafe);
+			} catch (NoSuchMethodException nsme) {
+				// Java 17+
+			}
+		} catch (Exception e) {
+			// PrivilegedActionException, ReflectiveOperationException, SecurityException, Java 9+ InaccessibleObjectException...
+			objectFieldOffset = null;
+			getObject = null;
+			getLong = null;
+			defineAnonymousClass = null;
+		} catch (LinkageError le) {
+			objectFieldOffset = null;
+			getObject = null;
+			getLong = null;
+			defineAnonymousClass = null;
+		}
+		OBJECT_FIELD_OFFSET = objectFieldOffset;
+		GET_OBJECT = getObject;
+		GET_LONG = getLong;
+		DEFINE_ANONYMOUS_CLASS = defineAnonymousClass;
+		AVAILABLE = getObject != null;
+	}
+
+	private UnsafeAccess() {
+	} // this class is not extendible
+
+} // end of class
@@ -0,0 +1,137 @@
+/**
+ *
+ */
+package clime.messadmin.providers.sizeof;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * @author C&eacute;drik LIME
+ */
+public class DominatorsTest extends TestCase {
+
+	/**
+	 * Constructor for DominatorsTest.
+	 * @param name
+	 */
+	public DominatorsTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(DominatorsTest.class);
+	}
+
+	public void testSmallGraph() {
+		// 0->1, 0->2, 1->3, 2->3, 3->4, 4->1, 2->5, 5->4; 6 is unreachable
+		int[][] successors = {{1, 2}, {3}, {3, 5}, {4}, {1}, {4}, {0}};
+		Dominators dominators = newDominators(successors);
+		assertEquals(6, dominators.getReachableCount());
+		assertEquals(Dominators.NONE, dominators.getImmediateDominator(0));
+		assertEquals(0, dominators.getImmediateDominator(1));
+		assertEquals(0, dominators.getImmediateDominator(2));
+		assertEquals(0, dominators.getImmediateDominator(3));
+		assertEquals(0, dominators.getImmediateDominator(4));
+		assertEquals(2, dominators.getImmediateDominator(5));
+		assertEquals(Dominators.NONE, dominators.getImmediateDominator(6));
+	}
+
+	public void testChain() {
+		int n = 100000; // no recursion
+		int[][] successors = new int[n][];
+		for (int i = 0; i < n; ++i) {
+			successors[i] = (i == n - 1) ? new int[] {0} : new int[] {i + 1};
+		}
+		Dominators dominators = newDominators(successors);
+		assertEquals(n, dominators.getReachableCount());
+		for (int i = 1; i < n; ++i) {
+			assertEquals(i - 1, dominators.getImmediateDominator(i));
+		}
+	}
+
+	public void testRandomGraphs() {
+		Random random = new Random(42);
+		for (int round = 0; round < 50; ++round) {
+			int n = 2 + random.nextInt(40);
+			int[][] successors = new int[n][];
+			for (int v = 0; v < n; ++v) {
+				successors[v] = new int[random.nextInt(4)];
+				for (int e = 0; e < successors[v].length; ++e) {
+					successors[v][e] = random.nextInt(n);
+				}
+			}
+			Dominators dominators = newDominators(successors);
+			for (int v = 1; v < n; ++v) {
+				assertEquals("round " + round + ", node " + v,
+						naiveImmediateDominator(successors, v), dominators.getImmediateDominator(v));
+			}
+		}
+	}
+
+	private static Dominators newDominators(int[][] successors) {
+		int n = successors.length;
+		int[] edgeStart = new int[n + 1];
+		for (int v = 0; v < n; ++v) {
+			edgeStart[v + 1] = edgeStart[v] + successors[v].length;
+		}
+		int[] edgeTargets = new int[edgeStart[n]];
+		for (int v = 0; v < n; ++v) {
+			System.arraycopy(successors[v], 0, edgeTargets, edgeStart[v], successors[v].length);
+		}
+		return new Dominators(n, edgeStart, edgeTargets);
+	}
+
+	/*
+	 * d dominates v iff v is not reachable from 0 without going through d;
+	 * the immediate dominator is the strict dominator with the most dominators.
+	 */
+	private static int naiveImmediateDominator(int[][] successors, int v) {
+		if (!reachable(successors, v, -1)) {
+			return Dominators.NONE;
+		}
+		int result = Dominators.NONE;
+		int resultDominatorCount = -1;
+		for (int d = 0; d < successors.length; ++d) {
+			if (d != v && !reachable(successors, v, d)) {
+				int dominatorCount = 0;
+				for (int dd = 0; dd < successors.length; ++dd) {
+					if (dd != d && !reachable(successors, d, dd)) {
+						++dominatorCount;
+					}
+				}
+				if (dominatorCount > resultDominatorCount) {
+					result = d;
+					resultDominatorCount = dominatorCount;
+				}
+			}
+		}
+		return result;
+	}
+
+	private static boolean reachable(int[][] successors, int target, int removed) {
+		if (removed == 0) {
+			return false;
+		}
+		boolean[] seen = new boolean[successors.length];
+		int[] stack = new int[successors.length];
+		int sp = 0;
+		stack[sp++] = 0;
+		seen[0] = true;
+		while (sp > 0) {
+			int v = stack[--sp];
+			if (v == target) {
+				return true;
+			}
+			for (int w : successors[v]) {
+				if (!seen[w] && w != removed) {
+					seen[w] = true;
+					stack[sp++] = w;
+				}
+			}
+		}
+		return false;
+	}
+
+}
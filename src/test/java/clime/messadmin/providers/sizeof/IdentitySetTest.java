@@ -0,0 +1,102 @@
+/**
+ *
+ */
+package clime.messadmin.providers.sizeof;
+
+import junit.framework.TestCase;
+
+/**
+ * @author C&eacute;drik LIME
+ */
+public class IdentitySetTest extends TestCase {
+
+	/**
+	 * Constructor for IdentitySetTest.
+	 * @param name
+	 */
+	public IdentitySetTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(IdentitySetTest.class);
+	}
+
+	public void testIdentity() {
+		IdentitySet set = new IdentitySet(0);
+		String s1 = new String("a");
+		String s2 = new String("a");
+		assertTrue(set.add(s1));
+		assertFalse(set.add(s1));
+		assertTrue(set.contains(s1));
+		assertFalse(set.contains(s2));
+		assertTrue(set.add(s2));
+		assertEquals(2, set.size());
+	}
+
+	public void testGrowth() {
+		IdentitySet set = new IdentitySet(0);
+		Object[] objects = new Object[100000];
+		for (int i = 0; i < objects.length; ++i) {
+			objects[i] = new Object();
+			assertTrue(set.add(objects[i]));
+		}
+		assertEquals(objects.length, set.size());
+		for (int i = 0; i < objects.length; ++i) {
+			assertTrue(set.contains(objects[i]));
+			assertFalse(set.add(objects[i]));
+		}
+		assertFalse(set.contains(new Object()));
+	}
+
+	public void testClear() {
+		IdentitySet set = new IdentitySet(0);
+		Object[] objects = new Object[1000];
+		for (int i = 0; i < objects.length; ++i) {
+			objects[i] = new Object();
+			set.add(objects[i]);
+		}
+		set.clear();
+		assertEquals(0, set.size());
+		for (int i = 0; i < objects.length; ++i) {
+			assertFalse(set.contains(objects[i]));
+		}
+		assertTrue(set.add(objects[0]));
+		assertTrue(set.contains(objects[0]));
+		assertFalse(set.contains(objects[1]));
+	}
+
+	public void testBaseline() {
+		IdentitySet baseline = new IdentitySet(0);
+		Object[] objects = new Object[1000];
+		for (int i = 0; i < objects.length; ++i) {
+			objects[i] = new Object();
+			baseline.add(objects[i]);
+		}
+		baseline = baseline.compact();
+		assertEquals(objects.length, baseline.size());
+		IdentitySet set = IdentitySet.acquire();
+		set.setBaseline(baseline);
+		Object obj = new Object();
+		assertFalse(set.add(objects[0]));
+		assertTrue(set.contains(objects[1]));
+		assertTrue(set.add(obj));
+		assertEquals(1, set.size());
+		assertFalse(baseline.contains(obj));
+		IdentitySet.release(set);
+		IdentitySet other = IdentitySet.acquire();
+		assertTrue(other.add(objects[0]));
+		IdentitySet.release(other);
+	}
+
+	public void testPool() {
+		IdentitySet set = IdentitySet.acquire();
+		Object obj = new Object();
+		set.add(obj);
+		IdentitySet.release(set);
+		IdentitySet other = IdentitySet.acquire();
+		assertEquals(0, other.size());
+		assertFalse(other.contains(obj));
+		IdentitySet.release(other);
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ *
+ */
+package clime.messadmin.providers.sizeof;
+
+import junit.framework.TestCase;
+
+/**
+ * @author C&eacute;drik LIME
+ */
+public class ObjectLayoutTest extends TestCase {
+	private static final ObjectLayout JVM_32BIT = new ObjectLayout(4, false, false, 8, false);
+	private static final ObjectLayout JVM_64BIT_COMPRESSED = new ObjectLayout(8, true, true, 8, false);
+	private static final ObjectLayout JVM_64BIT = new ObjectLayout(8, false, false, 8, false);
+
+	/**
+	 * Constructor for ObjectLayoutTest.
+	 * @param name
+	 */
+	public ObjectLayoutTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(ObjectLayoutTest.class);
+	}
+
+	public void testHeaders() {
+		assertEquals(8, JVM_32BIT.getHeaderSize());
+		assertEquals(12, JVM_64BIT_COMPRESSED.getHeaderSize());
+		assertEquals(16, JVM_64BIT.getHeaderSize());
+		assertEquals(8, JVM_32BIT.getObjectShellSize());
+		assertEquals(16, JVM_64BIT_COMPRESSED.getObjectShellSize());
+		assertEquals(16, JVM_64BIT.getObjectShellSize());
+		assertEquals(4, JVM_64BIT_COMPRESSED.getReferenceSize());
+		assertEquals(8, JVM_64BIT.getReferenceSize());
+	}
+
+	public void testArrays() {
+		assertEquals(16, JVM_32BIT.sizeofArray(1, 4));
+		assertEquals(16, JVM_32BIT.sizeofArray(0, 8));
+		assertEquals(16, JVM_64BIT_COMPRESSED.sizeofArray(0, 4));
+		assertEquals(24, JVM_64BIT_COMPRESSED.sizeofArray(1, 1));
+		assertEquals(56, JVM_64BIT_COMPRESSED.sizeofArray(10, 4));
+		assertEquals(24, JVM_64BIT.sizeofArray(0, 8));
+		assertEquals(104, JVM_64BIT.sizeofArray(10, 8));
+	}
+
+	public void testFieldPacking() {
+		// java.util.Date: long fastTime + Object cdate; the reference fills the alignment gap
+		assertEquals(24, JVM_64BIT_COMPRESSED.align(JVM_64BIT_COMPRESSED.layoutFields(12, 1, 0, 0, 0, 1)));
+		assertEquals(32, JVM_64BIT.align(JVM_64BIT.layoutFields(16, 1, 0, 0, 0, 1)));
+		assertEquals(24, JVM_32BIT.align(JVM_32BIT.layoutFields(8, 1, 0, 0, 0, 1)));
+		// java.lang.Integer
+		assertEquals(16, JVM_64BIT_COMPRESSED.align(JVM_64BIT_COMPRESSED.layoutFields(12, 0, 1, 0, 0, 0)));
+		// java.lang.Long: padding before the long field
+		assertEquals(24, JVM_64BIT_COMPRESSED.align(JVM_64BIT_COMPRESSED.layoutFields(12, 1, 0, 0, 0, 0)));
+		// java.lang.Boolean
+		assertEquals(16, JVM_64BIT_COMPRESSED.align(JVM_64BIT_COMPRESSED.layoutFields(12, 0, 0, 0, 1, 0)));
+		// subclass fields start after the superclass ones
+		int superEnd = JVM_64BIT_COMPRESSED.layoutFields(12, 0, 0, 0, 1, 0);
+		assertEquals(20, JVM_64BIT_COMPRESSED.layoutFields(superEnd, 0, 0, 0, 0, 1));
+	}
+
+	public void testAlignment() {
+		ObjectLayout layout = new ObjectLayout(8, true, true, 16, false);
+		assertEquals(16, layout.getObjectShellSize());
+		assertEquals(32, layout.align(17));
+		assertEquals(32L, layout.align(17L));
+	}
+}
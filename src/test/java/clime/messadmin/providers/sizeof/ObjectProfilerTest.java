@@ -3,13 +3,24 @@
  */
 package clime.messadmin.providers.sizeof;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSession;
@@ -119,13 +130,20 @@ public class ObjectProfilerTest extends TestCase {
 		assertEquals(0, ObjectProfiler.sizeof(Locale.FRENCH));
 		assertEquals(0, ObjectProfiler.sizeof(Collections.EMPTY_LIST));
 		assertEquals(0, ObjectProfiler.sizeof(BigInteger.ONE));
-		assertEquals(8, ObjectProfiler.sizeof(new Object()));
-		assertEquals(20, ObjectProfiler.sizeof(new Date()));
-		assertEquals(40, ObjectProfiler.sizeof(new String()));
-		assertEquals(16, ObjectProfiler.sizeof(new Object[0]));
-		assertEquals(16, ObjectProfiler.sizeof(new String[0]));
-		assertEquals(56, ObjectProfiler.sizeof(new Object[10]));
-		assertEquals(56, ObjectProfiler.sizeof(new String[10]));
+		ObjectLayout layout = ObjectLayout.getInstance();
+		int refSize = layout.getReferenceSize();
+		assertEquals(layout.getObjectShellSize(), ObjectProfiler.sizeof(new Object()));
+		// long fastTime + BaseCalendar.Date cdate
+		assertEquals(layout.align(layout.getHeaderSize() + 8 + refSize), ObjectProfiler.sizeof(new Date()));
+		if (layout.getHeaderSize() == 12 && refSize == 4) {
+			// 64 bits, compressed oops
+			assertEquals(40, ObjectProfiler.sizeof(new String()));
+		}
+		assertEquals(layout.sizeofArray(0, refSize), ObjectProfiler.sizeof(new Object[0]));
+		assertEquals(layout.sizeofArray(0, refSize), ObjectProfiler.sizeof(new String[0]));
+		assertEquals(layout.sizeofArray(10, refSize), ObjectProfiler.sizeof(new Object[10]));
+		assertEquals(layout.sizeofArray(10, refSize), ObjectProfiler.sizeof(new String[10]));
+		assertEquals(layout.sizeofArray(3, 8), ObjectProfiler.sizeof(new long[3]));
 
 		System.out.println("sizeOf(HitsCounter) == " + ObjectProfiler.sizeof(new HitsCounter()));
 		System.out.println("sizeOf(MinMaxTracker) == " + ObjectProfiler.sizeof(new MinMaxTracker()));
@@ -140,6 +158,736 @@ public class ObjectProfilerTest extends TestCase {
 		System.out.println("sizeOf(empty ServerInfo) == " + ObjectProfiler.sizeof(new ServerInfo()));
 	}
 
+	public void testSizeofParallel() {
+		assertEquals(0, ObjectProfiler.sizeofParallel(null));
+		assertEquals(0, ObjectProfiler.sizeofParallel(Boolean.TRUE));
+		assertEquals(ObjectProfiler.sizeof(new Date()), ObjectProfiler.sizeofParallel(new Date()));
+
+		Map<Integer, Object> map = new HashMap<Integer, Object>();
+		Object[] shared = new Object[] {new Date(), "shared"};
+		for (int i = 0; i < 50000; ++i) {
+			List<Object> list = new ArrayList<Object>();
+			list.add(new Date(i));
+			list.add(shared);
+			map.put(Integer.valueOf(i), list);
+		}
+		Object[] bigArray = new Object[100000];
+		for (int i = 0; i < bigArray.length; ++i) {
+			bigArray[i] = (i % 3 == 0) ? shared : new Object[] {Integer.valueOf(i)};
+		}
+		Object graph = new Object[] {map, bigArray, map};
+		long expected = ObjectProfiler.sizeof(graph);
+		assertTrue(expected > 0);
+		assertEquals(expected, ObjectProfiler.sizeofParallel(graph));
+
+		// a map node which is also referenced from outside its map
+		Map<Object, Object> hashMap = new HashMap<Object, Object>(map);
+		Object[] maps = {hashMap, hashMap.entrySet().iterator().next(),
+				new LinkedHashMap<Object, Object>(map), new java.util.concurrent.ConcurrentHashMap<Object, Object>(map)};
+		assertEquals(ObjectProfiler.sizeof(maps), ObjectProfiler.sizeofParallel(maps));
+	}
+
+	public void testSizeofAll() {
+		Object shared = new ArrayList<Object>(Collections.nCopies(100, "shared"));
+		List<Object> root0 = new ArrayList<Object>();
+		root0.add(new Date());
+		root0.add(shared);
+		Map<String, Object> root1 = new HashMap<String, Object>();
+		root1.put("shared", shared);
+		root1.put("own", new Object[] {new Date(), "own"});
+		Object[] root2 = new Object[] {root0}; // root0 is itself shared with root2
+		Object[] roots = new Object[] {root0, null, root1, root2, Boolean.TRUE};
+
+		BatchSizeResult result = ObjectProfiler.sizeofAll(roots);
+		assertNotNull(result);
+		assertEquals(roots.length, result.getRootCount());
+		long exclusiveTotal = 0;
+		for (int i = 0; i < roots.length; ++i) {
+			assertEquals("root " + i, ObjectProfiler.sizeof(roots[i]), result.getSize(i));
+			exclusiveTotal += result.getExclusiveSize(i);
+		}
+		assertEquals(0, result.getSize(1));
+		assertEquals(0, result.getSize(4));
+		assertEquals(0, result.getExclusiveSize(0));
+		assertEquals(ObjectProfiler.sizeof(root0), result.getSharedSize(0));
+		assertEquals(ObjectProfiler.sizeof(root2) - ObjectProfiler.sizeof(root0), result.getExclusiveSize(3));
+		assertEquals(ObjectProfiler.sizeof(shared), result.getSharedSize(2));
+		// flyweight roots are not sized, but flyweights reachable from a root are
+		Object[] sizedRoots = new Object[] {root0, root1, root2};
+		assertEquals(ObjectProfiler.sizeof(sizedRoots), result.getTotalSize() + ObjectProfiler.sizeof(new Object[sizedRoots.length]));
+		assertEquals(result.getTotalSize(), exclusiveTotal + result.getSharedTotalSize());
+
+		// roots reaching the same shared entry points, in any order
+		Object shared2 = new Object[] {new Date(), "shared2"};
+		Object[] sessions = new Object[10];
+		for (int i = 0; i < sessions.length; ++i) {
+			sessions[i] = (i % 2 == 0) ? new Object[] {shared, shared2, new Date()} : new Object[] {shared2, shared};
+		}
+		result = ObjectProfiler.sizeofAll(sessions);
+		for (int i = 0; i < sessions.length; ++i) {
+			assertEquals("session " + i, ObjectProfiler.sizeof(sessions[i]), result.getSize(i));
+			assertEquals(ObjectProfiler.sizeof(new Object[] {shared, shared2}) - ObjectProfiler.sizeof(new Object[2]),
+					result.getSharedSize(i));
+		}
+	}
+
+	public void testSizeofBudget() {
+		List<Object> graph = new ArrayList<Object>();
+		for (int i = 0; i < 10000; ++i) {
+			graph.add(new Object[] {new Date(), Integer.toString(i)});
+		}
+		long expected = ObjectProfiler.sizeof(graph);
+
+		SizeOfResult result = ObjectProfiler.sizeof(graph, (SizeOfBudget) null);
+		assertFalse(result.isPartial());
+		assertEquals(expected, result.getSize());
+		assertEquals(expected, result.getEstimatedSize());
+
+		result = ObjectProfiler.sizeof(graph, new SizeOfBudget(1000, 0, 0));
+		assertTrue(result.isPartial());
+		// a String is sized along with its internal array: the budget may be exceeded by one
+		assertTrue(result.getObjectCount() >= 1000 && result.getObjectCount() <= 1001);
+		assertTrue(result.getPendingCount() > 0);
+		assertTrue(result.getSize() < expected);
+		assertTrue(result.getEstimatedSize() > result.getSize());
+		assertTrue(result.getEstimatedSize() <= expected);
+
+		result = ObjectProfiler.sizeof(graph, new SizeOfBudget(0, 4096, 0));
+		assertTrue(result.isPartial());
+		assertTrue(result.getSize() >= 4096);
+		assertTrue(result.getSize() < expected);
+
+		SizeOfBudget budget = new SizeOfBudget(0, 0, 0);
+		budget.cancel();
+		result = ObjectProfiler.sizeof(graph, budget);
+		assertTrue(result.isPartial());
+		assertTrue(result.getSize() < expected);
+
+		assertEquals(0, ObjectProfiler.sizeof(null, budget).getSize());
+
+		// large arrays are walked in chunks, checking the budget
+		Object[] bigArray = new Object[100000];
+		Arrays.fill(bigArray, new Date());
+		result = ObjectProfiler.sizeof(bigArray, budget);
+		assertTrue(result.isPartial());
+		assertEquals(2, result.getObjectCount());
+		for (int i = 0; i < bigArray.length; ++i) {
+			bigArray[i] = new Date(i);
+		}
+		result = ObjectProfiler.sizeof(bigArray, new SizeOfBudget(10, 0, 0));
+		assertTrue(result.isPartial());
+		assertEquals(10, result.getObjectCount());
+		assertTrue(Long.toString(result.getPendingCount()), Math.abs(result.getPendingCount() - (bigArray.length - 9)) < bigArray.length / 10);
+		result = ObjectProfiler.sizeof(bigArray, (SizeOfBudget) null);
+		assertFalse(result.isPartial());
+		assertEquals(ObjectProfiler.sizeof(bigArray), result.getSize());
+	}
+
+	public void testSizeofSampled() {
+		List<Object> list = new ArrayList<Object>();
+		Map<Object, Object> map = new LinkedHashMap<Object, Object>();
+		for (int i = 0; i < 100000; ++i) {
+			// elements of different sizes (whatever the String layout), for a non-zero variance
+			list.add(new Object[] {new Date(), Integer.toString(i), new long[i % 7]});
+			map.put(Integer.valueOf(i), new Date());
+		}
+		long expected = ObjectProfiler.sizeof(list);
+		SizeOfResult result = ObjectProfiler.sizeofSampled(list, 10000, 1000);
+		assertTrue(result.isPartial());
+		assertTrue(result.getObjectCount() < 10000);
+		assertTrue(result.getSize() < expected);
+		assertTrue(result.getErrorMargin() > 0);
+		assertEquals(expected, result.getEstimatedSize(), expected / 20);
+
+		// each map entry is reachable from the table and from the linked list:
+		// the walks of the sampled entries go through all the others, which are not extrapolated
+		expected = ObjectProfiler.sizeof(map);
+		result = ObjectProfiler.sizeofSampled(map, 10000, 1000);
+		assertEquals(expected, result.getSize());
+		assertEquals(expected, result.getEstimatedSize(), expected / 20);
+
+		// duplicates are counted once
+		Object[] duplicates = new Object[100000];
+		Object shared = new Object[] {new Date(), "shared"};
+		for (int i = 0; i < duplicates.length; ++i) {
+			duplicates[i] = (i % 3 == 0) ? shared : new long[i % 7];
+		}
+		expected = ObjectProfiler.sizeof(duplicates);
+		result = ObjectProfiler.sizeofSampled(duplicates, 10000, 1000);
+		assertTrue(result.isPartial());
+		assertEquals(expected, result.getEstimatedSize(), expected / 20);
+
+		// below threshold
+		result = ObjectProfiler.sizeofSampled(list, list.size() * 2, 1000);
+		assertFalse(result.isPartial());
+		assertEquals(ObjectProfiler.sizeof(list), result.getSize());
+		assertEquals(result.getSize(), result.getEstimatedSize());
+	}
+
+	public void testHistogram() {
+		List<Object> graph = new ArrayList<Object>();
+		for (int i = 0; i < 100; ++i) {
+			graph.add(new Date());
+			graph.add(new long[100]);
+		}
+		ClassHistogram histogram = ObjectProfiler.histogram(graph);
+		assertEquals(ObjectProfiler.sizeof(graph), histogram.getTotalSize());
+		assertEquals(202, histogram.getTotalCount()); // + ArrayList and its Object[]
+		assertEquals(histogram.getTotalSize(), histogram.getArraySize() + histogram.getInstanceSize());
+		assertEquals(101, histogram.getArrayCount());
+		assertEquals(100, histogram.getEntry(Date.class).getCount());
+		assertEquals(100 * ObjectProfiler.sizeof(new Date()), histogram.getEntry(Date.class).getSize());
+		assertNull(histogram.getEntry(String.class));
+		assertEquals(4, histogram.getClassCount());
+		List<ClassHistogram.Entry> top = histogram.getTopEntries(2);
+		assertEquals(2, top.size());
+		assertEquals(long[].class, top.get(0).getType());
+		assertTrue(top.get(0).isArray());
+		assertTrue(top.get(0).getSize() >= top.get(1).getSize());
+		assertEquals(4, histogram.getEntries().size());
+
+		assertEquals(0, ObjectProfiler.histogram(null).getTotalSize());
+	}
+
+	public void testRetainedSizes() {
+		Object shared = new long[1000];
+		Object[] own = new Object[] {new long[100], shared};
+		Object[] other = new Object[] {shared};
+		Object[] root = new Object[] {own, other, new Object[] {own}};
+
+		RetainedSizeResult result = ObjectProfiler.retainedSizes(root, 3);
+		assertEquals(ObjectProfiler.sizeof(root), result.getTotalSize());
+		assertEquals(6, result.getObjectCount());
+		assertEquals(3, result.getFields().size());
+		for (RetainedSizeResult.Entry field : result.getFields()) {
+			if ("[0]".equals(field.getName())) {
+				// 'own' is also referenced by root[2]
+				assertEquals(0, field.getRetainedSize());
+			} else if ("[1]".equals(field.getName())) {
+				// 'shared' is also referenced by 'own'
+				assertEquals(ObjectProfiler.sizeof(new Object[1]), field.getRetainedSize());
+				assertEquals(1, field.getRetainedCount());
+			} else {
+				assertEquals("[2]", field.getName());
+				assertEquals(ObjectProfiler.sizeof(new Object[1]), field.getRetainedSize());
+			}
+		}
+		List<RetainedSizeResult.Entry> top = result.getTopDominators();
+		assertEquals(3, top.size());
+		// 'own' dominates its long[100], but not 'shared' (also referenced by 'other')
+		assertEquals(long[].class, top.get(0).getType());
+		assertEquals(ObjectProfiler.sizeof(shared), top.get(0).getRetainedSize());
+		assertEquals(Object[].class, top.get(1).getType());
+		assertEquals(ObjectProfiler.sizeof(own) - ObjectProfiler.sizeof(shared), top.get(1).getRetainedSize());
+		assertEquals(2, top.get(1).getRetainedCount());
+
+		// fields of a plain object
+		Date date = new Date();
+		List<Object> list = new ArrayList<Object>();
+		list.add(date);
+		result = ObjectProfiler.retainedSizes(list, 10);
+		assertEquals(ObjectProfiler.sizeof(list), result.getTotalSize());
+		assertEquals(1, result.getFields().size());
+		assertEquals("elementData", result.getFields().get(0).getName());
+		assertEquals(ObjectProfiler.sizeof(list) - ObjectProfiler.getClassMetadata(ArrayList.class).m_shellSize,
+				result.getFields().get(0).getRetainedSize());
+	}
+
+	public void testDuplicates() {
+		List<Object> root = new ArrayList<Object>();
+		for (int i = 0; i < 10; ++i) {
+			root.add(new String("duplicate".toCharArray()));
+			root.add(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+		}
+		String unique = "unique";
+		root.add(unique);
+		root.add(unique); // same instance: not a duplicate
+		root.add(new int[] {1, 2});
+		root.add(new long[] {1, 2}); // same values, other type
+
+		DuplicateResult result = ObjectProfiler.duplicates(root, 10);
+		assertEquals(ObjectProfiler.sizeof(root), result.getTotalSize());
+		assertEquals(2, result.getDuplicateGroupCount());
+		assertEquals(18, result.getDuplicateCount());
+		List<DuplicateResult.Group> top = result.getTopGroups();
+		assertEquals(2, top.size());
+		assertTrue(top.get(0).getWastedSize() >= top.get(1).getWastedSize());
+		long wasted = 0;
+		for (DuplicateResult.Group group : top) {
+			assertEquals(10, group.getCount());
+			assertEquals(group.getSize() * 9 / 10, group.getWastedSize());
+			if (group.getType() == String.class) {
+				assertEquals("duplicate", group.getPreview());
+				assertEquals(9 * ObjectProfiler.sizeof("duplicate"), group.getWastedSize());
+			} else {
+				assertEquals(byte[].class, group.getType());
+				assertEquals(9 * ObjectProfiler.sizeof(new byte[8]), group.getWastedSize());
+			}
+			wasted += group.getWastedSize();
+		}
+		assertEquals(wasted, result.getWastedSize());
+
+		assertEquals(0, ObjectProfiler.duplicates(null, 10).getObjectCount());
+	}
+
+	public void testSlack() {
+		Map<String, String> map = new HashMap<String, String>(1024);
+		map.put("a", "1");
+		map.put("b", "2");
+		map.put("c", "3");
+		List<Object> list = new ArrayList<Object>(10000);
+		for (int i = 0; i < 5; ++i) {
+			list.add(map);
+		}
+		StringBuilder builder = new StringBuilder(1000).append("abc");
+		List<Object> trimmed = new ArrayList<Object>(Collections.nCopies(5, "trimmed"));
+		Object[] roots = new Object[] {list, null, builder, trimmed};
+
+		SlackResult result = ObjectProfiler.slack(roots);
+		assertEquals(4, result.getRootCount());
+		assertEquals(ObjectProfiler.sizeofAll(roots).getTotalSize(), result.getTotalSize());
+		assertEquals(ObjectProfiler.sizeof(list), result.getSize(0));
+		assertEquals(0, result.getSize(1));
+		long mapSlack = ObjectProfiler.sizeof(new Object[1024]) - ObjectProfiler.sizeof(new Object[4]);
+		long listSlack = ObjectProfiler.sizeof(new Object[10000]) - ObjectProfiler.sizeof(new Object[5]);
+		long builderSlack = ObjectProfiler.sizeof(new StringBuilder(1000)) - ObjectProfiler.sizeof(new StringBuilder(3));
+		assertEquals(listSlack + mapSlack, result.getSlack(0));
+		assertEquals(builderSlack, result.getSlack(2));
+		assertEquals(0, result.getSlack(3));
+		assertEquals(listSlack + mapSlack + builderSlack, result.getSlack());
+		assertEquals(result.getSlack(), result.getAllocatedSize() - result.getUsedSize());
+
+		List<SlackResult.Entry> entries = result.getEntries();
+		assertEquals(3, entries.size());
+		assertEquals(ArrayList.class, entries.get(0).getType());
+		assertEquals(2, entries.get(0).getCount());
+		assertEquals(listSlack, entries.get(0).getSlack());
+		assertEquals(HashMap.class, entries.get(1).getType());
+		assertEquals(mapSlack, entries.get(1).getSlack());
+		assertEquals(StringBuilder.class, entries.get(2).getType());
+	}
+
+	public void testOffHeap() throws IOException {
+		ByteBuffer direct = ByteBuffer.allocateDirect(1024 * 1024);
+		direct.position(1024);
+		List<Object> graph = new ArrayList<Object>();
+		graph.add(direct);
+		graph.add(direct.slice()); // same memory
+		graph.add(direct.duplicate()); // same memory
+		graph.add(direct.asIntBuffer()); // same memory
+		graph.add(ByteBuffer.allocateDirect(1000));
+		graph.add(ByteBuffer.allocate(1000)); // heap
+		SizeOfResult result = ObjectProfiler.sizeof(graph, (SizeOfBudget) null);
+		assertEquals(ObjectProfiler.sizeof(graph), result.getSize());
+		assertEquals(1024 * 1024 + 1000, result.getOffHeapSize());
+		// recorded by the shared traversal, whatever the engine and the result type
+		assertEquals(1024 * 1024 + 1000, ObjectProfiler.sizeofSampled(graph, 100, 2).getOffHeapSize());
+		assertEquals(1024 * 1024 + 1000, ObjectProfiler.histogram(graph).getOffHeapSize());
+		BatchSizeResult batch = ObjectProfiler.sizeofAll(new Object[] {graph, direct, graph.get(4)});
+		assertEquals(1024 * 1024 + 1000, batch.getOffHeapSize());
+		assertEquals(result.getSize(), batch.getTotalSize());
+		OffHeapMemory offHeap = new OffHeapMemory();
+		assertEquals(result.getSize(), ObjectProfiler.sizeof(graph, null, offHeap));
+		assertEquals(1024 * 1024 + 1000, offHeap.getSize());
+		File exported = File.createTempFile("sizeof", ".graph");
+		try {
+			ObjectProfiler.export(graph, exported);
+			assertEquals(1024 * 1024 + 1000, ObjectGraphReader.readHistogram(exported).getOffHeapSize());
+		} finally {
+			exported.delete();
+		}
+		assertEquals(0, ObjectProfiler.histogram(new Object[] {ByteBuffer.allocate(1000)}).getOffHeapSize());
+
+		File file = File.createTempFile("sizeof", ".mapped");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 4096);
+			graph.add(mapped);
+			assertEquals(1024 * 1024 + 1000 + 4096, ObjectProfiler.sizeof(graph, (SizeOfBudget) null).getOffHeapSize());
+			assertEquals(0, ObjectProfiler.sizeof(new Object[] {ByteBuffer.allocate(1000)}, (SizeOfBudget) null).getOffHeapSize());
+		} finally {
+			raf.close();
+			file.delete();
+		}
+	}
+
+	public void testExport() throws IOException {
+		List<Object> graph = new ArrayList<Object>();
+		for (int i = 0; i < 100; ++i) {
+			graph.add(new Date());
+			graph.add(new long[i]);
+		}
+		graph.add(graph);
+		File file = File.createTempFile("sizeof", ".graph");
+		try {
+			long size = ObjectProfiler.sizeof(graph);
+			long calls = SizeOfStatistics.getInstance().getCallCount();
+			assertEquals(size, ObjectProfiler.export(graph, file));
+			assertEquals(calls + 1, SizeOfStatistics.getInstance().getCallCount());
+
+			ClassHistogram expected = ObjectProfiler.histogram(graph);
+			ClassHistogram histogram = ObjectGraphReader.readHistogram(file);
+			assertEquals(expected.getTotalSize(), histogram.getTotalSize());
+			assertEquals(expected.getTotalCount(), histogram.getTotalCount());
+			assertEquals(expected.getArraySize(), histogram.getArraySize());
+			assertEquals(expected.getClassCount(), histogram.getClassCount());
+			ClassHistogram.Entry dates = histogram.getEntry(Date.class.getName());
+			assertNull(dates.getType());
+			assertEquals(expected.getEntry(Date.class).getSize(), dates.getSize());
+			assertEquals(100, dates.getCount());
+
+			ObjectGraphReader reader = new ObjectGraphReader(file);
+			try {
+				assertTrue(reader.next());
+				assertEquals(0, reader.getNodeId());
+				assertEquals(ArrayList.class.getName(), reader.getClassName());
+				assertEquals(1, reader.getEdgeCount()); // elementData
+				int nodes = 1;
+				int edges = 1;
+				while (reader.next()) {
+					++nodes;
+					edges += reader.getEdgeCount();
+				}
+				assertEquals(nodes, reader.getNodeCount());
+				assertEquals(202, nodes);
+				assertEquals(1 + 201, edges); // elementData + its slots
+				assertEquals(expected.getTotalSize(), reader.getTotalSize());
+			} finally {
+				reader.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testClassMetadata() throws Exception {
+		ObjectProfiler.ClassMetadata metadata = ObjectProfiler.getClassMetadata(Integer.class);
+		assertSame(metadata, ObjectProfiler.getClassMetadata(Integer.class));
+		assertTrue(metadata.m_leaf);
+		assertFalse(metadata.m_flyweightType);
+		assertFalse(ObjectProfiler.getClassMetadata(ArrayList.class).m_leaf);
+		assertTrue(ObjectProfiler.getClassMetadata(Thread.State.class).m_flyweightType);
+		assertTrue(ObjectProfiler.getClassMetadata(Class.class).m_flyweightType);
+
+		// leaves are sized without being queued
+		List<Object> list = new ArrayList<Object>(1000);
+		for (int i = 0; i < 1000; ++i) {
+			list.add(Long.valueOf(i));
+		}
+		assertEquals(ObjectProfiler.sizeof(list.toArray()) + ObjectProfiler.getClassMetadata(ArrayList.class).m_shellSize,
+				ObjectProfiler.sizeof(list));
+
+		// the cache does not pin the class loader of the sized objects
+		ClassLoader loader = new LeafClassLoader();
+		Class<?> leafClass = loader.loadClass(Leaf.class.getName());
+		assertNotSame(Leaf.class, leafClass);
+		assertEquals(ObjectProfiler.sizeof(new Leaf()), ObjectProfiler.sizeof(leafClass.getConstructor().newInstance()));
+		java.lang.ref.WeakReference<ClassLoader> loaderRef = new java.lang.ref.WeakReference<ClassLoader>(loader);
+		loader = null;
+		leafClass = null;
+		for (int i = 0; i < 20 && loaderRef.get() != null; ++i) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		assertNull("class loader pinned", loaderRef.get());
+
+		// nor the class loader of this library, when it sizes JDK objects (web application undeployment)
+		java.net.URL[] libraryPath = {
+				ObjectProfiler.class.getProtectionDomain().getCodeSource().getLocation(),
+				javax.servlet.ServletContext.class.getProtectionDomain().getCodeSource().getLocation()};
+		loader = new java.net.URLClassLoader(libraryPath, ClassLoader.getSystemClassLoader().getParent());
+		Class<?> profilerClass = loader.loadClass(ObjectProfiler.class.getName());
+		assertNotSame(ObjectProfiler.class, profilerClass);
+		Object sized = new ArrayList<Object>(Collections.singletonList("sized by another copy of the library"));
+		assertEquals(Long.valueOf(ObjectProfiler.sizeof(sized)), profilerClass.getMethod("sizeof", Object.class).invoke(null, sized));
+		loaderRef = new java.lang.ref.WeakReference<ClassLoader>(loader);
+		loader = null;
+		profilerClass = null;
+		for (int i = 0; i < 20 && loaderRef.get() != null; ++i) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		assertNull("library class loader pinned", loaderRef.get());
+
+		// the metadata of these classes is only kept for the last ones: it is computed again once evicted
+		java.lang.reflect.InvocationHandler handler = new java.lang.reflect.InvocationHandler() {
+			public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args) {
+				return null;
+			}
+		};
+		Object[] proxies = new Object[ObjectProfiler.FOREIGN_CLASS_METADATA_CAPACITY + 16];
+		java.lang.ref.WeakReference<ObjectProfiler.ClassMetadata> evicted = null;
+		for (int i = 0; i < proxies.length; ++i) {
+			ClassLoader proxyLoader = new ClassLoader(null) {}; // not a descendant of the library class loader
+			proxies[i] = java.lang.reflect.Proxy.newProxyInstance(proxyLoader, new Class<?>[] {Runnable.class}, handler);
+			if (i == 0) {
+				evicted = new java.lang.ref.WeakReference<ObjectProfiler.ClassMetadata>(
+						ObjectProfiler.getClassMetadata(proxies[0].getClass()));
+			}
+		}
+		long proxiesSize = ObjectProfiler.sizeof(proxies);
+		for (int i = 0; i < 20 && evicted.get() != null; ++i) {
+			System.gc();
+			Thread.sleep(50);
+		}
+		assertNull("evicted class metadata kept", evicted.get());
+		assertNotNull(ObjectProfiler.getClassMetadata(proxies[0].getClass()));
+		assertEquals(proxiesSize, ObjectProfiler.sizeof(proxies));
+	}
+
+	public static class Leaf {
+		long m_value;
+	}
+
+	/*
+	 * Loads its own copy of the Leaf class.
+	 */
+	private static class LeafClassLoader extends ClassLoader {
+		LeafClassLoader() {
+			super(LeafClassLoader.class.getClassLoader());
+		}
+		@Override
+		protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+			if (!Leaf.class.getName().equals(name)) {
+				return super.loadClass(name, resolve);
+			}
+			try {
+				java.io.InputStream in = getParent().getResourceAsStream(name.replace('.', '/') + ".class");
+				java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+				byte[] buffer = new byte[4096];
+				int n;
+				while ((n = in.read(buffer)) > 0) {
+					bytes.write(buffer, 0, n);
+				}
+				in.close();
+				return defineClass(name, bytes.toByteArray(), 0, bytes.size());
+			} catch (IOException ioe) {
+				throw new ClassNotFoundException(name, ioe);
+			}
+		}
+	}
+
+	public static final Object SINGLETON = new Date();
+
+	public void testSharedFlyweights() {
+		assertTrue(FlyweightRegistry.contains(Locale.ROOT));
+		assertFalse(FlyweightRegistry.contains(new Object()));
+		// shared constants are skipped everywhere in the graph, not only as root
+		Object[] constants = {Boolean.TRUE, Locale.US, BigInteger.ONE, Thread.State.NEW, String.class};
+		long arraySize = ObjectProfiler.sizeof(new Object[constants.length]);
+		assertEquals(arraySize, ObjectProfiler.sizeof(constants));
+		assertEquals(arraySize, ObjectProfiler.sizeofParallel(constants));
+		assertEquals(arraySize, ObjectProfiler.sizeof(constants, (SizeOfBudget) null).getSize());
+		assertEquals(1, ObjectProfiler.histogram(constants).getClassCount());
+
+		// application singletons
+		Object[] array = {SINGLETON};
+		long size = ObjectProfiler.sizeof(array);
+		assertEquals(1, FlyweightRegistry.registerConstants(ObjectProfilerTest.class));
+		try {
+			assertEquals(ObjectProfiler.sizeof(new Object[1]), ObjectProfiler.sizeof(array));
+		} finally {
+			FlyweightRegistry.unregisterConstants(ObjectProfilerTest.class);
+		}
+		assertEquals(size, ObjectProfiler.sizeof(array));
+	}
+
+	public void testTraversalBoundaries() throws Exception {
+		// default boundaries: the container is not walked
+		Object[] array = {Thread.currentThread(), getClass().getClassLoader()};
+		long arraySize = ObjectProfiler.sizeof(new Object[array.length]);
+		assertEquals(arraySize, ObjectProfiler.sizeof(array));
+		assertEquals(arraySize, ObjectProfiler.sizeofParallel(array));
+		assertEquals(arraySize, ObjectProfiler.sizeof(array, (SizeOfBudget) null).getSize());
+		// ...unless explicitly measured
+		assertTrue(ObjectProfiler.sizeof(Thread.currentThread()) > 0);
+
+		BoundaryTraversalFilter filter = new BoundaryTraversalFilter(java.util.Arrays.asList(
+				"java.util.AbstractMap", "java.util.concurrent.*", "java.util.Date#cdate", "java.lang.Runnable"));
+		assertTrue(filter.isBoundary(HashMap.class));
+		assertFalse(filter.isBoundary(ArrayList.class));
+		assertTrue(filter.isBoundary(java.util.concurrent.atomic.AtomicLong.class));
+		assertTrue(filter.isBoundary(Thread.class)); // implements Runnable
+		assertTrue(filter.isBoundary(Date.class.getDeclaredField("cdate")));
+		assertFalse(filter.isBoundary(Date.class.getDeclaredField("fastTime")));
+	}
+
+	public void testSizedeltaBaseline() {
+		Map<String, Object> shared = new HashMap<String, Object>();
+		for (int i = 0; i < 100; ++i) {
+			shared.put("key" + i, new ArrayList<Object>(Collections.nCopies(10, new Object())));
+		}
+		Baseline baseline = ObjectProfiler.baseline(shared);
+		assertEquals(ObjectProfiler.sizeof(shared), baseline.getSize());
+		assertEquals(0, ObjectProfiler.sizedelta(baseline, shared));
+		assertEquals(0, ObjectProfiler.sizedelta(baseline, shared.get("key1")));
+		for (int i = 0; i < 3; ++i) {
+			List<Object> obj = new ArrayList<Object>(shared.values());
+			obj.add(new Object());
+			assertEquals(ObjectProfiler.sizedelta(shared, obj), ObjectProfiler.sizedelta(baseline, obj));
+		}
+		// the baseline is not modified by the deltas
+		assertEquals(ObjectProfiler.sizeof(new Object()), ObjectProfiler.sizedelta(baseline, new Object()));
+	}
+
+	/**
+	 * Keys with colliding hash codes, for tree bins.
+	 */
+	private static final class CollidingKey implements Comparable<CollidingKey> {
+		private final int m_value;
+		CollidingKey(int value) {
+			m_value = value;
+		}
+		@Override
+		public int hashCode() {
+			return m_value % 4;
+		}
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof CollidingKey && ((CollidingKey) obj).m_value == m_value;
+		}
+		public int compareTo(CollidingKey other) {
+			return (m_value < other.m_value) ? -1 : ((m_value == other.m_value) ? 0 : 1);
+		}
+	}
+
+	public void testFastSizers() {
+		String shared = new String("shared");
+		List<Object> list = new ArrayList<Object>();
+		Map<Object, Object> hashMap = new HashMap<Object, Object>();
+		Map<Object, Object> linkedHashMap = new LinkedHashMap<Object, Object>();
+		Map<Object, Object> concurrentMap = new java.util.concurrent.ConcurrentHashMap<Object, Object>();
+		for (int i = 0; i < 200; ++i) {
+			list.add((i % 2 == 0) ? shared : new String("s" + i));
+			hashMap.put(new CollidingKey(i), new Date(i)); // tree bins
+			linkedHashMap.put("k" + i, list);
+			concurrentMap.put((i % 10 == 0) ? new CollidingKey(i) : Integer.valueOf(i), shared);
+		}
+		hashMap.put("self", hashMap);
+		hashMap.keySet(); // view
+		Object[] graph = {list, hashMap, linkedHashMap, concurrentMap, shared, new Date(),
+				new ArrayList<Object>(), new HashMap<Object, Object>()};
+		if (UnsafeAccess.AVAILABLE) {
+			assertNotNull(ObjectProfiler.getClassMetadata(String.class).m_fastSizer);
+			assertNotNull(ObjectProfiler.getClassMetadata(HashMap.class).m_fastSizer);
+			assertNotNull(ObjectProfiler.getClassMetadata(java.util.concurrent.ConcurrentHashMap.class).m_fastSizer);
+		}
+		// generic traversal (the sampling engine does not use the FastSizers)
+		SizeOfResult generic = ObjectProfiler.sizeofSampled(graph, Integer.MAX_VALUE, 2);
+		long expected = generic.getSize();
+		assertEquals(expected, ObjectProfiler.sizeof(graph));
+		assertEquals(expected, ObjectProfiler.sizeof(graph, (SizeOfBudget) null).getSize());
+		ClassHistogram histogram = ObjectProfiler.histogram(graph);
+		assertEquals(expected, histogram.getTotalSize());
+		assertEquals(generic.getObjectCount(), histogram.getTotalCount());
+		assertEquals(generic.getObjectCount(), ObjectProfiler.sizeof(graph, (SizeOfBudget) null).getObjectCount());
+		for (int i = 0; i < graph.length; ++i) {
+			assertEquals(ObjectProfiler.sizeofSampled(graph[i], Integer.MAX_VALUE, 2).getSize(), ObjectProfiler.sizeof(graph[i]));
+		}
+
+		// map nodes which are also referenced from outside their map (entry, iterator) are counted once
+		Map<Object, Object> linkedMap = new LinkedHashMap<Object, Object>();
+		for (int i = 0; i < 10000; ++i) {
+			linkedMap.put(Integer.valueOf(i), "v" + i);
+		}
+		Map<Object, Object> concurrentCopy = new java.util.concurrent.ConcurrentHashMap<Object, Object>(linkedMap);
+		Iterator<?> concurrentIterator = concurrentCopy.entrySet().iterator();
+		concurrentIterator.next();
+		Object[][] graphs = {
+				{linkedMap, linkedMap.entrySet().iterator().next()},
+				{linkedMap.entrySet().iterator().next(), linkedMap}, // the entry is walked first
+				{linkedMap, linkedMap.entrySet().iterator()},
+				{concurrentCopy, concurrentIterator},
+				{concurrentIterator, concurrentCopy}};
+		for (int i = 0; i < graphs.length; ++i) {
+			expected = ObjectProfiler.sizeofSampled(graphs[i], Integer.MAX_VALUE, 2).getSize();
+			assertEquals(expected, ObjectProfiler.sizeof(graphs[i], (SizeOfBudget) null).getSize());
+			assertEquals(expected, ObjectProfiler.sizeof(graphs[i]));
+			assertEquals(expected, ObjectProfiler.sizeofAll(new Object[] {graphs[i]}).getTotalSize());
+			assertTrue(expected < ObjectProfiler.sizeof(graphs[i][0]) + ObjectProfiler.sizeof(graphs[i][1]));
+		}
+		assertTrue(ObjectProfiler.sizeof(graphs[0]) < ObjectProfiler.sizeof(linkedMap) + 100);
+	}
+
+	private static class WalkedNode {
+		Object m_leaf = Integer.valueOf(12345);
+		Object m_child = new Object[1];
+		Object m_null = null;
+		WalkedNode m_self = this;
+		long m_value;
+	}
+
+	public void testClassWalkers() {
+		ObjectProfiler.ClassMetadata metadata = ObjectProfiler.getClassMetadata(WalkedNode.class);
+		ClassWalkers.ClassWalker walker = ClassWalkers.generate(metadata);
+		if (walker == null) {
+			System.out.println("Class walkers not supported: " + System.getProperty("java.version"));
+			return;
+		}
+		WalkedNode node = new WalkedNode();
+		IdentitySet visited = new IdentitySet(0);
+		ObjectStack stack = new ObjectStack();
+		visited.add(node);
+		ClassHistogram histogram = new ClassHistogram();
+		// the leaf is sized right away, the array is queued
+		long size = walker.walk(node, new ObjectProfiler.SequentialTraversal(visited, stack, null, histogram));
+		assertEquals(metadata.m_shellSize + ObjectProfiler.sizeof(node.m_leaf), size);
+		assertEquals(1, stack.size());
+		assertSame(node.m_child, stack.get(0));
+		assertEquals(3, visited.size());
+		assertEquals(1, histogram.getTotalCount());
+		// already visited
+		assertEquals(metadata.m_shellSize, walker.walk(node, new ObjectProfiler.SequentialTraversal(visited, stack, null, null)));
+		assertEquals(1, stack.size());
+	}
+
+	public void testStatistics() throws Exception {
+		SizeOfStatistics statistics = SizeOfStatistics.getInstance();
+		javax.management.MBeanServer server = java.lang.management.ManagementFactory.getPlatformMBeanServer();
+		javax.management.ObjectName name = new javax.management.ObjectName(SizeOfStatistics.getObjectName());
+		assertFalse(server.isRegistered(name)); // opt-in
+		SizeOfStatisticsListener listener = new SizeOfStatisticsListener();
+		listener.contextInitialized(null);
+		assertTrue(server.isRegistered(name));
+		listener.contextDestroyed(null);
+		assertFalse(server.isRegistered(name));
+		// an MBean registered by someone else under the same name is left alone
+		server.registerMBean(new javax.management.StandardMBean(statistics, SizeOfStatisticsMBean.class), name);
+		try {
+			SizeOfStatistics.register();
+			SizeOfStatistics.unregister();
+			assertTrue(server.isRegistered(name));
+		} finally {
+			server.unregisterMBean(name);
+		}
+
+		statistics.reset();
+		List<Object> list = new ArrayList<Object>();
+		for (int i = 0; i < 100; ++i) {
+			list.add(new Object());
+		}
+		long size = ObjectProfiler.sizeof(list);
+		ObjectProfiler.sizeof(list, (SizeOfBudget) null);
+		assertEquals(2, statistics.getCallCount());
+		assertEquals(2 * size, statistics.getByteCount());
+		assertEquals(2 * 102, statistics.getObjectCount()); // list, array, elements
+		assertEquals(102, statistics.getPeakVisitedSetSize());
+		// actual lookups of sizeof(Object): the list when sized, each element when visited (a leaf: sized right away)
+		assertEquals(1 + 100, statistics.getMetadataCacheHitCount());
+		long calls = 0;
+		long[] histogram = statistics.getDurationHistogram();
+		for (int i = 0; i < histogram.length; ++i) {
+			calls += histogram[i];
+		}
+		assertEquals(2, calls);
+		assertTrue(statistics.getMaxTimeMicros() <= statistics.get99thPercentileTimeMicros());
+		assertTrue(statistics.getMedianTimeMicros() <= statistics.get99thPercentileTimeMicros());
+
+		statistics.reset();
+		assertEquals(0, statistics.getCallCount());
+		assertEquals(0, statistics.getPeakVisitedSetSize());
+	}
+
 	public void testSunBuggyJVM() {
 		for (int i = 0; i < sunProblematicClasses.length; ++i) {
 			Class<?> clazz = sunProblematicClasses[i];
@@ -0,0 +1,95 @@
+/**
+ *
+ */
+package clime.messadmin.providers.sizeof;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * @author C&eacute;drik LIME
+ */
+public class SerializedSizeOfTest extends TestCase {
+
+	/**
+	 * Constructor for SerializedSizeOfTest.
+	 * @param name
+	 */
+	public SerializedSizeOfTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(SerializedSizeOfTest.class);
+	}
+
+	private static long serializedSize(Object obj) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeObject(obj);
+		oos.close();
+		return bytes.size();
+	}
+
+	public void testSizeof() throws IOException {
+		assertEquals(0, SerializedSizeOf.sizeof(null, null).getSize());
+		List<Object> list = new ArrayList<Object>();
+		for (int i = 0; i < 1000; ++i) {
+			list.add(new Date(i));
+			list.add("item " + i);
+		}
+		SerializedSizeResult result = SerializedSizeOf.sizeof(list, null);
+		assertEquals(serializedSize(list), result.getSize());
+		assertFalse(result.isPartial());
+		assertEquals(1, result.getEntries().size());
+		assertTrue(result.getEntries().get(0).isComplete());
+		assertEquals(serializedSize(list), new SerializedSizeOfProvider().sizeof(list));
+	}
+
+	public void testSizeofAttributes() throws IOException {
+		Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+		attributes.put("date", new Date());
+		attributes.put("notSerializable", new Object());
+		attributes.put("string", "value");
+		SerializedSizeResult result = SerializedSizeOf.sizeofAttributes(attributes, null);
+		assertFalse(result.isPartial());
+		assertEquals(serializedSize(attributes.get("date")) + serializedSize("value"), result.getSize());
+		assertEquals(3, result.getEntries().size());
+		assertEquals("date", result.getEntries().get(0).getName());
+		assertTrue(result.getEntries().get(0).isComplete());
+		assertEquals(1, result.getErrors().size());
+		SerializedSizeResult.Entry error = result.getErrors().get(0);
+		assertEquals("notSerializable", error.getName());
+		assertFalse(error.isComplete());
+		assertTrue(error.getError(), error.getError().startsWith("java.io.NotSerializableException"));
+		assertEquals(serializedSize("value"), result.getEntries().get(2).getSize());
+
+		assertEquals(-1, new SerializedSizeOfProvider().sizeof(new Object[] {new Object()}));
+	}
+
+	public void testBudget() {
+		Map<String, Object> attributes = new LinkedHashMap<String, Object>();
+		attributes.put("small", "value");
+		attributes.put("large", new byte[100000]);
+		attributes.put("other", "value");
+		SerializedSizeResult result = SerializedSizeOf.sizeofAttributes(attributes, new SizeOfBudget(0, 10000, 0));
+		assertTrue(result.isPartial());
+		assertTrue(result.getEntries().get(0).isComplete());
+		assertFalse(result.getEntries().get(1).isComplete());
+		assertFalse(result.getEntries().get(2).isComplete());
+		assertEquals(0, result.getEntries().get(2).getSize());
+		assertTrue(result.getErrors().isEmpty());
+
+		SizeOfBudget cancelled = new SizeOfBudget(0, 0, 0);
+		cancelled.cancel();
+		assertTrue(SerializedSizeOf.sizeof(new byte[100000], cancelled).isPartial());
+	}
+}
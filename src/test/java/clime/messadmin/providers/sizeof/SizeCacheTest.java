@@ -0,0 +1,146 @@
+/**
+ *
+ */
+package clime.messadmin.providers.sizeof;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * @author C&eacute;drik LIME
+ */
+public class SizeCacheTest extends TestCase {
+
+	/**
+	 * Constructor for SizeCacheTest.
+	 * @param name
+	 */
+	public SizeCacheTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(SizeCacheTest.class);
+	}
+
+	public void testGetPut() {
+		SizeCache cache = new SizeCache(60000);
+		String s1 = new String("a");
+		String s2 = new String("a");
+		assertEquals(SizeCache.NO_SIZE, cache.get(s1));
+		cache.put(cache.begin(s1), 40);
+		assertEquals(40, cache.get(s1));
+		assertEquals(SizeCache.NO_SIZE, cache.get(s2)); // identity, not equality
+		cache.put(cache.begin(s1), 48);
+		assertEquals(48, cache.get(s1));
+		assertEquals(1, cache.size());
+		cache.put(cache.begin(null), 0);
+		assertEquals(SizeCache.NO_SIZE, cache.get(null));
+	}
+
+	public void testGrowth() {
+		SizeCache cache = new SizeCache(60000);
+		Object[] objects = new Object[1000];
+		for (int i = 0; i < objects.length; ++i) {
+			objects[i] = new Object();
+			cache.put(cache.begin(objects[i]), i);
+		}
+		assertEquals(objects.length, cache.size());
+		for (int i = 0; i < objects.length; ++i) {
+			assertEquals(i, cache.get(objects[i]));
+		}
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(SizeCache.NO_SIZE, cache.get(objects[0]));
+	}
+
+	public void testInvalidate() {
+		SizeCache cache1 = new SizeCache(60000);
+		SizeCache cache2 = new SizeCache(60000);
+		Object key = new Object();
+		cache1.put(cache1.begin(key), 16);
+		cache2.put(cache2.begin(key), 16);
+		assertTrue(cache1.invalidate(key));
+		assertFalse(cache1.invalidate(key));
+		assertEquals(SizeCache.NO_SIZE, cache1.get(key));
+		assertEquals(16, cache2.get(key));
+		cache1.put(cache1.begin(key), 16);
+		SizeCache.invalidateAll(key);
+		assertEquals(SizeCache.NO_SIZE, cache1.get(key));
+		assertEquals(SizeCache.NO_SIZE, cache2.get(key));
+	}
+
+	public void testStaleness() throws InterruptedException {
+		SizeCache cache = new SizeCache(0); // disabled
+		Object key = new Object();
+		cache.put(cache.begin(key), 16);
+		assertEquals(SizeCache.NO_SIZE, cache.get(key));
+		cache.setMaxStaleness(5);
+		cache.put(cache.begin(key), 16);
+		assertEquals(16, cache.get(key));
+		Thread.sleep(20);
+		assertEquals(SizeCache.NO_SIZE, cache.get(key));
+		assertEquals(0, cache.size());
+	}
+
+	public void testLastKnown() {
+		SizeCache cache = new SizeCache(60000);
+		List<Object> list = new ArrayList<Object>();
+		assertEquals(SizeCache.NO_SIZE, cache.getLastKnown(list));
+		assertFalse(cache.isFresh(list));
+		cache.put(cache.begin(list), 24);
+		assertTrue(cache.isFresh(list));
+		list.add(new Object());
+		assertFalse(cache.isFresh(list));
+		assertEquals(24, cache.getLastKnown(list));
+		cache.put(cache.begin(list), 40);
+		SizeCache.invalidateAll(list);
+		assertFalse(cache.isFresh(list));
+		assertEquals(40, cache.getLastKnown(list));
+	}
+
+	public void testFingerprint() {
+		SizeCache cache = new SizeCache(60000);
+		List<Object> list = new ArrayList<Object>();
+		cache.put(cache.begin(list), 24);
+		assertEquals(24, cache.get(list));
+		list.add(new Object());
+		assertEquals(SizeCache.NO_SIZE, cache.get(list));
+	}
+
+	public void testChangeWhileSizing() {
+		SizeCache cache = new SizeCache(60000);
+		List<Object> list = new ArrayList<Object>();
+		cache.put(cache.begin(list), 24);
+		// invalidated while sizing: not stored
+		SizeCache.Sizing sizing = cache.begin(list);
+		SizeCache.invalidateAll(list);
+		cache.put(sizing, 40);
+		assertFalse(cache.isFresh(list));
+		assertEquals(24, cache.getLastKnown(list));
+		// invalidated before sizing: stored
+		cache.put(cache.begin(list), 40);
+		assertEquals(40, cache.get(list));
+		// modified while sizing: stored, but not fresh
+		sizing = cache.begin(list);
+		list.add(new Object());
+		cache.put(sizing, 48);
+		assertFalse(cache.isFresh(list));
+		assertEquals(48, cache.getLastKnown(list));
+	}
+
+	public void testProvider() {
+		ObjectProfilerProvider provider = new ObjectProfilerProvider();
+		List<Object> list = new ArrayList<Object>();
+		list.add(new Object[] {new Object()});
+		long size = provider.sizeof(list);
+		assertEquals(ObjectProfiler.sizeof(list), size);
+		assertEquals(size, provider.sizeof(list));
+		list.add(new Object()); // detected by the fingerprint
+		assertEquals(ObjectProfiler.sizeof(list), provider.sizeof(list));
+		assertEquals(0, provider.sizeof(null));
+	}
+
+}
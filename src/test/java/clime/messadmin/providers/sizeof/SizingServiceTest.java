@@ -0,0 +1,151 @@
+/**
+ *
+ */
+package clime.messadmin.providers.sizeof;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * @author C&eacute;drik LIME
+ */
+public class SizingServiceTest extends TestCase {
+
+	/**
+	 * Constructor for SizingServiceTest.
+	 * @param name
+	 */
+	public SizingServiceTest(String name) {
+		super(name);
+	}
+
+	public static void main(String[] args) {
+		junit.textui.TestRunner.run(SizingServiceTest.class);
+	}
+
+	public void testGetSize() throws Exception {
+		SizingService service = new SizingService(1, 100, 10, 5000);
+		try {
+			List<Object> list = new ArrayList<Object>();
+			list.add(new Object());
+			assertEquals(0, service.getSize(null));
+			assertEquals(ObjectProfiler.sizeof(list), service.getSize(list));
+			assertEquals(0, service.getPendingCount());
+			assertEquals(ObjectProfiler.sizeof(list), service.getSize(list)); // cached
+
+			// outdated: last known size until refreshed
+			long lastKnown = service.getLastKnownSize(list);
+			list.add(new Object());
+			assertEquals(lastKnown, service.getLastKnownSize(list));
+			Future<Long> future = service.refresh(list);
+			assertEquals(ObjectProfiler.sizeof(list), future.get(5, TimeUnit.SECONDS).longValue());
+			assertEquals(ObjectProfiler.sizeof(list), service.getLastKnownSize(list));
+		} finally {
+			service.shutdown();
+		}
+	}
+
+	public void testBackPressure() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		SizingService service = new SizingService(1, 100, 1, 0) {
+			@Override
+			protected long computeSize(Object obj) {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				return 42;
+			}
+		};
+		try {
+			Object running = new Object();
+			Object queued = new Object();
+			Object rejected = new Object();
+			Future<Long> runningFuture = service.refresh(running);
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			assertSame(runningFuture, service.refresh(running)); // coalesced
+			Future<Long> queuedFuture = service.refresh(queued);
+			assertEquals(2, service.getPendingCount());
+			// queue full: does not wait
+			Future<Long> rejectedFuture = service.refresh(rejected);
+			assertTrue(rejectedFuture.isDone());
+			assertEquals(-1, rejectedFuture.get().longValue());
+			assertEquals(-1, service.getSize(rejected));
+
+			release.countDown();
+			assertEquals(42, runningFuture.get(5, TimeUnit.SECONDS).longValue());
+			assertEquals(42, queuedFuture.get(5, TimeUnit.SECONDS).longValue());
+			assertEquals(42, service.getSize(running));
+		} finally {
+			release.countDown();
+			service.shutdown();
+		}
+	}
+
+	public void testFailedRefresh() throws Exception {
+		final AtomicInteger calls = new AtomicInteger();
+		SizingService service = new SizingService(1, 100, 10, 5000) {
+			@Override
+			protected long computeSize(Object obj) {
+				return (calls.incrementAndGet() == 1) ? 42 : -1;
+			}
+		};
+		try {
+			List<Object> list = new ArrayList<Object>();
+			assertEquals(42, service.getSize(list));
+			list.add(new Object()); // outdated
+			assertEquals(42, service.getSize(list)); // refresh failed: last known size
+			assertEquals(2, calls.get());
+			assertEquals(-1, service.refresh(list).get(5, TimeUnit.SECONDS).longValue());
+		} finally {
+			service.shutdown();
+		}
+	}
+
+	public void testShutdown() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		SizingService service = new SizingService(1, 100, 10, 0) {
+			@Override
+			protected long computeSize(Object obj) {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				return 42;
+			}
+		};
+		try {
+			Future<Long> runningFuture = service.refresh(new Object());
+			assertTrue(started.await(5, TimeUnit.SECONDS));
+			Future<Long> queuedFuture = service.refresh(new Object());
+			service.shutdown();
+			assertEquals(0, service.getPendingCount());
+			// no future is left waiting for a task which will never run
+			assertTrue(queuedFuture.isCancelled());
+			assertTrue(runningFuture.isDone());
+			try {
+				queuedFuture.get(5, TimeUnit.SECONDS);
+				fail("CancellationException expected");
+			} catch (CancellationException expected) {
+			}
+			assertEquals(-1, service.getSize(new Object())); // rejected: last known size
+		} finally {
+			release.countDown();
+			service.shutdown();
+		}
+	}
+
+}